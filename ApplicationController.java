@@ -1,13 +1,26 @@
 package awesomecars;
 
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
+import awesomecars.beans.AdvancedSearch;
 import awesomecars.beans.Dealership;
 import awesomecars.beans.Vehicle;
 import awesomecars.model.DealershipRepository;
+import awesomecars.model.InventoryExport;
+import awesomecars.model.InventoryRepository;
+import awesomecars.model.SavedSearch;
+import awesomecars.model.SavedSearchRepository;
+import awesomecars.model.SearchPercolator;
 import awesomecars.model.VehicleRepository;
+import awesomecars.monitoring.RequestTrace;
+import awesomecars.monitoring.Span;
+import awesomecars.persistence.CircuitBreakerDatabaseAdapter;
 
 /**
  * Plays the GRASP role of Controller, forwarding request from View objects
@@ -17,6 +30,7 @@ import awesomecars.model.VehicleRepository;
  * @author Travis
  *
  */
+@SuppressWarnings("try")
 public final class ApplicationController {
 
     /**
@@ -27,6 +41,17 @@ public final class ApplicationController {
 	    super();
 	}
 
+	/**
+	 * Tells the view whether any results shown for the current request
+	 * are the last known good results served while the database was
+	 * failing, so the page can say they may be out of date.
+	 *
+	 * @return true if the current request was served stale results
+	 */
+	public static boolean isStaleResponse() {
+	    return CircuitBreakerDatabaseAdapter.isStale();
+	}
+
 	/**
 	 * Forwards request for basic search results from the view to the
 	 * VehicleRepository model object.
@@ -36,7 +61,10 @@ public final class ApplicationController {
 	 */
 	public static List<Vehicle> getBasicSearchResults(
 			final String searchString) {
-		return VehicleRepository.searchVehiclesBasic(searchString);
+	    try (Span span = RequestTrace.span(
+	            "controller.getBasicSearchResults")) {
+	        return VehicleRepository.searchVehiclesBasic(searchString);
+	    }
 	}	// end getSearchResults(...)
 	
 	/**
@@ -49,7 +77,10 @@ public final class ApplicationController {
 	 */
 	public static Vehicle getVehicleDetailsUsed(
 	        final String vin) {
-		return VehicleRepository.getUsedVehicle(vin);
+	    try (Span span = RequestTrace.span(
+	            "controller.getVehicleDetailsUsed")) {
+	        return VehicleRepository.getUsedVehicle(vin);
+	    }
 	}	// end getVehicleDetails(...)
 
 	/**
@@ -64,7 +95,10 @@ public final class ApplicationController {
 	 */
 	public static Vehicle getVehicleDetailsNew(
 	        final String model) {
-		return VehicleRepository.getNewVehicle(model);
+	    try (Span span = RequestTrace.span(
+	            "controller.getVehicleDetailsNew")) {
+	        return VehicleRepository.getNewVehicle(model);
+	    }
 	}	// end getVehicleDetails(...)
 	
 	/**
@@ -76,7 +110,10 @@ public final class ApplicationController {
 	 */
 	public static List<Vehicle> getCategorySearchResults(
 	        final String model) {
-		return VehicleRepository.searchVehiclesCategory(model);
+	    try (Span span = RequestTrace.span(
+	            "controller.getCategorySearchResults")) {
+	        return VehicleRepository.searchVehiclesCategory(model);
+	    }
 	}
 	
 	/**
@@ -87,7 +124,66 @@ public final class ApplicationController {
 	 * @return ArrayList of details on each store (Dealership)
 	 */
 	public static List<Dealership> getAllStoreDetails() {
-		return DealershipRepository.getAllStoreDetails();
+	    try (Span span = RequestTrace.span(
+	            "controller.getAllStoreDetails")) {
+	        return DealershipRepository.getAllStoreDetails();
+	    }
+	}
+		
+	/**
+	 * Forwards request for the dealerships nearest a ZIP code to the
+	 * DealershipRepository, which answers it in-process.
+	 * 
+	 * @param zip the ZIP code
+	 * @param n number of dealerships wanted
+	 * @return up to n dealerships, nearest first
+	 */
+	public static List<Dealership> getNearestStores(final int zip,
+	        final int n) {
+	    try (Span span = RequestTrace.span(
+	            "controller.getNearestStores")) {
+	        return DealershipRepository.getNearestStores(zip, n);
+	    }
+	}
+	
+	/**
+	 * Forwards request for the vehicles most like a used vehicle to the
+	 * in-memory InventoryRepository.
+	 * 
+	 * @param vin the vehicle's VIN
+	 * @param n number of vehicles wanted
+	 * @return up to n in-stock vehicles, most similar first (none until
+	 *         the inventory has been loaded)
+	 */
+	public static List<Vehicle> getSimilarVehiclesUsed(final String vin,
+	        final int n) {
+	    try (Span span = RequestTrace.span(
+	            "controller.getSimilarVehiclesUsed")) {
+	        if (!InventoryRepository.isLoaded()) {
+	            return new ArrayList<Vehicle>();
+	        }
+	        return InventoryRepository.similarToVin(vin, n);
+	    }
+	}
+	
+	/**
+	 * Forwards request for the vehicles of other models most like a new
+	 * model to the in-memory InventoryRepository.
+	 * 
+	 * @param model the model name
+	 * @param n number of vehicles wanted
+	 * @return up to n in-stock vehicles, most similar first (none until
+	 *         the inventory has been loaded)
+	 */
+	public static List<Vehicle> getSimilarVehiclesNew(final String model,
+	        final int n) {
+	    try (Span span = RequestTrace.span(
+	            "controller.getSimilarVehiclesNew")) {
+	        if (!InventoryRepository.isLoaded()) {
+	            return new ArrayList<Vehicle>();
+	        }
+	        return InventoryRepository.similarToModel(model, n);
+	    }
 	}
 		
 	/**
@@ -99,6 +195,85 @@ public final class ApplicationController {
 	 */
 	public static List<Vehicle> getAdvancedSearchResults(
 	        final HttpServletRequest request) {	    
-	    return VehicleRepository.searchVehiclesAdvanced(request);
+	    return getAdvancedSearchResults(request.getParameterMap());
+	}
+	
+	/**
+	 * Forwards request for advanced search results to the
+     * VehicleRepository model object. Used when there is no HTTP request,
+     * e.g. by the JIT warm-up.
+     *  
+	 * @param params search parameters (name to values)
+	 * @return ArrayList of vehicle results
+	 */
+	public static List<Vehicle> getAdvancedSearchResults(
+	        final Map<String, String[]> params) {
+	    try (Span span = RequestTrace.span(
+	            "controller.getAdvancedSearchResults")) {
+	        return VehicleRepository.searchVehiclesAdvanced(params);
+	    }
+	}
+	
+	/**
+	 * Forwards request for a streamed export of the inventory to the
+	 * VehicleRepository.
+	 * 
+	 * @param params advanced search parameters (null for every vehicle)
+	 * @param export the export to write to
+	 * @return number of rows written
+	 * @throws SQLException if the database query fails
+	 * @throws IOException if the export cannot be written
+	 */
+	public static long exportVehicles(final Map<String, String[]> params,
+	        final InventoryExport export) throws SQLException, IOException {
+	    try (Span span = RequestTrace.span("controller.exportVehicles")) {
+	        return VehicleRepository.exportVehicles(
+	                params == null ? null : new AdvancedSearch(params),
+	                export);
+	    }
+	}
+	
+	/**
+	 * Saves the advanced search in an HTTP request so its owner is alerted
+	 * when a matching vehicle arrives or is repriced.
+	 * 
+	 * @param owner who to alert (e.g. an e-mail address)
+	 * @param request HTTP request holding the search parameters
+	 * @return the saved search's id, or -1 if it could not be saved
+	 */
+	public static long saveSearch(final String owner,
+	        final HttpServletRequest request) {
+	    try (Span span = RequestTrace.span("controller.saveSearch")) {
+	        SavedSearch s = SavedSearchRepository.save(owner,
+	                request.getParameterMap());
+	        return s.getId();
+	    } catch (IOException e) {
+	        System.out.println("Error saving search: " + e.getMessage());
+	        return -1L;
+	    }
+	}
+	
+	/**
+	 * Deletes one of an owner's saved searches.
+	 * 
+	 * @param owner the search's owner
+	 * @param id the saved search's id
+	 * @return true if it was deleted
+	 */
+	public static boolean deleteSavedSearch(final String owner,
+	        final long id) {
+	    try (Span span = RequestTrace.span(
+	            "controller.deleteSavedSearch")) {
+	        SearchPercolator searches = SavedSearchRepository.getPercolator();
+	        SavedSearch s = searches == null ? null : searches.get(id);
+	        if (s == null || !s.getOwner().equals(owner)) {
+	            return false;
+	        }
+	        return SavedSearchRepository.delete(id);
+	    } catch (IOException e) {
+	        System.out.println("Error deleting saved search: " 
+	                + e.getMessage());
+	        return false;
+	    }
 	}
 }	// end class ApplicationController
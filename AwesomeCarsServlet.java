@@ -3,8 +3,17 @@
  */
 package awesomecars;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletConfig;
@@ -13,11 +22,28 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.model.AlertOutbox;
 import awesomecars.model.CarWebAppCache;
 import awesomecars.model.DealershipRepository;
+import awesomecars.model.InventoryExport;
+import awesomecars.model.InventoryRepository;
+import awesomecars.model.InventorySync;
+import awesomecars.model.OffHeapVehicleStore;
+import awesomecars.model.SavedSearchRepository;
+import awesomecars.model.SearchReadModel;
+import awesomecars.model.ZipCentroids;
 import awesomecars.model.VehicleRepository;
+import awesomecars.monitoring.RequestTrace;
+import awesomecars.monitoring.Span;
+import awesomecars.monitoring.TraceLog;
+import awesomecars.persistence.CircuitBreakerDatabaseAdapter;
+import awesomecars.persistence.Deadline;
 import awesomecars.persistence.IDatabaseAdapter;
 import awesomecars.persistence.MySQLDatabaseAdapter;
+import awesomecars.persistence.RecordingDatabaseAdapter;
+import awesomecars.persistence.ReplayDatabaseAdapter;
+import awesomecars.persistence.ShardedDatabaseAdapter;
 
 /**
  * Entry point for the AwesomeCarsWebApp. Performs initialization of the
@@ -27,6 +53,7 @@ import awesomecars.persistence.MySQLDatabaseAdapter;
  * @author Travis
  *
  */
+@SuppressWarnings("try")
 public class AwesomeCarsServlet extends javax.servlet.http.HttpServlet
 	implements javax.servlet.Servlet {
 	
@@ -34,6 +61,60 @@ public class AwesomeCarsServlet extends javax.servlet.http.HttpServlet
      * Required to implement the Serializable interface.
      */
 	private static final long serialVersionUID = 1L;
+	
+	/** Delay between attempts to load the cache from the database. */
+	private static final long CACHE_RETRY_MILLIS = 5000L;
+	
+	/** Default time budget for the JIT warm-up. */
+	private static final long DEFAULT_WARMUP_MILLIS = 60000L;
+	
+	/** Delay between checks for the warm-up's prerequisites. */
+	private static final long WARMUP_POLL_MILLIS = 100L;
+	
+	/** Default seconds between inventory change polls. */
+	private static final long DEFAULT_SYNC_SECONDS = 60L;
+	
+	/** Default seconds between read replica lag checks. */
+	private static final long DEFAULT_REPLICA_CHECK_SECONDS = 10L;
+	
+	/** Default seconds between search read model refreshes. */
+	private static final long DEFAULT_READ_MODEL_SECONDS = 60L;
+	
+	/** Default milliseconds of database work allowed per request. */
+	private static final long DEFAULT_BUDGET_MILLIS = 5000L;
+	
+	/** Default budgets of the actions that differ from the default. */
+	private static final String DEFAULT_ACTION_BUDGETS = "home=2000,"
+	        + "advancedSearch=2000,getDetailsUsed=3000,getDetailsNew=3000,"
+	        + "locations=3000,advancedResults=10000,export=600000";
+	
+	/** Milliseconds of database work allowed per request, by action. */
+	private final transient Map<String, Long> budgets =
+	        new HashMap<String, Long>();
+	
+	/** The database, with any read replicas (null if sharded). */
+	private transient MySQLDatabaseAdapter replicated = null;
+	
+	/** Shards the inventory if the "dbShardURLs" parameter is set. */
+	private transient ShardedDatabaseAdapter sharded = null;
+	
+	/** Records database traffic if the "dbRecordFile" parameter is set. */
+	private transient RecordingDatabaseAdapter recorder = null;
+	
+	/** Guards database calls unless "circuitBreakers" is false. */
+	private transient CircuitBreakerDatabaseAdapter breakers = null;
+	
+	/** Readiness of each component initialized in the background. */
+	private final transient ReadinessState readiness = new ReadinessState();
+	
+	/** Runs the parallel initialization tasks. */
+	private transient ExecutorService startupExecutor = null;
+	
+	/** Applies database changes to the in-memory inventory (or null). */
+	private transient volatile InventorySync inventorySync = null;
+	
+	/** Maintains the flattened search table (or null). */
+	private transient SearchReadModel searchReadModel = null;
 
 	/**
 	 * Default constructor simply calls the superclass's constructor.
@@ -45,7 +126,10 @@ public class AwesomeCarsServlet extends javax.servlet.http.HttpServlet
 	/**
 	 * Retrieves initialization parameters and creates important objects
 	 * such as the DatabaseAdapter and the lists needed to generate the
-	 * advanced search form and navigation pane.
+	 * advanced search form and navigation pane. The slow parts (loading
+	 * the cache and warming up the JDBC driver and connection) run in
+	 * parallel on a background executor, and init returns without waiting
+	 * for them; the "ready" action reports when they have all finished.
 	 * @param config ServletConfig object from Tomcat
 	 * @throws ServletException ServletException
 	 */
@@ -53,40 +137,634 @@ public class AwesomeCarsServlet extends javax.servlet.http.HttpServlet
 		System.out.println("*** initializing servlet.");
 		super.init(config);
 		
+		// request tracing is enabled only if a trace directory is given
+		initTracing(config);
+		initBudgets(config);
+		
 		// instantiates the database adapter and initializes it with
 		// database information stored in the web.xml file.
-		IDatabaseAdapter vehicleDB = new MySQLDatabaseAdapter(
-				config.getInitParameter("dbURL"),
-				config.getInitParameter("dbReadUserName"),
-				config.getInitParameter("dbReadPassword"),
-				config.getInitParameter("dbWriteUserName"),
-				config.getInitParameter("dbWritePassword")
-				);
+		// Background jobs use the database directly; only request
+		// traffic goes through the circuit breakers, so a job never
+		// builds on a stale result.
+		IDatabaseAdapter directDB = initRecordReplay(config,
+		        initDatabase(config));
+		IDatabaseAdapter vehicleDB = initCircuitBreakers(config, directDB);
 		
-		// initialize the CarWebAppCache singleton and repositories
-		try {
-		    CarWebAppCache.getInstance().initCache(vehicleDB);
-		} catch (SQLException e) {
-		    System.err.println("Unable to init web app cache.");
-		}
+		// background threads for the parallel initialization tasks; one
+		// thread per task, as tasks block on each other (the cache load
+		// waits on a nested task, the warm-up on the cache)
+		startupExecutor = Executors.newCachedThreadPool(
+		        new ThreadFactory() {
+		    private int count = 0;
+		    
+		    @Override
+		    public synchronized Thread newThread(final Runnable r) {
+		        Thread t = new Thread(r, "awesomecars-init-" + (++count));
+		        t.setDaemon(true);
+		        return t;
+		    }
+		});
+		
+		// initialize the CarWebAppCache singleton, the JDBC driver and
+		// the repositories
+		readiness.register("jdbc");
+		readiness.register("cache");
+		initJdbc(config.getInitParameter("jdbcDriver"), directDB);
+		initCache(config, directDB);
+		initInventory(config, directDB);
+		initSavedSearches(config);
 		DealershipRepository.initRepository(vehicleDB);
+		initGeo(config);
 		VehicleRepository.initRepository(vehicleDB);
+		initSearchReadModel(config, directDB);
+		initWarmUp(config);
 		
 		// saves the base and image URLs as servlet attributes
 		// as well as the reference to the vehicle Database adapter
 		ServletContext context = config.getServletContext();
 		context.setAttribute("base", config.getInitParameter("base"));
 		context.setAttribute("imageURL", config.getInitParameter("imageURL"));
-		
-		// load the database JDBC driver (connector J)
-		try {
-			Class.forName(config.getInitParameter("jdbcDriver"));
-			System.out.println("*** jdbcDriverLoaded.");
-		} catch (ClassNotFoundException e) {
-			System.out.println(e.toString());
-		}
+		context.setAttribute("readiness", readiness);
 	}	// end init(...)
 	
+	/**
+	 * Creates the MySQL database adapter for "dbURL", or, if the
+	 * "dbShardURLs" init parameter lists several comma-separated URLs, a
+	 * ShardedDatabaseAdapter over one MySQL adapter per shard. Every
+	 * shard uses the same credentials. An unsharded database reads from
+	 * the comma-separated "dbReplicaURLs" if set, hedging slow reads if
+	 * "dbHedgedReads" is true, and checks the replicas' lag every
+	 * "dbReplicaCheckSeconds" (default 10).
+	 * @param config ServletConfig object from Tomcat
+	 * @return the database adapter
+	 */
+	private IDatabaseAdapter initDatabase(final ServletConfig config) {
+	    String shardParam = config.getInitParameter("dbShardURLs");
+	    String[] urls = shardParam == null || shardParam.trim().isEmpty()
+	            ? new String[] {config.getInitParameter("dbURL")}
+	            : splitList(shardParam);
+	    if (urls.length == 1) {
+	        String replicaParam = config.getInitParameter("dbReplicaURLs");
+	        List<String> replicas = replicaParam == null 
+	                || replicaParam.trim().isEmpty() ? new ArrayList<String>()
+	                : Arrays.asList(splitList(replicaParam));
+	        String checkParam = config.getInitParameter(
+	                "dbReplicaCheckSeconds");
+	        replicated = new MySQLDatabaseAdapter(urls[0], replicas,
+	                Boolean.parseBoolean(
+	                        config.getInitParameter("dbHedgedReads")),
+	                config.getInitParameter("dbReadUserName"),
+	                config.getInitParameter("dbReadPassword"),
+	                config.getInitParameter("dbWriteUserName"),
+	                config.getInitParameter("dbWritePassword"));
+	        if (!replicas.isEmpty()) {
+	            replicated.startReplicaChecks(
+	                    checkParam == null || checkParam.isEmpty()
+	                    ? DEFAULT_REPLICA_CHECK_SECONDS
+	                    : Long.parseLong(checkParam));
+	        }
+	        return replicated;
+	    }
+	    List<IDatabaseAdapter> dbs = new ArrayList<IDatabaseAdapter>();
+	    for (String url : urls) {
+	        dbs.add(new MySQLDatabaseAdapter(url,
+	                config.getInitParameter("dbReadUserName"),
+	                config.getInitParameter("dbReadPassword"),
+	                config.getInitParameter("dbWriteUserName"),
+	                config.getInitParameter("dbWritePassword")));
+	    }
+	    sharded = new ShardedDatabaseAdapter(dbs);
+	    System.out.println("*** inventory sharded over " + dbs.size()
+	            + " databases");
+	    return sharded;
+	}  // end initDatabase(...)
+	
+	/**
+	 * @param list comma-separated values
+	 * @return the values, trimmed
+	 */
+	private static String[] splitList(final String list) {
+	    return list.trim().split("\\s*,\\s*");
+	}
+	
+	/**
+	 * Loads the database JDBC driver (connector J) and opens a first
+	 * connection in the background so the first request does not pay for
+	 * either. When sharded, also reads which stores each shard holds.
+	 * Database errors are retried until the database answers; a missing
+	 * driver class is not.
+	 * @param driver JDBC driver class name (null or empty to skip loading)
+	 * @param db the database adapter
+	 */
+	private void initJdbc(final String driver, final IDatabaseAdapter db) {
+	    startupExecutor.submit(new Runnable() {
+	        @Override
+	        public void run() {
+	            if (driver != null && !driver.isEmpty()) {
+	                try {
+	                    Class.forName(driver);
+	                    System.out.println("*** jdbcDriverLoaded.");
+	                } catch (ClassNotFoundException e) {
+	                    System.out.println(e.toString());
+	                    readiness.markFailed("jdbc", e.toString());
+	                    return;
+	                }
+	            }
+	            while (true) {
+	                try {
+	                    if (db instanceof MySQLDatabaseAdapter) {
+	                        ((MySQLDatabaseAdapter) db).warmUp();
+	                    }
+	                    if (sharded != null) {
+	                        sharded.refreshStores();
+	                    }
+	                    readiness.markReady("jdbc");
+	                    return;
+	                } catch (SQLException e) {
+	                    System.out.println(e.toString());
+	                    readiness.markFailed("jdbc", e.toString());
+	                }
+	                try {
+	                    Thread.sleep(CACHE_RETRY_MILLIS);
+	                } catch (InterruptedException e) {
+	                    return;
+	                }
+	            }
+	        }
+	    });
+	}  // end initJdbc(...)
+	
+	/**
+	 * Initializes the CarWebAppCache in the background. If the
+	 * "cacheSnapshotFile" init parameter names an existing snapshot, the
+	 * cache is served from it immediately and then reconciled with the
+	 * database, so becoming ready does not wait on the database. Otherwise
+	 * the cache is loaded from the database (retrying until it succeeds)
+	 * and, if a snapshot file is configured, saved for the next start.
+	 * @param config ServletConfig object from Tomcat
+	 * @param db the database adapter
+	 */
+	private void initCache(final ServletConfig config,
+	        final IDatabaseAdapter db) {
+	    String snapshotParam = config.getInitParameter("cacheSnapshotFile");
+	    final File snapshot = snapshotParam == null || snapshotParam.isEmpty()
+	            ? null : new File(snapshotParam);
+	    
+	    startupExecutor.submit(new Runnable() {
+	        @Override
+	        public void run() {
+	            CarWebAppCache cache = CarWebAppCache.getInstance();
+	            boolean fromSnapshot = false;
+	            if (snapshot != null) {
+	                try {
+	                    fromSnapshot = cache.loadSnapshot(snapshot);
+	                } catch (IOException e) {
+	                    System.err.println("Unable to load cache snapshot: "
+	                            + e.getMessage());
+	                }
+	            }
+	            if (fromSnapshot) {
+	                System.out.println("*** web app cache loaded from "
+	                        + "snapshot " + cache.getVersion());
+	                readiness.markReady("cache");
+	            }
+	            
+	            // load (or reconcile the snapshot) from the database
+	            while (!refreshCache(cache, db, snapshot)) {
+	                if (!fromSnapshot) {
+	                    readiness.markFailed("cache", "database unavailable");
+	                }
+	                try {
+	                    Thread.sleep(CACHE_RETRY_MILLIS);
+	                } catch (InterruptedException e) {
+	                    return;
+	                }
+	            }
+	            readiness.markReady("cache");
+	        }
+	    });
+	}  // end initCache(...)
+	
+	/**
+	 * Loads the ZIP code centroid table named by the "zipCentroidFile"
+	 * init parameter (or the one bundled with the app) and locates the
+	 * dealerships in the background, enabling distance searches. Without
+	 * a table, distance searches are ignored.
+	 * @param config ServletConfig object from Tomcat
+	 */
+	private void initGeo(final ServletConfig config) {
+	    final String fileParam = config.getInitParameter("zipCentroidFile");
+	    startupExecutor.submit(new Runnable() {
+	        @Override
+	        public void run() {
+	            ZipCentroids zips;
+	            try {
+	                zips = fileParam == null || fileParam.isEmpty()
+	                        ? ZipCentroids.loadDefault()
+	                        : ZipCentroids.load(new File(fileParam));
+	            } catch (IOException e) {
+	                System.out.println("Error loading ZIP centroids: "
+	                        + e.getMessage());
+	                return;
+	            }
+	            if (zips == null) {
+	                System.out.println("*** no ZIP centroids; distance "
+	                        + "search disabled");
+	                return;
+	            }
+	            
+	            // the store list comes from the database; retry until the
+	            // database answers (stores it cannot locate are not retried)
+	            int located;
+	            while ((located = DealershipRepository.initGeo(zips)) < 0) {
+	                try {
+	                    Thread.sleep(CACHE_RETRY_MILLIS);
+	                } catch (InterruptedException e) {
+	                    return;
+	                }
+	            }
+	            System.out.println("*** " + located + " dealerships located "
+	                    + "for " + zips.size() + " ZIP codes");
+	        }
+	    });
+	}  // end initGeo(...)
+	
+	/**
+	 * If the "inMemoryInventory" init parameter is true, loads the whole
+	 * vehicle inventory into an off-heap store in the background. The
+	 * store is memory-mapped from the "inventoryFile" init parameter when
+	 * that file exists; otherwise it is loaded from the database and, if
+	 * a file is configured, saved there for the next start. Once loaded,
+	 * changes are polled for every "inventorySyncSeconds" (default 60, 0
+	 * disables) from the high-water mark taken before the load, which is
+	 * saved alongside the file; a file without one is reloaded.
+	 * @param config ServletConfig object from Tomcat
+	 * @param db the database adapter
+	 */
+	private void initInventory(final ServletConfig config,
+	        final IDatabaseAdapter db) {
+	    if (!Boolean.parseBoolean(
+	            config.getInitParameter("inMemoryInventory"))) {
+	        return;
+	    }
+	    String fileParam = config.getInitParameter("inventoryFile");
+	    final File file = fileParam == null || fileParam.isEmpty()
+	            ? null : new File(fileParam);
+	    String syncParam = config.getInitParameter("inventorySyncSeconds");
+	    final long syncSeconds = syncParam == null || syncParam.isEmpty()
+	            ? DEFAULT_SYNC_SECONDS : Long.parseLong(syncParam);
+	    
+	    readiness.register("inventory");
+	    startupExecutor.submit(new Runnable() {
+	        @Override
+	        public void run() {
+	            OffHeapVehicleStore store = null;
+	            String mark = null;
+	            if (file != null && file.exists()) {
+	                try {
+	                    mark = InventorySync.readMark(file);
+	                    if (mark != null || syncSeconds <= 0) {
+	                        store = OffHeapVehicleStore.load(file);
+	                    }
+	                } catch (IOException e) {
+	                    System.out.println("Error loading inventory file: "
+	                            + e.getMessage());
+	                }
+	            }
+	            while (store == null) {
+	                try {
+	                    mark = InventorySync.queryHighWaterMark(db);
+	                    store = OffHeapVehicleStore.loadFromDatabase(db);
+	                    if (file != null) {
+	                        store.save(file);
+	                        InventorySync.writeMark(file, mark);
+	                    }
+	                } catch (SQLException | IOException e) {
+	                    System.out.println("Error loading inventory: "
+	                            + e.getMessage());
+	                    if (store != null) {
+	                        break;
+	                    }
+	                    readiness.markFailed("inventory", e.toString());
+	                    try {
+	                        Thread.sleep(CACHE_RETRY_MILLIS);
+	                    } catch (InterruptedException ie) {
+	                        return;
+	                    }
+	                }
+	            }
+	            InventoryRepository.initRepository(store);
+	            System.out.println("*** inventory loaded: " + store.size()
+	                    + " rows");
+	            if (syncSeconds > 0 && mark != null) {
+	                inventorySync = new InventorySync(db, mark);
+	                inventorySync.start(syncSeconds);
+	            }
+	            readiness.markReady("inventory");
+	        }
+	    });
+	}  // end initInventory(...)
+	
+	/**
+	 * If the "savedSearchFile" init parameter is set, loads the saved
+	 * searches from that log in the background once the cache is ready
+	 * (the searches are validated against it). Vehicles the inventory
+	 * sync adds or reprices are then matched against them, and alerts
+	 * are appended to the "alertOutboxFile" init parameter (default: the
+	 * log file's name plus ".outbox").
+	 * @param config ServletConfig object from Tomcat
+	 */
+	private void initSavedSearches(final ServletConfig config) {
+	    String logParam = config.getInitParameter("savedSearchFile");
+	    if (logParam == null || logParam.isEmpty()) {
+	        return;
+	    }
+	    final File log = new File(logParam);
+	    String outboxParam = config.getInitParameter("alertOutboxFile");
+	    final File outbox = outboxParam == null || outboxParam.isEmpty()
+	            ? new File(logParam + ".outbox") : new File(outboxParam);
+	    startupExecutor.submit(new Runnable() {
+	        @Override
+	        public void run() {
+	            try {
+	                while (!readiness.isReady("cache")) {
+	                    Thread.sleep(CACHE_RETRY_MILLIS);
+	                }
+	                SavedSearchRepository.initRepository(log, 
+	                        new AlertOutbox(outbox));
+	                System.out.println("*** saved searches loaded: " 
+	                        + SavedSearchRepository.getPercolator().size());
+	            } catch (IOException e) {
+	                System.out.println("Error loading saved searches: "
+	                        + e.getMessage());
+	            } catch (InterruptedException e) {
+	                return;
+	            }
+	        }
+	    });
+	}  // end initSavedSearches(...)
+	
+	/**
+	 * If the "searchReadModel" init parameter is true, builds the
+	 * flattened search table (see SearchReadModel) in the background,
+	 * retrying until it succeeds, and then refreshes it every
+	 * "searchReadModelSeconds" (default 60). Advanced searches not served
+	 * from the in-memory inventory read it once it has been built.
+	 * @param config ServletConfig object from Tomcat
+	 * @param db the database adapter
+	 */
+	private void initSearchReadModel(final ServletConfig config,
+	        final IDatabaseAdapter db) {
+	    if (!Boolean.parseBoolean(
+	            config.getInitParameter("searchReadModel"))) {
+	        return;
+	    }
+	    String periodParam = config.getInitParameter("searchReadModelSeconds");
+	    final long periodSeconds = periodParam == null || periodParam.isEmpty()
+	            ? DEFAULT_READ_MODEL_SECONDS : Long.parseLong(periodParam);
+	    searchReadModel = new SearchReadModel(db);
+	    VehicleRepository.setReadModel(searchReadModel);
+	    startupExecutor.submit(new Runnable() {
+	        @Override
+	        public void run() {
+	            while (!searchReadModel.isReady()) {
+	                try {
+	                    searchReadModel.rebuild();
+	                } catch (SQLException e) {
+	                    System.out.println("Error building search table: "
+	                            + e.getMessage());
+	                    try {
+	                        Thread.sleep(CACHE_RETRY_MILLIS);
+	                    } catch (InterruptedException ie) {
+	                        return;
+	                    }
+	                }
+	            }
+	            searchReadModel.start(periodSeconds);
+	        }
+	    });
+	}  // end initSearchReadModel(...)
+	
+	/**
+	 * If the "warmup" init parameter is true, replays a corpus of requests
+	 * through the ApplicationController once the JDBC connection and cache
+	 * are ready, and only then marks the "warmup" component ready. The
+	 * corpus is read from "warmupCorpus" (see JitWarmUp) or built from the
+	 * cache, and "warmupMaxMillis" caps the time spent (default 60s).
+	 * @param config ServletConfig object from Tomcat
+	 */
+	private void initWarmUp(final ServletConfig config) {
+	    if (!Boolean.parseBoolean(config.getInitParameter("warmup"))) {
+	        return;
+	    }
+	    
+	    final String corpusFile = config.getInitParameter("warmupCorpus");
+	    long maxMillis = DEFAULT_WARMUP_MILLIS;
+	    try {
+	        if (config.getInitParameter("warmupMaxMillis") != null) {
+	            maxMillis = Long.parseLong(
+	                    config.getInitParameter("warmupMaxMillis"));
+	        }
+	    } catch (NumberFormatException e) {
+	        System.out.println("Invalid warmupMaxMillis: " + e.getMessage());
+	    }
+	    final long budget = maxMillis;
+	    
+	    readiness.register("warmup");
+	    startupExecutor.submit(new Runnable() {
+	        @Override
+	        public void run() {
+	            try {
+	                while (!readiness.isReady("jdbc") 
+	                        || !readiness.isReady("cache")) {
+	                    Thread.sleep(WARMUP_POLL_MILLIS);
+	                }
+	            } catch (InterruptedException e) {
+	                return;
+	            }
+	            
+	            List<Map<String, String[]>> corpus = null;
+	            if (corpusFile != null && !corpusFile.isEmpty()) {
+	                try {
+	                    corpus = JitWarmUp.readCorpus(new File(corpusFile));
+	                } catch (IOException e) {
+	                    System.out.println("Unable to read warm-up corpus: "
+	                            + e.getMessage());
+	                }
+	            }
+	            if (corpus == null || corpus.isEmpty()) {
+	                corpus = JitWarmUp.defaultCorpus();
+	            }
+	            
+	            new JitWarmUp(corpus, budget).run();
+	            readiness.markReady("warmup");
+	        }
+	    });
+	}  // end initWarmUp(...)
+	
+	/**
+	 * Reloads the cache from the database and saves a new snapshot.
+	 * @param cache the CarWebAppCache singleton
+	 * @param db the database adapter
+	 * @param snapshot snapshot file to save (null for none)
+	 * @return true if the cache was loaded from the database
+	 */
+	private boolean refreshCache(final CarWebAppCache cache,
+	        final IDatabaseAdapter db, final File snapshot) {
+	    try {
+	        if (!cache.refreshCache(db, startupExecutor)) {
+	            System.err.println("Unable to init web app cache.");
+	            return false;
+	        }
+	        if (snapshot != null) {
+	            cache.saveSnapshot(snapshot);
+	        }
+	    } catch (SQLException e) {
+	        System.err.println("Unable to init web app cache.");
+	        return false;
+	    } catch (IOException e) {
+	        System.err.println("Unable to save cache snapshot: "
+	                + e.getMessage());
+	    }
+	    return true;
+	}  // end refreshCache(...)
+	
+	/**
+	 * Optionally replaces or wraps the database adapter for offline
+	 * performance runs. If "dbReplayFile" is set, all calls are served from
+	 * that recorded log (sleeping for the recorded latencies if
+	 * "dbReplayLatency" is true). Otherwise, if "dbRecordFile" is set, all
+	 * calls are passed through to MySQL and recorded to that file.
+	 * @param config ServletConfig object from Tomcat
+	 * @param db the MySQL database adapter
+	 * @return the adapter the app should use
+	 * @throws ServletException if the replay log cannot be read
+	 */
+	private IDatabaseAdapter initRecordReplay(final ServletConfig config,
+	        final IDatabaseAdapter db) throws ServletException {
+	    String replayFile = config.getInitParameter("dbReplayFile");
+	    String recordFile = config.getInitParameter("dbRecordFile");
+	    
+	    try {
+	        if (replayFile != null && !replayFile.isEmpty()) {
+	            System.out.println("*** replaying database from " + replayFile);
+	            return new ReplayDatabaseAdapter(new File(replayFile),
+	                    Boolean.parseBoolean(
+	                            config.getInitParameter("dbReplayLatency")));
+	        } else if (recordFile != null && !recordFile.isEmpty()) {
+	            System.out.println("*** recording database to " + recordFile);
+	            recorder = new RecordingDatabaseAdapter(db, new File(recordFile));
+	            return recorder;
+	        }
+	    } catch (IOException e) {
+	        throw new ServletException("Unable to open database log", e);
+	    }
+	    return db;
+	}  // end initRecordReplay(...)
+	
+	/**
+	 * Reads the time budget of each action's database work: the defaults,
+	 * overridden by the comma-separated action=millis pairs of the
+	 * "requestBudgets" init parameter. Any other action gets
+	 * DEFAULT_BUDGET_MILLIS.
+	 * @param config ServletConfig object from Tomcat
+	 */
+	private void initBudgets(final ServletConfig config) {
+	    String param = config.getInitParameter("requestBudgets");
+	    String pairs = param == null || param.trim().isEmpty()
+	            ? DEFAULT_ACTION_BUDGETS
+	            : DEFAULT_ACTION_BUDGETS + "," + param;
+	    for (String pair : splitList(pairs)) {
+	        int eq = pair.indexOf('=');
+	        try {
+	            budgets.put(pair.substring(0, eq).trim(),
+	                    Long.parseLong(pair.substring(eq + 1).trim()));
+	        } catch (RuntimeException e) {
+	            System.out.println("Invalid request budget: " + pair);
+	        }
+	    }
+	}
+	
+	/**
+	 * Wraps the database adapter in per-procedure circuit breakers that
+	 * fail fast and serve the last good results while the database is
+	 * failing, unless the "circuitBreakers" init parameter is false.
+	 * @param config ServletConfig object from Tomcat
+	 * @param db the database adapter
+	 * @return the adapter the app should use
+	 */
+	private IDatabaseAdapter initCircuitBreakers(final ServletConfig config,
+	        final IDatabaseAdapter db) {
+	    if ("false".equalsIgnoreCase(
+	            config.getInitParameter("circuitBreakers"))) {
+	        return db;
+	    }
+	    breakers = new CircuitBreakerDatabaseAdapter(db);
+	    return breakers;
+	}
+	
+	/**
+	 * Enables request tracing if the "traceDir" init parameter is set.
+	 * "traceSampleRate" (0.0 - 1.0) is the fraction of requests written
+	 * to the trace log and "traceSlowMillis" is the threshold above which
+	 * a request's span tree is dumped to the slow-request log.
+	 * @param config ServletConfig object from Tomcat
+	 */
+	private void initTracing(final ServletConfig config) {
+	    String dir = config.getInitParameter("traceDir");
+	    if (dir == null || dir.isEmpty()) {
+	        return;
+	    }
+	    
+	    double rate = 0.01;
+	    long slowMillis = 1000L;
+	    try {
+	        if (config.getInitParameter("traceSampleRate") != null) {
+	            rate = Double.parseDouble(
+	                    config.getInitParameter("traceSampleRate"));
+	        }
+	        if (config.getInitParameter("traceSlowMillis") != null) {
+	            slowMillis = Long.parseLong(
+	                    config.getInitParameter("traceSlowMillis"));
+	        }
+	    } catch (NumberFormatException e) {
+	        System.out.println("Invalid tracing parameter: " + e.getMessage());
+	    }
+	    TraceLog.getInstance().configure(new File(dir), rate, slowMillis);
+	    System.out.println("*** request tracing enabled: " + dir);
+	}  // end initTracing(...)
+	
+	/**
+	 * Stops the inventory sync, search read model refreshes and database
+	 * threads, and closes the trace logs and database recording when
+	 * Tomcat takes the servlet out of service.
+	 */
+	@Override
+	public final void destroy() {
+	    if (startupExecutor != null) {
+	        startupExecutor.shutdownNow();
+	    }
+	    if (inventorySync != null) {
+	        inventorySync.stop();
+	    }
+	    if (searchReadModel != null) {
+	        searchReadModel.stop();
+	        VehicleRepository.setReadModel(null);
+	    }
+	    SavedSearchRepository.shutdown();
+	    TraceLog.getInstance().shutdown();
+	    if (recorder != null) {
+	        recorder.close();
+	    }
+	    if (sharded != null) {
+	        sharded.close();
+	    }
+	    if (replicated != null) {
+	        replicated.close();
+	    }
+	    super.destroy();
+	}
+	
 	/**
 	 * Forwards HTTP Get request to doPost method.
 	 * 
@@ -104,7 +782,13 @@ public class AwesomeCarsServlet extends javax.servlet.http.HttpServlet
 	
 	/**
 	 * Dispatches request to appropriate JSP page based on
-	 * the "action" parameter contained in the URL.
+	 * the "action" parameter contained in the URL. The request's database
+	 * work runs under a Deadline of the action's budget. A client that
+	 * goes away is only noticed when writing to it fails, which a JSP page
+	 * reports wrapped in a ServletException: the request's queries still
+	 * running then are cancelled. Until that write, queries for a departed
+	 * client run on until they finish or the deadline passes. (A streamed
+	 * export notices at once: see Deadline.abandon(...).)
 	 * 
 	 * @param request HTTP request to servlet
 	 * @param response HTTP response object from servlet
@@ -116,10 +800,81 @@ public class AwesomeCarsServlet extends javax.servlet.http.HttpServlet
 	        final HttpServletResponse response)
 		throws ServletException, IOException {
 
+		CircuitBreakerDatabaseAdapter.clearStale();
+		Long budget = budgets.get(request.getParameter("action"));
+		Deadline deadline = Deadline.begin(budget == null
+		        ? DEFAULT_BUDGET_MILLIS : budget);
+		RequestTrace trace = RequestTrace.begin("servlet.doPost");
+		try {
+		    dispatch(request, response);
+		} catch (IOException e) {
+		    // the client has gone: stop any queries still running for it
+		    deadline.cancel();
+		    throw e;
+		} catch (ServletException e) {
+		    if (causedByIOException(e)) {
+		        deadline.cancel();
+		    }
+		    throw e;
+		} finally {
+		    RequestTrace.end(trace);
+		    Deadline.end(deadline);
+		}
+	}	// end doPost(...)
+	
+	/**
+	 * @param e a failure
+	 * @return true if it, or any of its causes, is an IOException
+	 */
+	private static boolean causedByIOException(final Throwable e) {
+	    for (Throwable t = e; t != null; t = t.getCause()) {
+	        if (t instanceof IOException) {
+	            return true;
+	        }
+	    }
+	    return false;
+	}
+	
+	/**
+	 * Picks the JSP page for the "action" parameter and forwards the
+	 * request to it. The JSP renders inside the forward, so the
+	 * controller and repository spans nest under "servlet.forward".
+	 * 
+	 * @param request HTTP request to servlet
+	 * @param response HTTP response object from servlet
+	 * @throws ServletException ServletException
+	 * @throws IOException IOException
+	 */
+	private void dispatch(
+	        final HttpServletRequest request, 
+	        final HttpServletResponse response)
+		throws ServletException, IOException {
+
 		String base = "/jsp/";
 		String url = base + "index.jsp";
 		String action = request.getParameter("action");
 		
+		if ("ready".equals(action)) {
+		    writeReadiness(response);
+		    return;
+		}
+		if ("breakers".equals(action)) {
+		    writeBreakers(response);
+		    return;
+		}
+		if ("deadlines".equals(action)) {
+		    writeDeadlines(response);
+		    return;
+		}
+		if ("explain".equals(action)) {
+		    writeExplain(request, response);
+		    return;
+		}
+		if ("export".equals(action)) {
+		    writeExport(request, response);
+		    return;
+		}
+		
 		if (action != null) {
 			switch(action) {
 			
@@ -149,7 +904,135 @@ public class AwesomeCarsServlet extends javax.servlet.http.HttpServlet
 		// forward request to appropriate URL 
 		RequestDispatcher requestDispatcher = 
 		        getServletContext().getRequestDispatcher(url);
-		requestDispatcher.forward(request, response);
-	}	// end doPost(...)
+		try (Span span = RequestTrace.span("servlet.forward").detail(url)) {
+		    requestDispatcher.forward(request, response);
+		}
+	}	// end dispatch(...)
+	
+	/**
+	 * Answers the load balancer's readiness check: HTTP 200 once every
+	 * component is warm, otherwise HTTP 503. The body lists the state of
+	 * each component.
+	 * 
+	 * @param response HTTP response object from servlet
+	 * @throws IOException IOException
+	 */
+	private void writeReadiness(final HttpServletResponse response)
+	        throws IOException {
+	    response.setStatus(readiness.isReady() 
+	            ? HttpServletResponse.SC_OK 
+	            : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	    response.setContentType("text/plain");
+	    response.setHeader("Cache-Control", "no-store");
+	    response.getWriter().write(readiness.describe());
+	}
+	
+	/**
+	 * Reports the state of each database circuit breaker, one per line:
+	 * name, state, consecutive failures, times opened and calls refused.
+	 * 
+	 * @param response HTTP response object from servlet
+	 * @throws IOException IOException
+	 */
+	private void writeBreakers(final HttpServletResponse response)
+	        throws IOException {
+	    response.setContentType("text/plain");
+	    response.setHeader("Cache-Control", "no-store");
+	    response.getWriter().write(breakers == null
+	            ? "circuit breakers disabled\n" : breakers.describe());
+	}
+	
+	/**
+	 * Reports how many queries were killed because their request's
+	 * deadline passed or its client went away, and how many were not
+	 * started because the deadline had already passed.
+	 * 
+	 * @param response HTTP response object from servlet
+	 * @throws IOException IOException
+	 */
+	private void writeDeadlines(final HttpServletResponse response)
+	        throws IOException {
+	    response.setContentType("text/plain");
+	    response.setHeader("Cache-Control", "no-store");
+	    response.getWriter().write(Deadline.describe());
+	}
+	
+	/**
+	 * Shows the plan the in-memory inventory would use for the advanced
+	 * search given by the request's parameters, or HTTP 503 if the
+	 * inventory has not been loaded.
+	 * 
+	 * @param request HTTP request containing search parameters
+	 * @param response HTTP response object from servlet
+	 * @throws IOException IOException
+	 */
+	private void writeExplain(final HttpServletRequest request,
+	        final HttpServletResponse response) throws IOException {
+	    response.setContentType("text/plain");
+	    response.setHeader("Cache-Control", "no-store");
+	    if (!InventoryRepository.isLoaded()) {
+	        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	        response.getWriter().write("inventory not loaded\n");
+	        return;
+	    }
+	    response.getWriter().write(InventoryRepository.explain(
+	            new AdvancedSearch(request)));
+	}
+	
+	/**
+	 * Streams the inventory as a download: every vehicle, or the results
+	 * of the advanced search given by the request's other parameters. The
+	 * "format" parameter picks CSV (default) or NDJSON and "gzip=true"
+	 * compresses the file. Rows are written as they are read, so memory
+	 * use does not depend on the size of the inventory.
+	 * 
+	 * @param request HTTP request containing export and search parameters
+	 * @param response HTTP response object from servlet
+	 * @throws IOException IOException
+	 */
+	private void writeExport(final HttpServletRequest request,
+	        final HttpServletResponse response) throws IOException {
+	    InventoryExport.Format format = 
+	            InventoryExport.parseFormat(request.getParameter("format"));
+	    boolean gzip = Boolean.parseBoolean(request.getParameter("gzip"));
+	    Map<String, String[]> params = 
+	            new HashMap<String, String[]>(request.getParameterMap());
+	    params.remove("action");
+	    params.remove("format");
+	    params.remove("gzip");
+	    
+	    String name = "inventory." 
+	            + (format == InventoryExport.Format.CSV ? "csv" : "ndjson");
+	    if (gzip) {
+	        name += ".gz";
+	        response.setContentType("application/gzip");
+	    } else if (format == InventoryExport.Format.CSV) {
+	        response.setContentType("text/csv; charset=UTF-8");
+	    } else {
+	        response.setContentType("application/x-ndjson; charset=UTF-8");
+	    }
+	    response.setHeader("Content-Disposition", 
+	            "attachment; filename=\"" + name + "\"");
+	    response.setHeader("Cache-Control", "no-store");
+	    
+	    long start = System.nanoTime();
+	    try (InventoryExport export = new InventoryExport(
+	            response.getOutputStream(), format, gzip)) {
+	        long rows = ApplicationController.exportVehicles(
+	                params.isEmpty() ? null : params, export);
+	        System.out.println("*** exported " + rows + " rows in "
+	                + (System.nanoTime() - start) / 1000000L + " ms");
+	    } catch (SQLException e) {
+	        System.out.println("Error exporting inventory: " 
+	                + e.getMessage());
+	        // once rows have been sent, a truncated file is the only sign
+	        // of failure the client can get
+	        if (!response.isCommitted()) {
+	            response.reset();
+	            response.sendError(
+	                    HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+	        }
+	    }
+	}	// end writeExport(...)
 	
 }	// end class AwesomeCarsServlet
\ No newline at end of file
@@ -0,0 +1,307 @@
+package awesomecars;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import awesomecars.beans.Vehicle;
+import awesomecars.model.CarWebAppCache;
+
+/**
+ * Replays a corpus of representative requests through the
+ * ApplicationController before the node reports ready, so the JIT has
+ * compiled the hot paths (AdvancedSearch, JSON conversion, Vehicle
+ * mapping, ...) before real traffic arrives. Requests are replayed in
+ * rounds until the median latency of every action changes by less than
+ * STABLE_TOLERANCE between consecutive rounds, or the time budget runs
+ * out.
+ *
+ * The corpus file has one request per line as a URL-encoded query string,
+ * e.g. "action=basicSearch&amp;basicSearch=txs". Blank lines and lines
+ * starting with '#' are ignored. Supported actions are basicSearch,
+ * categorySearch, advancedResults, getDetailsUsed, getDetailsNew and
+ * locations.
+ *
+ * @author Travis
+ */
+public final class JitWarmUp {
+
+    /** Times each request is replayed per round. */
+    public static final int REPLAYS_PER_ROUND = 50;
+
+    /** Maximum relative change in median latency between stable rounds. */
+    public static final double STABLE_TOLERANCE = 0.10;
+
+    /** Consecutive stable rounds required. */
+    public static final int STABLE_ROUNDS = 2;
+
+    /** Requests to replay (parameter name to values). */
+    private final List<Map<String, String[]>> corpus;
+
+    /** Time budget in nanoseconds. */
+    private final long maxNanos;
+
+    /**
+     * Creates the warm-up.
+     * @param requests requests to replay
+     * @param maxMillis time budget in milliseconds
+     */
+    public JitWarmUp(final List<Map<String, String[]>> requests,
+            final long maxMillis) {
+        corpus = requests;
+        maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    }
+
+    /**
+     * Reads a corpus file.
+     * @param file corpus file (one query string per line)
+     * @return the requests in the file
+     * @throws IOException IOException
+     */
+    public static List<Map<String, String[]>> readCorpus(final File file)
+            throws IOException {
+        List<Map<String, String[]>> requests =
+                new ArrayList<Map<String, String[]>>();
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(),
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    requests.add(parseQuery(line));
+                }
+            }
+        }
+        return requests;
+    }   // end readCorpus(...)
+
+    /**
+     * Builds a default corpus from the data in the CarWebAppCache: one
+     * request per action, using the first make/model/location found.
+     * @return default requests
+     */
+    public static List<Map<String, String[]>> defaultCorpus() {
+        CarWebAppCache cache = CarWebAppCache.getInstance();
+        String model = cache.getModelList().isEmpty() 
+                ? "" : cache.getModelList().get(0);
+        String make = cache.getMakeList().isEmpty() 
+                ? "" : cache.getMakeList().get(0);
+        
+        // the names are used as they are, not URL-decoded
+        List<Map<String, String[]>> requests =
+                new ArrayList<Map<String, String[]>>();
+        requests.add(request("action", "basicSearch", "basicSearch", model));
+        requests.add(request("action", "categorySearch", "model", model));
+        requests.add(request("action", "getDetailsNew", "model", model));
+        requests.add(request("action", "locations"));
+        requests.add(request("action", "advancedResults", "make", make,
+                "priceMax", "30000", "SortBy1", "price", 
+                "SortOrder1", "ASC"));
+        requests.add(request("action", "advancedResults", "category", 
+                "used", "milesMax", "100000", "SortBy1", "miles", 
+                "SortOrder1", "ASC"));
+        return requests;
+    }   // end defaultCorpus()
+
+    /**
+     * @param pairs parameter names and values
+     * @return parameter name to (single) value
+     */
+    private static Map<String, String[]> request(final String... pairs) {
+        Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            params.put(pairs[i], new String[] {pairs[i + 1]});
+        }
+        return params;
+    }
+
+    /**
+     * Replays the corpus until latency is stable or the budget runs out.
+     * @return true if latency stabilized within the budget
+     */
+    public boolean run() {
+        long deadline = System.nanoTime() + maxNanos;
+        Map<String, Long> previous = null;
+        int stableRounds = 0;
+        int round = 0;
+        
+        while (System.nanoTime() < deadline) {
+            Map<String, Long> medians = runRound();
+            round++;
+            
+            if (previous != null && isStable(previous, medians)) {
+                stableRounds++;
+            } else {
+                stableRounds = 0;
+            }
+            if (stableRounds >= STABLE_ROUNDS) {
+                System.out.println("*** JIT warm-up stable after " + round
+                        + " rounds: " + medians);
+                return true;
+            }
+            previous = medians;
+        }   // end while
+        
+        System.out.println("*** JIT warm-up stopped after " + round
+                + " rounds without stabilizing: " + previous);
+        return false;
+    }   // end run()
+
+    /**
+     * Replays every request REPLAYS_PER_ROUND times.
+     * @return median latency (ns) of each action in this round
+     */
+    private Map<String, Long> runRound() {
+        Map<String, List<Long>> latencies =
+                new LinkedHashMap<String, List<Long>>();
+        for (int i = 0; i < REPLAYS_PER_ROUND; i++) {
+            for (Map<String, String[]> request : corpus) {
+                String action = first(request, "action");
+                long start = System.nanoTime();
+                try {
+                    replay(action, request);
+                } catch (RuntimeException e) {
+                    // a bad corpus entry must not keep the node unready
+                    System.out.println("Warm-up request " + action 
+                            + " failed: " + e);
+                }
+                long elapsed = System.nanoTime() - start;
+                
+                List<Long> l = latencies.get(action);
+                if (l == null) {
+                    l = new ArrayList<Long>();
+                    latencies.put(action, l);
+                }
+                l.add(elapsed);
+            }
+        }
+        
+        Map<String, Long> medians = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, List<Long>> e : latencies.entrySet()) {
+            Long[] sorted = e.getValue().toArray(new Long[0]);
+            Arrays.sort(sorted);
+            medians.put(e.getKey(), sorted[sorted.length / 2]);
+        }
+        return medians;
+    }   // end runRound()
+
+    /**
+     * Sends one request through the ApplicationController.
+     * @param action the request's action parameter
+     * @param request request parameters
+     */
+    private static void replay(final String action,
+            final Map<String, String[]> request) {
+        if (action == null) {
+            return;
+        }
+        
+        switch (action) {
+        case "basicSearch":
+            ApplicationController.getBasicSearchResults(
+                    first(request, "basicSearch"));
+            break;
+        case "categorySearch":
+            ApplicationController.getCategorySearchResults(
+                    first(request, "model"));
+            break;
+        case "advancedResults":
+            ApplicationController.getAdvancedSearchResults(request);
+            break;
+        case "getDetailsUsed":
+            ApplicationController.getVehicleDetailsUsed(
+                    first(request, "vin"));
+            break;
+        case "getDetailsNew":
+            Vehicle v = ApplicationController.getVehicleDetailsNew(
+                    first(request, "model"));
+            if (v != null) {
+                v.getPriceAsString();
+            }
+            break;
+        case "locations":
+            ApplicationController.getAllStoreDetails();
+            break;
+        default:
+            System.out.println("Unsupported warm-up action: " + action);
+            break;
+        }   // end switch(action)
+    }   // end replay(...)
+
+    /**
+     * @param previous medians of the previous round
+     * @param current medians of this round
+     * @return true if no action's median moved by more than the tolerance
+     */
+    public static boolean isStable(final Map<String, Long> previous,
+            final Map<String, Long> current) {
+        for (Map.Entry<String, Long> e : current.entrySet()) {
+            Long before = previous.get(e.getKey());
+            if (before == null || before == 0) {
+                return false;
+            }
+            double change = Math.abs(e.getValue() - before) / (double) before;
+            if (change > STABLE_TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param request request parameters
+     * @param name parameter name
+     * @return the first value of the parameter or null
+     */
+    private static String first(final Map<String, String[]> request,
+            final String name) {
+        String[] values = request.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    /**
+     * Parses a URL-encoded query string into a parameter map.
+     * @param query query string
+     * @return parameter name to values
+     */
+    static Map<String, String[]> parseQuery(final String query) {
+        Map<String, List<String>> values = 
+                new LinkedHashMap<String, List<String>>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            try {
+                name = URLDecoder.decode(name, "UTF-8");
+                value = URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            List<String> l = values.get(name);
+            if (l == null) {
+                l = new ArrayList<String>();
+                values.put(name, l);
+            }
+            l.add(value);
+        }
+        
+        Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, List<String>> e : values.entrySet()) {
+            params.put(e.getKey(), e.getValue().toArray(new String[0]));
+        }
+        return params;
+    }   // end parseQuery(...)
+}   // end class JitWarmUp
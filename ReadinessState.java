@@ -0,0 +1,93 @@
+package awesomecars;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracks whether each component initialized by the servlet (database
+ * connection, web app cache, in-memory indexes, ...) is warm. The servlet's
+ * "ready" action reports HTTP 503 until every registered component is
+ * ready, so the load balancer only routes traffic to a node that can
+ * serve at full speed.
+ *
+ * @author Travis
+ */
+public final class ReadinessState {
+
+    /** State of a single component. */
+    public enum State {
+        /** Registered but still initializing. */
+        WARMING,
+        /** Initialized and serving. */
+        READY,
+        /** Initialization failed (it may be retried). */
+        FAILED
+    }
+
+    /** Component states in registration order. */
+    private final Map<String, State> states =
+            new LinkedHashMap<String, State>();
+
+    /** Reason for the most recent failure of each failed component. */
+    private final Map<String, String> reasons =
+            new LinkedHashMap<String, String>();
+
+    /**
+     * Registers a component that must become ready before the node is.
+     * @param component component name
+     */
+    public synchronized void register(final String component) {
+        states.put(component, State.WARMING);
+    }
+
+    /**
+     * Marks a component ready.
+     * @param component component name
+     */
+    public synchronized void markReady(final String component) {
+        states.put(component, State.READY);
+        reasons.remove(component);
+    }
+
+    /**
+     * Marks a component failed.
+     * @param component component name
+     * @param reason short description of the failure
+     */
+    public synchronized void markFailed(final String component,
+            final String reason) {
+        states.put(component, State.FAILED);
+        reasons.put(component, reason);
+    }
+
+    /** @return true if every registered component is ready */
+    public synchronized boolean isReady() {
+        for (State s : states.values()) {
+            if (s != State.READY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param component component name
+     * @return true if the component is registered and ready
+     */
+    public synchronized boolean isReady(final String component) {
+        return states.get(component) == State.READY;
+    }
+
+    /** @return one line per component, e.g. "cache: FAILED (timeout)" */
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, State> e : states.entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue());
+            if (reasons.containsKey(e.getKey())) {
+                sb.append(" (").append(reasons.get(e.getKey())).append(')');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}   // end class ReadinessState
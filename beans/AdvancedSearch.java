@@ -8,6 +8,8 @@ import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 
 import awesomecars.model.CarWebAppCache;
+import awesomecars.model.DealershipRepository;
+import awesomecars.model.SearchReadModel;
 
 /**
  * This class bundles the parameters from the advanced search request into an
@@ -72,9 +74,21 @@ public class AdvancedSearch {
 	/** List of locations to search. */
 	private List<String>	includeLocations;
 
+	/** ZIP code to measure distances from (-1 for none). */
+	private int					nearZip;
+	
+	/** Maximum distance in miles from nearZip (-1 for none). */
+	private double				radius;
+	
+	/** Store name to distance from nearZip, nearest first (or null). */
+	private Map<String, Double>	storeDistances;
+
 	/** List of options to sort by. */
 	private List<SortOption>   sortOptions;
 	
+	/** Maximum number of results (-1 for all). */
+	private int					limit;
+	
    /** 
      * Default/Empty constructor not allowed because it
      * bypasses the validation logic needed to properly
@@ -90,11 +104,24 @@ public class AdvancedSearch {
 	 * object. All internal logic and validation are performed here.
 	 * @param request HTTP servlet request containing query parameters
 	 */
-    // TODO - Refactor: Too big and duplicated code.
     public AdvancedSearch(final HttpServletRequest request) {
-	    Map<String, String[]> params = request.getParameterMap();
+        this(request.getParameterMap());
+    }
+    
+	/**
+	 *  
+	 * Initializes the AdvancedSearch object from a map of request
+	 * parameters (name to values), as returned by
+	 * ServletRequest.getParameterMap(). All internal logic and validation
+	 * are performed here.
+	 * @param params query parameters
+	 */
+    // TODO - Refactor: Too big and duplicated code.
+    public AdvancedSearch(final Map<String, String[]> params) {
 	    String key;
 	    String value;
+	    // validate every parameter against the same load of the cache
+	    CarWebAppCache.Lists lists = CarWebAppCache.getInstance().getLists();
 	    
 	    // Process category
 	    key = "category";
@@ -130,8 +157,7 @@ public class AdvancedSearch {
                 
                 // validate body style against prequeried list
                 // if invalid body style, print message to console
-                if (CarWebAppCache.getInstance()
-                        .getBodyStyleList().contains(value)) {
+                if (lists.getBodyStyleList().contains(value)) {
                     this.includeBodyStyles.add(value);
                 } else {
                     System.out.println("Unrecognized " + key + ": "
@@ -152,8 +178,7 @@ public class AdvancedSearch {
                 
                 // validate make against prequeried list
                 // if invalid make, print message to console
-                if (CarWebAppCache.getInstance()
-                        .getMakeList().contains(value)) {
+                if (lists.getMakeList().contains(value)) {
                     this.includeMakes.add(value);
                 } else {
                     System.out.println("Unrecognized " + key + ": "
@@ -174,8 +199,7 @@ public class AdvancedSearch {
                 
                 // validate model against prequeried list
                 // if invalid model, print message to console
-                if (CarWebAppCache.getInstance()
-                        .getModelList().contains(value)) {
+                if (lists.getModelList().contains(value)) {
                     this.includeModels.add(value);
                 } else {
                     System.out.println("Unrecognized " + key + ": "
@@ -309,8 +333,7 @@ public class AdvancedSearch {
                 
                 // validate interior color against prequeried list
                 // if invalid, print message to console
-                if (CarWebAppCache.getInstance()
-                        .getInteriorColorList().contains(value)) {
+                if (lists.getInteriorColorList().contains(value)) {
                     this.includeInteriorColors.add(value);
                 } else {
                     System.out.println("Unrecognized " + key + ": "
@@ -331,8 +354,7 @@ public class AdvancedSearch {
                 
                 // validate exterior color against prequeried list
                 // if invalid, print message to console
-                if (CarWebAppCache.getInstance()
-                        .getExteriorColorList().contains(value)) {
+                if (lists.getExteriorColorList().contains(value)) {
                     this.includeExteriorColors.add(value);
                 } else {
                     System.out.println("Unrecognized " + key + ": "
@@ -353,8 +375,7 @@ public class AdvancedSearch {
                 
                 // validate locations against prequeried list
                 // if invalid, print message to console
-                if (CarWebAppCache.getInstance()
-                        .getLocationList().contains(value)) {
+                if (lists.getLocationList().contains(value)) {
                     this.includeLocations.add(value);
                 } else {
                     System.out.println("Unrecognized " + key + ": "
@@ -363,16 +384,78 @@ public class AdvancedSearch {
             }   //end for  
         }   // end location processing
 
+        // Process distance from a ZIP code (answered in-process by the
+        // DealershipRepository); a radius narrows the locations
+        key = "nearZip";
+        this.nearZip = -1;
+        this.radius = -1;
+        this.storeDistances = null;
+        if (params.containsKey(key)) {
+            value = params.get(key)[0];
+            try {
+                this.nearZip = Integer.parseInt(value.trim());
+                this.storeDistances = 
+                        DealershipRepository.getStoreDistances(nearZip);
+            } catch (NumberFormatException e) {
+                this.nearZip = -1;
+            }
+            if (this.storeDistances == null) {
+                System.out.println("Unrecognized " + key + ": " + value);
+                this.nearZip = -1;
+            }
+        }
+        key = "radius";
+        if (params.containsKey(key) && this.storeDistances != null) {
+            value = params.get(key)[0];
+            try {
+                this.radius = Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Unrecognized " + key + ": " + value);
+            }
+            if (this.radius >= 0) {
+                List<String> nearby = new ArrayList<String>();
+                for (Map.Entry<String, Double> e 
+                        : this.storeDistances.entrySet()) {
+                    if (e.getValue() <= this.radius) {
+                        nearby.add(e.getKey());
+                    }
+                }
+                if (this.includeLocations != null) {
+                    nearby.retainAll(this.includeLocations);
+                }
+                this.includeLocations = nearby;
+            }
+        }   // end distance processing
+
         // extract sort options
         sortOptions = new ArrayList<SortOption>();
         for (int i = 1; i < MAX_SORT_OPTIONS; i++) {
             if (params.containsKey("SortBy" + i)) {
-                sortOptions.add(new SortOption(
-                        params.get("SortBy" + i)[0],
+                String sortBy = params.get("SortBy" + i)[0];
+                if ("distance".equals(sortBy) 
+                        && this.storeDistances == null) {
+                    System.out.println("Ignored distance sort without "
+                            + "nearZip");
+                    continue;
+                }
+                sortOptions.add(new SortOption(sortBy,
                         params.get("SortOrder" + i)[0]));
             }
         }   // end sort processing
         
+        // process result limit (first page)
+        this.limit = -1;
+        key = "limit";
+        if (params.containsKey(key)) {
+            value = params.get(key)[0];
+            try {
+                this.limit = Integer.parseInt(value);
+            } catch (NumberFormatException e) { 
+                System.out.println("Unrecognized " + key + ": " + value);
+                this.limit = -1;
+            }
+        }
+        
         // clean up includeMakes list
         reconcileMakeModels();
 
@@ -380,12 +463,25 @@ public class AdvancedSearch {
 	
 	/**
 	 * Converts the AdvancedSearch members into a properly formatted
-	 * SQL query.
+	 * SQL query over the normalized tables.
 	 * 
 	 * @return Properly formatted SQL string
 	 */
 	@Override
 	public final String toString() {
+	    return toSql(false);
+	}
+	
+	/**
+	 * Converts the AdvancedSearch members into a properly formatted
+	 * SQL query, either joining the normalized tables or reading the
+	 * flattened search table (SearchReadModel.TABLE) with no joins. Both
+	 * return the same columns.
+	 * 
+	 * @param flat true to query the flattened search table
+	 * @return Properly formatted SQL string
+	 */
+	public final String toSql(final boolean flat) {
 	    String s = "";
 	    
 	    // include both new and used if both or neither are selected
@@ -393,9 +489,9 @@ public class AdvancedSearch {
 	                (this.includeUsed && this.includeNew) 
 	            ||  (!this.includeUsed && !this.includeNew);
 	    if (this.includeUsed || unionRequired) {
-	        s += addSelectFrom();
-	        s += " t3.category = \"used\" ";
-	        s += addUsedFilters();
+	        s += addSelectFrom(flat);
+	        s += " " + col(flat, "t3", "category") + " = \"used\" ";
+	        s += addUsedFilters(flat);
 	        s += ") ";
 	    } 
 	    
@@ -405,10 +501,10 @@ public class AdvancedSearch {
 	    }
 	    
 	    if (this.includeNew || unionRequired) {
-	        s += addSelectFrom();
-	        s += " t3.category = \"new\" ";
-            s += addNewFilters();            
-            s += " GROUP BY t2.model_name )";
+	        s += addSelectFrom(flat);
+	        s += " " + col(flat, "t3", "category") + " = \"new\" ";
+            s += addNewFilters(flat);            
+            s += " GROUP BY " + col(flat, "t2", "model_name") + " )";
 	    }
 
 
@@ -423,22 +519,150 @@ public class AdvancedSearch {
 	            s += " , ";
 	        }
 	    }
+	    
+	    if (this.limit >= 0) {
+	        s += " LIMIT " + this.limit;
+	    }
 	    	    
 	    return s;
 	}  // end toString(...)
 	
+	/** @return true if used vehicles were selected */
+	public final boolean isIncludeUsed() {
+	    return includeUsed;
+	}
+	
+	/** @return true if new vehicles were selected */
+	public final boolean isIncludeNew() {
+	    return includeNew;
+	}
+	
+	/** @return body styles to include (null for all) */
+	public final List<String> getIncludeBodyStyles() {
+	    return includeBodyStyles;
+	}
+	
+	/** @return makes to include, all models (null if none) */
+	public final List<String> getIncludeMakes() {
+	    return includeMakes;
+	}
+	
+	/** @return models to include (null if none) */
+	public final List<String> getIncludeModels() {
+	    return includeModels;
+	}
+	
+	/** @return minimum year (-1 for none) */
+	public final int getMinYear() {
+	    return minYear;
+	}
+	
+	/** @return maximum year (-1 for none) */
+	public final int getMaxYear() {
+	    return maxYear;
+	}
+	
+	/** @return minimum price (-1 for none) */
+	public final int getMinPrice() {
+	    return minPrice;
+	}
+	
+	/** @return maximum price (-1 for none) */
+	public final int getMaxPrice() {
+	    return maxPrice;
+	}
+	
+	/** @return maximum miles (-1 for none) */
+	public final int getMaxMiles() {
+	    return maxMiles;
+	}
+	
+	/** @return true if automatic transmissions were selected */
+	public final boolean isIncludeAutomaticTransmission() {
+	    return includeAutomaticTransmission;
+	}
+	
+	/** @return true if manual transmissions were selected */
+	public final boolean isIncludeManualTransmission() {
+	    return includeManualTransmission;
+	}
+	
+	/** @return minimum city MPG (-1 for none) */
+	public final int getMinMPGCity() {
+	    return minMPGCity;
+	}
+	
+	/** @return minimum highway MPG (-1 for none) */
+	public final int getMinMPGHwy() {
+	    return minMPGHwy;
+	}
+	
+	/** @return exterior colors to include (null for all) */
+	public final List<String> getIncludeExteriorColors() {
+	    return includeExteriorColors;
+	}
+	
+	/** @return interior colors to include (null for all) */
+	public final List<String> getIncludeInteriorColors() {
+	    return includeInteriorColors;
+	}
+	
+	/** @return locations to include (null for all) */
+	public final List<String> getIncludeLocations() {
+	    return includeLocations;
+	}
+	
+	/** @return ZIP code distances are measured from (-1 for none) */
+	public final int getNearZip() {
+	    return nearZip;
+	}
+	
+	/** @return maximum distance in miles from nearZip (-1 for none) */
+	public final double getRadius() {
+	    return radius;
+	}
+	
+	/**
+	 * @return store name to distance in miles from nearZip, nearest
+	 *         first (null if no nearZip was given)
+	 */
+	public final Map<String, Double> getStoreDistances() {
+	    return storeDistances;
+	}
+	
+	/** @return options to sort by, in order */
+	public final List<SortOption> getSortOptions() {
+	    return sortOptions;
+	}
+	
+	/** @return maximum number of results (-1 for all) */
+	public final int getLimit() {
+	    return limit;
+	}
+	
 	/**
 	 * Helper method which simply returns the common portion of the
 	 * MySQL query.
 	 * 
+	 * @param flat true to read the flattened search table
 	 * @return SELECT, FROM and partial WHERE portions of SQL statement
 	 */
-	private String addSelectFrom() {
+	private String addSelectFrom(final boolean flat) {
+	    if (flat) {
+	        return "(SELECT f.VIN, f.make_name, f.model_name, "
+	                + "f.model_type, f.year_model, f.Price, f.int_color, "
+	                + "f.ext_color, f.miles, f.mpg_city, f.mpg_hwy, "
+	                + "f.category, f.engine_type, f.transmission, "
+	                + "f.description,f.picture,f.store_name, f.count_total "
+	                + addDistance(flat)
+	                + "FROM " + SearchReadModel.TABLE + " f WHERE ";
+	    }
 	    return "(SELECT t3.VIN, t1.make_name, t2.model_name, "
                 + "t2.model_type, t3.year_model, t3.Price, t3.int_color, "
                 + "t3.ext_color, t3.miles, t3.mpg_city, t3.mpg_hwy, "
                 + "t3.category, t3.engine_type, t3.transmission, "
                 + "t3.description,t3.picture,t4.store_name, t5.count_total "
+                + addDistance(flat)
                 + "FROM vehicle_make t1, vehicle_model t2, vehicle_details "
                 + "t3, store_information t4, vehicle_count t5 WHERE "
                 + "t1.make_id = t2.make_id AND t1.make_id = t3.make_id "
@@ -446,14 +670,47 @@ public class AdvancedSearch {
                 + "t5.count_id AND t5.store_id = t4.store_id AND ";
 	}
 	
+	/**
+	 * Helper method which names a column of the normalized tables, or
+	 * the same column of the flattened search table.
+	 * 
+	 * @param flat true to name the flattened table's column
+	 * @param table alias of the normalized table (t1 - t5)
+	 * @param column column name
+	 * @return the qualified column name
+	 */
+	private static String col(final boolean flat, final String table,
+	        final String column) {
+	    return (flat ? "f" : table) + "." + column;
+	}
+	
+	/**
+	 * Helper method which returns a distance column (miles from nearZip,
+	 * computed in-process, per store) for sorting by distance.
+	 * 
+	 * @param flat true to read the flattened search table
+	 * @return the column, or nothing if no nearZip was given
+	 */
+	private String addDistance(final boolean flat) {
+	    if (this.storeDistances == null) {
+	        return "";
+	    }
+	    String s = ", CASE " + col(flat, "t4", "store_name") + " ";
+	    for (Map.Entry<String, Double> e : storeDistances.entrySet()) {
+	        s += " WHEN \"" + e.getKey() + "\" THEN " + e.getValue();
+	    }
+	    return s + " ELSE NULL END AS distance ";
+	}
+	
 	/**
 	 * Interprets the parameters of the AdvancedSearch object and
 	 * generates the appropriate SQL strings, which are concatenated
 	 * with the final SQL string.
 	 * 
+	 * @param flat true to read the flattened search table
 	 * @return Conditional portions of final SQL string
 	 */
-	private String addUsedFilters() {
+	private String addUsedFilters(final boolean flat) {
 	    String s = "";
 
 	    if (this.includeModels != null || this.includeMakes != null) {
@@ -465,7 +722,8 @@ public class AdvancedSearch {
 
 	            while (iterator.hasNext()) {
 	                
-	                s += " (t1.Make_name = \"" + iterator.next() + "\") ";
+	                s += " (" + col(flat, "t1", "Make_name") + " = \""
+	                        + iterator.next() + "\") ";
 	                if (iterator.hasNext()) {
 	                    s += " OR ";
 	                }
@@ -481,7 +739,8 @@ public class AdvancedSearch {
 	                
 	            while (iterator.hasNext()) {
 
-	                s += " (t2.Model_name = \"" + iterator.next() + "\") ";
+	                s += " (" + col(flat, "t2", "Model_name") + " = \""
+	                        + iterator.next() + "\") ";
 	                if (iterator.hasNext()) {
 	                    s += " OR ";
 	                }
@@ -493,39 +752,47 @@ public class AdvancedSearch {
 	    
 
 	    if (this.maxMiles >= 0) {
-	        s += " AND (t3.miles <= " + this.maxMiles + ") "; 
+	        s += " AND (" + col(flat, "t3", "miles") + " <= "
+	                + this.maxMiles + ") ";
 	    }
 	    
 	    if (this.minMPGCity >= 0) {
-	        s += " AND (t3.MPG_city >= " + this.minMPGCity + ") "; 
+	        s += " AND (" + col(flat, "t3", "MPG_city") + " >= "
+	                + this.minMPGCity + ") ";
 	    }
 	    
 	    if (this.minMPGHwy >= 0) {
-	        s += " AND (t3.MPG_hwy >= " + this.minMPGHwy + ") "; 
+	        s += " AND (" + col(flat, "t3", "MPG_hwy") + " >= "
+	                + this.minMPGHwy + ") ";
 	    }
 
 	    if (this.minYear >= 0) {
-	        s += " AND (t3.year_model >= " + this.minYear + ") "; 
+	        s += " AND (" + col(flat, "t3", "year_model") + " >= "
+	                + this.minYear + ") ";
 	    }
 	    
 	    if (this.maxYear >= 0) {
-	        s += " AND (t3.year_model <= " + this.maxYear + ") "; 
+	        s += " AND (" + col(flat, "t3", "year_model") + " <= "
+	                + this.maxYear + ") ";
 	    }
 	    
 	    if (this.minPrice >= 0) {
-	        s += " AND (t3.price >= " + this.minPrice + ") "; 
+	        s += " AND (" + col(flat, "t3", "price") + " >= "
+	                + this.minPrice + ") ";
 	    }
 	    
 	    if (this.maxPrice >= 0) {
-	        s += " AND (t3.price <= " + this.maxPrice + ") "; 
+	        s += " AND (" + col(flat, "t3", "price") + " <= "
+	                + this.maxPrice + ") ";
 	    }
 	    
 	    if (this.includeAutomaticTransmission 
 	            && !this.includeManualTransmission) {
-	        s += " AND (t3.transmission = \"automatic\") ";
+	        s += " AND (" + col(flat, "t3", "transmission")
+	                + " = \"automatic\") ";
 	    } else if (!this.includeAutomaticTransmission 
 	            && this.includeManualTransmission) {
-	        s += " AND (t3.transmission = \"manual\") ";
+	        s += " AND (" + col(flat, "t3", "transmission") + " = \"manual\") ";
 	    }
 	    
 	    if (this.includeExteriorColors != null) {
@@ -534,7 +801,8 @@ public class AdvancedSearch {
 	        s += " AND ( ";
 	        while (iterator.hasNext()) {
 	            
-	            s += " (t3.ext_color = \"" + iterator.next() + "\") ";
+	            s += " (" + col(flat, "t3", "ext_color") + " = \""
+	                    + iterator.next() + "\") ";
 	            if (iterator.hasNext()) {
 	                s += " OR ";
 	            }
@@ -548,7 +816,8 @@ public class AdvancedSearch {
             s += " AND ( ";
             while (iterator.hasNext()) {
                 
-                s += " (t3.int_color = \"" + iterator.next() + "\") ";
+                s += " (" + col(flat, "t3", "int_color") + " = \""
+                        + iterator.next() + "\") ";
                 if (iterator.hasNext()) {
                     s += " OR ";
                 }
@@ -560,9 +829,13 @@ public class AdvancedSearch {
             Iterator<String> iterator = this.includeLocations.iterator();
 
             s += " AND ( ";
+            if (!iterator.hasNext()) {
+                s += " FALSE ";
+            }
             while (iterator.hasNext()) {
                 
-                s += " (t4.Store_name = \"" + iterator.next() + "\") ";
+                s += " (" + col(flat, "t4", "Store_name") + " = \""
+                        + iterator.next() + "\") ";
                 if (iterator.hasNext()) {
                     s += " OR ";
                 }
@@ -576,7 +849,8 @@ public class AdvancedSearch {
             s += " AND ( ";
             while (iterator.hasNext()) {
                 
-                s += " (t2.Model_type = \"" + iterator.next() + "\") ";
+                s += " (" + col(flat, "t2", "Model_type") + " = \""
+                        + iterator.next() + "\") ";
                 if (iterator.hasNext()) {
                     s += " OR ";
                 }
@@ -592,9 +866,10 @@ public class AdvancedSearch {
      * Interprets the parameters of the AdvancedSearch object and
      * generates the appropriate SQL strings, which are concatenated
      * with the final SQL string.
+     * @param flat true to read the flattened search table
      * @return Conditional portions of final SQL string 
 	 */
-	private String addNewFilters() {
+	private String addNewFilters(final boolean flat) {
 	    String s = "";
 
 	    if (this.includeModels != null || this.includeMakes != null) {
@@ -606,7 +881,8 @@ public class AdvancedSearch {
 
 	            while (iterator.hasNext()) {
 	                    
-	                s += " (t1.Make_name = \"" + iterator.next() + "\") ";
+	                s += " (" + col(flat, "t1", "Make_name") + " = \""
+	                        + iterator.next() + "\") ";
 	                if (iterator.hasNext()) {
 	                    s += " OR ";
 	                }
@@ -622,7 +898,8 @@ public class AdvancedSearch {
 	                    
 	            while (iterator.hasNext()) {
 
-	                s += " (t2.Model_name = \"" + iterator.next() + "\") ";
+	                s += " (" + col(flat, "t2", "Model_name") + " = \""
+	                        + iterator.next() + "\") ";
 	                if (iterator.hasNext()) {
 	                    s += " OR ";
 	                }
@@ -633,28 +910,36 @@ public class AdvancedSearch {
 	    }
 	        
 	    if (this.minMPGCity >= 0) {
-	        s += " AND (t3.MPG_city >= " + this.minMPGCity + ") "; 
+	        s += " AND (" + col(flat, "t3", "MPG_city") + " >= "
+	                + this.minMPGCity + ") ";
 	    }
 	        
 	    if (this.minMPGHwy >= 0) {
-	        s += " AND (t3.MPG_hwy >= " + this.minMPGHwy + ") "; 
+	        s += " AND (" + col(flat, "t3", "MPG_hwy") + " >= "
+	                + this.minMPGHwy + ") ";
 	    }
 	        
 	    if (this.minPrice >= 0) {
-	        s += " AND (t3.price >= " + this.minPrice + ") "; 
+	        s += " AND (" + col(flat, "t3", "price") + " >= "
+	                + this.minPrice + ") ";
 	    }
 	        
 	    if (this.maxPrice >= 0) {
-	        s += " AND (t3.price <= " + this.maxPrice + ") "; 
+	        s += " AND (" + col(flat, "t3", "price") + " <= "
+	                + this.maxPrice + ") ";
 	    }
 
 	    if (this.includeLocations != null) {
 	        Iterator<String> iterator = this.includeLocations.iterator();
 
 	        s += " AND ( ";
+	        if (!iterator.hasNext()) {
+	            s += " FALSE ";
+	        }
 	        while (iterator.hasNext()) {
 	                
-	            s += " (t4.Store_name = \"" + iterator.next() + "\") ";
+	            s += " (" + col(flat, "t4", "Store_name") + " = \""
+	                    + iterator.next() + "\") ";
 	            if (iterator.hasNext()) {
 	                s += " OR ";
 	            }
@@ -668,7 +953,8 @@ public class AdvancedSearch {
 	        s += " AND ( ";
 	        while (iterator.hasNext()) {
 	                
-	            s += " (t2.Model_type = \"" + iterator.next() + "\") ";
+	            s += " (" + col(flat, "t2", "Model_type") + " = \""
+	                    + iterator.next() + "\") ";
 	            if (iterator.hasNext()) {
 	                s += " OR ";
 	            }
@@ -0,0 +1,122 @@
+package awesomecars.beans;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps frequently repeated strings (makes, models, colors, store names,
+ * ...) to small integer ids so that vehicle records can store an int
+ * instead of their own copy of the string. Ids are assigned in order of
+ * first use and never change. Lookups (by string or id) and interning a
+ * string that is already present do not lock; adding a new string is
+ * synchronized.
+ *
+ * @author Travis
+ */
+public final class StringDictionary {
+
+    /** Id returned for null. */
+    public static final int NULL_ID = -1;
+
+    /** Initial capacity of the id table. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** String to id. Written only while holding this. */
+    private final ConcurrentHashMap<String, Integer> ids =
+            new ConcurrentHashMap<String, Integer>();
+
+    /** Id to string. Replaced (never modified in place) when it grows. */
+    private volatile String[] values = new String[INITIAL_CAPACITY];
+
+    /** Number of ids assigned. */
+    private volatile int size = 0;
+
+    /**
+     * Returns the id of a string, assigning a new id if needed.
+     * @param s the string (may be null)
+     * @return its id (NULL_ID for null)
+     */
+    public int intern(final String s) {
+        if (s == null) {
+            return NULL_ID;
+        }
+        Integer known = ids.get(s);
+        if (known != null) {
+            return known;
+        }
+        synchronized (this) {
+            Integer id = ids.get(s);
+            if (id != null) {
+                return id;
+            }
+            
+            int next = size;
+            String[] v = values;
+            if (next == v.length) {
+                v = Arrays.copyOf(v, v.length * 2);
+            }
+            v[next] = s;
+            values = v;
+            ids.put(s, next);
+            size = next + 1;
+            return next;
+        }
+    }   // end intern(...)
+
+    /**
+     * Returns the id of a string without assigning one.
+     * @param s the string
+     * @return its id, or NULL_ID if it has never been interned
+     */
+    public int lookup(final String s) {
+        Integer id = s == null ? null : ids.get(s);
+        return id == null ? NULL_ID : id;
+    }
+
+    /**
+     * @param id an id returned by intern(...)
+     * @return the string (null for NULL_ID)
+     */
+    public String get(final int id) {
+        if (id == NULL_ID) {
+            return null;
+        }
+        return values[id];
+    }
+
+    /** @return number of distinct strings */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Writes the dictionary (in id order).
+     * @param out output
+     * @throws IOException IOException
+     */
+    public synchronized void write(final DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeUTF(values[i]);
+        }
+    }
+
+    /**
+     * Reads a dictionary written by write(...). Ids are preserved.
+     * @param in input
+     * @return the dictionary
+     * @throws IOException IOException
+     */
+    public static StringDictionary read(final DataInput in)
+            throws IOException {
+        StringDictionary d = new StringDictionary();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            d.intern(in.readUTF());
+        }
+        return d;
+    }
+}   // end class StringDictionary
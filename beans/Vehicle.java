@@ -1,29 +1,54 @@
 package awesomecars.beans;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
 
 import javax.json.JsonObject;
 
+
 /**
  * Java bean which describes a vehicle.
  * 
+ * To keep large inventories small on the heap, the repetitive attributes
+ * (make, model, colors, ...) are stored as ids into a dictionary shared
+ * by every Vehicle, the inventory is kept as parallel arrays of store ids
+ * and quantities, and the description is kept as UTF-8 bytes and only
+ * decoded when it is read. The getters and setters are unchanged.
+ * 
+ * The dictionary is never trimmed, so only attributes drawn from a small
+ * set of values go in it. Those unique to a vehicle (VIN, image filename,
+ * description) are kept as they are.
+ * 
  *  @author Travis
  */
 public class Vehicle implements java.io.Serializable {
 
     /** Implements Serializable interface. */
-	private static final long serialVersionUID = -7892633868357138131L;
+	private static final long serialVersionUID = 5240637383640385127L;
+	
+	/** Placeholder for attributes that new vehicles do not have. */
+	public static final String NOT_APPLICABLE = "N/A";
+	
+	/** Dictionary shared by all vehicles (attributes and store names). */
+	private static final StringDictionary DICTIONARY = new StringDictionary();
+	
+	/** Empty inventory arrays. */
+	private static final int[] NONE = new int[0];
 	
-	/** Make. */   
-	private String	make;
+	/** Make (dictionary id). */   
+	private transient int	make = StringDictionary.NULL_ID;
 	
-	/** Model. */
-	private String	model;
+	/** Model (dictionary id). */
+	private transient int	model = StringDictionary.NULL_ID;
 	
-	/** Body style. */
-	private String	bodyStyle;
+	/** Body style (dictionary id). */
+	private transient int	bodyStyle = StringDictionary.NULL_ID;
 	
 	/** Model year. */
 	private int		year;
@@ -37,37 +62,42 @@ public class Vehicle implements java.io.Serializable {
 	/** Gas mileage on the highway in MPG. */
 	private int 	mpgHwy;
 	
-	/** Vehicle description (prose). */
-	private String	description;
+	/** Vehicle description (prose) as UTF-8, decoded on demand. */
+	private transient byte[] description;
 	
-	/** Filename of vehicle image. */
-	private String	imageURL;
+	/** Filename of vehicle image (written by writeObject(...)). */
+	private transient String imageURL;
 	
-	/** Category of vehicle (new/used). */
-	private String	category;
+	/** Category of vehicle (new/used) (dictionary id). */
+	private transient int	category = StringDictionary.NULL_ID;
 	
 	/** Vehicle identifcation number (VIN). */
 	private String	vin;
 	
-	/** Interior color. */
-	private String	intColor;
+	/** Interior color (dictionary id). */
+	private transient int	intColor = StringDictionary.NULL_ID;
 	
-	/** Exterior color. */
-	private String	extColor;
+	/** Exterior color (dictionary id). */
+	private transient int	extColor = StringDictionary.NULL_ID;
 	
 	/** Miles on the odometer. */
 	private int		miles;
 	
-	/** Description of engine. */
-	private	String	engineDesc;
+	/** Description of engine (dictionary id). */
+	private transient int	engineDesc = StringDictionary.NULL_ID;
 	
-	/** Type of transmission (automatic/manual). */
-	private	String	transmission;
+	/** Type of transmission (automatic/manual) (dictionary id). */
+	private transient int	transmission = StringDictionary.NULL_ID;
 	
 	/**
-	 * Inventory where location is the key and quantity the value.
+	 * Inventory locations (dictionary ids), in location name order.
 	 */
-	private Map<String, Integer> inventory;
+	private transient int[] stores = NONE;
+	
+	/**
+	 * Inventory quantities, parallel to stores.
+	 */
+	private transient int[] counts = NONE;
 	
 	/** Default constructor. */
 	public Vehicle() { 
@@ -81,65 +111,69 @@ public class Vehicle implements java.io.Serializable {
 	 * @param obj JSONObject to initialize vehicle (must contain all fields)
 	 */
 	public Vehicle(final JsonObject obj) {
-		this.category = obj.getString("category");
-		this.make = obj.getString("make_name");
-		this.model = obj.getString("model_name");
-		this.bodyStyle = obj.getString("model_type");
+		setCategory(obj.getString("category"));
+		setMake(obj.getString("make_name"));
+		setModel(obj.getString("model_name"));
+		setBodyStyle(obj.getString("model_type"));
 		this.year = Integer.parseInt(obj.getString("year_model"));
 		this.price = Integer.parseInt(obj.getString("price"));
 		this.mpgCity = Integer.parseInt(obj.getString("mpg_city"));
 		this.mpgHwy = Integer.parseInt(obj.getString("mpg_hwy"));
-		this.description = obj.getString("description");
-		this.imageURL = obj.getString("picture");
-		this.inventory = new TreeMap<String, Integer>();
+		setDescription(obj.getString("description"));
+		setImageURL(obj.getString("picture"));
 		setInventory(obj.getString("store_name"), 
 		        Integer.parseInt(obj.getString("count_total")));
 		
-		if ("Used".equals(this.category)) {
+		if ("Used".equals(getCategory())) {
 			this.vin = obj.getString("vin");
-			this.intColor = obj.getString("int_color");
-			this.extColor = obj.getString("ext_color");
+			setIntColor(obj.getString("int_color"));
+			setExtColor(obj.getString("ext_color"));
 			this.miles = Integer.parseInt(obj.getString("miles"));
-			this.engineDesc = obj.getString("engine_type");
-			this.transmission = obj.getString("transmission");
+			setEngineDesc(obj.getString("engine_type"));
+			setTransmission(obj.getString("transmission"));
 		} else {
-			this.vin = "N/A";
-			this.intColor = "N/A";
-			this.extColor = "N/A";
+			this.vin = NOT_APPLICABLE;
+			setIntColor(NOT_APPLICABLE);
+			setExtColor(NOT_APPLICABLE);
 			this.miles = 0;
-			this.engineDesc = "N/A";
-			this.transmission = "N/A";			
+			setEngineDesc(NOT_APPLICABLE);
+			setTransmission(NOT_APPLICABLE);
 		}
 	}
 	
+	/** @return the dictionary shared by all vehicles */
+	public static StringDictionary getDictionary() {
+	    return DICTIONARY;
+	}
+	
 	/** @param m the make to set */
 	public final void setMake(final String m) { 
-	    make = m; 
+	    make = DICTIONARY.intern(m); 
 	}
 	
 	/** @return the make */
 	public final String getMake() { 
-	    return make; 
+	    return DICTIONARY.get(make); 
 	}
 	
 	/** @param m the model to set */
 	public final void setModel(final String m) { 
-	    model = m; 
+	    model = DICTIONARY.intern(m); 
 	}
 	
 	/** @return the model */
 	public final String getModel() { 
-	    return model; 
+	    return DICTIONARY.get(model); 
 	}
 	
 	/** @param s the body style to set */
 	public final void setBodyStyle(final String s) { 
-	    bodyStyle = s; 
+	    bodyStyle = DICTIONARY.intern(s); 
 	}
 	
 	/** @return the body style */
 	public final String getBodyStyle() { 
-	    return bodyStyle; 
+	    return DICTIONARY.get(bodyStyle); 
 	}
 
 	/** @param y the model year to set */
@@ -189,12 +223,14 @@ public class Vehicle implements java.io.Serializable {
 	
 	/** @param d the description to set */
 	public final void setDescription(final String d) { 
-	    description = d; 
+	    description = d == null 
+	            ? null : d.getBytes(StandardCharsets.UTF_8); 
 	}
 	
 	/** @return the description */
 	public final String getDescription() { 
-	    return description; 
+	    return description == null 
+	            ? null : new String(description, StandardCharsets.UTF_8); 
 	}   
 	
 	/** @param u the image filename to set */
@@ -209,12 +245,12 @@ public class Vehicle implements java.io.Serializable {
 
 	/** @param c the category (new/used) to set */
 	public final void setCategory(final String c) { 
-	    category = c; 
+	    category = DICTIONARY.intern(c); 
 	}
 	
 	/** @return the category (new/used) */
 	public final String getCategory() { 
-	    return category; 
+	    return DICTIONARY.get(category); 
 	}
 	
 	/** @param v the VIN to set */
@@ -229,22 +265,22 @@ public class Vehicle implements java.io.Serializable {
 	
 	/** @param c the interior color to set */
 	public final void setIntColor(final String c) { 
-	    intColor = c; 
+	    intColor = DICTIONARY.intern(c); 
 	}
 	
 	/** @return the interior color */
 	public final String getIntColor() { 
-	    return intColor; 
+	    return DICTIONARY.get(intColor); 
 	}
 	
 	/** @param c the exterior color to set */
 	public final void setExtColor(final String c) { 
-	    extColor = c; 
+	    extColor = DICTIONARY.intern(c); 
 	}
 	
 	/** @return the exterior color */
 	public final String getExtColor() { 
-	    return extColor; 
+	    return DICTIONARY.get(extColor); 
 	}
 	
 	/** @param m the miles to set */
@@ -264,36 +300,127 @@ public class Vehicle implements java.io.Serializable {
 	
 	/** @param e the engine description to set */
 	public final void setEngineDesc(final String e) { 
-	    engineDesc = e; 
+	    engineDesc = DICTIONARY.intern(e); 
 	}
 	
 	/** @return the engine description */
 	public final String getEngineDesc() { 
-	    return engineDesc; 
+	    return DICTIONARY.get(engineDesc); 
 	}
 	
 	/** @param t the transmission to set */
 	public final void setTransmission(final String t) { 
-	    transmission = t; 
+	    transmission = DICTIONARY.intern(t); 
 	}
 	
 	/** @return the transmission */
 	public final String getTransmission() { 
-	    return transmission; 
+	    return DICTIONARY.get(transmission); 
 	}
 	
 	/** 
-	 * Adds (location, quantity) key-value pair to the inventory.
+	 * Adds (location, quantity) key-value pair to the inventory, replacing
+	 * the quantity if the location is already present.
 	 * @param key the key (location) to set
 	 * @param value the value (quantity available) to set
 	 */
 	public final void setInventory(final String key, final int value) { 
-        this.inventory.put(key, value);	        
+	    int id = DICTIONARY.intern(key);
+	    int at = 0;
+	    while (at < stores.length && compareStores(stores[at], id) < 0) {
+	        at++;
+	    }
+	    if (at < stores.length && stores[at] == id) {
+	        counts[at] = value;
+	        return;
+	    }
+	    
+	    int[] s = Arrays.copyOf(stores, stores.length + 1);
+	    int[] c = Arrays.copyOf(counts, counts.length + 1);
+	    System.arraycopy(s, at, s, at + 1, stores.length - at);
+	    System.arraycopy(c, at, c, at + 1, counts.length - at);
+	    s[at] = id;
+	    c[at] = value;
+	    stores = s;
+	    counts = c;
 	}  // end setInventory
 	
-	/** @return the inventory */
+	/**
+	 * Orders locations by name (null first), as the inventory map does.
+	 * @param a dictionary id of a location
+	 * @param b dictionary id of a location
+	 * @return negative, zero or positive as a sorts before, with or after b
+	 */
+	private static int compareStores(final int a, final int b) {
+	    if (a == b) {
+	        return 0;
+	    }
+	    if (a == StringDictionary.NULL_ID || b == StringDictionary.NULL_ID) {
+	        return a == StringDictionary.NULL_ID ? -1 : 1;
+	    }
+	    return DICTIONARY.get(a).compareTo(DICTIONARY.get(b));
+	}
+	
+	/** @return the inventory (a copy, in location name order) */
 	public final Map<String, Integer> getInventory() {
-	    return this.inventory;
+	    Map<String, Integer> inventory = new TreeMap<String, Integer>();
+	    for (int i = 0; i < stores.length; i++) {
+	        inventory.put(DICTIONARY.get(stores[i]), counts[i]);
+	    }
+	    return inventory;
 	}  // end getInventory
 	
+	/**
+	 * Writes the attributes as strings, since dictionary ids are only
+	 * meaningful within one JVM.
+	 * @param out output
+	 * @throws IOException IOException
+	 */
+	private void writeObject(final ObjectOutputStream out) 
+	        throws IOException {
+	    out.defaultWriteObject();
+	    out.writeObject(getMake());
+	    out.writeObject(getModel());
+	    out.writeObject(getBodyStyle());
+	    out.writeObject(getDescription());
+	    out.writeObject(getImageURL());
+	    out.writeObject(getCategory());
+	    out.writeObject(getIntColor());
+	    out.writeObject(getExtColor());
+	    out.writeObject(getEngineDesc());
+	    out.writeObject(getTransmission());
+	    out.writeInt(stores.length);
+	    for (int i = 0; i < stores.length; i++) {
+	        out.writeObject(DICTIONARY.get(stores[i]));
+	        out.writeInt(counts[i]);
+	    }
+	}  // end writeObject(...)
+	
+	/**
+	 * Reads the attributes written by writeObject(...).
+	 * @param in input
+	 * @throws IOException IOException
+	 * @throws ClassNotFoundException ClassNotFoundException
+	 */
+	private void readObject(final ObjectInputStream in) 
+	        throws IOException, ClassNotFoundException {
+	    in.defaultReadObject();
+	    setMake((String) in.readObject());
+	    setModel((String) in.readObject());
+	    setBodyStyle((String) in.readObject());
+	    setDescription((String) in.readObject());
+	    setImageURL((String) in.readObject());
+	    setCategory((String) in.readObject());
+	    setIntColor((String) in.readObject());
+	    setExtColor((String) in.readObject());
+	    setEngineDesc((String) in.readObject());
+	    setTransmission((String) in.readObject());
+	    stores = NONE;
+	    counts = NONE;
+	    int n = in.readInt();
+	    for (int i = 0; i < n; i++) {
+	        setInventory((String) in.readObject(), in.readInt());
+	    }
+	}  // end readObject(...)
+	
 }
@@ -0,0 +1,81 @@
+package awesomecars.model;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.json.JsonObject;
+
+/**
+ * Local outbox for saved-search alerts: each alert is appended to a file
+ * as one line of JSON, and the file is flushed after each batch. A
+ * separate mailer tails the file and delivers the alerts, so a slow or
+ * unavailable mail service never holds up the inventory sync.
+ *
+ * @author Travis
+ */
+public final class AlertOutbox {
+
+    /** The outbox file. */
+    private final File file;
+
+    /** Open writer (null until the first write or after close()). */
+    private Writer out;
+
+    /**
+     * Creates an outbox. The file is opened for appending on first write.
+     * @param f the outbox file
+     */
+    public AlertOutbox(final File f) {
+        file = f;
+    }
+
+    /** @return the outbox file */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends alerts.
+     * @param alerts the alerts, one JSON object each
+     * @throws IOException if the outbox cannot be written
+     */
+    public synchronized void write(final List<JsonObject> alerts)
+            throws IOException {
+        if (alerts.isEmpty()) {
+            return;
+        }
+        if (out == null) {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Unable to create " + dir);
+            }
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file, true), 
+                    StandardCharsets.UTF_8));
+        }
+        for (JsonObject alert : alerts) {
+            out.write(alert.toString());
+            out.write('\n');
+        }
+        out.flush();
+    }   // end write(...)
+
+    /** Closes the outbox file. */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.out.println("Could not close " + file + ": "
+                        + e.getMessage());
+            }
+            out = null;
+        }
+    }
+}   // end class AlertOutbox
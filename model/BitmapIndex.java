@@ -0,0 +1,130 @@
+package awesomecars.model;
+
+/**
+ * Row sets for each value of the dictionary columns searches filter on
+ * (make, model, body style and store), so a selective equality filter can
+ * produce its candidate rows without touching the others. Values held by
+ * many rows are stored as bitmaps (one bit per row); rarer values as
+ * sorted row lists, which are smaller and cheaper to union.
+ *
+ * @author Travis
+ */
+public final class BitmapIndex {
+
+    /** Indexed columns. */
+    static final int[] FIELDS = {
+        OffHeapVehicleStore.MAKE, OffHeapVehicleStore.MODEL,
+        OffHeapVehicleStore.BODY_STYLE, OffHeapVehicleStore.STORE
+    };
+
+    /** Values held by more than one row in this many become bitmaps. */
+    private static final int DENSE_RATIO = 32;
+
+    /** Rows covered. */
+    private final int rows;
+
+    /** Rows of every value, grouped by id, by position in FIELDS. */
+    private final int[][] postings;
+
+    /** Start of each id's rows in postings (ids + 1 entries). */
+    private final int[][] starts;
+
+    /** Bitmaps of frequent ids (null for rare ids). */
+    private final long[][][] bitmaps;
+
+    /**
+     * Builds the row sets of every indexed column.
+     * @param store the store
+     * @param stats statistics over the same rows
+     */
+    public BitmapIndex(final OffHeapVehicleStore store,
+            final ColumnStatistics stats) {
+        rows = stats.getRows();
+        int ids = store.getDictionary().size();
+        postings = new int[FIELDS.length][];
+        starts = new int[FIELDS.length][];
+        bitmaps = new long[FIELDS.length][ids][];
+        int words = InventoryColumns.words(rows);
+        
+        for (int f = 0; f < FIELDS.length; f++) {
+            // counting sort of the rows by id, from the frequencies
+            int[] start = new int[ids + 1];
+            for (int id = 0; id < ids; id++) {
+                start[id + 1] = start[id] + stats.frequency(FIELDS[f], id);
+            }
+            int[] next = start.clone();
+            int[] list = new int[start[ids]];
+            for (int row = 0; row < rows; row++) {
+                int id = store.getInt(row, FIELDS[f]);
+                if (id >= 0 && id < ids) {
+                    list[next[id]++] = row;
+                }
+            }
+            for (int id = 0; id < ids; id++) {
+                if ((long) (start[id + 1] - start[id]) * DENSE_RATIO > rows) {
+                    long[] bits = new long[words];
+                    for (int i = start[id]; i < start[id + 1]; i++) {
+                        bits[list[i] >>> 6] |= 1L << list[i];
+                    }
+                    bitmaps[f][id] = bits;
+                }
+            }
+            postings[f] = list;
+            starts[f] = start;
+        }
+    }   // end constructor
+
+    /**
+     * @param field a column
+     * @return true if the column is indexed
+     */
+    public static boolean isIndexed(final int field) {
+        return position(field) >= 0;
+    }
+
+    /**
+     * @param field a column
+     * @return position of the column in FIELDS, or -1
+     */
+    private static int position(final int field) {
+        for (int f = 0; f < FIELDS.length; f++) {
+            if (FIELDS[f] == field) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    /** @return number of rows covered */
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * Adds the rows holding any of a set of ids to a bitmap.
+     * @param field an indexed column
+     * @param allowed allowed ids
+     * @param bits bitmap to add the rows to (one bit per row)
+     */
+    public void union(final int field, final boolean[] allowed,
+            final long[] bits) {
+        int f = position(field);
+        int n = Math.min(allowed.length, bitmaps[f].length);
+        for (int id = 0; id < n; id++) {
+            if (!allowed[id]) {
+                continue;
+            }
+            long[] dense = bitmaps[f][id];
+            if (dense != null) {
+                for (int w = 0; w < dense.length; w++) {
+                    bits[w] |= dense[w];
+                }
+            } else {
+                int[] list = postings[f];
+                for (int i = starts[f][id]; i < starts[f][id + 1]; i++) {
+                    bits[list[i] >>> 6] |= 1L << list[i];
+                }
+            }
+        }
+    }   // end union(...)
+}   // end class BitmapIndex
@@ -1,16 +1,33 @@
 package awesomecars.model;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 
+import awesomecars.monitoring.CacheLoadEvent;
 import awesomecars.persistence.IDatabaseAdapter;
-import awesomecars.persistence.MySQLDatabaseAdapter;
 
 /**
  * This class stores references to all lists needed to support data
@@ -30,62 +47,156 @@ public final class CarWebAppCache {
     /** Number of lists in the cache. */
     public static final int NUM_LISTS  = 4;
     
-    /** Initialized flag. */
-    private boolean initialized = false;
-
-    /** List of make-model assocations. */
-    private Map<String, ArrayList<String>> makeModelList;
-    
-    /** List of unique makes. */
-    private List<String> makeList = new ArrayList<String>();
-    
-    /** List of unique models. */
-    private List<String> modelList = new ArrayList<String>();
+    /** Identifies a cache snapshot file ("ACCS"). */
+    private static final int SNAPSHOT_MAGIC = 0x41434353;
     
-    /** List of unique body styles. */
-    private List<String> bodyStyleList = new ArrayList<String>();
+    /** Snapshot file format; bump when the format changes. */
+    private static final int SNAPSHOT_FORMAT = 1;
     
-    /** List of unique exterior colors. */
-    private List<String> extColorList = new ArrayList<String>();
-    
-    /** List of unique interior colors. */
-    private List<String> intColorList = new ArrayList<String>();
-    
-    /** List of unqiue locations. */
-    private List<String> locationList = new ArrayList<String>();
+    /** The lists being served (EMPTY until initialized). */
+    private volatile Lists lists = Lists.EMPTY;
+
+    /**
+     * One consistent set of the cached lists. A Lists is never modified
+     * once built; a refresh builds a complete new one and publishes it
+     * with a single write, so a reader that takes a Lists once sees every
+     * list from the same load.
+     */
+    public static final class Lists {
+
+        /** Lists of an uninitialized cache. */
+        static final Lists EMPTY = new Lists(0L, 
+                new TreeMap<String, ArrayList<String>>(),
+                new ArrayList<String>(), new ArrayList<String>(),
+                new ArrayList<String>(), new ArrayList<String>(),
+                new ArrayList<String>(), new ArrayList<String>());
+
+        /** Time (ms) the lists were loaded from the database. */
+        private final long version;
+
+        /** List of make-model assocations. */
+        private final Map<String, ArrayList<String>> makeModelList;
+
+        /** List of unique makes. */
+        private final List<String> makeList;
+
+        /** List of unique models. */
+        private final List<String> modelList;
+
+        /** List of unique body styles. */
+        private final List<String> bodyStyleList;
+
+        /** List of unique exterior colors. */
+        private final List<String> extColorList;
+
+        /** List of unique interior colors. */
+        private final List<String> intColorList;
+
+        /** List of unqiue locations. */
+        private final List<String> locationList;
+
+        /**
+         * @param v time the lists were loaded
+         * @param makeModels make-model associations
+         * @param makes makes
+         * @param models models
+         * @param bodyStyles body styles
+         * @param extColors exterior colors
+         * @param intColors interior colors
+         * @param locations locations
+         */
+        Lists(final long v, final Map<String, ArrayList<String>> makeModels,
+                final List<String> makes, final List<String> models,
+                final List<String> bodyStyles, final List<String> extColors,
+                final List<String> intColors, final List<String> locations) {
+            version = v;
+            makeModelList = Collections.unmodifiableMap(makeModels);
+            makeList = Collections.unmodifiableList(makes);
+            modelList = Collections.unmodifiableList(models);
+            bodyStyleList = Collections.unmodifiableList(bodyStyles);
+            extColorList = Collections.unmodifiableList(extColors);
+            intColorList = Collections.unmodifiableList(intColors);
+            locationList = Collections.unmodifiableList(locations);
+        }
+
+        /** @return when the lists were loaded from the database */
+        public long getVersion() {
+            return version;
+        }
+
+        /** @return the make-model association list */
+        public Map<String, ArrayList<String>> getMakeModelList() {
+            return makeModelList;
+        }
+
+        /** @return the make list */
+        public List<String> getMakeList() {
+            return makeList;
+        }
+
+        /** @return the model list */
+        public List<String> getModelList() {
+            return modelList;
+        }
+
+        /** @return the body styles list */
+        public List<String> getBodyStyleList() {
+            return bodyStyleList;
+        }
+
+        /** @return the exterior color list */
+        public List<String> getExteriorColorList() {
+            return extColorList;
+        }
+
+        /** @return the interior color list */
+        public List<String> getInteriorColorList() {
+            return intColorList;
+        }
+
+        /** @return the location list */
+        public List<String> getLocationList() {
+            return locationList;
+        }
+    }   // end class Lists
+
+    /** @return the lists being served, all from the same load */
+    public Lists getLists() {
+        return lists;
+    }
 
     /** @return the make-model association list */
     public Map<String, ArrayList<String>>  getMakeModelList() { 
-        return makeModelList; }
+        return lists.getMakeModelList(); }
     
     /** @return the make list */
     public List<String> getMakeList() { 
-        return makeList; 
+        return lists.getMakeList(); 
     }
     
     /** @return the model list */
     public List<String> getModelList() { 
-        return modelList; 
+        return lists.getModelList(); 
     }
     
     /** @return the body styles list */
     public List<String> getBodyStyleList() {
-        return bodyStyleList; 
+        return lists.getBodyStyleList(); 
     }
     
     /** @return the exterior color list */
     public List<String> getExteriorColorList() { 
-        return extColorList; 
+        return lists.getExteriorColorList(); 
     }
     
     /** @return the interior color list */
     public List<String> getInteriorColorList() { 
-        return intColorList; 
+        return lists.getInteriorColorList(); 
     }
     
     /** @return the location list */
     public List<String> getLocationList() { 
-        return locationList; 
+        return lists.getLocationList(); 
     }
 
     /**  
@@ -105,36 +216,290 @@ public final class CarWebAppCache {
 
     /**
      * This method must be called to create and initialize the CarWebAppCache
-     * instance.
+     * instance. Does nothing if the cache is already initialized (for
+     * example from a snapshot); use refreshCache(...) to reload it.
      * 
      * @param database Vehicle database to retrieve data from
      * @throws SQLException java.sql.SQLException
      */
     public void initCache(final IDatabaseAdapter database) throws SQLException {
         
-        if (!initialized) {  
-            List<ArrayList<String>> resultSets =   
-                    ((MySQLDatabaseAdapter) database)
-                    .callStoredProcedureMultipleResultSets("GetLookupLists");
-                 
-            // get body styles, int/ext colors and locations
-            if (resultSets != null && resultSets.size() == NUM_LISTS) {
-                int i = 0;
-                bodyStyleList = resultSets.get(i++);
-                extColorList = resultSets.get(i++);
-                intColorList = resultSets.get(i++);
-                locationList = resultSets.get(i);
-    
-                // creates the make/model map and the
-                // make and model lists
-                makeModelList = makeMakeModelList(database);
-                if (makeModelList != null) {
-                    initialized = true;                        
-                }
-            }   // end if
-        }   // end if (!initialized)   
+        if (lists == Lists.EMPTY) {  
+            refreshCache(database);
+        }   // end if not initialized   
     }   // end initCache(...)
     
+    /**
+     * Reloads every list from the database. The new lists are built
+     * completely and then replace the lists being served all at once, so
+     * this can run in the background while requests use the cache.
+     * 
+     * @param database Vehicle database to retrieve data from
+     * @return true if the cache was reloaded
+     * @throws SQLException java.sql.SQLException
+     */
+    public boolean refreshCache(final IDatabaseAdapter database)
+            throws SQLException {
+        return refreshCache(database, null);
+    }
+    
+    /**
+     * Reloads every list from the database, running the GetMakeModelList
+     * call on the given executor in parallel with the GetLookupLists call.
+     * 
+     * @param database Vehicle database to retrieve data from
+     * @param executor executor for the make/model load (null to load both
+     * on the calling thread)
+     * @return true if the cache was reloaded
+     * @throws SQLException java.sql.SQLException
+     */
+    public boolean refreshCache(final IDatabaseAdapter database,
+            final ExecutorService executor) throws SQLException {
+        // creates the make/model map and the make and model lists
+        final List<String> makes = new ArrayList<String>();
+        final List<String> models = new ArrayList<String>();
+        Callable<Map<String, ArrayList<String>>> makeModelLoad =
+                new Callable<Map<String, ArrayList<String>>>() {
+            @Override
+            public Map<String, ArrayList<String>> call() throws SQLException {
+                CacheLoadEvent event = new CacheLoadEvent();
+                event.begin();
+                Map<String, ArrayList<String>> makeModels = 
+                        makeMakeModelList(database, makes, models);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.setSource("GetMakeModelList");
+                    event.setSuccess(makeModels != null);
+                    event.setEntries(models.size());
+                    event.commit();
+                }
+                return makeModels;
+            }
+        };
+        Future<Map<String, ArrayList<String>>> makeModelFuture = null;
+        if (executor != null) {
+            makeModelFuture = executor.submit(makeModelLoad);
+        }
+        
+        CacheLoadEvent event = new CacheLoadEvent();
+        event.begin();
+        List<ArrayList<String>> resultSets = database
+                .callStoredProcedureMultipleResultSets("GetLookupLists");
+        event.end();
+        if (event.shouldCommit()) {
+            event.setSource("GetLookupLists");
+            event.setSuccess(resultSets != null 
+                    && resultSets.size() == NUM_LISTS);
+            event.setEntries(countEntries(resultSets));
+            event.commit();
+        }
+             
+        Map<String, ArrayList<String>> makeModels;
+        try {
+            makeModels = makeModelFuture == null 
+                    ? makeModelLoad.call() : makeModelFuture.get();
+        } catch (SQLException e) {
+            throw e;
+        } catch (ExecutionException e) {
+            throw new SQLException("GetMakeModelList failed", e.getCause());
+        } catch (Exception e) {
+            throw new SQLException("GetMakeModelList failed", e);
+        }
+        
+        // get body styles, int/ext colors and locations
+        if (resultSets == null || resultSets.size() != NUM_LISTS
+                || makeModels == null) {
+            return false;
+        }
+
+        int i = 0;
+        lists = new Lists(System.currentTimeMillis(), makeModels, 
+                makes, models, resultSets.get(i++), resultSets.get(i++),
+                resultSets.get(i++), resultSets.get(i));
+        return true;
+    }   // end refreshCache(...)
+    
+    /**
+     * Writes the cache to a local binary snapshot file so the next start
+     * can serve the cache without waiting for the database. The snapshot
+     * is written to a temporary file and then renamed over the old one,
+     * so a reader never sees a partially written snapshot.
+     * 
+     * @param file snapshot file
+     * @throws IOException java.io.IOException
+     */
+    public void saveSnapshot(final File file) throws IOException {
+        Lists l = lists;
+        if (l == Lists.EMPTY) {
+            throw new IOException("Cache is not initialized");
+        }
+        
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_FORMAT);
+            out.writeLong(l.getVersion());
+            writeList(out, l.getBodyStyleList());
+            writeList(out, l.getExteriorColorList());
+            writeList(out, l.getInteriorColorList());
+            writeList(out, l.getLocationList());
+            
+            // makes in database order, each followed by its models
+            out.writeInt(l.getMakeList().size());
+            for (String make : l.getMakeList()) {
+                writeString(out, make);
+                writeList(out, l.getMakeModelList().get(make));
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }   // end saveSnapshot(...)
+    
+    /**
+     * Initializes the cache from a snapshot written by saveSnapshot(...).
+     * The file is memory-mapped and decoded in a single pass.
+     * 
+     * @param file snapshot file
+     * @return true if the snapshot was loaded, false if it is missing or
+     * was written by an incompatible version of the app
+     * @throws IOException if the snapshot is corrupt
+     */
+    public boolean loadSnapshot(final File file) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        if (buf.remaining() < 8 || buf.getInt() != SNAPSHOT_MAGIC
+                || buf.getInt() != SNAPSHOT_FORMAT) {
+            return false;
+        }
+        
+        try {
+            long snapshotVersion = buf.getLong();
+            ArrayList<String> bodyStyles = readList(buf);
+            ArrayList<String> extColors = readList(buf);
+            ArrayList<String> intColors = readList(buf);
+            ArrayList<String> locations = readList(buf);
+            
+            List<String> makes = new ArrayList<String>();
+            List<String> models = new ArrayList<String>();
+            Map<String, ArrayList<String>> makeModels = 
+                    new TreeMap<String, ArrayList<String>>();
+            int numMakes = buf.getInt();
+            for (int i = 0; i < numMakes; i++) {
+                String make = readString(buf);
+                ArrayList<String> makeModelsList = readList(buf);
+                makes.add(make);
+                models.addAll(makeModelsList);
+                makeModels.put(make, makeModelsList);
+            }
+            
+            lists = new Lists(snapshotVersion, makeModels, makes, models,
+                    bodyStyles, extColors, intColors, locations);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt cache snapshot " + file, e);
+        }
+        return true;
+    }   // end loadSnapshot(...)
+    
+    /** @return when the cached lists were loaded from the database */
+    public long getVersion() {
+        return lists.getVersion();
+    }
+    
+    /**
+     * Writes a list in the snapshot format (count followed by values).
+     * 
+     * @param out snapshot output
+     * @param list list to write
+     * @throws IOException java.io.IOException
+     */
+    private static void writeList(final DataOutputStream out,
+            final List<String> list) throws IOException {
+        out.writeInt(list.size());
+        for (String value : list) {
+            writeString(out, value);
+        }
+    }
+    
+    /**
+     * Writes a string in the snapshot format (UTF-8 byte count followed by
+     * the bytes).
+     * 
+     * @param out snapshot output
+     * @param value string to write
+     * @throws IOException java.io.IOException
+     */
+    private static void writeString(final DataOutputStream out,
+            final String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Reads a list written by writeList(...).
+     * 
+     * @param buf snapshot buffer
+     * @return the list
+     * @throws BufferUnderflowException if the count is corrupt or the
+     * list is cut off
+     */
+    private static ArrayList<String> readList(final ByteBuffer buf) {
+        int size = buf.getInt();
+        // every value takes at least its 4-byte length
+        if (size < 0 || size > buf.remaining() / 4) {
+            throw new BufferUnderflowException();
+        }
+        ArrayList<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(readString(buf));
+        }
+        return list;
+    }
+    
+    /**
+     * Reads a string written by writeString(...).
+     * 
+     * @param buf snapshot buffer
+     * @return the string
+     * @throws BufferUnderflowException if the length is corrupt or the
+     * string is cut off
+     */
+    private static String readString(final ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Counts the entries in a list of lists for the CacheLoad JFR event.
+     * 
+     * @param lists lists returned by the database (may be null)
+     * @return total number of entries
+     */
+    private static int countEntries(final List<ArrayList<String>> lists) {
+        int n = 0;
+        if (lists != null) {
+            for (List<String> l : lists) {
+                n += l.size();
+            }
+        }
+        return n;
+    }
+    
     /**
      * Extracts make and model information from the database and returns
      * it as an ordered TreeMap by make (key) and model (values). This
@@ -142,18 +507,23 @@ public final class CarWebAppCache {
      * pane and parts of the Advanced Search form.
      * 
      * @param database Vehicle database
+     * @param makeList list to add the makes to (in database order)
+     * @param modelList list to add the models to (in database order)
      * @return TreeMap of make (key) and model (values) information
      * @throws SQLException java.sql.SQLException
      */
-    private Map<String, ArrayList<String>> makeMakeModelList(
-            final IDatabaseAdapter database) throws SQLException {
+    private static Map<String, ArrayList<String>> makeMakeModelList(
+            final IDatabaseAdapter database, final List<String> makeList,
+            final List<String> modelList) throws SQLException {
         // collection of makes and models. Model is the key. Make is the value
         Map<String, ArrayList<String>> list = 
                 new TreeMap<String, ArrayList<String>>();
         JsonArray results = null;
         
-        results = ((MySQLDatabaseAdapter) database)
-                .callStoredProcedure("GetMakeModelList");
+        results = database.callStoredProcedure("GetMakeModelList");
+        if (results == null) {
+            return null;
+        }
 
         int len = results.size();
         String make = null;
@@ -0,0 +1,209 @@
+package awesomecars.model;
+
+/**
+ * Statistics collected over the inventory each time it is indexed, for
+ * estimating how many rows a filter will match: an equi-width value
+ * histogram for each numeric column and a frequency count for each value
+ * of each dictionary column. Histograms cover every row; the number of
+ * used vehicles is kept so estimates for filters that only restrict used
+ * vehicles can be scaled.
+ *
+ * @author Travis
+ */
+public final class ColumnStatistics {
+
+    /** Buckets per numeric histogram. */
+    public static final int BUCKETS = 64;
+
+    /** Numeric columns with histograms. */
+    static final int[] NUMERIC_FIELDS = {
+        OffHeapVehicleStore.PRICE, OffHeapVehicleStore.YEAR,
+        OffHeapVehicleStore.MILES, OffHeapVehicleStore.MPG_CITY,
+        OffHeapVehicleStore.MPG_HWY
+    };
+
+    /** Dictionary columns with frequency counts. */
+    static final int[] DICTIONARY_FIELDS = {
+        OffHeapVehicleStore.MAKE, OffHeapVehicleStore.MODEL,
+        OffHeapVehicleStore.BODY_STYLE, OffHeapVehicleStore.STORE,
+        OffHeapVehicleStore.EXT_COLOR, OffHeapVehicleStore.INT_COLOR,
+        OffHeapVehicleStore.TRANSMISSION
+    };
+
+    /** Rows counted. */
+    private final int rows;
+
+    /** Used vehicles counted. */
+    private final int usedRows;
+
+    /** Histograms, by position in NUMERIC_FIELDS. */
+    private final Histogram[] histograms;
+
+    /** Frequencies by id, by position in DICTIONARY_FIELDS. */
+    private final int[][] frequencies;
+
+    /**
+     * Collects statistics over every row of the columns and store.
+     * @param store the store
+     * @param columns the store's numeric columns
+     */
+    public ColumnStatistics(final OffHeapVehicleStore store,
+            final InventoryColumns columns) {
+        rows = columns.size();
+        int[] usedMask = columns.getUsedMask();
+        int used = 0;
+        for (int row = 0; row < rows; row++) {
+            used -= usedMask[row];
+        }
+        usedRows = used;
+
+        int[][] values = {columns.getPrice(), columns.getYear(),
+            columns.getMiles(), columns.getMpgCity(), columns.getMpgHwy()};
+        histograms = new Histogram[NUMERIC_FIELDS.length];
+        for (int c = 0; c < values.length; c++) {
+            histograms[c] = new Histogram(values[c], rows);
+        }
+
+        int ids = store.getDictionary().size();
+        frequencies = new int[DICTIONARY_FIELDS.length][ids];
+        for (int row = 0; row < rows; row++) {
+            for (int c = 0; c < DICTIONARY_FIELDS.length; c++) {
+                int id = store.getInt(row, DICTIONARY_FIELDS[c]);
+                if (id >= 0 && id < ids) {
+                    frequencies[c][id]++;
+                }
+            }
+        }
+    }   // end constructor
+
+    /**
+     * @param fields field list
+     * @param field a field
+     * @return position of the field in the list, or -1
+     */
+    private static int position(final int[] fields, final int field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == field) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return number of rows counted */
+    public int getRows() {
+        return rows;
+    }
+
+    /** @return number of used vehicles counted */
+    public int getUsedRows() {
+        return usedRows;
+    }
+
+    /**
+     * Estimates the fraction of rows with a value in a range.
+     * @param field a numeric field (e.g. OffHeapVehicleStore.PRICE)
+     * @param lo lowest value (inclusive)
+     * @param hi highest value (inclusive)
+     * @return estimated fraction of rows (0.0 - 1.0)
+     */
+    public double rangeSelectivity(final int field, final long lo,
+            final long hi) {
+        int c = position(NUMERIC_FIELDS, field);
+        return c < 0 || rows == 0 ? 1.0 : histograms[c].fraction(lo, hi);
+    }
+
+    /**
+     * Counts the rows holding any of a set of dictionary ids.
+     * @param field a dictionary field (e.g. OffHeapVehicleStore.MAKE)
+     * @param allowed allowed ids
+     * @return number of rows
+     */
+    public long count(final int field, final boolean[] allowed) {
+        int c = position(DICTIONARY_FIELDS, field);
+        if (c < 0) {
+            return rows;
+        }
+        long count = 0;
+        int n = Math.min(allowed.length, frequencies[c].length);
+        for (int id = 0; id < n; id++) {
+            if (allowed[id]) {
+                count += frequencies[c][id];
+            }
+        }
+        return count;
+    }   // end count(...)
+
+    /**
+     * @param field a dictionary field (e.g. OffHeapVehicleStore.MAKE)
+     * @param id a dictionary id
+     * @return number of rows holding the id
+     */
+    public int frequency(final int field, final int id) {
+        int c = position(DICTIONARY_FIELDS, field);
+        return c < 0 || id < 0 || id >= frequencies[c].length
+                ? 0 : frequencies[c][id];
+    }
+
+    /**
+     * Equi-width histogram of one integer column. Buckets are a whole
+     * number of values wide, so a narrow column (such as model year) gets
+     * one bucket per value.
+     */
+    private static final class Histogram {
+
+        /** Lowest value. */
+        private final long min;
+
+        /** Number of values each bucket covers. */
+        private final long width;
+
+        /** Rows per bucket. */
+        private final int[] counts = new int[BUCKETS];
+
+        /** Rows counted. */
+        private final int total;
+
+        /**
+         * @param values column values
+         * @param n number of rows
+         */
+        Histogram(final int[] values, final int n) {
+            long lo = Long.MAX_VALUE;
+            long hi = Long.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                lo = Math.min(lo, values[i]);
+                hi = Math.max(hi, values[i]);
+            }
+            min = n == 0 ? 0 : lo;
+            width = n == 0 ? 1 : (hi - lo + BUCKETS) / BUCKETS;
+            for (int i = 0; i < n; i++) {
+                counts[(int) ((values[i] - min) / width)]++;
+            }
+            total = n;
+        }
+
+        /**
+         * @param lo lowest value (inclusive)
+         * @param hi highest value (inclusive)
+         * @return estimated fraction of rows in [lo, hi], assuming values
+         *         are spread evenly within each bucket
+         */
+        double fraction(final long lo, final long hi) {
+            if (total == 0 || hi < lo) {
+                return 0.0;
+            }
+            // offsets from min, clamped to the histogram
+            long from = Math.max(0, Math.min(BUCKETS * width, lo - min));
+            long to = Math.max(0, Math.min(BUCKETS * width, hi + 1 - min));
+            double rowsIn = 0.0;
+            for (int b = (int) (from / width); b < BUCKETS 
+                    && b * width < to; b++) {
+                long overlap = Math.min(to, (b + 1) * width) 
+                        - Math.max(from, b * width);
+                rowsIn += counts[b] * (double) overlap / width;
+            }
+            return Math.min(1.0, rowsIn / total);
+        }   // end fraction(...)
+    }   // end class Histogram
+}   // end class ColumnStatistics
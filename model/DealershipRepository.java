@@ -2,14 +2,17 @@ package awesomecars.model;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 
 import awesomecars.beans.Dealership;
+import awesomecars.monitoring.RequestTrace;
+import awesomecars.monitoring.Span;
 import awesomecars.persistence.IDatabaseAdapter;
-import awesomecars.persistence.MySQLDatabaseAdapter;
 
 /**
  * This class does all the work associated with managing Dealership objects.
@@ -17,11 +20,15 @@ import awesomecars.persistence.MySQLDatabaseAdapter;
  * @author Travis
  *
  */
+@SuppressWarnings("try")
 public final class DealershipRepository {
 	
     /** Reference to the database adapter. */
     private static IDatabaseAdapter databaseInstance;
     
+    /** Dealership locations (null until initGeo(...) is called). */
+    private static volatile StoreLocations locations;
+    
     /** Default constructor must be private. */
     private DealershipRepository() { };
     
@@ -31,14 +38,27 @@ public final class DealershipRepository {
      * @return ArrayList of dealership information
      */
 	public static List<Dealership> getAllStoreDetails() {
+	    List<Dealership> stores = loadStores();
+	    return stores == null ? new ArrayList<Dealership>() : stores;
+	}
+	
+	/**
+	 * Queries the database for all dealership information.
+	 * @return the dealerships, or null if the query failed
+	 */
+	private static List<Dealership> loadStores() {
 
 		// create container for store results
 		List<Dealership> stores = new ArrayList<Dealership>();
 		JsonArray results = null;
 
-		try {
-			results = ((MySQLDatabaseAdapter) databaseInstance)
+		try (Span span = RequestTrace.span(
+		        "repository.getAllStoreDetails")) {
+			results = databaseInstance
 			        .callStoredProcedure("GetAllStoreDetails");
+			if (results == null) {
+			    return null;
+			}
 			
 			int len = results.size();
 		        
@@ -50,10 +70,11 @@ public final class DealershipRepository {
 		} catch (SQLException e) {
 			System.out.println("Error obtaining Store Details: " 
 			        + e.getMessage());
+			return null;
 		}
 
 		return stores;
-	}	// end getAllStoreDetails(...)
+	}	// end loadStores()
 	
 	/**
 	 * Initializes the DealershipRepository with the provided
@@ -64,4 +85,145 @@ public final class DealershipRepository {
 	    databaseInstance = db; 
 	}
 	
+	/**
+	 * Places every dealership at its ZIP code's centroid and indexes the
+	 * locations, so distance queries are answered in-process. Queries the
+	 * database once; call again to pick up new dealerships. Dealerships
+	 * whose ZIP code is not in the table are left out.
+	 * @param zips ZIP code centroids
+	 * @return number of dealerships located (possibly 0), or -1 if the
+	 *         database could not be queried
+	 */
+	public static int initGeo(final ZipCentroids zips) {
+	    List<Dealership> stores = loadStores();
+	    if (stores == null) {
+	        return -1;
+	    }
+	    StoreLocations l = new StoreLocations(zips, stores);
+	    locations = l;
+	    return l.stores.length;
+	}
+	
+	/**
+	 * @param zip a ZIP code
+	 * @return true if distances from the ZIP code can be answered
+	 */
+	public static boolean isKnownZip(final int zip) {
+	    StoreLocations l = locations;
+	    return l != null && l.zips.contains(zip);
+	}
+	
+	/**
+	 * Finds the dealerships nearest a ZIP code.
+	 * @param zip the ZIP code
+	 * @param n number of dealerships wanted
+	 * @return up to n dealerships, nearest first (empty if the ZIP code
+	 *         is unknown)
+	 */
+	public static List<Dealership> getNearestStores(final int zip,
+	        final int n) {
+	    StoreLocations l = locations;
+	    if (l == null || !l.zips.contains(zip)) {
+	        return new ArrayList<Dealership>();
+	    }
+	    return l.get(l.index.nearest(l.zips.getLatitude(zip),
+	            l.zips.getLongitude(zip), n));
+	}
+	
+	/**
+	 * Finds the dealerships within a distance of a ZIP code.
+	 * @param zip the ZIP code
+	 * @param miles the distance
+	 * @return the dealerships, nearest first (empty if the ZIP code is
+	 *         unknown)
+	 */
+	public static List<Dealership> getStoresWithin(final int zip,
+	        final double miles) {
+	    StoreLocations l = locations;
+	    if (l == null || !l.zips.contains(zip)) {
+	        return new ArrayList<Dealership>();
+	    }
+	    return l.get(l.index.within(l.zips.getLatitude(zip),
+	            l.zips.getLongitude(zip), miles));
+	}
+	
+	/**
+	 * Measures the distance from a ZIP code to every located dealership.
+	 * @param zip the ZIP code
+	 * @return store name to distance in miles, nearest first, or null if
+	 *         the ZIP code is unknown
+	 */
+	public static Map<String, Double> getStoreDistances(final int zip) {
+	    StoreLocations l = locations;
+	    if (l == null || !l.zips.contains(zip)) {
+	        return null;
+	    }
+	    double lat = l.zips.getLatitude(zip);
+	    double lon = l.zips.getLongitude(zip);
+	    Map<String, Double> distances = new LinkedHashMap<String, Double>();
+	    for (int i : l.index.nearest(lat, lon, l.stores.length)) {
+	        distances.put(l.stores[i].getName(), GeoIndex.distanceMiles(
+	                lat, lon, l.latitudes[i], l.longitudes[i]));
+	    }
+	    return distances;
+	}   // end getStoreDistances(...)
+	
+	/**
+	 * The dealerships whose ZIP codes have known centroids, and a
+	 * spatial index over them. Never modified once built.
+	 */
+	private static final class StoreLocations {
+	    
+	    /** ZIP code centroids. */
+	    private final ZipCentroids zips;
+	    
+	    /** Located dealerships, by id in the index. */
+	    private final Dealership[] stores;
+	    
+	    /** Latitude of each dealership. */
+	    private final double[] latitudes;
+	    
+	    /** Longitude of each dealership. */
+	    private final double[] longitudes;
+	    
+	    /** Spatial index of the dealerships. */
+	    private final GeoIndex index;
+	    
+	    /**
+	     * @param z ZIP code centroids
+	     * @param all every dealership
+	     */
+	    StoreLocations(final ZipCentroids z, final List<Dealership> all) {
+	        zips = z;
+	        List<Dealership> located = new ArrayList<Dealership>();
+	        for (Dealership d : all) {
+	            if (z.contains(d.getZip())) {
+	                located.add(d);
+	            } else {
+	                System.out.println("No location for ZIP code " 
+	                        + d.getZip() + " of " + d.getName());
+	            }
+	        }
+	        stores = located.toArray(new Dealership[located.size()]);
+	        latitudes = new double[stores.length];
+	        longitudes = new double[stores.length];
+	        for (int i = 0; i < stores.length; i++) {
+	            latitudes[i] = z.getLatitude(stores[i].getZip());
+	            longitudes[i] = z.getLongitude(stores[i].getZip());
+	        }
+	        index = new GeoIndex(latitudes, longitudes);
+	    }
+	    
+	    /**
+	     * @param ids dealership ids
+	     * @return the dealerships
+	     */
+	    List<Dealership> get(final int[] ids) {
+	        List<Dealership> result = new ArrayList<Dealership>(ids.length);
+	        for (int i : ids) {
+	            result.add(stores[i]);
+	        }
+	        return result;
+	    }
+	}   // end class StoreLocations
 }	// end class DealershipRepository
\ No newline at end of file
@@ -0,0 +1,254 @@
+package awesomecars.model;
+
+/**
+ * How a FilterPlanner decided to evaluate one search: whether to walk a
+ * sort order (and where in it to start) or scan every row, which
+ * predicates produce candidate rows from the bitmap index, the range
+ * indexes or the RangeFilterKernel, and in what order the
+ * remaining predicates are tested. Also keeps the estimates the decision
+ * was based on, for explain output.
+ *
+ * @author Travis
+ */
+public final class FilterPlan {
+
+    /** Indexes the plan runs against. */
+    private final InventoryIndex index;
+
+    /** The compiled search, ordered for the residual predicates. */
+    private final InventoryFilter filter;
+
+    /** True to walk the sort order, false to scan every row. */
+    private final boolean walk;
+
+    /** Predicate the walk seeks on (-1 for none). */
+    private final int seekPredicate;
+
+    /** Predicates answered from the bitmap index or a range index. */
+    private final int[] indexPredicates;
+
+    /** True if the range predicates are answered by the kernel. */
+    private final boolean rangeScan;
+
+    /** Predicates tested row by row, in order. */
+    private final int[] residual;
+
+    /** Estimated selectivity of each predicate (1.0 if inactive). */
+    private final double[] selectivity;
+
+    /** Estimated number of matching rows. */
+    private final double estimatedRows;
+
+    /** Estimated cost, in predicate tests. */
+    private final double cost;
+
+    /** Threads a scan will use. */
+    private final int parallelism;
+
+    /**
+     * @param idx indexes the plan runs against
+     * @param f the compiled search
+     * @param isWalk true to walk the sort order
+     * @param seek predicate the walk seeks on (-1 for none)
+     * @param indexed predicates answered from an index
+     * @param kernel true if the range predicates use the kernel
+     * @param rest predicates tested row by row, in order
+     * @param sel estimated selectivity of each predicate
+     * @param rows estimated number of matching rows
+     * @param estimate estimated cost
+     * @param threads threads a scan will use
+     */
+    FilterPlan(final InventoryIndex idx, final InventoryFilter f,
+            final boolean isWalk, final int seek, final int[] indexed,
+            final boolean kernel, final int[] rest, final double[] sel,
+            final double rows, final double estimate, final int threads) {
+        index = idx;
+        filter = f;
+        walk = isWalk;
+        seekPredicate = seek;
+        indexPredicates = indexed;
+        rangeScan = kernel;
+        residual = rest;
+        selectivity = sel;
+        estimatedRows = rows;
+        cost = estimate;
+        parallelism = threads;
+    }
+
+    /** @return the compiled search */
+    public InventoryFilter getFilter() {
+        return filter;
+    }
+
+    /** @return true to walk the sort order, false to scan every row */
+    public boolean isWalk() {
+        return walk;
+    }
+
+    /** @return true if the range predicates are answered by the kernel */
+    public boolean isRangeScan() {
+        return rangeScan;
+    }
+
+    /**
+     * @return the range predicate the walk seeks on, or -1 if it walks
+     *         the whole sort order
+     */
+    public int getSeekPredicate() {
+        return seekPredicate;
+    }
+
+    /** @return true if candidate rows come from the bitmap index */
+    public boolean isBitmap() {
+        for (int p : indexPredicates) {
+            if (!FilterPlanner.isRange(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if candidate rows come from a range index */
+    public boolean isRangeIndex() {
+        for (int p : indexPredicates) {
+            if (FilterPlanner.isRange(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return estimated fraction of rows matched */
+    public double getSelectivity() {
+        return index.size() == 0 ? 0.0 : estimatedRows / index.size();
+    }
+
+    /** @return estimated cost, in predicate tests */
+    public double getCost() {
+        return cost;
+    }
+
+    /** @return predicates tested row by row, in order */
+    public int[] getResidual() {
+        return residual.clone();
+    }
+
+    /** @return estimated number of matching rows */
+    public double getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    /**
+     * Builds the candidate rows of the indexed predicates: the rows that
+     * pass all of them.
+     * @return bitmap with one bit per row, or null if the plan does not
+     *         use an index
+     */
+    public long[] buildCandidates() {
+        if (indexPredicates.length == 0) {
+            return null;
+        }
+        BitmapIndex bitmaps = index.getBitmapIndex();
+        int words = InventoryColumns.words(index.size());
+        long[] result = null;
+        for (int p : indexPredicates) {
+            long[] bits = new long[words];
+            if (FilterPlanner.isRange(p)) {
+                int[] range = filter.getRange(p);
+                index.getRangeIndex(FilterPlanner.field(p)).select(
+                        range[0], range[1], bits);
+            } else if (p == InventoryFilter.MAKE_MODEL) {
+                if (filter.getAllowedMakes() != null) {
+                    bitmaps.union(OffHeapVehicleStore.MAKE, 
+                            filter.getAllowedMakes(), bits);
+                }
+                if (filter.getAllowedModels() != null) {
+                    bitmaps.union(OffHeapVehicleStore.MODEL, 
+                            filter.getAllowedModels(), bits);
+                }
+            } else {
+                bitmaps.union(FilterPlanner.field(p), 
+                        filter.getAllowedIds(p), bits);
+            }
+            if (result == null) {
+                result = bits;
+            } else {
+                for (int w = 0; w < words; w++) {
+                    result[w] &= bits[w];
+                }
+            }
+        }
+        return result;
+    }   // end buildCandidates()
+
+    /**
+     * Describes the plan, one line per active predicate.
+     * @return the plan as text
+     */
+    public String explain() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("strategy: ").append(walk ? "walk sort order" : "scan");
+        if (!walk && parallelism > 1) {
+            sb.append(" (").append(parallelism).append(" threads)");
+        }
+        sb.append('\n').append("access: ");
+        StringBuilder access = new StringBuilder();
+        if (seekPredicate >= 0) {
+            access.append(" + seek");
+        }
+        if (isBitmap()) {
+            access.append(" + bitmap index");
+        }
+        if (isRangeIndex()) {
+            access.append(" + range index");
+        }
+        if (rangeScan) {
+            access.append(" + range kernel");
+        }
+        sb.append(access.length() == 0 ? "full scan" : access.substring(3));
+        sb.append('\n').append(String.format(
+                "estimated rows: %.0f of %d, cost %.0f%n", 
+                estimatedRows, index.size(), cost));
+        for (int p = 0; p < InventoryFilter.NUM_PREDICATES; p++) {
+            if (!filter.isActive(p)) {
+                continue;
+            }
+            String how;
+            if (p == seekPredicate) {
+                how = "seek";
+            } else if (contains(indexPredicates, p)) {
+                how = FilterPlanner.isRange(p) ? "range index" : "bitmap";
+            } else if (rangeScan && FilterPlanner.isRange(p)) {
+                how = "kernel";
+            } else {
+                how = "filter #" + (indexOf(residual, p) + 1);
+            }
+            sb.append(String.format("  %-12s sel %.4f  %s%n", 
+                    InventoryFilter.getName(p), selectivity[p], how));
+        }
+        return sb.toString();
+    }   // end explain()
+
+    /**
+     * @param list a list of predicates
+     * @param p a predicate
+     * @return position of the predicate in the list, or -1
+     */
+    private static int indexOf(final int[] list, final int p) {
+        for (int i = 0; i < list.length; i++) {
+            if (list[i] == p) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param list a list of predicates
+     * @param p a predicate
+     * @return true if the list holds the predicate
+     */
+    private static boolean contains(final int[] list, final int p) {
+        return indexOf(list, p) >= 0;
+    }
+}   // end class FilterPlan
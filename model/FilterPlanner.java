@@ -0,0 +1,382 @@
+package awesomecars.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Chooses how to evaluate a search in-process. The selectivity of each
+ * active predicate is estimated from the index's ColumnStatistics
+ * (assuming predicates are independent), then every combination of
+ * access path is costed: walking the sort order (seeking straight to the
+ * range if the sort column is range-filtered) or scanning every row,
+ * taking candidate rows from the bitmap index for any of the equality
+ * predicates and from the range indexes for any of the range
+ * predicates, and (when scanning) evaluating the range predicates with
+ * the RangeFilterKernel. Predicates not answered by the access path are
+ * tested row by row, most selective per unit of cost first. Costs are in
+ * units of one predicate tested on one row.
+ *
+ * @author Travis
+ */
+public final class FilterPlanner {
+
+    /** Predicates the bitmap index or a range index can answer. */
+    private static final int[] INDEXED_PREDICATES = {
+        InventoryFilter.MAKE_MODEL, InventoryFilter.LOCATION,
+        InventoryFilter.BODY_STYLE, InventoryFilter.PRICE,
+        InventoryFilter.MPG_CITY, InventoryFilter.MPG_HWY,
+        InventoryFilter.YEAR, InventoryFilter.MILES
+    };
+
+    /** Cost of checking a row's removed flag and category. */
+    private static final double ROW_COST = 1.0;
+
+    /**
+     * Cost of finding a row through a sort permutation. Rows are visited
+     * in random order, so each usually misses the cache.
+     */
+    private static final double WALK_ROW_COST = 5.0;
+
+    /** Cost of one row in the RangeFilterKernel. */
+    private static final double KERNEL_ROW_COST = 0.25;
+
+    /** Cost of adding one row list entry to a bitmap. */
+    private static final double POSTING_COST = 0.5;
+
+    /** Cost of one bitmap word (64 rows) to clear, combine or iterate. */
+    private static final double WORD_COST = 0.5;
+
+    /** Cost of testing a row's bit in a candidate bitmap. */
+    private static final double BIT_COST = 0.2;
+
+    /** Cost of keeping a matching row (top-K heap and merge). */
+    private static final double MATCH_COST = 2.0;
+
+    /** Utility class should not have a public or default constructor. */
+    private FilterPlanner() {
+        super();
+    }
+
+    /**
+     * @param p an equality predicate other than MAKE_MODEL
+     * @return the dictionary column it tests
+     */
+    static int field(final int p) {
+        switch (p) {
+            case InventoryFilter.LOCATION:
+                return OffHeapVehicleStore.STORE;
+            case InventoryFilter.BODY_STYLE:
+                return OffHeapVehicleStore.BODY_STYLE;
+            case InventoryFilter.TRANSMISSION:
+                return OffHeapVehicleStore.TRANSMISSION;
+            case InventoryFilter.EXT_COLOR:
+                return OffHeapVehicleStore.EXT_COLOR;
+            case InventoryFilter.INT_COLOR:
+                return OffHeapVehicleStore.INT_COLOR;
+            case InventoryFilter.PRICE:
+                return OffHeapVehicleStore.PRICE;
+            case InventoryFilter.MPG_CITY:
+                return OffHeapVehicleStore.MPG_CITY;
+            case InventoryFilter.MPG_HWY:
+                return OffHeapVehicleStore.MPG_HWY;
+            case InventoryFilter.YEAR:
+                return OffHeapVehicleStore.YEAR;
+            case InventoryFilter.MILES:
+                return OffHeapVehicleStore.MILES;
+            default:
+                return -1;
+        }
+    }   // end field(...)
+
+    /**
+     * @param p a predicate
+     * @return true if the RangeFilterKernel evaluates the predicate
+     */
+    static boolean isRange(final int p) {
+        return p == InventoryFilter.PRICE || p == InventoryFilter.MPG_CITY
+                || p == InventoryFilter.MPG_HWY || p == InventoryFilter.YEAR
+                || p == InventoryFilter.MILES;
+    }
+
+    /**
+     * @param column a SortIndex column
+     * @return the range predicate on the same field, or -1
+     */
+    private static int predicate(final int column) {
+        switch (column) {
+            case SortIndex.PRICE:
+                return InventoryFilter.PRICE;
+            case SortIndex.YEAR:
+                return InventoryFilter.YEAR;
+            case SortIndex.MILES:
+                return InventoryFilter.MILES;
+            case SortIndex.MPG_CITY:
+                return InventoryFilter.MPG_CITY;
+            case SortIndex.MPG_HWY:
+                return InventoryFilter.MPG_HWY;
+            default:
+                return -1;
+        }
+    }   // end predicate(...)
+
+    /**
+     * @param filter the compiled search
+     * @param p a predicate
+     * @return true if an index can produce exactly the rows that pass
+     *         the predicate (range predicates on used-only fields pass
+     *         every new vehicle, which a range index does not hold)
+     */
+    private static boolean isIndexable(final InventoryFilter filter,
+            final int p) {
+        return filter.isActive(p) 
+                && (!InventoryFilter.isUsedOnly(p) || !filter.isIncludeNew());
+    }
+
+    /**
+     * Finds the predicate a walk can seek on: a range predicate on the
+     * walk's sort column, which limits the walk to one run of the
+     * column's sort order.
+     * @param filter the compiled search
+     * @param order the search's sort order
+     * @return the predicate, or -1 if there is none
+     */
+    static int seekPredicate(final InventoryFilter filter,
+            final SortIndex.Ordering order) {
+        if (order.size() != 1) {
+            return -1;
+        }
+        int p = predicate(order.getColumn(0));
+        return p >= 0 && isIndexable(filter, p) ? p : -1;
+    }
+
+    /**
+     * @param p a predicate
+     * @return cost of testing it on one row
+     */
+    private static double cost(final int p) {
+        return p == InventoryFilter.MAKE_MODEL ? 2.0 : 1.0;
+    }
+
+    /**
+     * Plans a search and orders the filter's predicates to match.
+     * @param index indexes over the store
+     * @param filter the compiled search (its order is changed)
+     * @param order the search's sort order
+     * @param k number of rows wanted
+     * @param parallelism threads available to a scan
+     * @return the cheapest plan found
+     */
+    public static FilterPlan plan(final InventoryIndex index,
+            final InventoryFilter filter, final SortIndex.Ordering order,
+            final int k, final int parallelism) {
+        ColumnStatistics stats = index.getStatistics();
+        int n = index.size();
+        double rows = Math.max(1, n);
+        double words = InventoryColumns.words(n);
+        
+        // fraction of rows passing the category check, and the share of
+        // those that are used (the only rows used-only predicates test)
+        double used = stats.getUsedRows() / rows;
+        double base = (filter.isIncludeUsed() ? used : 0.0)
+                + (filter.isIncludeNew() ? 1.0 - used : 0.0);
+        double usedShare = base == 0.0 ? 0.0 
+                : (filter.isIncludeUsed() ? used : 0.0) / base;
+        
+        // raw selectivity over all rows, and effective selectivity over
+        // the rows passing the category check
+        double[] raw = new double[InventoryFilter.NUM_PREDICATES];
+        double[] sel = new double[InventoryFilter.NUM_PREDICATES];
+        double matchFraction = base;
+        for (int p = 0; p < InventoryFilter.NUM_PREDICATES; p++) {
+            raw[p] = filter.isActive(p) ? estimate(stats, filter, p) : 1.0;
+            sel[p] = InventoryFilter.isUsedOnly(p) 
+                    ? usedShare * raw[p] + (1.0 - usedShare) : raw[p];
+            matchFraction *= sel[p];
+        }
+        double matches = n * matchFraction;
+        boolean hasRange = false;
+        for (int p = 0; p < InventoryFilter.NUM_PREDICATES; p++) {
+            hasRange |= isRange(p) && filter.isActive(p);
+        }
+        
+        // a walk sorted on a range-filtered field seeks straight to the
+        // range if it can; otherwise it first passes every row on the far
+        // side of the range, none of which match
+        int seek = seekPredicate(filter, order);
+        double skipped = 0.0;
+        int sorted = order.size() == 1 ? predicate(order.getColumn(0)) : -1;
+        if (seek < 0 && sorted >= 0 && filter.isActive(sorted)) {
+            int[] range = filter.getRange(sorted);
+            skipped = order.isDescending(0)
+                    ? stats.rangeSelectivity(field(sorted), 
+                            range[1] + 1L, Integer.MAX_VALUE)
+                    : stats.rangeSelectivity(field(sorted), 
+                            Integer.MIN_VALUE, range[0] - 1L);
+            if (InventoryFilter.isUsedOnly(sorted)) {
+                skipped *= usedShare;
+            }
+        }
+        double walkable = seek < 0 ? n : n * raw[seek];
+        
+        int[] indexable = new int[INDEXED_PREDICATES.length];
+        int b = 0;
+        for (int p : INDEXED_PREDICATES) {
+            if (isIndexable(filter, p)) {
+                indexable[b++] = p;
+            }
+        }
+        
+        FilterPlan best = null;
+        for (int mode = 0; mode < 3; mode++) {
+            boolean walk = mode == 0;
+            boolean kernel = mode == 2;
+            if ((walk && (order.size() > 1 || !order.isPrecomputed()))
+                    || (kernel && !hasRange)) {
+                continue;
+            }
+            for (int subset = 0; subset < 1 << b; subset++) {
+                int[] indexed = new int[Integer.bitCount(subset)];
+                double build = 0.0;
+                double candidates = 1.0;
+                boolean redundant = false;
+                for (int i = 0, j = 0; i < b; i++) {
+                    if ((subset & 1 << i) != 0) {
+                        int p = indexable[i];
+                        indexed[j++] = p;
+                        build += words + raw[p] * n * POSTING_COST;
+                        candidates *= raw[p];
+                        redundant |= kernel && isRange(p);
+                    }
+                }
+                if (redundant) {
+                    continue;
+                }
+                build += indexed.length > 0 ? words * WORD_COST : 0.0;
+                int[] residual = residual(filter, indexed, kernel, 
+                        walk ? seek : -1, sel);
+                double perRow = ROW_COST 
+                        + base * residualCost(residual, sel);
+                
+                double total;
+                if (walk) {
+                    // the walk visits about k / selectivity rows after
+                    // those it skips
+                    double visited = matchFraction == 0.0 ? walkable 
+                            : Math.min(walkable, 
+                                    skipped * n + k / matchFraction);
+                    total = build + visited * (WALK_ROW_COST 
+                            + (indexed.length > 0 
+                                ? BIT_COST + candidates * perRow : perRow));
+                } else {
+                    double scan = 0.0;
+                    if (kernel) {
+                        scan += n * KERNEL_ROW_COST;
+                        for (int p = 0; p < sel.length; p++) {
+                            candidates *= isRange(p) ? sel[p] : 1.0;
+                        }
+                    }
+                    if (kernel || indexed.length > 0) {
+                        scan += words * WORD_COST;
+                    }
+                    scan += n * candidates * perRow + matches * MATCH_COST;
+                    total = build + scan / Math.max(1, parallelism);
+                }
+                if (best == null || total < best.getCost()) {
+                    best = new FilterPlan(index, filter, walk, 
+                            walk ? seek : -1, indexed, kernel, residual,
+                            sel, matches, total, walk ? 1 : parallelism);
+                }
+            }
+        }   // end for each mode
+        
+        filter.setOrder(best.getResidual());
+        return best;
+    }   // end plan(...)
+
+    /**
+     * Estimates the fraction of rows an active predicate passes.
+     * @param stats column statistics
+     * @param filter the compiled search
+     * @param p an active predicate
+     * @return estimated fraction of all rows passed (0.0 - 1.0)
+     */
+    private static double estimate(final ColumnStatistics stats,
+            final InventoryFilter filter, final int p) {
+        double rows = Math.max(1, stats.getRows());
+        if (p == InventoryFilter.MAKE_MODEL) {
+            long count = 0;
+            if (filter.getAllowedMakes() != null) {
+                count += stats.count(OffHeapVehicleStore.MAKE, 
+                        filter.getAllowedMakes());
+            }
+            if (filter.getAllowedModels() != null) {
+                count += stats.count(OffHeapVehicleStore.MODEL, 
+                        filter.getAllowedModels());
+            }
+            return Math.min(1.0, count / rows);
+        }
+        if (isRange(p)) {
+            int[] range = filter.getRange(p);
+            return stats.rangeSelectivity(field(p), range[0], range[1]);
+        }
+        return stats.count(field(p), filter.getAllowedIds(p)) / rows;
+    }   // end estimate(...)
+
+    /**
+     * Orders the predicates not answered by the access path so those
+     * rejecting the most rows per unit of cost are tested first.
+     * @param filter the compiled search
+     * @param indexed predicates answered from an index
+     * @param kernel true if range predicates are answered by the kernel
+     * @param seek predicate answered by the walk's seek (-1 for none)
+     * @param sel effective selectivity of each predicate
+     * @return the remaining active predicates, in order
+     */
+    private static int[] residual(final InventoryFilter filter,
+            final int[] indexed, final boolean kernel, final int seek,
+            final double[] sel) {
+        Integer[] rest = new Integer[InventoryFilter.NUM_PREDICATES];
+        int n = 0;
+        for (int p = 0; p < InventoryFilter.NUM_PREDICATES; p++) {
+            if (!filter.isActive(p)) {
+                continue;
+            }
+            boolean answered = (kernel && isRange(p)) || p == seek;
+            for (int q : indexed) {
+                answered |= p == q;
+            }
+            if (!answered) {
+                rest[n++] = p;
+            }
+        }
+        Integer[] sorted = Arrays.copyOf(rest, n);
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return Double.compare((1.0 - sel[b]) / cost(b), 
+                        (1.0 - sel[a]) / cost(a));
+            }
+        });
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = sorted[i];
+        }
+        return result;
+    }   // end residual(...)
+
+    /**
+     * @param residual predicates tested row by row, in order
+     * @param sel effective selectivity of each predicate
+     * @return expected cost of testing them on one row
+     */
+    private static double residualCost(final int[] residual,
+            final double[] sel) {
+        double cost = 0.0;
+        double reached = 1.0;
+        for (int p : residual) {
+            cost += reached * cost(p);
+            reached *= sel[p];
+        }
+        return cost;
+    }
+}   // end class FilterPlanner
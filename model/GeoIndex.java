@@ -0,0 +1,350 @@
+package awesomecars.model;
+
+/**
+ * A static k-d tree over points on the earth's surface. Each point is
+ * stored as a unit vector (x, y, z), where the straight-line (chord)
+ * distance between two points grows with their great-circle distance, so
+ * nearest-N and radius queries need no special handling of the poles or
+ * the date line. The tree is implicit: the points are permuted so the
+ * median of every range [lo, hi) sits at its midpoint, split on axis
+ * depth % 3, and no node objects are allocated.
+ *
+ * @author Travis
+ */
+public final class GeoIndex {
+
+    /** Mean radius of the earth in miles. */
+    public static final double EARTH_RADIUS_MILES = 3958.8;
+
+    /** Number of dimensions. */
+    private static final int DIMENSIONS = 3;
+
+    /** Point ids in tree order. */
+    private final int[] ids;
+
+    /** Coordinates in tree order (x, y, z per point). */
+    private final double[] coords;
+
+    /**
+     * Builds the tree.
+     * @param lat latitude of each point (degrees); the point's id is its
+     *        index
+     * @param lon longitude of each point (degrees)
+     */
+    public GeoIndex(final double[] lat, final double[] lon) {
+        int n = lat.length;
+        ids = new int[n];
+        coords = new double[n * DIMENSIONS];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+            toVector(lat[i], lon[i], coords, i * DIMENSIONS);
+        }
+        build(0, n, 0);
+    }
+
+    /** @return number of points */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Converts a latitude/longitude to a unit vector.
+     * @param lat latitude (degrees)
+     * @param lon longitude (degrees)
+     * @param out output array
+     * @param at index of x in the output
+     */
+    private static void toVector(final double lat, final double lon,
+            final double[] out, final int at) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        out[at] = Math.cos(phi) * Math.cos(lambda);
+        out[at + 1] = Math.cos(phi) * Math.sin(lambda);
+        out[at + 2] = Math.sin(phi);
+    }
+
+    /**
+     * Great-circle distance by the haversine formula.
+     * @param lat1 latitude of one point (degrees)
+     * @param lon1 longitude of one point (degrees)
+     * @param lat2 latitude of the other point (degrees)
+     * @param lon2 longitude of the other point (degrees)
+     * @return distance in miles
+     */
+    public static double distanceMiles(final double lat1, final double lon1,
+            final double lat2, final double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) 
+                * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_MILES 
+                * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    /**
+     * Arranges [lo, hi) so its median on the depth's axis is at the
+     * midpoint, then arranges each half.
+     * @param lo first position
+     * @param hi position after the last
+     * @param depth depth in the tree
+     */
+    private void build(final int lo, final int hi, final int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi, mid, depth % DIMENSIONS);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /**
+     * Quickselect: moves the point that belongs at position k (ordered on
+     * one axis) there, with smaller points before it and larger after.
+     * @param from first position
+     * @param to position after the last
+     * @param k target position
+     * @param axis axis to order on
+     */
+    private void select(final int from, final int to, final int k,
+            final int axis) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo < hi) {
+            double pivot = coords[((lo + hi) >>> 1) * DIMENSIONS + axis];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (coords[i * DIMENSIONS + axis] < pivot) {
+                    i++;
+                }
+                while (coords[j * DIMENSIONS + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }   // end select(...)
+
+    /**
+     * @param a a position
+     * @param b a position
+     */
+    private void swap(final int a, final int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            double c = coords[a * DIMENSIONS + d];
+            coords[a * DIMENSIONS + d] = coords[b * DIMENSIONS + d];
+            coords[b * DIMENSIONS + d] = c;
+        }
+    }
+
+    /**
+     * @param q query vector
+     * @param pos a position
+     * @return squared chord distance from the query to the point there
+     */
+    private double distance2(final double[] q, final int pos) {
+        double dx = q[0] - coords[pos * DIMENSIONS];
+        double dy = q[1] - coords[pos * DIMENSIONS + 1];
+        double dz = q[2] - coords[pos * DIMENSIONS + 2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Finds the points nearest a location.
+     * @param lat latitude (degrees)
+     * @param lon longitude (degrees)
+     * @param n number of points wanted
+     * @return ids of the n (or fewer) nearest points, nearest first
+     */
+    public int[] nearest(final double lat, final double lon, final int n) {
+        double[] q = new double[DIMENSIONS];
+        toVector(lat, lon, q, 0);
+        Heap heap = new Heap(Math.min(n, ids.length));
+        if (heap.capacity > 0) {
+            nearest(q, 0, ids.length, 0, heap);
+        }
+        return heap.drain();
+    }
+
+    /**
+     * Visits [lo, hi) for nearest(...), nearer half first.
+     * @param q query vector
+     * @param lo first position
+     * @param hi position after the last
+     * @param depth depth in the tree
+     * @param heap the nearest points found so far
+     */
+    private void nearest(final double[] q, final int lo, final int hi,
+            final int depth, final Heap heap) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        heap.offer(distance2(q, mid), ids[mid]);
+        int axis = depth % DIMENSIONS;
+        double diff = q[axis] - coords[mid * DIMENSIONS + axis];
+        if (diff < 0) {
+            nearest(q, lo, mid, depth + 1, heap);
+            if (diff * diff < heap.bound()) {
+                nearest(q, mid + 1, hi, depth + 1, heap);
+            }
+        } else {
+            nearest(q, mid + 1, hi, depth + 1, heap);
+            if (diff * diff < heap.bound()) {
+                nearest(q, lo, mid, depth + 1, heap);
+            }
+        }
+    }   // end nearest(...)
+
+    /**
+     * Finds the points within a distance of a location.
+     * @param lat latitude (degrees)
+     * @param lon longitude (degrees)
+     * @param miles great-circle distance
+     * @return ids of the points within the distance, nearest first
+     */
+    public int[] within(final double lat, final double lon,
+            final double miles) {
+        double[] q = new double[DIMENSIONS];
+        toVector(lat, lon, q, 0);
+        double angle = Math.min(Math.PI, miles / EARTH_RADIUS_MILES);
+        double chord = 2 * Math.sin(angle / 2);
+        Heap found = new Heap(ids.length);
+        within(q, 0, ids.length, 0, chord * chord, found);
+        return found.drain();
+    }
+
+    /**
+     * Visits [lo, hi) for within(...).
+     * @param q query vector
+     * @param lo first position
+     * @param hi position after the last
+     * @param depth depth in the tree
+     * @param limit squared chord distance of the radius
+     * @param found points found so far
+     */
+    private void within(final double[] q, final int lo, final int hi,
+            final int depth, final double limit, final Heap found) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double d2 = distance2(q, mid);
+        if (d2 <= limit) {
+            found.offer(d2, ids[mid]);
+        }
+        int axis = depth % DIMENSIONS;
+        double diff = q[axis] - coords[mid * DIMENSIONS + axis];
+        if (diff < 0 || diff * diff <= limit) {
+            within(q, lo, mid, depth + 1, limit, found);
+        }
+        if (diff >= 0 || diff * diff <= limit) {
+            within(q, mid + 1, hi, depth + 1, limit, found);
+        }
+    }   // end within(...)
+
+    /**
+     * Bounded max-heap of (distance, id) keeping the nearest points
+     * offered.
+     */
+    private static final class Heap {
+
+        /** Maximum number of points kept. */
+        private final int capacity;
+
+        /** Squared distances; the root is the farthest kept. */
+        private final double[] dist;
+
+        /** Ids, parallel to dist. */
+        private final int[] id;
+
+        /** Number of points kept. */
+        private int count;
+
+        /** @param n maximum number of points kept */
+        Heap(final int n) {
+            capacity = n;
+            dist = new double[n];
+            id = new int[n];
+        }
+
+        /**
+         * @return squared distance a point must beat to be kept
+         */
+        double bound() {
+            return count < capacity ? Double.POSITIVE_INFINITY : dist[0];
+        }
+
+        /**
+         * @param d squared distance
+         * @param point id
+         */
+        void offer(final double d, final int point) {
+            if (count < capacity) {
+                int i = count++;
+                while (i > 0 && dist[(i - 1) >>> 1] < d) {
+                    dist[i] = dist[(i - 1) >>> 1];
+                    id[i] = id[(i - 1) >>> 1];
+                    i = (i - 1) >>> 1;
+                }
+                dist[i] = d;
+                id[i] = point;
+            } else if (capacity > 0 && d < dist[0]) {
+                siftDown(d, point, count);
+            }
+        }
+
+        /**
+         * Places a point at the root and sifts it down.
+         * @param d squared distance
+         * @param point id
+         * @param n heap size
+         */
+        private void siftDown(final double d, final int point, final int n) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= n) {
+                    break;
+                }
+                if (child + 1 < n && dist[child + 1] > dist[child]) {
+                    child++;
+                }
+                if (d >= dist[child]) {
+                    break;
+                }
+                dist[i] = dist[child];
+                id[i] = id[child];
+                i = child;
+            }
+            dist[i] = d;
+            id[i] = point;
+        }
+
+        /** @return ids kept, nearest first (empties the heap) */
+        int[] drain() {
+            int[] out = new int[count];
+            for (int end = count - 1; end >= 0; end--) {
+                out[end] = id[0];
+                siftDown(dist[end], id[end], end);
+            }
+            count = 0;
+            return out;
+        }
+    }   // end class Heap
+}   // end class GeoIndex
@@ -0,0 +1,112 @@
+package awesomecars.model;
+
+import awesomecars.beans.StringDictionary;
+
+/**
+ * Column-wise copies of the numeric fields of an OffHeapVehicleStore
+ * (one int array per field) so range predicates can be evaluated over
+ * contiguous primitive arrays instead of striding through records. Also
+ * holds a mask marking used vehicles, since the year and miles filters
+ * only apply to used vehicles.
+ *
+ * Covers the rows present when it was built.
+ *
+ * @author Travis
+ */
+public final class InventoryColumns {
+
+    /** Number of rows. */
+    private final int size;
+
+    /** Model years. */
+    private final int[] year;
+
+    /** Prices. */
+    private final int[] price;
+
+    /** Miles. */
+    private final int[] miles;
+
+    /** City MPG. */
+    private final int[] mpgCity;
+
+    /** Highway MPG. */
+    private final int[] mpgHwy;
+
+    /** -1 for each used vehicle, 0 for each new one. */
+    private final int[] usedMask;
+
+    /**
+     * Copies the numeric columns out of a store.
+     * @param store the store
+     */
+    public InventoryColumns(final OffHeapVehicleStore store) {
+        size = store.size();
+        year = new int[size];
+        price = new int[size];
+        miles = new int[size];
+        mpgCity = new int[size];
+        mpgHwy = new int[size];
+        usedMask = new int[size];
+        
+        StringDictionary dict = store.getDictionary();
+        boolean[] isNew = new boolean[dict.size()];
+        for (int id = 0; id < isNew.length; id++) {
+            isNew[id] = "new".equalsIgnoreCase(dict.get(id));
+        }
+        for (int row = 0; row < size; row++) {
+            year[row] = store.getInt(row, OffHeapVehicleStore.YEAR);
+            price[row] = store.getInt(row, OffHeapVehicleStore.PRICE);
+            miles[row] = store.getInt(row, OffHeapVehicleStore.MILES);
+            mpgCity[row] = store.getInt(row, OffHeapVehicleStore.MPG_CITY);
+            mpgHwy[row] = store.getInt(row, OffHeapVehicleStore.MPG_HWY);
+            int category = store.getInt(row, OffHeapVehicleStore.CATEGORY);
+            boolean newVehicle = category >= 0 && category < isNew.length
+                    && isNew[category];
+            usedMask[row] = newVehicle ? 0 : -1;
+        }
+    }   // end constructor
+
+    /**
+     * @param rows number of rows
+     * @return number of 64-bit words needed for one bit per row
+     */
+    public static int words(final int rows) {
+        return (rows + 63) >>> 6;
+    }
+
+    /** @return number of rows */
+    public int size() {
+        return size;
+    }
+
+    /** @return model years, by row */
+    public int[] getYear() {
+        return year;
+    }
+
+    /** @return prices, by row */
+    public int[] getPrice() {
+        return price;
+    }
+
+    /** @return miles, by row */
+    public int[] getMiles() {
+        return miles;
+    }
+
+    /** @return city MPG, by row */
+    public int[] getMpgCity() {
+        return mpgCity;
+    }
+
+    /** @return highway MPG, by row */
+    public int[] getMpgHwy() {
+        return mpgHwy;
+    }
+
+    /** @return -1 for each used vehicle, 0 for each new one, by row */
+    public int[] getUsedMask() {
+        return usedMask;
+    }
+}   // end class InventoryColumns
@@ -0,0 +1,325 @@
+package awesomecars.model;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.RowHandler;
+
+/**
+ * Streams vehicles to an output as CSV (RFC 4180, with a header line) or
+ * NDJSON (one JSON object per line), optionally gzip-compressed. Rows
+ * are written as they are read, through one fixed-size buffer, so memory
+ * use does not grow with the number of rows: from the database they are
+ * read with a forward-only cursor DEFAULT_FETCH_SIZE rows at a time (see
+ * IDatabaseAdapter.streamQuery(...)), and from the in-memory inventory
+ * they are read straight from the store's rows. Values are written as
+ * strings, as the database adapters return them.
+ *
+ * @author Travis
+ */
+public final class InventoryExport implements RowHandler, Closeable {
+
+    /** Output formats. */
+    public enum Format {
+        /** Comma-separated values with a header line. */
+        CSV,
+        /** Newline-delimited JSON objects. */
+        NDJSON
+    }
+
+    /** Rows fetched from the database at a time. */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /** Size of the output buffer, in chars (and of the gzip buffer). */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Columns exported from the in-memory inventory. */
+    static final String[] COLUMNS = {
+        "vin", "make_name", "model_name", "model_type", "year_model",
+        "price", "int_color", "ext_color", "miles", "mpg_city", "mpg_hwy",
+        "category", "engine_type", "transmission", "description",
+        "picture", "store_name", "count_total"
+    };
+
+    /** Hex digits, for JSON escapes. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** The format. */
+    private final Format format;
+
+    /** Buffered (possibly compressing) output. */
+    private final Writer out;
+
+    /** NDJSON: each column's key, quoted, with its colon. */
+    private String[] keys;
+
+    /** Number of rows written. */
+    private long rows;
+
+    /**
+     * Creates an export writing to a stream.
+     * @param os the stream (closed by close())
+     * @param f the format
+     * @param gzip true to gzip-compress the output
+     * @throws IOException if the gzip header cannot be written
+     */
+    public InventoryExport(final OutputStream os, final Format f,
+            final boolean gzip) throws IOException {
+        format = f;
+        OutputStream target = gzip 
+                ? new GZIPOutputStream(os, BUFFER_SIZE) : os;
+        out = new BufferedWriter(new OutputStreamWriter(target, 
+                StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * @param name a format name ("csv" or "ndjson", any case)
+     * @return the format, or CSV if the name is not recognised
+     */
+    public static Format parseFormat(final String name) {
+        return "ndjson".equalsIgnoreCase(name) ? Format.NDJSON : Format.CSV;
+    }
+
+    /** @return number of rows written */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Exports every vehicle, or an advanced search's results, from the
+     * database.
+     * @param db the database
+     * @param search the search (null for every vehicle)
+     * @return number of rows written
+     * @throws SQLException if the query fails
+     * @throws IOException if the output cannot be written
+     */
+    public long fromDatabase(final IDatabaseAdapter db,
+            final AdvancedSearch search) throws SQLException, IOException {
+        String query = search == null 
+                ? OffHeapVehicleStore.INVENTORY_QUERY : search.toString();
+        db.streamQuery(query, DEFAULT_FETCH_SIZE, this);
+        return rows;
+    }
+
+    /**
+     * Exports every vehicle, or an advanced search's results, from one
+     * version of the in-memory inventory.
+     * @param version the version (pinned by the caller)
+     * @param search the search (null for every vehicle)
+     * @return number of rows written
+     * @throws IOException if the output cannot be written
+     */
+    public long fromInventory(final InventorySnapshot version,
+            final AdvancedSearch search) throws IOException {
+        OffHeapVehicleStore store = version.getIndex().getStore();
+        columns(COLUMNS);
+        String[] values = new String[COLUMNS.length];
+        if (search == null) {
+            int n = version.size();
+            for (int row = 0; row < n; row++) {
+                if (version.isLive(row)) {
+                    row(read(store, row, values));
+                }
+            }
+        } else {
+            for (int row : InventorySearch.search(version, search)) {
+                row(read(store, row, values));
+            }
+        }
+        return rows;
+    }   // end fromInventory(...)
+
+    /**
+     * Reads a vehicle's values in COLUMNS order.
+     * @param store the store
+     * @param row the vehicle's row
+     * @param values array to fill
+     * @return the array
+     */
+    private static String[] read(final OffHeapVehicleStore store,
+            final int row, final String[] values) {
+        VehicleView v = store.view(row);
+        values[0] = v.getVin();
+        values[1] = v.getMake();
+        values[2] = v.getModel();
+        values[3] = v.getBodyStyle();
+        values[4] = Integer.toString(v.getYear());
+        values[5] = Integer.toString(v.getPrice());
+        values[6] = v.getIntColor();
+        values[7] = v.getExtColor();
+        values[8] = Integer.toString(v.getMiles());
+        values[9] = Integer.toString(v.getMpgCity());
+        values[10] = Integer.toString(v.getMpgHwy());
+        values[11] = v.getCategory();
+        values[12] = v.getEngineDesc();
+        values[13] = v.getTransmission();
+        values[14] = v.getDescription();
+        values[15] = v.getImageURL();
+        values[16] = v.getLocation();
+        values[17] = Integer.toString(
+                store.getInt(row, OffHeapVehicleStore.COUNT));
+        return values;
+    }   // end read(...)
+
+    @Override
+    public void columns(final String[] labels) throws IOException {
+        if (format == Format.CSV) {
+            writeCsvLine(labels);
+            return;
+        }
+        keys = new String[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            StringBuilder sb = new StringBuilder(labels[i].length() + 4);
+            appendJsonString(sb, labels[i]);
+            keys[i] = sb.append(':').toString();
+        }
+    }
+
+    @Override
+    public void row(final String[] values) throws IOException {
+        if (format == Format.CSV) {
+            writeCsvLine(values);
+        } else {
+            out.write('{');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write(keys[i]);
+                if (values[i] == null) {
+                    out.write("null");
+                } else {
+                    writeJsonString(values[i]);
+                }
+            }
+            out.write("}\n");
+        }
+        rows++;
+    }   // end row(...)
+
+    /**
+     * Writes one CSV line, quoting values that need it.
+     * @param values the values (null is written as empty)
+     * @throws IOException IOException
+     */
+    private void writeCsvLine(final String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            String v = values[i];
+            if (v == null) {
+                continue;
+            }
+            boolean quote = false;
+            for (int c = 0; c < v.length() && !quote; c++) {
+                char ch = v.charAt(c);
+                quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+            }
+            if (!quote) {
+                out.write(v);
+                continue;
+            }
+            out.write('"');
+            int from = 0;
+            for (int c = 0; c < v.length(); c++) {
+                if (v.charAt(c) == '"') {
+                    out.write(v, from, c + 1 - from);
+                    out.write('"');
+                    from = c + 1;
+                }
+            }
+            out.write(v, from, v.length() - from);
+            out.write('"');
+        }   // end for each value
+        out.write("\r\n");
+    }   // end writeCsvLine(...)
+
+    /**
+     * Writes a JSON string literal.
+     * @param s the string
+     * @throws IOException IOException
+     */
+    private void writeJsonString(final String s) throws IOException {
+        out.write('"');
+        int from = 0;
+        for (int c = 0; c < s.length(); c++) {
+            char ch = s.charAt(c);
+            if (ch < 0x20 || ch == '"' || ch == '\\') {
+                out.write(s, from, c - from);
+                writeEscape(ch);
+                from = c + 1;
+            }
+        }
+        out.write(s, from, s.length() - from);
+        out.write('"');
+    }
+
+    /**
+     * Writes a character as a JSON escape.
+     * @param ch a quote, backslash or control character
+     * @throws IOException IOException
+     */
+    private void writeEscape(final char ch) throws IOException {
+        switch (ch) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                out.write("\\u00");
+                out.write(HEX[ch >> 4]);
+                out.write(HEX[ch & 0xF]);
+                break;
+        }
+    }   // end writeEscape(...)
+
+    /**
+     * Appends a JSON string literal (for the column keys).
+     * @param sb output
+     * @param s the string
+     */
+    private static void appendJsonString(final StringBuilder sb,
+            final String s) {
+        sb.append('"');
+        for (int c = 0; c < s.length(); c++) {
+            char ch = s.charAt(c);
+            if (ch == '"' || ch == '\\') {
+                sb.append('\\');
+            }
+            sb.append(ch);
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Flushes the output and, if compressing, writes the gzip trailer,
+     * then closes the stream.
+     * @throws IOException IOException
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}   // end class InventoryExport
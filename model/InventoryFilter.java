@@ -0,0 +1,462 @@
+package awesomecars.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.beans.StringDictionary;
+
+/**
+ * An AdvancedSearch compiled against an OffHeapVehicleStore so it can be
+ * evaluated in-process. String criteria are resolved to dictionary ids
+ * once, so testing a row only compares ints. Mirrors the SQL generated by
+ * AdvancedSearch.toString(): used vehicles honour every criterion, new
+ * vehicles only make/model, MPG, price, location and body style, and only
+ * one row is returned per new model (the SQL groups new vehicles by
+ * model).
+ *
+ * Each active criterion is a numbered predicate. Rows are tested against
+ * the predicates in an order that a FilterPlanner may change, so the
+ * predicates most likely to reject a row are tried first.
+ *
+ * @author Travis
+ */
+public final class InventoryFilter {
+
+    /** Make or model predicate. */
+    public static final int MAKE_MODEL = 0;
+    /** Price range predicate. */
+    public static final int PRICE = 1;
+    /** Minimum city MPG predicate. */
+    public static final int MPG_CITY = 2;
+    /** Minimum highway MPG predicate. */
+    public static final int MPG_HWY = 3;
+    /** Location predicate. */
+    public static final int LOCATION = 4;
+    /** Body style predicate. */
+    public static final int BODY_STYLE = 5;
+    /** Year range predicate (used vehicles only). */
+    public static final int YEAR = 6;
+    /** Maximum miles predicate (used vehicles only). */
+    public static final int MILES = 7;
+    /** Transmission predicate (used vehicles only). */
+    public static final int TRANSMISSION = 8;
+    /** Exterior color predicate (used vehicles only). */
+    public static final int EXT_COLOR = 9;
+    /** Interior color predicate (used vehicles only). */
+    public static final int INT_COLOR = 10;
+    /** Number of predicates. */
+    public static final int NUM_PREDICATES = 11;
+
+    /** Predicate names, for explain output. */
+    private static final String[] NAMES = {
+        "make/model", "price", "mpg_city", "mpg_hwy", "location",
+        "body_style", "year", "miles", "transmission", "ext_color",
+        "int_color"
+    };
+
+    /** The store being searched. */
+    private final OffHeapVehicleStore store;
+
+    /** Removed rows (null to use the store's flags). */
+    private final RemovedRows removed;
+
+    /** Category ids that mean "used" (null for none). */
+    private final boolean[] usedIds;
+
+    /** Category ids that mean "new" (null for none). */
+    private final boolean[] newIds;
+
+    /** Include used vehicles. */
+    private final boolean includeUsed;
+
+    /** Include new vehicles. */
+    private final boolean includeNew;
+
+    /** Allowed make ids (null if makes were not given). */
+    private final boolean[] makes;
+
+    /** Allowed model ids (null if models were not given). */
+    private final boolean[] models;
+
+    /** Allowed body style ids (null for all). */
+    private final boolean[] bodyStyles;
+
+    /** Allowed exterior color ids (null for all). */
+    private final boolean[] extColors;
+
+    /** Allowed interior color ids (null for all). */
+    private final boolean[] intColors;
+
+    /** Allowed store ids (null for all). */
+    private final boolean[] locations;
+
+    /** Allowed transmission ids (null for all). */
+    private final boolean[] transmissions;
+
+    /** Minimum year (-1 for none). */
+    private final int minYear;
+
+    /** Maximum year (-1 for none). */
+    private final int maxYear;
+
+    /** Minimum price (-1 for none). */
+    private final int minPrice;
+
+    /** Maximum price (-1 for none). */
+    private final int maxPrice;
+
+    /** Maximum miles (-1 for none). */
+    private final int maxMiles;
+
+    /** Minimum city MPG (-1 for none). */
+    private final int minMPGCity;
+
+    /** Minimum highway MPG (-1 for none). */
+    private final int minMPGHwy;
+
+    /** Active predicates, in the order rows are tested. */
+    private int[] order;
+
+    /**
+     * Compiles a search against a store.
+     * @param s the store to search
+     * @param search the search criteria
+     */
+    public InventoryFilter(final OffHeapVehicleStore s,
+            final AdvancedSearch search) {
+        this(s, search, null);
+    }
+
+    /**
+     * Compiles a search against one version of a store.
+     * @param s the store to search
+     * @param search the search criteria
+     * @param r rows removed as of the version (null to use the store's
+     *        flags)
+     */
+    InventoryFilter(final OffHeapVehicleStore s, final AdvancedSearch search,
+            final RemovedRows r) {
+        store = s;
+        removed = r;
+        StringDictionary dict = s.getDictionary();
+        
+        // neither or both selected means both, as in the SQL
+        boolean both = search.isIncludeUsed() == search.isIncludeNew();
+        includeUsed = search.isIncludeUsed() || both;
+        includeNew = search.isIncludeNew() || both;
+        usedIds = idsIgnoreCase(dict, "used");
+        newIds = idsIgnoreCase(dict, "new");
+        
+        makes = ids(dict, search.getIncludeMakes());
+        models = ids(dict, search.getIncludeModels());
+        bodyStyles = ids(dict, search.getIncludeBodyStyles());
+        extColors = ids(dict, search.getIncludeExteriorColors());
+        intColors = ids(dict, search.getIncludeInteriorColors());
+        locations = ids(dict, search.getIncludeLocations());
+        
+        if (search.isIncludeAutomaticTransmission() 
+                != search.isIncludeManualTransmission()) {
+            transmissions = idsIgnoreCase(dict, 
+                    search.isIncludeAutomaticTransmission() 
+                    ? "automatic" : "manual");
+        } else {
+            transmissions = null;
+        }
+        
+        minYear = search.getMinYear();
+        maxYear = search.getMaxYear();
+        minPrice = search.getMinPrice();
+        maxPrice = search.getMaxPrice();
+        maxMiles = search.getMaxMiles();
+        minMPGCity = search.getMinMPGCity();
+        minMPGHwy = search.getMinMPGHwy();
+        
+        int[] active = new int[NUM_PREDICATES];
+        int n = 0;
+        for (int p = 0; p < NUM_PREDICATES; p++) {
+            if (isActive(p)) {
+                active[n++] = p;
+            }
+        }
+        order = Arrays.copyOf(active, n);
+    }   // end constructor
+
+    /**
+     * Resolves a list of strings to a table of allowed ids.
+     * @param dict the store's dictionary
+     * @param values allowed strings (null for no restriction)
+     * @return allowed ids, or null for no restriction
+     */
+    private static boolean[] ids(final StringDictionary dict,
+            final List<String> values) {
+        if (values == null) {
+            return null;
+        }
+        boolean[] allowed = new boolean[dict.size()];
+        for (String v : values) {
+            int id = dict.lookup(v);
+            if (id >= 0 && id < allowed.length) {
+                allowed[id] = true;
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * Finds every id whose string equals a value ignoring case (MySQL
+     * compares these columns case-insensitively).
+     * @param dict the store's dictionary
+     * @param value the value
+     * @return table of matching ids
+     */
+    private static boolean[] idsIgnoreCase(final StringDictionary dict,
+            final String value) {
+        int n = dict.size();
+        boolean[] allowed = new boolean[n];
+        for (int id = 0; id < n; id++) {
+            allowed[id] = value.equalsIgnoreCase(dict.get(id));
+        }
+        return allowed;
+    }
+
+    /**
+     * @param allowed table of allowed ids (null for no restriction)
+     * @param id an id
+     * @return true if the id is allowed
+     */
+    private static boolean allows(final boolean[] allowed, final int id) {
+        return allowed == null 
+                || (id >= 0 && id < allowed.length && allowed[id]);
+    }
+
+    /**
+     * @param allowed table of ids
+     * @param id an id
+     * @return true if the id is in the table
+     */
+    private static boolean contains(final boolean[] allowed, final int id) {
+        return id >= 0 && id < allowed.length && allowed[id];
+    }
+
+    /**
+     * @param row row number
+     * @return true if the row is a new vehicle
+     */
+    public boolean isNew(final int row) {
+        return contains(newIds, 
+                store.getInt(row, OffHeapVehicleStore.CATEGORY));
+    }
+
+    /**
+     * @param p a predicate
+     * @return true if the search restricts rows with the predicate
+     */
+    public boolean isActive(final int p) {
+        switch (p) {
+            case MAKE_MODEL:
+                return makes != null || models != null;
+            case PRICE:
+                return minPrice >= 0 || maxPrice >= 0;
+            case MPG_CITY:
+                return minMPGCity >= 0;
+            case MPG_HWY:
+                return minMPGHwy >= 0;
+            case LOCATION:
+                return locations != null;
+            case BODY_STYLE:
+                return bodyStyles != null;
+            case YEAR:
+                return includeUsed && (minYear >= 0 || maxYear >= 0);
+            case MILES:
+                return includeUsed && maxMiles >= 0;
+            case TRANSMISSION:
+                return includeUsed && transmissions != null;
+            case EXT_COLOR:
+                return includeUsed && extColors != null;
+            case INT_COLOR:
+                return includeUsed && intColors != null;
+            default:
+                return false;
+        }
+    }   // end isActive(...)
+
+    /**
+     * @param p a predicate
+     * @return true if the predicate only restricts used vehicles
+     */
+    public static boolean isUsedOnly(final int p) {
+        return p >= YEAR;
+    }
+
+    /**
+     * @param p a predicate
+     * @return the predicate's name
+     */
+    public static String getName(final int p) {
+        return NAMES[p];
+    }
+
+    /** @return true if used vehicles are included */
+    public boolean isIncludeUsed() {
+        return includeUsed;
+    }
+
+    /** @return true if new vehicles are included */
+    public boolean isIncludeNew() {
+        return includeNew;
+    }
+
+    /** @return the active predicates, in the order rows are tested */
+    public int[] getOrder() {
+        return order.clone();
+    }
+
+    /**
+     * Changes the order rows are tested in.
+     * @param active every active predicate, in the order to test them
+     */
+    public void setOrder(final int[] active) {
+        order = active.clone();
+    }
+
+    /**
+     * Returns the allowed ids of a predicate on a dictionary column.
+     * @param p LOCATION, BODY_STYLE, TRANSMISSION, EXT_COLOR or INT_COLOR
+     * @return allowed ids (null if the predicate is not active)
+     */
+    public boolean[] getAllowedIds(final int p) {
+        switch (p) {
+            case LOCATION:
+                return locations;
+            case BODY_STYLE:
+                return bodyStyles;
+            case TRANSMISSION:
+                return transmissions;
+            case EXT_COLOR:
+                return extColors;
+            case INT_COLOR:
+                return intColors;
+            default:
+                return null;
+        }
+    }   // end getAllowedIds(...)
+
+    /** @return allowed make ids (all models), or null */
+    public boolean[] getAllowedMakes() {
+        return makes;
+    }
+
+    /** @return allowed model ids, or null */
+    public boolean[] getAllowedModels() {
+        return models;
+    }
+
+    /**
+     * Returns the range a predicate on a numeric column allows.
+     * @param p PRICE, MPG_CITY, MPG_HWY, YEAR or MILES
+     * @return {lowest, highest} allowed value (Integer.MIN_VALUE and
+     *         Integer.MAX_VALUE for open ends)
+     */
+    public int[] getRange(final int p) {
+        switch (p) {
+            case PRICE:
+                return range(minPrice, maxPrice);
+            case MPG_CITY:
+                return range(minMPGCity, -1);
+            case MPG_HWY:
+                return range(minMPGHwy, -1);
+            case YEAR:
+                return range(minYear, maxYear);
+            case MILES:
+                return range(-1, maxMiles);
+            default:
+                return null;
+        }
+    }   // end getRange(...)
+
+    /**
+     * @param min a minimum from AdvancedSearch (-1 for none)
+     * @param max a maximum from AdvancedSearch (-1 for none)
+     * @return {lowest, highest} allowed value
+     */
+    private static int[] range(final int min, final int max) {
+        return new int[] {min < 0 ? Integer.MIN_VALUE : min,
+            max < 0 ? Integer.MAX_VALUE : max};
+    }
+
+    /**
+     * Tests one row against the search.
+     * @param row row number
+     * @return true if the row matches
+     */
+    public boolean matches(final int row) {
+        if (removed == null ? store.isRemoved(row) : removed.contains(row)) {
+            return false;
+        }
+        int category = store.getInt(row, OffHeapVehicleStore.CATEGORY);
+        boolean used = contains(usedIds, category);
+        if (used ? !includeUsed 
+                : !(includeNew && contains(newIds, category))) {
+            return false;
+        }
+        for (int p : order) {
+            if (!(used ? test(p, row) : isUsedOnly(p) || test(p, row))) {
+                return false;
+            }
+        }
+        return true;
+    }   // end matches(...)
+
+    /**
+     * Tests one row against one predicate.
+     * @param p an active predicate
+     * @param row row number
+     * @return true if the row passes
+     */
+    private boolean test(final int p, final int row) {
+        int v;
+        switch (p) {
+            case MAKE_MODEL:
+                // makes (all models) OR specific models
+                return (makes != null && allows(makes, 
+                            store.getInt(row, OffHeapVehicleStore.MAKE)))
+                        || (models != null && allows(models, 
+                            store.getInt(row, OffHeapVehicleStore.MODEL)));
+            case PRICE:
+                v = store.getInt(row, OffHeapVehicleStore.PRICE);
+                return (minPrice < 0 || v >= minPrice) 
+                        && (maxPrice < 0 || v <= maxPrice);
+            case MPG_CITY:
+                return store.getInt(row, OffHeapVehicleStore.MPG_CITY) 
+                        >= minMPGCity;
+            case MPG_HWY:
+                return store.getInt(row, OffHeapVehicleStore.MPG_HWY) 
+                        >= minMPGHwy;
+            case LOCATION:
+                return allows(locations, 
+                        store.getInt(row, OffHeapVehicleStore.STORE));
+            case BODY_STYLE:
+                return allows(bodyStyles, 
+                        store.getInt(row, OffHeapVehicleStore.BODY_STYLE));
+            case YEAR:
+                v = store.getInt(row, OffHeapVehicleStore.YEAR);
+                return (minYear < 0 || v >= minYear) 
+                        && (maxYear < 0 || v <= maxYear);
+            case MILES:
+                return store.getInt(row, OffHeapVehicleStore.MILES) 
+                        <= maxMiles;
+            case TRANSMISSION:
+                return allows(transmissions, 
+                        store.getInt(row, OffHeapVehicleStore.TRANSMISSION));
+            case EXT_COLOR:
+                return allows(extColors, 
+                        store.getInt(row, OffHeapVehicleStore.EXT_COLOR));
+            case INT_COLOR:
+                return allows(intColors, 
+                        store.getInt(row, OffHeapVehicleStore.INT_COLOR));
+            default:
+                return true;
+        }
+    }   // end test(...)
+}   // end class InventoryFilter
@@ -0,0 +1,132 @@
+package awesomecars.model;
+
+import awesomecars.beans.Vehicle;
+
+/**
+ * The read-side structures built over an OffHeapVehicleStore for
+ * in-process searches: sort orders, column-wise numeric fields, the
+ * statistics the FilterPlanner estimates selectivity from and bitmaps of
+ * the equality-filtered columns, and range indexes of the numeric
+ * columns. All cover the rows present when it was built and none is
+ * changed afterwards, so every InventorySnapshot sharing the index sees
+ * the same structures. Vehicles added or sold through add(...) and
+ * remove(...) change only the store; a snapshot makes them visible.
+ *
+ * @author Travis
+ */
+public final class InventoryIndex {
+
+    /** Numeric SortIndex columns (PRICE to MPG_HWY) with range indexes. */
+    private static final int NUM_RANGES = SortIndex.MPG_HWY + 1;
+
+    /** The indexed store. */
+    private final OffHeapVehicleStore store;
+
+    /** Sort orders. */
+    private final SortIndex sortIndex;
+
+    /** Column-wise numeric fields. */
+    private final InventoryColumns columns;
+
+    /** Value statistics. */
+    private final ColumnStatistics statistics;
+
+    /** Row sets of the equality-filtered columns. */
+    private final BitmapIndex bitmapIndex;
+
+    /** Range indexes of the numeric SortIndex columns, by column. */
+    private final RangeIndex[] rangeIndexes = new RangeIndex[NUM_RANGES];
+
+    /**
+     * Builds every index over the rows currently in the store.
+     * @param s the store
+     */
+    public InventoryIndex(final OffHeapVehicleStore s) {
+        store = s;
+        sortIndex = new SortIndex(s);
+        columns = new InventoryColumns(s);
+        statistics = new ColumnStatistics(s, columns);
+        bitmapIndex = new BitmapIndex(s, statistics);
+        for (int c = 0; c < NUM_RANGES; c++) {
+            rangeIndexes[c] = new RangeIndex(sortIndex, c);
+        }
+    }
+
+    /** @return the indexed store */
+    public OffHeapVehicleStore getStore() {
+        return store;
+    }
+
+    /** @return number of rows appended to the store since it was built */
+    public int getUnindexedRows() {
+        return store.size() - size();
+    }
+
+    /** @return number of rows covered */
+    public int size() {
+        return sortIndex.size();
+    }
+
+    /** @return the sort orders */
+    public SortIndex getSortIndex() {
+        return sortIndex;
+    }
+
+    /** @return the column-wise numeric fields */
+    public InventoryColumns getColumns() {
+        return columns;
+    }
+
+    /** @return the value statistics */
+    public ColumnStatistics getStatistics() {
+        return statistics;
+    }
+
+    /** @return row sets of the equality-filtered columns */
+    public BitmapIndex getBitmapIndex() {
+        return bitmapIndex;
+    }
+
+    /**
+     * @param field a numeric field (e.g. OffHeapVehicleStore.PRICE)
+     * @return the field's range index, or null if it has none
+     */
+    public RangeIndex getRangeIndex(final int field) {
+        for (RangeIndex r : rangeIndexes) {
+            if (r.getField() == field) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends a vehicle to the store. Searches of the snapshots published
+     * after it see it (see InventoryRepository.publishChanges(...)); the
+     * indexes include it once they are rebuilt.
+     * @param v the vehicle
+     * @param key the database key (see OffHeapVehicleStore.add)
+     * @return the row number of the (first) row added
+     */
+    public int add(final Vehicle v, final String key) {
+        synchronized (store) {
+            return store.add(v, key);
+        }
+    }
+
+    /**
+     * Marks a row removed (sold) in the store. Snapshots published before
+     * the removal still include the row.
+     * @param row row number
+     * @return false if the row had already been removed
+     */
+    public boolean remove(final int row) {
+        synchronized (store) {
+            if (store.isRemoved(row)) {
+                return false;
+            }
+            store.remove(row);
+            return true;
+        }
+    }
+}   // end class InventoryIndex
@@ -0,0 +1,223 @@
+package awesomecars.model;
+
+import java.util.List;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.beans.Vehicle;
+
+/**
+ * Holds the application's in-memory (off-heap) copy of the vehicle
+ * inventory and its indexes, as a series of immutable versions (see
+ * InventorySnapshot). Every reload, index rebuild or batch of changes
+ * publishes a new version; readers pin the current version and keep
+ * using it undisturbed while newer ones are published. Publishing is
+ * serialized; reading never blocks. The inventory is null until the
+ * servlet has loaded it, in which case callers should fall back to
+ * querying the database.
+ *
+ * @author Travis
+ */
+public final class InventoryRepository {
+
+    /** The current version (null until loaded). */
+    private static volatile InventorySnapshot current;
+
+    /** Number of the last version published. */
+    private static long lastVersion = 0L;
+
+    /** Default constructor must be private. */
+    private InventoryRepository() { };
+
+    /**
+     * Installs a loaded inventory and builds its indexes.
+     * @param s the inventory store
+     */
+    public static void initRepository(final OffHeapVehicleStore s) {
+        InventoryIndex built = new InventoryIndex(s);
+        RemovedRows removed = RemovedRows.of(s);
+        SimilarityIndex similar = SimilarityIndex.build(s, built.size(),
+                removed);
+        VinIndex keys = new VinIndex(s);
+        synchronized (InventoryRepository.class) {
+            publish(built, built.size(), removed, similar, keys);
+        }
+    }
+
+    /**
+     * Drops the current version, so searches go back to the database.
+     * Public only because the tests that load an inventory live in
+     * another package and must not leave it behind for later tests.
+     */
+    public static void clearRepository() {
+        synchronized (InventoryRepository.class) {
+            InventorySnapshot old = current;
+            current = null;
+            if (old != null) {
+                old.unpin();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the indexes so they include rows appended since they were
+     * built. Rows appended but not yet published must not be pending.
+     */
+    public static void refreshIndex() {
+        InventorySnapshot s = current;
+        if (s == null) {
+            return;
+        }
+        InventoryIndex built = new InventoryIndex(s.getIndex().getStore());
+        synchronized (InventoryRepository.class) {
+            s = current;
+            if (s.getIndex().getStore() == built.getStore()) {
+                int rows = Math.max(built.size(), s.size());
+                publish(built, rows, s.getRemoved(),
+                        s.getSimilar().update(rows, s.getRemoved()),
+                        s.getKeys());
+            }
+        }
+    }   // end refreshIndex()
+
+    /**
+     * Publishes a batch of changes made through the current version's
+     * index: every row appended to its store so far becomes visible, and
+     * the given rows become removed, in one step.
+     * @param basis the index the changes were made through
+     * @param removedRows rows removed by the batch
+     * @param count number of rows removed by the batch
+     * @return false (publishing nothing) if the inventory was reloaded
+     *         since the batch began
+     */
+    public static boolean publishChanges(final InventoryIndex basis,
+            final int[] removedRows, final int count) {
+        synchronized (InventoryRepository.class) {
+            InventorySnapshot s = current;
+            if (s == null || s.getIndex().getStore() != basis.getStore()) {
+                return false;
+            }
+            int rows = basis.getStore().size();
+            RemovedRows removed = s.getRemoved().with(removedRows, count);
+            publish(s.getIndex(), rows, removed,
+                    s.getSimilar().update(rows, removed), s.getKeys());
+            return true;
+        }
+    }   // end publishChanges(...)
+
+    /**
+     * Replaces the current version and drops the repository's reference
+     * to the old one. Callers hold the class lock.
+     * @param idx indexes
+     * @param rows number of store rows visible
+     * @param removed rows removed
+     * @param similar similar-vehicle index covering the rows
+     * @param keys rows by VIN
+     */
+    private static void publish(final InventoryIndex idx, final int rows,
+            final RemovedRows removed, final SimilarityIndex similar,
+            final VinIndex keys) {
+        InventorySnapshot old = current;
+        current = new InventorySnapshot(++lastVersion, idx, rows, removed,
+                similar, keys);
+        if (old != null) {
+            old.unpin();
+        }
+    }
+
+    /**
+     * Pins the current version. The caller must unpin it when done.
+     * @return the current version, or null if none has been loaded
+     */
+    public static InventorySnapshot pin() {
+        for (;;) {
+            InventorySnapshot s = current;
+            if (s == null || s.tryPin()) {
+                return s;
+            }
+            // replaced and reclaimed since it was read; read again
+        }
+    }
+
+    /** @return the inventory store, or null if it has not been loaded */
+    public static OffHeapVehicleStore getStore() {
+        InventorySnapshot s = current;
+        return s == null ? null : s.getIndex().getStore();
+    }
+
+    /**
+     * @return the current version's indexes, or null if no inventory has
+     *         been loaded
+     */
+    public static InventoryIndex getIndex() {
+        InventorySnapshot s = current;
+        return s == null ? null : s.getIndex();
+    }
+
+    /**
+     * Runs an advanced search against the current version.
+     * @param search the search criteria
+     * @return matching vehicles, in order, at most search.getLimit()
+     */
+    public static List<Vehicle> search(final AdvancedSearch search) {
+        InventorySnapshot s = pin();
+        try {
+            return s.search(search);
+        } finally {
+            s.unpin();
+        }
+    }
+
+    /**
+     * Describes how an advanced search would be evaluated against the
+     * in-memory inventory, without running it.
+     * @param search the search criteria
+     * @return the plan as text
+     */
+    public static String explain(final AdvancedSearch search) {
+        InventorySnapshot s = pin();
+        try {
+            return InventorySearch.plan(s, search).explain();
+        } finally {
+            s.unpin();
+        }
+    }
+
+    /**
+     * Finds the in-stock vehicles most like a vehicle, for a used
+     * vehicle's "similar vehicles" list.
+     * @param vin the vehicle's VIN
+     * @param n number of vehicles wanted
+     * @return up to n vehicles, most similar first
+     */
+    public static List<Vehicle> similarToVin(final String vin,
+            final int n) {
+        InventorySnapshot s = pin();
+        try {
+            return s.similarToVin(vin, n);
+        } finally {
+            s.unpin();
+        }
+    }
+
+    /**
+     * Finds the in-stock vehicles of other models most like a model, for
+     * a new model's "similar vehicles" list.
+     * @param model the model name
+     * @param n number of vehicles wanted
+     * @return up to n vehicles, most similar first
+     */
+    public static List<Vehicle> similarToModel(final String model,
+            final int n) {
+        InventorySnapshot s = pin();
+        try {
+            return s.similarToModel(model, n);
+        } finally {
+            s.unpin();
+        }
+    }
+
+    /** @return true once an inventory store has been loaded */
+    public static boolean isLoaded() {
+        return current != null;
+    }
+}   // end class InventoryRepository
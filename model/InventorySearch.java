@@ -0,0 +1,471 @@
+package awesomecars.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import awesomecars.beans.AdvancedSearch;
+
+/**
+ * Evaluates an AdvancedSearch in-process against the off-heap inventory
+ * and returns the matching rows in sort order, following the plan a
+ * FilterPlanner chose for it.
+ *
+ * A search with a single sort key may walk that column's precomputed
+ * permutation (starting and ending at the bounds of a range filter on
+ * the same column) and stop once the requested number of rows has been
+ * found, which is the cheapest plan when matches are common enough for
+ * the walk to end early. Otherwise every row is scanned: candidate rows
+ * come from the bitmap and range indexes and/or the RangeFilterKernel
+ * (which evaluates the numeric range filters for a whole segment at a
+ * time), the remaining filters are applied to the rows they leave, and each
+ * store segment yields a partial result (its first K rows, selected with
+ * a bounded heap) and partial results are merged in sort order. Large
+ * inventories are scanned segment-by-segment on a fork/join pool; small
+ * ones stay on the request thread. Rows appended to the store since the
+ * indexes were built are scanned separately and merged in. A search
+ * against an InventorySnapshot sees only that version's rows.
+ *
+ * @author Travis
+ */
+public final class InventorySearch {
+
+    /** Inventories smaller than this are always searched on one thread. */
+    public static final int PARALLEL_MIN_ROWS = 
+            2 * OffHeapVehicleStore.SEGMENT_RECORDS;
+
+    /** Utility class should not have a public or default constructor. */
+    private InventorySearch() { 
+        super();
+    }
+
+    /**
+     * Runs a search, scanning on the common fork/join pool if it is
+     * worthwhile.
+     * @param indexes indexes over the store to search
+     * @param search the search criteria
+     * @return matching row numbers, in order, at most search.getLimit()
+     */
+    public static int[] search(final InventoryIndex indexes,
+            final AdvancedSearch search) {
+        return search(indexes, search, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs a search.
+     * @param indexes indexes over the store to search
+     * @param search the search criteria
+     * @param pool pool to scan large inventories on (null for none)
+     * @return matching row numbers, in order, at most search.getLimit()
+     */
+    public static int[] search(final InventoryIndex indexes,
+            final AdvancedSearch search, final ForkJoinPool pool) {
+        return search(indexes, search, pool, indexes.getStore().size(),
+                null);
+    }
+
+    /**
+     * Runs a search against one version of the inventory, scanning on
+     * the common fork/join pool if it is worthwhile.
+     * @param version the inventory version
+     * @param search the search criteria
+     * @return matching row numbers, in order, at most search.getLimit()
+     */
+    public static int[] search(final InventorySnapshot version,
+            final AdvancedSearch search) {
+        return search(version.getIndex(), search, ForkJoinPool.commonPool(),
+                version.size(), version.getRemoved());
+    }
+
+    /**
+     * Runs a search over the first rows of the store.
+     * @param indexes indexes over the store to search
+     * @param search the search criteria
+     * @param pool pool to scan large inventories on (null for none)
+     * @param end number of store rows to search
+     * @param removed removed rows (null to use the store's flags)
+     * @return matching row numbers, in order, at most search.getLimit()
+     */
+    private static int[] search(final InventoryIndex indexes,
+            final AdvancedSearch search, final ForkJoinPool pool,
+            final int end, final RemovedRows removed) {
+        SortIndex index = indexes.getSortIndex();
+        OffHeapVehicleStore store = index.getStore();
+        int n = index.size();
+        int k = limit(search, end);
+        int parallelism = parallelism(pool, n);
+        InventoryFilter filter = new InventoryFilter(store, search, removed);
+        SortIndex.Ordering order = index.ordering(search.getSortOptions(),
+                search.getStoreDistances());
+        FilterPlan plan = FilterPlanner.plan(indexes, filter, order, k,
+                parallelism);
+        long[] candidates = plan.buildCandidates();
+        
+        int[] rows;
+        if (plan.isWalk()) {
+            rows = walk(index, filter, order, k, candidates, 
+                    plan.getSeekPredicate());
+        } else {
+            Scan scan = new Scan(index, indexes.getColumns(), search, 
+                    filter, order, k, 0, n, plan.isRangeScan(), candidates);
+            rows = parallelism > 1 ? pool.invoke(scan) : scan.compute();
+        }
+        if (end > n) {
+            // rows appended since the indexes were built are in none of
+            // them, so they are tested against every predicate
+            Scan tail = new Scan(index, indexes.getColumns(), search,
+                    new InventoryFilter(store, search, removed), order, k,
+                    n, end,
+                    false, null);
+            rows = tail.merge(rows, tail.scan());
+        }
+        return rows.length > k ? Arrays.copyOf(rows, k) : rows;
+    }   // end search(...)
+
+    /**
+     * Plans a search as search(...) would on the common fork/join pool,
+     * without running it.
+     * @param indexes indexes over the store to search
+     * @param search the search criteria
+     * @return the plan
+     */
+    public static FilterPlan plan(final InventoryIndex indexes,
+            final AdvancedSearch search) {
+        SortIndex index = indexes.getSortIndex();
+        int n = index.size();
+        return FilterPlanner.plan(indexes, 
+                new InventoryFilter(index.getStore(), search),
+                index.ordering(search.getSortOptions(),
+                        search.getStoreDistances()), 
+                limit(search, index.getStore().size()),
+                parallelism(ForkJoinPool.commonPool(), n));
+    }
+
+    /**
+     * Plans a search against one version of the inventory.
+     * @param version the inventory version
+     * @param search the search criteria
+     * @return the plan
+     */
+    public static FilterPlan plan(final InventorySnapshot version,
+            final AdvancedSearch search) {
+        InventoryIndex indexes = version.getIndex();
+        SortIndex index = indexes.getSortIndex();
+        return FilterPlanner.plan(indexes, 
+                new InventoryFilter(index.getStore(), search,
+                        version.getRemoved()),
+                index.ordering(search.getSortOptions(),
+                        search.getStoreDistances()), 
+                limit(search, version.size()),
+                parallelism(ForkJoinPool.commonPool(), index.size()));
+    }
+
+    /**
+     * @param search the search criteria
+     * @param n number of rows
+     * @return number of rows the search asks for
+     */
+    private static int limit(final AdvancedSearch search, final int n) {
+        return search.getLimit() < 0 ? n : Math.min(search.getLimit(), n);
+    }
+
+    /**
+     * @param pool pool to scan on (null for none)
+     * @param n number of rows
+     * @return threads a scan of n rows should use
+     */
+    private static int parallelism(final ForkJoinPool pool, final int n) {
+        return pool != null && n >= PARALLEL_MIN_ROWS 
+                ? pool.getParallelism() : 1;
+    }
+
+    /**
+     * Walks rows in the order of a single sort key (or row order) and
+     * stops after k matches.
+     * @param index the sort index
+     * @param filter the filter
+     * @param order ordering with at most one key
+     * @param k number of rows wanted
+     * @param candidates bitmap of candidate rows (null for all)
+     * @param seek range predicate on the sort column to seek on (-1 to
+     *        walk the whole order)
+     * @return matching rows, in order
+     */
+    private static int[] walk(final SortIndex index, 
+            final InventoryFilter filter, final SortIndex.Ordering order,
+            final int k, final long[] candidates, final int seek) {
+        NewModels seen = new NewModels(index.getStore());
+        int column = order.size() == 0 ? -1 : order.getColumn(0);
+        boolean descending = order.size() == 1 && order.isDescending(0);
+        
+        // positions [start, end) of the sort order to walk
+        int start = 0;
+        int end = index.size();
+        if (seek >= 0) {
+            int[] range = filter.getRange(seek);
+            start = index.lowerBound(column, range[0]);
+            end = index.lowerBound(column, range[1] + 1L);
+        }
+        
+        int[] rows = new int[Math.min(k, 1024)];
+        int count = 0;
+        for (int pos = 0; pos < end - start && count < k; pos++) {
+            int row = column < 0 ? pos : index.getRow(column, 
+                    descending ? end - 1 - pos : start + pos);
+            if (candidates != null 
+                    && (candidates[row >>> 6] & 1L << row) == 0) {
+                continue;
+            }
+            if (filter.matches(row) 
+                    && (!filter.isNew(row) || seen.first(row))) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, Math.min(k, count * 2));
+                }
+                rows[count++] = row;
+            }
+        }
+        return count == rows.length ? rows : Arrays.copyOf(rows, count);
+    }   // end walk(...)
+
+    /**
+     * Tracks which new models have already been returned, so only one
+     * row per new model is (as the SQL's GROUP BY does).
+     */
+    private static final class NewModels {
+
+        /** The store. */
+        private final OffHeapVehicleStore store;
+
+        /** Model ids already returned as a new vehicle. */
+        private boolean[] seen;
+
+        /** @param s the store */
+        NewModels(final OffHeapVehicleStore s) {
+            store = s;
+            seen = new boolean[s.getDictionary().size()];
+        }
+
+        /**
+         * @param row a new vehicle's row
+         * @return true the first time the row's model is seen
+         */
+        boolean first(final int row) {
+            int model = store.getInt(row, OffHeapVehicleStore.MODEL);
+            if (model < 0) {
+                return true;
+            }
+            if (model >= seen.length) {
+                seen = Arrays.copyOf(seen, model + 1);
+            }
+            if (seen[model]) {
+                return false;
+            }
+            seen[model] = true;
+            return true;
+        }
+    }   // end class NewModels
+
+    /**
+     * Scans a range of rows, splitting at segment boundaries, and returns
+     * its partial result: rows in order, holding the first k used rows
+     * and the first row of every new model. Every new model is kept
+     * because a model seen here may turn out to be a duplicate of a row
+     * in another range, and dropping it must not push a used row out of
+     * the first k.
+     */
+    private static final class Scan extends RecursiveTask<int[]> {
+
+        /** Implements Serializable interface. */
+        private static final long serialVersionUID = 1L;
+
+        /** The sort index. */
+        private final transient SortIndex index;
+
+        /** Column-wise numeric fields. */
+        private final transient InventoryColumns columns;
+
+        /** The search. */
+        private final transient AdvancedSearch search;
+
+        /** The filter. */
+        private final transient InventoryFilter filter;
+
+        /** The ordering. */
+        private final transient SortIndex.Ordering order;
+
+        /** Number of used rows wanted. */
+        private final int k;
+
+        /** True to evaluate the range filters with the kernel. */
+        private final boolean kernel;
+
+        /** Bitmap of candidate rows over the whole store (null for all). */
+        private final long[] candidates;
+
+        /** First row. */
+        private final int from;
+
+        /** Row after the last. */
+        private final int to;
+
+        /**
+         * @param idx the sort index
+         * @param cols column-wise numeric fields
+         * @param s the search
+         * @param f the filter
+         * @param o the ordering
+         * @param limit number of rows wanted
+         * @param first first row
+         * @param end row after the last
+         * @param useKernel true to evaluate range filters with the kernel
+         * @param bits bitmap of candidate rows (null for all)
+         */
+        Scan(final SortIndex idx, final InventoryColumns cols,
+                final AdvancedSearch s, final InventoryFilter f,
+                final SortIndex.Ordering o, final int limit,
+                final int first, final int end, final boolean useKernel,
+                final long[] bits) {
+            index = idx;
+            columns = cols;
+            search = s;
+            filter = f;
+            order = o;
+            k = limit;
+            from = first;
+            to = end;
+            kernel = useKernel;
+            candidates = bits;
+        }
+
+        @Override
+        protected int[] compute() {
+            int segments = (to - from + OffHeapVehicleStore.SEGMENT_RECORDS 
+                    - 1) / OffHeapVehicleStore.SEGMENT_RECORDS;
+            if (segments <= 1 || getPool() == null 
+                    || getPool().getParallelism() <= 1) {
+                return scan();
+            }
+            int mid = from + (segments / 2) 
+                    * OffHeapVehicleStore.SEGMENT_RECORDS;
+            Scan left = new Scan(index, columns, search, filter, order, k,
+                    from, mid, kernel, candidates);
+            Scan right = new Scan(index, columns, search, filter, order, k,
+                    mid, to, kernel, candidates);
+            left.fork();
+            int[] r = right.compute();
+            return merge(left.join(), r);
+        }   // end compute()
+
+        /** @return the partial result of scanning the whole range */
+        private int[] scan() {
+            int[] used = new int[16];
+            int usedCount = 0;
+            int[] best = new int[16];    // best row of each new model
+            int bestCount = 0;
+            int[] slot = new int[0];     // model id -> index in best + 1
+            OffHeapVehicleStore store = index.getStore();
+            long[] ranges = candidateRows();
+            
+            for (int row = from; row < to; row++) {
+                if (ranges != null) {
+                    // skip straight to the next candidate row
+                    int offset = row - from;
+                    long word = ranges[offset >>> 6] >>> offset;
+                    if (word == 0) {
+                        row = from + (offset | 63);
+                        continue;
+                    }
+                    row += Long.numberOfTrailingZeros(word);
+                }
+                if (!filter.matches(row)) {
+                    continue;
+                }
+                int model = store.getInt(row, OffHeapVehicleStore.MODEL);
+                if (!filter.isNew(row) || model < 0) {
+                    if (usedCount == used.length) {
+                        used = Arrays.copyOf(used, usedCount * 2);
+                    }
+                    used[usedCount++] = row;
+                    continue;
+                }
+                if (model >= slot.length) {
+                    slot = Arrays.copyOf(slot, 
+                            Math.max(model + 1, slot.length * 2));
+                }
+                if (slot[model] == 0) {
+                    if (bestCount == best.length) {
+                        best = Arrays.copyOf(best, bestCount * 2);
+                    }
+                    best[bestCount++] = row;
+                    slot[model] = bestCount;
+                } else if (index.compare(row, 
+                        best[slot[model] - 1], order) < 0) {
+                    best[slot[model] - 1] = row;
+                }
+            }
+            
+            return merge(index.topK(used, usedCount, order, k),
+                    index.topK(best, bestCount, order, bestCount));
+        }   // end scan()
+
+        /**
+         * Combines the kernel's rows and the bitmap candidates in the
+         * range. Ranges start on a segment boundary, so bit 0 of the
+         * result lines up with a word of the candidate bitmap.
+         * @return bitmap of candidate rows in the range, or null for all
+         */
+        private long[] candidateRows() {
+            long[] bits = kernel 
+                    ? RangeFilterKernel.evaluate(columns, search, from, to)
+                    : null;
+            if (candidates == null) {
+                return bits;
+            }
+            int offset = from >>> 6;
+            int words = InventoryColumns.words(to - from);
+            if (bits == null) {
+                return Arrays.copyOfRange(candidates, offset, 
+                        offset + words);
+            }
+            for (int w = 0; w < words; w++) {
+                bits[w] &= candidates[offset + w];
+            }
+            return bits;
+        }   // end candidateRows()
+
+        /**
+         * Merges two partial results in sort order.
+         * @param a a partial result
+         * @param b a partial result
+         * @return the combined partial result
+         */
+        private int[] merge(final int[] a, final int[] b) {
+            NewModels seen = new NewModels(index.getStore());
+            int[] out = new int[a.length + b.length];
+            int count = 0;
+            int used = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length || j < b.length) {
+                int row;
+                if (j == b.length || (i < a.length 
+                        && index.compare(a[i], b[j], order) < 0)) {
+                    row = a[i++];
+                } else {
+                    row = b[j++];
+                }
+                if (filter.isNew(row) 
+                        && index.getStore().getInt(row, 
+                                OffHeapVehicleStore.MODEL) >= 0) {
+                    if (seen.first(row)) {
+                        out[count++] = row;
+                    }
+                } else if (used < k) {
+                    out[count++] = row;
+                    used++;
+                }
+            }
+            return count == out.length ? out : Arrays.copyOf(out, count);
+        }   // end merge(...)
+    }   // end class Scan
+}   // end class InventorySearch
@@ -0,0 +1,210 @@
+package awesomecars.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.beans.StringDictionary;
+import awesomecars.beans.Vehicle;
+
+/**
+ * One immutable version of the in-memory inventory: the indexes, the
+ * number of store rows visible to it and the rows removed as of it. Each
+ * reload or batch of changes publishes a new version that shares the
+ * store's segments, the indexes and the unchanged chunks of the removed
+ * set with the one before. Rows appended for a later version are past
+ * this version's row count and rows removed by it are not in this
+ * version's removed set, so a search sees the inventory exactly as it
+ * was when the version was published, however long it runs. The
+ * similar-vehicle index is versioned the same way (see SimilarityIndex).
+ *
+ * Versions are reference counted. The repository holds one reference to
+ * the current version; a reader pins a version (see
+ * InventoryRepository.pin()) for as long as it uses it and unpins it when
+ * done. A version is reclaimed once it has been replaced and its last
+ * reader has unpinned it. Pinning never blocks.
+ *
+ * @author Travis
+ */
+public final class InventorySnapshot {
+
+    /** Versions published and not yet reclaimed. */
+    private static final AtomicInteger LIVE = new AtomicInteger();
+
+    /** Version number (increases with each version published). */
+    private final long version;
+
+    /** Indexes over the store. */
+    private final InventoryIndex index;
+
+    /** Number of store rows in this version. */
+    private final int rows;
+
+    /** Rows removed as of this version. */
+    private final RemovedRows removed;
+
+    /** Nearest-neighbour index for similar vehicles. */
+    private final SimilarityIndex similar;
+
+    /** Rows by VIN (shared by every version over the store). */
+    private final VinIndex keys;
+
+    /** References held (the repository's and readers'); 0 once reclaimed. */
+    private final AtomicInteger pins = new AtomicInteger(1);
+
+    /**
+     * Creates a version, referenced by its creator.
+     * @param v version number
+     * @param idx indexes over the store
+     * @param n number of store rows in this version
+     * @param r rows removed as of this version
+     * @param sim similar-vehicle index covering n rows
+     * @param k rows by VIN
+     */
+    InventorySnapshot(final long v, final InventoryIndex idx, final int n,
+            final RemovedRows r, final SimilarityIndex sim, 
+            final VinIndex k) {
+        version = v;
+        index = idx;
+        rows = n;
+        removed = r;
+        similar = sim;
+        keys = k;
+        LIVE.incrementAndGet();
+    }
+
+    /** @return number of versions published and not yet reclaimed */
+    public static int getLiveVersions() {
+        return LIVE.get();
+    }
+
+    /** @return the version number */
+    public long getVersion() {
+        return version;
+    }
+
+    /** @return the indexes */
+    public InventoryIndex getIndex() {
+        return index;
+    }
+
+    /** @return number of store rows in this version */
+    public int size() {
+        return rows;
+    }
+
+    /** @return rows removed as of this version */
+    RemovedRows getRemoved() {
+        return removed;
+    }
+
+    /** @return the similar-vehicle index */
+    public SimilarityIndex getSimilar() {
+        return similar;
+    }
+
+    /** @return rows by VIN */
+    VinIndex getKeys() {
+        return keys;
+    }
+
+    /**
+     * @param row row number
+     * @return true if the row is a live vehicle in this version
+     */
+    public boolean isLive(final int row) {
+        return row < rows && !removed.contains(row);
+    }
+
+    /**
+     * Runs an advanced search against this version.
+     * @param search the search criteria
+     * @return matching vehicles, in order, at most search.getLimit()
+     */
+    public List<Vehicle> search(final AdvancedSearch search) {
+        return toVehicles(InventorySearch.search(this, search));
+    }
+
+    /**
+     * Finds the in-stock vehicles most like a vehicle in this version.
+     * @param vin the vehicle's VIN
+     * @param n number of vehicles wanted
+     * @return up to n vehicles, most similar first (none if the VIN is
+     *         not in this version)
+     */
+    public List<Vehicle> similarToVin(final String vin, final int n) {
+        for (int row : keys.find(vin)) {
+            if (isLive(row)) {
+                return toVehicles(similar.similar(this, row, n, false));
+            }
+        }
+        return new ArrayList<Vehicle>();
+    }
+
+    /**
+     * Finds the in-stock vehicles of other models most like a model.
+     * @param model the model name
+     * @param n number of vehicles wanted
+     * @return up to n vehicles, most similar first (none if the model
+     *         is not in this version)
+     */
+    public List<Vehicle> similarToModel(final String model, final int n) {
+        OffHeapVehicleStore store = index.getStore();
+        int id = store.getDictionary().lookup(model);
+        int row = similar.getModelRow(id);
+        if (row >= 0 && !isLive(row)) {
+            // the latest row was sold; any live row of the model will do
+            row = -1;
+            for (int r = rows - 1; r >= 0 && row < 0; r--) {
+                if (store.getInt(r, OffHeapVehicleStore.MODEL) == id 
+                        && isLive(r)) {
+                    row = r;
+                }
+            }
+        }
+        if (id == StringDictionary.NULL_ID || row < 0) {
+            return new ArrayList<Vehicle>();
+        }
+        return toVehicles(similar.similar(this, row, n, true));
+    }   // end similarToModel(...)
+
+    /**
+     * @param found rows
+     * @return the rows' vehicles, in order
+     */
+    private List<Vehicle> toVehicles(final int[] found) {
+        List<Vehicle> vehicles = new ArrayList<Vehicle>(found.length);
+        for (int row : found) {
+            vehicles.add(index.getStore().view(row).toVehicle());
+        }
+        return vehicles;
+    }
+
+    /**
+     * Adds a reference unless the version has been reclaimed.
+     * @return true if pinned
+     */
+    boolean tryPin() {
+        for (;;) {
+            int p = pins.get();
+            if (p == 0) {
+                return false;
+            }
+            if (pins.compareAndSet(p, p + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** Drops a reference, reclaiming the version if it was the last. */
+    public void unpin() {
+        int p = pins.decrementAndGet();
+        if (p == 0) {
+            LIVE.decrementAndGet();
+        } else if (p < 0) {
+            throw new IllegalStateException("Version " + version 
+                    + " unpinned more often than pinned");
+        }
+    }
+}   // end class InventorySnapshot
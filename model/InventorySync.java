@@ -0,0 +1,421 @@
+package awesomecars.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+
+import awesomecars.beans.Vehicle;
+import awesomecars.monitoring.InventorySyncEvent;
+import awesomecars.persistence.IDatabaseAdapter;
+
+/**
+ * Keeps the in-memory inventory current without reloading it. Each poll
+ * queries the inventory rows changed since a high-water mark, using a
+ * last_updated timestamp on vehicle_details and vehicle_count:
+ * <pre>
+ * ALTER TABLE vehicle_details ADD last_updated TIMESTAMP(6) NOT NULL
+ *     DEFAULT CURRENT_TIMESTAMP(6) ON UPDATE CURRENT_TIMESTAMP(6),
+ *     ADD INDEX (last_updated);
+ * ALTER TABLE vehicle_count ADD last_updated TIMESTAMP(6) NOT NULL
+ *     DEFAULT CURRENT_TIMESTAMP(6) ON UPDATE CURRENT_TIMESTAMP(6),
+ *     ADD INDEX (last_updated);
+ * </pre>
+ * The inventory has one row per vehicle at a store, so a changed row
+ * replaces the vehicle's row at that store only (found by VIN and store
+ * name): the old row is removed and the new one appended, so rows are
+ * never modified in place and a search sees either one whole. A row
+ * whose count_total drops to 0 has sold out at its store and is only
+ * removed; the vehicle's rows at other stores are untouched. Vehicles
+ * deleted from the database outright are not seen until the next full
+ * load.
+ *
+ * Each poll reaches OVERLAP_SECONDS back past the mark, so a change
+ * committed shortly after a later timestamp was read is not missed; rows
+ * already applied by the previous poll are recognised by their timestamp
+ * and skipped. Each poll's changes are published as one new inventory
+ * version (see InventorySnapshot), and the indexes are rebuilt once
+ * enough appended rows have accumulated. The lag (time since the last
+ * successful poll began) is reported with every InventorySyncEvent.
+ * Once a poll is published, the vehicles it added or repriced are
+ * matched against the customers' saved searches (SavedSearchRepository).
+ *
+ * @author Travis
+ */
+public final class InventorySync {
+
+    /** Seconds each poll reaches back past the high-water mark. */
+    public static final int OVERLAP_SECONDS = 5;
+
+    /** Query for the database's current time, as a high-water mark. */
+    static final String HIGH_WATER_MARK_QUERY = 
+            "SELECT DATE_FORMAT(NOW(6), '%Y-%m-%d %H:%i:%s.%f') "
+            + "AS high_water_mark";
+
+    /** Format of a high-water mark (as produced by DATE_FORMAT). */
+    private static final Pattern MARK = 
+            Pattern.compile("\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}\\.\\d+");
+
+    /** The database. */
+    private final IDatabaseAdapter database;
+
+    /** Latest last_updated applied. */
+    private volatile String highWaterMark;
+
+    /** last_updated of each row (see rowKey(...)) of the previous poll. */
+    private Map<String, String> previousPoll = new HashMap<String, String>();
+
+    /** Start time of the last successful poll (or of the load). */
+    private volatile long lastSuccessMillis = System.currentTimeMillis();
+
+    /** Runs the polls (null until started). */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a sync that applies changes made after a high-water mark.
+     * @param db the database
+     * @param mark high-water mark taken before the inventory was loaded
+     */
+    public InventorySync(final IDatabaseAdapter db, final String mark) {
+        if (mark == null || !MARK.matcher(mark).matches()) {
+            throw new IllegalArgumentException("Invalid high-water mark: "
+                    + mark);
+        }
+        database = db;
+        highWaterMark = mark;
+    }
+
+    /**
+     * Reads the database's current time, to be taken just before the
+     * inventory is loaded.
+     * @param db the database
+     * @return the high-water mark
+     * @throws SQLException if the query fails
+     */
+    public static String queryHighWaterMark(final IDatabaseAdapter db)
+            throws SQLException {
+        JsonArray result = db.queryDatabase(HIGH_WATER_MARK_QUERY);
+        if (result == null || result.isEmpty()) {
+            throw new SQLException("High-water mark query returned no rows");
+        }
+        return result.getJsonObject(0).getString("high_water_mark");
+    }
+
+    /**
+     * Reads the high-water mark saved alongside an inventory file.
+     * @param inventoryFile the inventory file
+     * @return the mark, or null if none was saved
+     * @throws IOException if the mark file cannot be read
+     */
+    public static String readMark(final File inventoryFile)
+            throws IOException {
+        File f = markFile(inventoryFile);
+        if (!f.exists()) {
+            return null;
+        }
+        String mark = new String(Files.readAllBytes(f.toPath()), 
+                StandardCharsets.US_ASCII).trim();
+        return MARK.matcher(mark).matches() ? mark : null;
+    }
+
+    /**
+     * Saves a high-water mark alongside an inventory file.
+     * @param inventoryFile the inventory file
+     * @param mark the mark the file's contents are current to
+     * @throws IOException if the mark file cannot be written
+     */
+    public static void writeMark(final File inventoryFile,
+            final String mark) throws IOException {
+        Files.write(markFile(inventoryFile).toPath(), 
+                mark.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @param inventoryFile the inventory file
+     * @return the file its high-water mark is saved in
+     */
+    private static File markFile(final File inventoryFile) {
+        return new File(inventoryFile.getPath() + ".mark");
+    }
+
+    /**
+     * @param mark a high-water mark
+     * @return query for the inventory rows changed since (about) the mark
+     */
+    static String changesQuery(final String mark) {
+        String since = "'" + mark + "' - INTERVAL " + OVERLAP_SECONDS 
+                + " SECOND";
+        return OffHeapVehicleStore.INVENTORY_COLUMNS 
+                + ", DATE_FORMAT(GREATEST(t3.last_updated, t5.last_updated), "
+                + "'%Y-%m-%d %H:%i:%s.%f') AS last_updated "
+                + OffHeapVehicleStore.INVENTORY_JOIN 
+                + " AND (t3.last_updated >= " + since 
+                + " OR t5.last_updated >= " + since + ")";
+    }
+
+    /** @return the latest last_updated applied */
+    public String getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /** @return milliseconds since the last successful poll began */
+    public long getLagMillis() {
+        return System.currentTimeMillis() - lastSuccessMillis;
+    }
+
+    /**
+     * Starts polling on a background thread.
+     * @param periodSeconds seconds between polls
+     */
+    public synchronized void start(final long periodSeconds) {
+        stop();
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "inventory-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (SQLException | RuntimeException e) {
+                    System.out.println("Error syncing inventory: " 
+                            + e.getMessage());
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }   // end start(...)
+
+    /** Stops polling. */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Polls once and applies the changes to the loaded inventory.
+     * @return number of changed rows applied
+     * @throws SQLException if the change query fails
+     */
+    public int sync() throws SQLException {
+        synchronized (database) {
+            long started = System.currentTimeMillis();
+            InventorySyncEvent event = new InventorySyncEvent();
+            event.begin();
+            event.setLag(started - lastSuccessMillis);
+            try {
+                int changed = apply(database.queryDatabase(
+                        changesQuery(highWaterMark)), event);
+                lastSuccessMillis = started;
+                event.setSuccess(true);
+                return changed;
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.setHighWaterMark(highWaterMark);
+                    event.commit();
+                }
+            }
+        }
+    }   // end sync()
+
+    /**
+     * Applies changed rows to the loaded inventory.
+     * @param changes rows returned by the change query
+     * @param event event to record counts in
+     * @return number of changed rows applied
+     * @throws SQLException if the change query returned nothing
+     */
+    private int apply(final JsonArray changes, 
+            final InventorySyncEvent event) throws SQLException {
+        if (changes == null) {
+            throw new SQLException("Inventory change query failed");
+        }
+        InventorySnapshot base = InventoryRepository.pin();
+        if (base == null) {
+            return 0;
+        }
+        // changes go to the store; the version only supplies its indexes
+        InventoryIndex index = base.getIndex();
+        VinIndex keys = base.getKeys();
+        OffHeapVehicleStore store = index.getStore();
+        base.unpin();
+        
+        Map<String, String> thisPoll = new HashMap<String, String>();
+        String mark = highWaterMark;
+        boolean newValues = false;
+        int[] sold = new int[16];
+        int soldCount = 0;
+        // rows added or repriced, for saved-search alerts
+        int[] arrived = new int[16];
+        int[] oldPrices = new int[16];
+        int arrivedCount = 0;
+        int changed = 0;
+        int inserted = 0;
+        int updated = 0;
+        int removed = 0;
+        for (int i = 0; i < changes.size(); i++) {
+            JsonObject row = changes.getJsonObject(i);
+            String vin = row.getString("vin");
+            String location = row.getString("store_name");
+            String lastUpdated = row.getString("last_updated");
+            String rowKey = rowKey(vin, location);
+            thisPoll.put(rowKey, lastUpdated);
+            if (lastUpdated.compareTo(mark) > 0) {
+                mark = lastUpdated;
+            }
+            if (lastUpdated.equals(previousPoll.get(rowKey))) {
+                continue;
+            }
+            
+            changed++;
+            int[] rows = unsold(store, keys.find(vin));
+            int[] old = atStore(store, rows, location);
+            // a vehicle new to this store is not new to saved searches
+            int oldPrice = rows.length == 0 ? -1 : store.getInt(
+                    old.length == 0 ? rows[0] : old[0],
+                    OffHeapVehicleStore.PRICE);
+            for (int r : old) {
+                if (index.remove(r)) {
+                    if (soldCount == sold.length) {
+                        sold = Arrays.copyOf(sold, soldCount * 2);
+                    }
+                    sold[soldCount++] = r;
+                }
+            }
+            if (Integer.parseInt(row.getString("count_total")) > 0) {
+                Vehicle v = new Vehicle(row);
+                int added = index.add(v, vin);
+                keys.add(added);
+                newValues |= !isCached(v);
+                if (oldPrice != v.getPrice()) {
+                    if (arrivedCount == arrived.length) {
+                        arrived = Arrays.copyOf(arrived, arrivedCount * 2);
+                        oldPrices = Arrays.copyOf(oldPrices, 
+                                arrivedCount * 2);
+                    }
+                    arrived[arrivedCount] = added;
+                    oldPrices[arrivedCount++] = oldPrice;
+                }
+                if (old.length == 0) {
+                    inserted++;
+                } else {
+                    updated++;
+                }
+            } else if (old.length > 0) {
+                removed++;
+            }
+        }   // end for each changed row
+        // searches see the whole batch at once, or none of it
+        if (InventoryRepository.publishChanges(index, sold, soldCount)) {
+            event.setAlerts(SavedSearchRepository.percolate(store, 
+                    arrived, oldPrices, arrivedCount));
+        }
+        previousPoll = thisPoll;
+        highWaterMark = mark;
+        event.setChanged(changed);
+        event.setInserted(inserted);
+        event.setUpdated(updated);
+        event.setRemoved(removed);
+        
+        if (newValues) {
+            // the search form and parameter validation use these lists
+            CarWebAppCache.getInstance().refreshCache(database);
+        }
+        if (index.getUnindexedRows() > Math.max(
+                OffHeapVehicleStore.SEGMENT_RECORDS, index.size() / 8)) {
+            InventoryRepository.refreshIndex();
+        }
+        return changed;
+    }   // end apply(...)
+
+    /**
+     * @param vin a VIN
+     * @param location a store name
+     * @return key of the inventory row of the vehicle at the store
+     */
+    private static String rowKey(final String vin, final String location) {
+        return vin + '\n' + location;
+    }
+
+    /**
+     * @param store the store
+     * @param rows rows of the store
+     * @return the rows that have not been removed (sold)
+     */
+    private static int[] unsold(final OffHeapVehicleStore store,
+            final int[] rows) {
+        int[] unsold = new int[rows.length];
+        int n = 0;
+        for (int r : rows) {
+            if (!store.isRemoved(r)) {
+                unsold[n++] = r;
+            }
+        }
+        return Arrays.copyOf(unsold, n);
+    }
+
+    /**
+     * @param store the store
+     * @param rows rows of one vehicle
+     * @param location a store name
+     * @return those of the rows at that store
+     */
+    private static int[] atStore(final OffHeapVehicleStore store,
+            final int[] rows, final String location) {
+        int[] at = new int[rows.length];
+        int n = 0;
+        for (int r : rows) {
+            if (location.equals(
+                    store.getString(r, OffHeapVehicleStore.STORE))) {
+                at[n++] = r;
+            }
+        }
+        return Arrays.copyOf(at, n);
+    }
+
+    /**
+     * @param v a vehicle
+     * @return true if the cache's lists already hold all of its values
+     */
+    private static boolean isCached(final Vehicle v) {
+        CarWebAppCache.Lists cache = CarWebAppCache.getInstance().getLists();
+        return cache.getMakeList().contains(v.getMake())
+                && cache.getModelList().contains(v.getModel())
+                && cache.getBodyStyleList().contains(v.getBodyStyle())
+                && contains(cache.getExteriorColorList(), v.getExtColor())
+                && contains(cache.getInteriorColorList(), v.getIntColor())
+                && cache.getLocationList().containsAll(
+                        v.getInventory().keySet());
+    }
+
+    /**
+     * @param list a cached list
+     * @param value a value (Vehicle.NOT_APPLICABLE for none)
+     * @return true if the value is not applicable or is in the list
+     */
+    private static boolean contains(final List<String> list,
+            final String value) {
+        return Vehicle.NOT_APPLICABLE.equals(value) || list.contains(value);
+    }
+}   // end class InventorySync
@@ -0,0 +1,754 @@
+package awesomecars.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import awesomecars.beans.StringDictionary;
+import awesomecars.beans.Vehicle;
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.RowHandler;
+
+/**
+ * Stores the vehicle inventory outside the Java heap so that a
+ * multi-million vehicle inventory costs a small, stable heap and adds
+ * nothing to GC pause times. Each inventory row (a vehicle at a store) is
+ * a fixed-width record in a direct or memory-mapped ByteBuffer segment;
+ * repeated strings are stored as ids into a shared StringDictionary and
+ * description prose and image filenames, which are mostly unique, are
+ * stored as UTF-8 in separate off-heap text chunks.
+ * Rows are read through flyweight VehicleView objects, which the JSP
+ * pages can use in place of Vehicle beans.
+ *
+ * Reads never lock. Appends and updates are synchronized; a row becomes
+ * visible to readers once size() includes it.
+ *
+ * @author Travis
+ */
+public final class OffHeapVehicleStore {
+
+    /** Category (new/used) dictionary id. */
+    public static final int CATEGORY = 0;
+    /** Make dictionary id. */
+    public static final int MAKE = 4;
+    /** Model dictionary id. */
+    public static final int MODEL = 8;
+    /** Body style dictionary id. */
+    public static final int BODY_STYLE = 12;
+    /** Model year. */
+    public static final int YEAR = 16;
+    /** Price. */
+    public static final int PRICE = 20;
+    /** City MPG. */
+    public static final int MPG_CITY = 24;
+    /** Highway MPG. */
+    public static final int MPG_HWY = 28;
+    /**
+     * Offset of the image filename's length in bytes (int, -1 for none).
+     * The filename follows the description in the text chunks.
+     */
+    private static final int IMAGE_LENGTH = 32;
+    /** Store name dictionary id. */
+    public static final int STORE = 36;
+    /** Quantity at the store. */
+    public static final int COUNT = 40;
+    /** Interior color dictionary id. */
+    public static final int INT_COLOR = 44;
+    /** Exterior color dictionary id. */
+    public static final int EXT_COLOR = 48;
+    /** Miles on the odometer. */
+    public static final int MILES = 52;
+    /** Engine description dictionary id. */
+    public static final int ENGINE = 56;
+    /** Transmission dictionary id. */
+    public static final int TRANSMISSION = 60;
+
+    /** Offset of the row's text's location in the text chunks (long). */
+    private static final int TEXT_REF = 64;
+    /** Offset of the length of the description and filename (int). */
+    private static final int TEXT_LENGTH = 72;
+    /** Offset of the VIN's length (byte). */
+    private static final int VIN_LENGTH = 76;
+    /** Offset of the VIN's ASCII characters. */
+    private static final int VIN = 77;
+    /** Maximum VIN length stored. */
+    private static final int MAX_VIN = 17;
+    /** Offset of the flags byte. */
+    private static final int FLAGS = 94;
+    /** Flag set on rows that have been removed (sold). */
+    private static final int REMOVED = 1;
+    /**
+     * Flag set on rows whose VIN field holds the database key of a new
+     * vehicle rather than a VIN to display.
+     */
+    private static final int KEY_ONLY = 2;
+
+    /** Size of one record in bytes. */
+    public static final int RECORD_BYTES = 96;
+
+    /** Records per segment (a power of two). */
+    public static final int SEGMENT_RECORDS = 1 << 16;
+
+    /** Bytes per text chunk. */
+    private static final int TEXT_CHUNK_BYTES = 16 * 1024 * 1024;
+
+    /** Rows fetched from the server at a time when loading. */
+    private static final int LOAD_FETCH_SIZE = 1000;
+
+    /** Identifies a store file ("ACVS"). */
+    private static final int FILE_MAGIC = 0x41435653;
+
+    /** Store file format; bump when the record layout changes. */
+    private static final int FILE_FORMAT = 2;
+
+    /** Columns of an inventory row (vehicle at a store). */
+    static final String INVENTORY_COLUMNS =
+            "SELECT t3.VIN, t1.make_name, t2.model_name, "
+            + "t2.model_type, t3.year_model, t3.Price, t3.int_color, "
+            + "t3.ext_color, t3.miles, t3.mpg_city, t3.mpg_hwy, "
+            + "t3.category, t3.engine_type, t3.transmission, "
+            + "t3.description,t3.picture,t4.store_name, t5.count_total ";
+
+    /** Tables and join conditions of the inventory query. */
+    static final String INVENTORY_JOIN =
+            "FROM vehicle_make t1, vehicle_model t2, vehicle_details "
+            + "t3, store_information t4, vehicle_count t5 WHERE "
+            + "t1.make_id = t2.make_id AND t1.make_id = t3.make_id "
+            + "AND t2.model_id = t3.model_id AND t3.count_id = "
+            + "t5.count_id AND t5.store_id = t4.store_id";
+
+    /** Query returning every inventory row (vehicle at a store). */
+    public static final String INVENTORY_QUERY =
+            INVENTORY_COLUMNS + INVENTORY_JOIN;
+
+    /** Shared dictionary for the repeated string columns. */
+    private final StringDictionary dictionary;
+
+    /** Record segments. Replaced (never modified in place) when grown. */
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+
+    /** Text chunks. Replaced when grown. */
+    private volatile ByteBuffer[] textChunks = new ByteBuffer[0];
+
+    /** Bytes used in the last text chunk. Guarded by this. */
+    private int textUsed = 0;
+
+    /** Number of rows. */
+    private volatile int size = 0;
+
+    /**
+     * Creates an empty store.
+     * @param dict dictionary to encode strings with
+     */
+    public OffHeapVehicleStore(final StringDictionary dict) {
+        dictionary = dict;
+    }
+
+    /**
+     * Loads every inventory row from the database. The rows are streamed
+     * (see IDatabaseAdapter.streamQuery(...)) and written straight into
+     * the store as they arrive, so the whole result is never held on the
+     * heap, as JSON or as Vehicle beans.
+     * @param database the database adapter
+     * @return a new store
+     * @throws SQLException if the inventory query fails
+     */
+    public static OffHeapVehicleStore loadFromDatabase(
+            final IDatabaseAdapter database) throws SQLException {
+        OffHeapVehicleStore store = 
+                new OffHeapVehicleStore(new StringDictionary());
+        try {
+            database.streamQuery(INVENTORY_QUERY, LOAD_FETCH_SIZE,
+                    store.new Loader());
+        } catch (IOException e) {
+            throw new SQLException("Could not read the inventory", e);
+        }
+        return store;
+    }   // end loadFromDatabase(...)
+
+    /**
+     * Appends the rows of the inventory query, converting each as
+     * Vehicle(JsonObject) does: new vehicles keep their VIN column only
+     * as their key, and have no colors, miles, engine or transmission.
+     */
+    private final class Loader implements RowHandler {
+
+        /** Index of each column in a row (-1 if missing). */
+        private int vin, category, make, model, bodyStyle, year, price,
+                mpgCity, mpgHwy, picture, storeName, count, intColor,
+                extColor, miles, engine, transmission, description;
+
+        @Override
+        public void columns(final String[] labels) {
+            List<String> l = Arrays.asList(labels);
+            vin = l.indexOf("vin");
+            category = l.indexOf("category");
+            make = l.indexOf("make_name");
+            model = l.indexOf("model_name");
+            bodyStyle = l.indexOf("model_type");
+            year = l.indexOf("year_model");
+            price = l.indexOf("price");
+            mpgCity = l.indexOf("mpg_city");
+            mpgHwy = l.indexOf("mpg_hwy");
+            picture = l.indexOf("picture");
+            storeName = l.indexOf("store_name");
+            count = l.indexOf("count_total");
+            intColor = l.indexOf("int_color");
+            extColor = l.indexOf("ext_color");
+            miles = l.indexOf("miles");
+            engine = l.indexOf("engine_type");
+            transmission = l.indexOf("transmission");
+            description = l.indexOf("description");
+        }   // end columns(...)
+
+        @Override
+        public void row(final String[] values) {
+            synchronized (OffHeapVehicleStore.this) {
+                int row = size;
+                ByteBuffer buf = segmentFor(row);
+                int base = (row % SEGMENT_RECORDS) * RECORD_BYTES;
+                String cat = get(values, category);
+                boolean used = "Used".equals(cat);
+                
+                buf.putInt(base + CATEGORY, dictionary.intern(cat));
+                buf.putInt(base + MAKE, intern(values, make));
+                buf.putInt(base + MODEL, intern(values, model));
+                buf.putInt(base + BODY_STYLE, intern(values, bodyStyle));
+                buf.putInt(base + YEAR, parse(values, year));
+                buf.putInt(base + PRICE, parse(values, price));
+                buf.putInt(base + MPG_CITY, parse(values, mpgCity));
+                buf.putInt(base + MPG_HWY, parse(values, mpgHwy));
+                buf.putInt(base + STORE, intern(values, storeName));
+                buf.putInt(base + COUNT, parse(values, count));
+                buf.putInt(base + INT_COLOR, used ? intern(values, intColor)
+                        : dictionary.intern(Vehicle.NOT_APPLICABLE));
+                buf.putInt(base + EXT_COLOR, used ? intern(values, extColor)
+                        : dictionary.intern(Vehicle.NOT_APPLICABLE));
+                buf.putInt(base + MILES, used ? parse(values, miles) : 0);
+                buf.putInt(base + ENGINE, used ? intern(values, engine)
+                        : dictionary.intern(Vehicle.NOT_APPLICABLE));
+                buf.putInt(base + TRANSMISSION, used
+                        ? intern(values, transmission)
+                        : dictionary.intern(Vehicle.NOT_APPLICABLE));
+                putText(buf, base, get(values, description),
+                        get(values, picture));
+                
+                String key = get(values, vin);
+                if (used) {
+                    putVin(buf, base, key == null ? "" : key, false);
+                } else {
+                    boolean keyOnly = key != null
+                            && !Vehicle.NOT_APPLICABLE.equals(key);
+                    putVin(buf, base,
+                            keyOnly ? key : Vehicle.NOT_APPLICABLE, keyOnly);
+                }
+                size = row + 1;    // publishes the row
+            }
+        }   // end row(...)
+
+        /**
+         * @param values a row
+         * @param column index of the column (-1 if missing)
+         * @return its value (null if missing)
+         */
+        private String get(final String[] values, final int column) {
+            return column < 0 ? null : values[column];
+        }
+
+        /**
+         * @param values a row
+         * @param column index of a string column
+         * @return dictionary id of its value
+         */
+        private int intern(final String[] values, final int column) {
+            return dictionary.intern(get(values, column));
+        }
+
+        /**
+         * @param values a row
+         * @param column index of a number column
+         * @return its value
+         */
+        private int parse(final String[] values, final int column) {
+            return Integer.parseInt(get(values, column));
+        }
+    }   // end class Loader
+
+    /**
+     * Appends a vehicle. A vehicle stocked at several stores is stored as
+     * one row per store.
+     * @param v the vehicle
+     * @return the row number of the (first) row added
+     */
+    public int add(final Vehicle v) {
+        return add(v, null);
+    }
+
+    /**
+     * Appends a vehicle along with its database key (the VIN column of
+     * vehicle_details), which Vehicle only keeps for used vehicles. The
+     * key lets changes to the row be matched to it later.
+     * @param v the vehicle
+     * @param key the database key (null if unknown)
+     * @return the row number of the (first) row added
+     */
+    public synchronized int add(final Vehicle v, final String key) {
+        int first = size;
+        Map<String, Integer> inventory = v.getInventory();
+        if (inventory == null || inventory.isEmpty()) {
+            addRow(v, key, null, 0);
+        } else {
+            for (Map.Entry<String, Integer> e : inventory.entrySet()) {
+                addRow(v, key, e.getKey(), e.getValue());
+            }
+        }
+        return first;
+    }   // end add(...)
+
+    /**
+     * Appends one row.
+     * @param v the vehicle
+     * @param key the database key (null if unknown)
+     * @param store store name
+     * @param count quantity at the store
+     */
+    private void addRow(final Vehicle v, final String key,
+            final String store, final int count) {
+        int row = size;
+        ByteBuffer buf = segmentFor(row);
+        int base = (row % SEGMENT_RECORDS) * RECORD_BYTES;
+        
+        buf.putInt(base + CATEGORY, dictionary.intern(v.getCategory()));
+        buf.putInt(base + MAKE, dictionary.intern(v.getMake()));
+        buf.putInt(base + MODEL, dictionary.intern(v.getModel()));
+        buf.putInt(base + BODY_STYLE, dictionary.intern(v.getBodyStyle()));
+        buf.putInt(base + YEAR, v.getYear());
+        buf.putInt(base + PRICE, v.getPrice());
+        buf.putInt(base + MPG_CITY, v.getMpgCity());
+        buf.putInt(base + MPG_HWY, v.getMpgHwy());
+        buf.putInt(base + STORE, dictionary.intern(store));
+        buf.putInt(base + COUNT, count);
+        buf.putInt(base + INT_COLOR, dictionary.intern(v.getIntColor()));
+        buf.putInt(base + EXT_COLOR, dictionary.intern(v.getExtColor()));
+        buf.putInt(base + MILES, v.getMiles());
+        buf.putInt(base + ENGINE, dictionary.intern(v.getEngineDesc()));
+        buf.putInt(base + TRANSMISSION, 
+                dictionary.intern(v.getTransmission()));
+        
+        putText(buf, base, v.getDescription(), v.getImageURL());
+        
+        String vin = v.getVin() == null ? "" : v.getVin();
+        boolean keyOnly = key != null && !key.equals(vin)
+                && Vehicle.NOT_APPLICABLE.equals(vin);
+        putVin(buf, base, keyOnly ? key : vin, keyOnly);
+        
+        size = row + 1;    // publishes the row
+    }   // end addRow(...)
+
+    /**
+     * Returns the segment holding a row, adding a segment if the row is
+     * the first past the end.
+     * @param row row number (at most size)
+     * @return the segment
+     */
+    private ByteBuffer segmentFor(final int row) {
+        int seg = row / SEGMENT_RECORDS;
+        ByteBuffer[] segs = segments;
+        if (seg == segs.length) {
+            segs = Arrays.copyOf(segs, seg + 1);
+            segs[seg] = ByteBuffer.allocateDirect(
+                    SEGMENT_RECORDS * RECORD_BYTES);
+            segments = segs;
+        }
+        return segs[seg];
+    }
+
+    /**
+     * Stores a row's description followed by its image filename in the
+     * text chunks.
+     * @param buf the row's segment
+     * @param base offset of the row in the segment
+     * @param description the description (null for none)
+     * @param imageURL the image filename (may be null)
+     */
+    private void putText(final ByteBuffer buf, final int base,
+            final String description, final String imageURL) {
+        byte[] desc = description == null ? new byte[0]
+                : description.getBytes(StandardCharsets.UTF_8);
+        byte[] image = imageURL == null ? new byte[0]
+                : imageURL.getBytes(StandardCharsets.UTF_8);
+        byte[] text = Arrays.copyOf(desc, desc.length + image.length);
+        System.arraycopy(image, 0, text, desc.length, image.length);
+        buf.putLong(base + TEXT_REF, appendText(text));
+        buf.putInt(base + TEXT_LENGTH, text.length);
+        buf.putInt(base + IMAGE_LENGTH, imageURL == null ? -1 : image.length);
+    }   // end putText(...)
+
+    /**
+     * Stores a row's VIN (at most MAX_VIN characters) and its flags.
+     * @param buf the row's segment
+     * @param base offset of the row in the segment
+     * @param vin the VIN, or the database key of a new vehicle
+     * @param keyOnly true if it is the database key of a new vehicle
+     */
+    private static void putVin(final ByteBuffer buf, final int base,
+            final String vin, final boolean keyOnly) {
+        int vinLen = Math.min(vin.length(), MAX_VIN);
+        buf.put(base + VIN_LENGTH, (byte) vinLen);
+        for (int i = 0; i < vinLen; i++) {
+            buf.put(base + VIN + i, (byte) vin.charAt(i));
+        }
+        buf.put(base + FLAGS, (byte) (keyOnly ? KEY_ONLY : 0));
+    }
+
+    /**
+     * Copies a row's text into the current chunk (starting a new
+     * chunk if it does not fit).
+     * @param text UTF-8 bytes
+     * @return chunk index in the high 32 bits, offset in the low 32 bits
+     */
+    private long appendText(final byte[] text) {
+        ByteBuffer[] chunks = textChunks;
+        if (chunks.length == 0 || textUsed + text.length
+                > chunks[chunks.length - 1].capacity()) {
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            chunks[chunks.length - 1] = ByteBuffer.allocateDirect(
+                    Math.max(TEXT_CHUNK_BYTES, text.length));
+            textChunks = chunks;
+            textUsed = 0;
+        }
+        
+        ByteBuffer chunk = chunks[chunks.length - 1].duplicate();
+        chunk.position(textUsed);
+        chunk.put(text);
+        long ref = ((long) (chunks.length - 1) << 32) | textUsed;
+        textUsed += text.length;
+        return ref;
+    }   // end appendText(...)
+
+    /** @return number of rows (including removed rows) */
+    public int size() {
+        return size;
+    }
+
+    /** @return the dictionary used to encode strings */
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Reads an int field.
+     * @param row row number
+     * @param field field offset (e.g. PRICE)
+     * @return the value (a dictionary id for string fields)
+     */
+    public int getInt(final int row, final int field) {
+        return segments[row / SEGMENT_RECORDS].getInt(
+                (row % SEGMENT_RECORDS) * RECORD_BYTES + field);
+    }
+
+    /**
+     * Updates an int field in place (e.g. a price change).
+     * @param row row number
+     * @param field field offset (e.g. PRICE)
+     * @param value new value
+     */
+    public synchronized void setInt(final int row, final int field,
+            final int value) {
+        segments[row / SEGMENT_RECORDS].putInt(
+                (row % SEGMENT_RECORDS) * RECORD_BYTES + field, value);
+    }
+
+    /**
+     * Reads a dictionary-encoded string field.
+     * @param row row number
+     * @param field field offset (e.g. MAKE)
+     * @return the string
+     */
+    public String getString(final int row, final int field) {
+        return dictionary.get(getInt(row, field));
+    }
+
+    /**
+     * @param row row number
+     * @return the VIN
+     */
+    public String getVin(final int row) {
+        ByteBuffer buf = segments[row / SEGMENT_RECORDS];
+        if ((buf.get((row % SEGMENT_RECORDS) * RECORD_BYTES + FLAGS) 
+                & KEY_ONLY) != 0) {
+            return Vehicle.NOT_APPLICABLE;
+        }
+        return getKey(row);
+    }
+
+    /**
+     * @param row row number
+     * @return the row's database key (its VIN, also for new vehicles
+     *         added with a key)
+     */
+    public String getKey(final int row) {
+        ByteBuffer buf = segments[row / SEGMENT_RECORDS];
+        int base = (row % SEGMENT_RECORDS) * RECORD_BYTES;
+        int len = buf.get(base + VIN_LENGTH);
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = (char) buf.get(base + VIN + i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Decodes the description prose (only when a page displays it).
+     * @param row row number
+     * @return the description
+     */
+    public String getDescription(final int row) {
+        ByteBuffer buf = segments[row / SEGMENT_RECORDS];
+        int base = (row % SEGMENT_RECORDS) * RECORD_BYTES;
+        int len = buf.getInt(base + TEXT_LENGTH)
+                - Math.max(buf.getInt(base + IMAGE_LENGTH), 0);
+        return getText(buf.getLong(base + TEXT_REF), 0, len);
+    }
+
+    /**
+     * @param row row number
+     * @return the image filename (null for none)
+     */
+    public String getImageURL(final int row) {
+        ByteBuffer buf = segments[row / SEGMENT_RECORDS];
+        int base = (row % SEGMENT_RECORDS) * RECORD_BYTES;
+        int len = buf.getInt(base + IMAGE_LENGTH);
+        if (len < 0) {
+            return null;
+        }
+        return getText(buf.getLong(base + TEXT_REF),
+                buf.getInt(base + TEXT_LENGTH) - len, len);
+    }
+
+    /**
+     * Decodes part of a row's text.
+     * @param ref the text's location in the text chunks
+     * @param offset offset in bytes from the start of the text
+     * @param len length in bytes
+     * @return the string
+     */
+    private String getText(final long ref, final int offset, final int len) {
+        ByteBuffer chunk = textChunks[(int) (ref >>> 32)].duplicate();
+        chunk.position((int) ref + offset);
+        byte[] text = new byte[len];
+        chunk.get(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param row row number
+     * @return true if the row has been removed (sold)
+     */
+    public boolean isRemoved(final int row) {
+        return (segments[row / SEGMENT_RECORDS].get(
+                (row % SEGMENT_RECORDS) * RECORD_BYTES + FLAGS) 
+                & REMOVED) != 0;
+    }
+
+    /**
+     * Marks a row removed. Removed rows keep their row number so indexes
+     * built on row numbers stay valid.
+     * @param row row number
+     */
+    public synchronized void remove(final int row) {
+        ByteBuffer buf = segments[row / SEGMENT_RECORDS];
+        int at = (row % SEGMENT_RECORDS) * RECORD_BYTES + FLAGS;
+        buf.put(at, (byte) (buf.get(at) | REMOVED));
+    }
+
+    /**
+     * @param row row number
+     * @return a flyweight view of the row
+     */
+    public VehicleView view(final int row) {
+        return new VehicleView(this, row);
+    }
+
+    /**
+     * Returns a list of views of the given rows. Views are created as the
+     * list is read, so only the page being rendered is ever materialized.
+     * @param rows row numbers
+     * @param count number of rows to use from the array
+     * @return list of views
+     */
+    public List<VehicleView> views(final int[] rows, final int count) {
+        return new AbstractList<VehicleView>() {
+            @Override
+            public VehicleView get(final int index) {
+                if (index < 0 || index >= count) {
+                    throw new IndexOutOfBoundsException("Index: " + index);
+                }
+                return new VehicleView(OffHeapVehicleStore.this, rows[index]);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }   // end views(...)
+
+    /**
+     * Writes the store to a file that load(...) can memory-map. The store
+     * is written to a temporary file beside it, which then replaces the
+     * file in one atomic rename: a crash never leaves a half-written
+     * file, and a store still mapped from the old file keeps reading it.
+     * @param file file to write
+     * @throws IOException IOException
+     */
+    public synchronized void save(final File file) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        try {
+            write(tmp);
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }   // end save(...)
+
+    /**
+     * Writes the store to a file and forces it to disk.
+     * @param file file to write
+     * @throws IOException IOException
+     */
+    private void write(final File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(fos))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_FORMAT);
+            out.writeInt(size);
+            
+            // records, contiguous
+            byte[] bytes = new byte[RECORD_BYTES];
+            for (int row = 0; row < size; row++) {
+                ByteBuffer buf = segments[row / SEGMENT_RECORDS].duplicate();
+                buf.position((row % SEGMENT_RECORDS) * RECORD_BYTES);
+                buf.get(bytes);
+                out.write(bytes);
+            }
+            
+            // text chunks (only the used part of the last one)
+            ByteBuffer[] chunks = textChunks;
+            out.writeInt(chunks.length);
+            for (int i = 0; i < chunks.length; i++) {
+                int used = i == chunks.length - 1 
+                        ? textUsed : chunks[i].capacity();
+                ByteBuffer chunk = chunks[i].duplicate();
+                chunk.position(0);
+                chunk.limit(used);
+                byte[] text = new byte[used];
+                chunk.get(text);
+                out.writeInt(used);
+                out.write(text);
+            }
+            
+            dictionary.write(out);
+            out.flush();
+            fos.getFD().sync();
+        }
+    }   // end write(...)
+
+    /**
+     * Loads a store written by save(...). Full record segments and the
+     * text chunks are memory-mapped copy-on-write, so they are
+     * paged in from the file as needed and updates never modify the file;
+     * the last, partially filled segment is copied so rows can be
+     * appended to it.
+     * @param file file written by save(...)
+     * @return the store
+     * @throws IOException if the file cannot be read or is not a store
+     */
+    public static OffHeapVehicleStore load(final File file)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != FILE_MAGIC 
+                    || header.getInt() != FILE_FORMAT) {
+                throw new IOException(file + " is not a vehicle store");
+            }
+            int rows = header.getInt();
+            long pos = 12;
+            
+            // map the record segments
+            int numSegments = (rows + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS;
+            ByteBuffer[] segs = new ByteBuffer[numSegments];
+            for (int s = 0; s < numSegments; s++) {
+                int segRows = Math.min(SEGMENT_RECORDS, 
+                        rows - s * SEGMENT_RECORDS);
+                long bytes = (long) segRows * RECORD_BYTES;
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.PRIVATE,
+                        pos, bytes);
+                if (segRows < SEGMENT_RECORDS) {
+                    segs[s] = ByteBuffer.allocateDirect(
+                            SEGMENT_RECORDS * RECORD_BYTES);
+                    segs[s].put(mapped);
+                    segs[s].clear();
+                } else {
+                    segs[s] = mapped;
+                }
+                pos += bytes;
+            }
+            
+            // map the text chunks
+            ByteBuffer intBuf = ByteBuffer.allocate(4);
+            channel.read(intBuf, pos);
+            intBuf.flip();
+            int numChunks = intBuf.getInt();
+            pos += 4;
+            ByteBuffer[] chunks = new ByteBuffer[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                intBuf.clear();
+                channel.read(intBuf, pos);
+                intBuf.flip();
+                int used = intBuf.getInt();
+                pos += 4;
+                chunks[c] = channel.map(FileChannel.MapMode.PRIVATE, pos, used);
+                pos += used;
+            }
+            
+            // the dictionary is small and lives on the heap
+            channel.position(pos);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel)));
+            StringDictionary dict = StringDictionary.read(in);
+            
+            OffHeapVehicleStore store = new OffHeapVehicleStore(dict);
+            store.segments = segs;
+            store.textChunks = chunks;
+            // a mapped chunk is exactly full, so appends start a new chunk
+            store.textUsed = numChunks == 0 
+                    ? 0 : chunks[numChunks - 1].capacity();
+            store.size = rows;
+            return store;
+        }
+    }   // end load(...)
+}   // end class OffHeapVehicleStore
@@ -0,0 +1,113 @@
+package awesomecars.model;
+
+import awesomecars.beans.AdvancedSearch;
+
+/**
+ * Evaluates the numeric range filters of an AdvancedSearch (year, price,
+ * miles and MPG) over InventoryColumns into a bitmask with one bit per
+ * row. The inner loop is branch-free: each value is tested with
+ * arithmetic on its sign bits and the results are packed 64 rows to a
+ * word, so it runs at a steady rate regardless of selectivity and leaves
+ * HotSpot free to unroll and vectorize it.
+ *
+ * @author Travis
+ */
+public final class RangeFilterKernel {
+
+    /**
+     * Bound used for an open end of a range. Column values must lie
+     * within +/- this so the int subtractions cannot overflow (prices,
+     * years, miles and MPG are far smaller).
+     */
+    private static final int UNBOUNDED = 1 << 30;
+
+    /** Rows tested per pass (a multiple of 64). */
+    private static final int CHUNK_ROWS = 2048;
+
+    /** Utility class should not have a public or default constructor. */
+    private RangeFilterKernel() { 
+        super();
+    }
+
+    /**
+     * Evaluates every active range filter for a range of rows in a single
+     * pass. As in the SQL, year and miles only restrict used vehicles.
+     * @param columns the numeric columns
+     * @param search the search
+     * @param from first row (a multiple of 64)
+     * @param to row after the last
+     * @return bitmask for rows from..to (bit 0 of word 0 is row from), or
+     *         null if the search has no range filters
+     */
+    public static long[] evaluate(final InventoryColumns columns,
+            final AdvancedSearch search, final int from, final int to) {
+        if (search.getMinPrice() < 0 && search.getMaxPrice() < 0 
+                && search.getMinMPGCity() < 0 && search.getMinMPGHwy() < 0
+                && search.getMinYear() < 0 && search.getMaxYear() < 0 
+                && search.getMaxMiles() < 0) {
+            return null;
+        }
+        
+        // unbounded ends become the widest bounds, so every row is
+        // tested the same way whichever filters are active
+        final int minPrice = min(search.getMinPrice());
+        final int maxPrice = max(search.getMaxPrice());
+        final int minCity = min(search.getMinMPGCity());
+        final int minHwy = min(search.getMinMPGHwy());
+        final int minYear = min(search.getMinYear());
+        final int maxYear = max(search.getMaxYear());
+        final int maxMiles = max(search.getMaxMiles());
+        final int[] price = columns.getPrice();
+        final int[] mpgCity = columns.getMpgCity();
+        final int[] mpgHwy = columns.getMpgHwy();
+        final int[] year = columns.getYear();
+        final int[] miles = columns.getMiles();
+        final int[] usedMask = columns.getUsedMask();
+        
+        long[] bits = new long[InventoryColumns.words(to - from)];
+        int[] outside = new int[CHUNK_ROWS];
+        for (int chunk = from; chunk < to; chunk += CHUNK_ROWS) {
+            int n = Math.min(CHUNK_ROWS, to - chunk);
+            
+            // sign bit set where a value is outside its range (new
+            // vehicles ignore the used-only ranges); the loop has no
+            // branches or loop-carried state, so HotSpot can compile it
+            // to SIMD instructions
+            for (int j = 0; j < n; j++) {
+                int i = chunk + j;
+                outside[j] = (price[i] - minPrice) | (maxPrice - price[i])
+                        | (mpgCity[i] - minCity) | (mpgHwy[i] - minHwy)
+                        | (usedMask[i] & ((year[i] - minYear) 
+                                | (maxYear - year[i]) | (maxMiles - miles[i])));
+            }
+            
+            // pack 64 rows per word
+            for (int j = 0; j < n; j += 64) {
+                int m = Math.min(64, n - j);
+                long fails = 0;
+                for (int b = 0; b < m; b++) {
+                    fails |= (long) (outside[j + b] >>> 31) << b;
+                }
+                long valid = m == 64 ? -1L : (1L << m) - 1;
+                bits[(chunk + j - from) >>> 6] = ~fails & valid;
+            }
+        }
+        return bits;
+    }   // end evaluate(...)
+
+    /**
+     * @param value a minimum from AdvancedSearch (-1 for none)
+     * @return the lower bound to test against
+     */
+    private static int min(final int value) {
+        return value < 0 ? -UNBOUNDED : value;
+    }
+
+    /**
+     * @param value a maximum from AdvancedSearch (-1 for none)
+     * @return the upper bound to test against
+     */
+    private static int max(final int value) {
+        return value < 0 ? UNBOUNDED : value;
+    }
+}   // end class RangeFilterKernel
@@ -0,0 +1,130 @@
+package awesomecars.model;
+
+/**
+ * A sorted index of one numeric column: every row's value in ascending
+ * order alongside its row number, so the rows in a value range are found
+ * with two binary searches and read off as a run of row numbers.
+ *
+ * The index is immutable, like the InventoryIndex that holds it: rows
+ * appended after it was built are picked up when the inventory index is
+ * rebuilt. Removed rows stay indexed, as in the other indexes, and
+ * searches skip them.
+ *
+ * @author Travis
+ */
+public final class RangeIndex {
+
+    /** The indexed field (e.g. OffHeapVehicleStore.PRICE). */
+    private final int field;
+
+    /** Values in ascending order. */
+    private final int[] values;
+
+    /** Row of each value. */
+    private final int[] rows;
+
+    /**
+     * Builds the index from a sort order that already holds the column's
+     * rows in ascending order.
+     * @param sortIndex the sort orders
+     * @param column a numeric SortIndex column (e.g. SortIndex.PRICE)
+     */
+    public RangeIndex(final SortIndex sortIndex, final int column) {
+        OffHeapVehicleStore store = sortIndex.getStore();
+        int n = sortIndex.size();
+        field = SortIndex.FIELDS[column];
+        values = new int[n];
+        rows = new int[n];
+        for (int i = 0; i < n; i++) {
+            rows[i] = sortIndex.getRow(column, i);
+            values[i] = store.getInt(rows[i], field);
+        }
+    }   // end constructor
+
+    /** @return the indexed field */
+    public int getField() {
+        return field;
+    }
+
+    /** @return number of rows in the index */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Counts the rows with a value in a range.
+     * @param lo lowest value (inclusive)
+     * @param hi highest value (inclusive)
+     * @return number of rows
+     */
+    public int count(final long lo, final long hi) {
+        if (hi < lo) {
+            return 0;
+        }
+        return upperBound(values, values.length, hi)
+                - lowerBound(values, values.length, lo);
+    }
+
+    /**
+     * Adds the rows with a value in a range to a bitmap. Rows beyond the
+     * end of the bitmap are left out.
+     * @param lo lowest value (inclusive)
+     * @param hi highest value (inclusive)
+     * @param bits bitmap to add the rows to (one bit per row)
+     */
+    public void select(final long lo, final long hi, final long[] bits) {
+        if (hi < lo) {
+            return;
+        }
+        long limit = (long) bits.length << 6;
+        int to = upperBound(values, values.length, hi);
+        for (int i = lowerBound(values, values.length, lo); i < to; i++) {
+            int row = rows[i];
+            if (row < limit) {
+                bits[row >>> 6] |= 1L << row;
+            }
+        }
+    }   // end select(...)
+
+    /**
+     * @param a values in ascending order
+     * @param n number of values
+     * @param key a value
+     * @return position of the first value &gt;= key
+     */
+    private static int lowerBound(final int[] a, final int n,
+            final long key) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param a values in ascending order
+     * @param n number of values
+     * @param key a value
+     * @return position of the first value &gt; key
+     */
+    private static int upperBound(final int[] a, final int n,
+            final long key) {
+        int lo = 0;
+        int hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}   // end class RangeIndex
@@ -0,0 +1,89 @@
+package awesomecars.model;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of removed (sold) row numbers, split into fixed-size
+ * chunks of bits. Adding rows returns a new set that copies only the
+ * chunks it changes and shares the rest with the old set, so each
+ * inventory version can keep its own removals cheaply.
+ *
+ * @author Travis
+ */
+final class RemovedRows {
+
+    /** Rows per chunk (a power of two). */
+    static final int CHUNK_ROWS = 4096;
+
+    /** The empty set. */
+    static final RemovedRows NONE = new RemovedRows(new long[0][]);
+
+    /** Bit chunks (null for a chunk with no removed rows). */
+    private final long[][] chunks;
+
+    /** @param c bit chunks */
+    private RemovedRows(final long[][] c) {
+        chunks = c;
+    }
+
+    /**
+     * @param s a store
+     * @return the rows currently marked removed in the store
+     */
+    static RemovedRows of(final OffHeapVehicleStore s) {
+        int n = s.size();
+        int[] rows = new int[16];
+        int count = 0;
+        for (int row = 0; row < n; row++) {
+            if (s.isRemoved(row)) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, count * 2);
+                }
+                rows[count++] = row;
+            }
+        }
+        return NONE.with(rows, count);
+    }   // end of(...)
+
+    /**
+     * @param row row number
+     * @return true if the row is in the set
+     */
+    boolean contains(final int row) {
+        int c = row / CHUNK_ROWS;
+        if (c >= chunks.length || chunks[c] == null) {
+            return false;
+        }
+        int bit = row % CHUNK_ROWS;
+        return (chunks[c][bit >>> 6] & 1L << bit) != 0;
+    }
+
+    /**
+     * @param rows rows to add
+     * @param count number of rows to add
+     * @return a set holding this set's rows and the given rows
+     */
+    RemovedRows with(final int[] rows, final int count) {
+        if (count == 0) {
+            return this;
+        }
+        int max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, rows[i]);
+        }
+        long[][] c = Arrays.copyOf(chunks, 
+                Math.max(chunks.length, max / CHUNK_ROWS + 1));
+        boolean[] copied = new boolean[c.length];
+        for (int i = 0; i < count; i++) {
+            int chunk = rows[i] / CHUNK_ROWS;
+            if (!copied[chunk]) {
+                c[chunk] = c[chunk] == null ? new long[CHUNK_ROWS / 64]
+                        : c[chunk].clone();
+                copied[chunk] = true;
+            }
+            int bit = rows[i] % CHUNK_ROWS;
+            c[chunk][bit >>> 6] |= 1L << bit;
+        }
+        return new RemovedRows(c);
+    }   // end with(...)
+}   // end class RemovedRows
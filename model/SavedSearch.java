@@ -0,0 +1,200 @@
+package awesomecars.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import awesomecars.beans.AdvancedSearch;
+
+/**
+ * An advanced search a customer saved to be alerted about: the request
+ * parameters it was made from, the AdvancedSearch they compile to and
+ * the customer to alert. Matches single vehicles with the same rules as
+ * the in-memory search (InventoryFilter), without needing the store's
+ * dictionary, so it can be tested against each vehicle as it arrives.
+ * Immutable.
+ *
+ * @author Travis
+ */
+public final class SavedSearch {
+
+    /** Id, unique within the SavedSearchRepository. */
+    private final long id;
+
+    /** Who to alert (e.g. an e-mail address). */
+    private final String owner;
+
+    /** Request parameters the search was made from. */
+    private final Map<String, String[]> params;
+
+    /** The compiled search. */
+    private final AdvancedSearch search;
+
+    /** Include used vehicles. */
+    private final boolean includeUsed;
+
+    /** Include new vehicles. */
+    private final boolean includeNew;
+
+    /** Transmission allowed ("automatic" or "manual"; null for both). */
+    private final String transmission;
+
+    /**
+     * Compiles a saved search. Parameters are validated against the
+     * current CarWebAppCache, as for any advanced search.
+     * @param i id
+     * @param o who to alert
+     * @param p request parameters (name to values)
+     */
+    public SavedSearch(final long i, final String o,
+            final Map<String, String[]> p) {
+        id = i;
+        owner = o;
+        Map<String, String[]> copy = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, String[]> e : p.entrySet()) {
+            copy.put(e.getKey(), e.getValue().clone());
+        }
+        params = Collections.unmodifiableMap(copy);
+        search = new AdvancedSearch(copy);
+        
+        // neither or both selected means both, as in the SQL
+        boolean both = search.isIncludeUsed() == search.isIncludeNew();
+        includeUsed = search.isIncludeUsed() || both;
+        includeNew = search.isIncludeNew() || both;
+        if (search.isIncludeAutomaticTransmission() 
+                != search.isIncludeManualTransmission()) {
+            transmission = search.isIncludeAutomaticTransmission() 
+                    ? "automatic" : "manual";
+        } else {
+            transmission = null;
+        }
+    }   // end constructor
+
+    /**
+     * Reads a saved search written by toJson().
+     * @param obj the JSON object
+     * @return the saved search
+     */
+    public static SavedSearch fromJson(final JsonObject obj) {
+        Map<String, String[]> p = new LinkedHashMap<String, String[]>();
+        JsonObject json = obj.getJsonObject("params");
+        for (String name : json.keySet()) {
+            JsonArray values = json.getJsonArray(name);
+            String[] v = new String[values.size()];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = values.getString(i);
+            }
+            p.put(name, v);
+        }
+        return new SavedSearch(obj.getJsonNumber("id").longValue(),
+                obj.getString("owner"), p);
+    }
+
+    /** @return the search as JSON (id, owner and params) */
+    public JsonObject toJson() {
+        JsonObjectBuilder p = Json.createObjectBuilder();
+        for (Map.Entry<String, String[]> e : params.entrySet()) {
+            JsonArrayBuilder values = Json.createArrayBuilder();
+            for (String v : e.getValue()) {
+                values.add(v);
+            }
+            p.add(e.getKey(), values);
+        }
+        return Json.createObjectBuilder()
+                .add("id", id)
+                .add("owner", owner)
+                .add("params", p)
+                .build();
+    }
+
+    /** @return the id */
+    public long getId() {
+        return id;
+    }
+
+    /** @return who to alert */
+    public String getOwner() {
+        return owner;
+    }
+
+    /** @return the request parameters (do not modify the arrays) */
+    public Map<String, String[]> getParams() {
+        return params;
+    }
+
+    /** @return the compiled search */
+    public AdvancedSearch getSearch() {
+        return search;
+    }
+
+    /**
+     * Tests one vehicle against the search.
+     * @param v the vehicle
+     * @return true if the vehicle matches
+     */
+    public boolean matches(final VehicleView v) {
+        boolean used = "used".equalsIgnoreCase(v.getCategory());
+        if (used ? !includeUsed 
+                : !(includeNew && "new".equalsIgnoreCase(v.getCategory()))) {
+            return false;
+        }
+        
+        // makes (all models) OR specific models
+        List<String> makes = search.getIncludeMakes();
+        List<String> models = search.getIncludeModels();
+        if ((makes != null || models != null)
+                && !(makes != null && makes.contains(v.getMake()))
+                && !(models != null && models.contains(v.getModel()))) {
+            return false;
+        }
+        int price = v.getPrice();
+        if (!within(price, search.getMinPrice(), search.getMaxPrice())
+                || !within(v.getMpgCity(), search.getMinMPGCity(), -1)
+                || !within(v.getMpgHwy(), search.getMinMPGHwy(), -1)
+                || !allows(search.getIncludeLocations(), v.getLocation())
+                || !allows(search.getIncludeBodyStyles(), 
+                        v.getBodyStyle())) {
+            return false;
+        }
+        if (!used) {
+            return true;
+        }
+        
+        // the remaining criteria only apply to used vehicles
+        return within(v.getYear(), search.getMinYear(), search.getMaxYear())
+                && within(v.getMiles(), -1, search.getMaxMiles())
+                && (transmission == null 
+                        || transmission.equalsIgnoreCase(v.getTransmission()))
+                && allows(search.getIncludeExteriorColors(), v.getExtColor())
+                && allows(search.getIncludeInteriorColors(), 
+                        v.getIntColor());
+    }   // end matches(...)
+
+    /**
+     * @param value a value
+     * @param min minimum (-1 for none)
+     * @param max maximum (-1 for none)
+     * @return true if the value is in range
+     */
+    private static boolean within(final int value, final int min,
+            final int max) {
+        return (min < 0 || value >= min) && (max < 0 || value <= max);
+    }
+
+    /**
+     * @param allowed allowed values (null for all)
+     * @param value a value
+     * @return true if the value is allowed
+     */
+    private static boolean allows(final List<String> allowed,
+            final String value) {
+        return allowed == null || allowed.contains(value);
+    }
+}   // end class SavedSearch
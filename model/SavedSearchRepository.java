@@ -0,0 +1,227 @@
+package awesomecars.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+
+/**
+ * Holds the customers' saved searches and alerts them when a matching
+ * vehicle arrives or is repriced. The searches are kept in memory in a
+ * SearchPercolator and persisted to a local log file, one JSON line per
+ * save ({"saved": search}) or delete ({"deleted": id}); the log is
+ * replayed and compacted when the repository is loaded. The inventory
+ * sync hands each batch of inserted and repriced rows to percolate(...),
+ * which writes an alert per match to the AlertOutbox. Does nothing until
+ * initRepository(...) is called.
+ *
+ * @author Travis
+ */
+public final class SavedSearchRepository {
+
+    /** The searches (null until loaded). */
+    private static volatile SearchPercolator percolator;
+
+    /** Log of saves and deletes. */
+    private static File logFile;
+
+    /** Where alerts are written. */
+    private static AlertOutbox outbox;
+
+    /** Largest id used. */
+    private static long lastId = 0L;
+
+    /** Default constructor must be private. */
+    private SavedSearchRepository() { };
+
+    /**
+     * Loads the saved searches from a log file (compacting it) and
+     * starts alerting to an outbox. Call once the CarWebAppCache is
+     * loaded, as the searches are validated against it.
+     * @param log the log file (created if it does not exist)
+     * @param out the outbox
+     * @throws IOException if the log cannot be read or compacted
+     */
+    public static synchronized void initRepository(final File log,
+            final AlertOutbox out) throws IOException {
+        SearchPercolator p = new SearchPercolator();
+        long maxId = 0L;
+        if (log.exists()) {
+            String text = new String(Files.readAllBytes(log.toPath()),
+                    StandardCharsets.UTF_8);
+            BufferedReader in = new BufferedReader(new StringReader(text));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    JsonObject entry = Json.createReader(
+                            new StringReader(line)).readObject();
+                    if (entry.containsKey("saved")) {
+                        SavedSearch s = SavedSearch.fromJson(
+                                entry.getJsonObject("saved"));
+                        p.add(s);
+                        maxId = Math.max(maxId, s.getId());
+                    } else if (entry.containsKey("deleted")) {
+                        p.remove(entry.getJsonNumber("deleted")
+                                .longValue());
+                    }
+                } catch (JsonException | ClassCastException 
+                        | NullPointerException e) {
+                    // e.g. a line cut short by a crash
+                    System.out.println("Skipped saved search log entry: "
+                            + e.getMessage());
+                }
+            }   // end for each line
+        }
+        
+        // rewrite the log with only the live searches
+        File tmp = new File(log.getPath() + ".tmp");
+        StringBuilder sb = new StringBuilder();
+        for (SavedSearch s : p.getAll()) {
+            sb.append(Json.createObjectBuilder().add("saved", s.toJson())
+                    .build()).append('\n');
+        }
+        Files.write(tmp.toPath(), sb.toString().getBytes(
+                StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), log.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        
+        if (outbox != null) {
+            outbox.close();
+        }
+        logFile = log;
+        outbox = out;
+        lastId = maxId;
+        percolator = p;
+    }   // end initRepository(...)
+
+    /** Stops alerting and closes the outbox. */
+    public static synchronized void shutdown() {
+        percolator = null;
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /** @return true once the saved searches have been loaded */
+    public static boolean isLoaded() {
+        return percolator != null;
+    }
+
+    /** @return the searches, or null if not loaded */
+    public static SearchPercolator getPercolator() {
+        return percolator;
+    }
+
+    /**
+     * Saves a search.
+     * @param owner who to alert
+     * @param params advanced search parameters (name to values)
+     * @return the saved search
+     * @throws IOException if the search cannot be logged
+     */
+    public static synchronized SavedSearch save(final String owner,
+            final Map<String, String[]> params) throws IOException {
+        if (percolator == null) {
+            throw new IOException("Saved searches are not loaded");
+        }
+        SavedSearch s = new SavedSearch(lastId + 1, owner, params);
+        append(Json.createObjectBuilder().add("saved", s.toJson()).build());
+        lastId = s.getId();
+        percolator.add(s);
+        return s;
+    }
+
+    /**
+     * Deletes a saved search.
+     * @param id the search's id
+     * @return true if it existed
+     * @throws IOException if the delete cannot be logged
+     */
+    public static synchronized boolean delete(final long id)
+            throws IOException {
+        if (percolator == null || percolator.get(id) == null) {
+            return false;
+        }
+        append(Json.createObjectBuilder().add("deleted", id).build());
+        return percolator.remove(id) != null;
+    }
+
+    /**
+     * @param entry a log entry
+     * @throws IOException if it cannot be appended
+     */
+    private static void append(final JsonObject entry) throws IOException {
+        Files.write(logFile.toPath(), 
+                (entry.toString() + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Alerts the owners of the saved searches matching vehicles that
+     * were added or repriced.
+     * @param store the inventory store
+     * @param rows rows of the added or repriced vehicles
+     * @param oldPrices each vehicle's previous price (-1 if added)
+     * @param count number of rows
+     * @return number of alerts written
+     */
+    public static int percolate(final OffHeapVehicleStore store,
+            final int[] rows, final int[] oldPrices, final int count) {
+        SearchPercolator p = percolator;
+        if (p == null || count == 0) {
+            return 0;
+        }
+        List<JsonObject> alerts = new ArrayList<JsonObject>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            VehicleView v = store.view(rows[i]);
+            List<SavedSearch> matched = p.match(v);
+            for (SavedSearch s : matched) {
+                alerts.add(Json.createObjectBuilder()
+                        .add("search", s.getId())
+                        .add("owner", s.getOwner())
+                        .add("event", oldPrices[i] < 0 ? "added" : "repriced")
+                        .add("vin", text(v.getVin()))
+                        .add("make", text(v.getMake()))
+                        .add("model", text(v.getModel()))
+                        .add("year", v.getYear())
+                        .add("price", v.getPrice())
+                        .add("oldPrice", oldPrices[i])
+                        .add("location", text(v.getLocation()))
+                        .add("time", now)
+                        .build());
+            }
+        }   // end for each row
+        AlertOutbox out = outbox;
+        try {
+            out.write(alerts);
+        } catch (IOException e) {
+            System.out.println("Error writing alerts to " + out.getFile()
+                    + ": " + e.getMessage());
+            return 0;
+        }
+        return alerts.size();
+    }   // end percolate(...)
+
+    /**
+     * @param s a string field (null if the vehicle has none)
+     * @return the string, or "" for null
+     */
+    private static String text(final String s) {
+        return s == null ? "" : s;
+    }
+}   // end class SavedSearchRepository
@@ -0,0 +1,198 @@
+package awesomecars.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import awesomecars.beans.AdvancedSearch;
+
+/**
+ * Reverse index over saved searches: instead of running every saved
+ * search against the inventory when a vehicle arrives, the vehicle is
+ * looked up here and tested only against the searches that could match
+ * it. Each search is filed under the values of ONE of its criteria, the
+ * first of these it restricts:
+ * <ol>
+ * <li>make/model ("make:Ford", "model:Civic"; a vehicle matching the
+ * search has one of them)</li>
+ * <li>body style ("style:SUV")</li>
+ * <li>price, in PRICE_BUCKET-wide buckets ("price:6"), if the range
+ * spans at most MAX_PRICE_BUCKETS of them</li>
+ * <li>location ("location:Dallas")</li>
+ * </ol>
+ * and searches restricting none of them under ANY. A vehicle's
+ * candidates are the searches filed under its make, model, body style,
+ * price bucket and location, plus ANY; each candidate is then tested
+ * with SavedSearch.matches(...). Since a search is filed under every
+ * value its chosen criterion allows, no match is missed.
+ *
+ * Synchronized: searches are added and removed by request threads while
+ * the inventory sync percolates changes.
+ *
+ * @author Travis
+ */
+public final class SearchPercolator {
+
+    /** Width of a price bucket, in dollars. */
+    public static final int PRICE_BUCKET = 2500;
+
+    /** Widest price range (in buckets) a search is filed under. */
+    public static final int MAX_PRICE_BUCKETS = 8;
+
+    /** Key of the searches restricting none of the indexed criteria. */
+    public static final String ANY = "*";
+
+    /** Searches by key, each keyed by id. */
+    private final Map<String, Map<Long, SavedSearch>> postings =
+            new HashMap<String, Map<Long, SavedSearch>>();
+
+    /** Searches by id. */
+    private final Map<Long, SavedSearch> searches =
+            new LinkedHashMap<Long, SavedSearch>();
+
+    /**
+     * Adds a search, replacing any with the same id.
+     * @param s the search
+     */
+    public synchronized void add(final SavedSearch s) {
+        remove(s.getId());
+        searches.put(s.getId(), s);
+        for (String key : keys(s.getSearch())) {
+            Map<Long, SavedSearch> list = postings.get(key);
+            if (list == null) {
+                list = new HashMap<Long, SavedSearch>();
+                postings.put(key, list);
+            }
+            list.put(s.getId(), s);
+        }
+    }
+
+    /**
+     * Removes a search.
+     * @param id the search's id
+     * @return the search removed, or null if there was none
+     */
+    public synchronized SavedSearch remove(final long id) {
+        SavedSearch s = searches.remove(id);
+        if (s != null) {
+            for (String key : keys(s.getSearch())) {
+                Map<Long, SavedSearch> list = postings.get(key);
+                list.remove(id);
+                if (list.isEmpty()) {
+                    postings.remove(key);
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * @param id a search id
+     * @return the search, or null if there is none
+     */
+    public synchronized SavedSearch get(final long id) {
+        return searches.get(id);
+    }
+
+    /** @return every search, in the order added */
+    public synchronized List<SavedSearch> getAll() {
+        return new ArrayList<SavedSearch>(searches.values());
+    }
+
+    /** @return number of searches */
+    public synchronized int size() {
+        return searches.size();
+    }
+
+    /**
+     * Finds the searches that could match a vehicle.
+     * @param v the vehicle
+     * @return the candidate searches (each once)
+     */
+    public synchronized List<SavedSearch> candidates(final VehicleView v) {
+        Map<Long, SavedSearch> found = new LinkedHashMap<Long, SavedSearch>();
+        String[] keys = {
+            ANY, "make:" + v.getMake(), "model:" + v.getModel(),
+            "style:" + v.getBodyStyle(), "price:" + bucket(v.getPrice()),
+            "location:" + v.getLocation()
+        };
+        for (String key : keys) {
+            Map<Long, SavedSearch> list = postings.get(key);
+            if (list != null) {
+                found.putAll(list);
+            }
+        }
+        return new ArrayList<SavedSearch>(found.values());
+    }   // end candidates(...)
+
+    /**
+     * Finds the searches a vehicle matches.
+     * @param v the vehicle
+     * @return the matching searches
+     */
+    public List<SavedSearch> match(final VehicleView v) {
+        List<SavedSearch> matched = new ArrayList<SavedSearch>();
+        for (SavedSearch s : candidates(v)) {
+            if (s.matches(v)) {
+                matched.add(s);
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * @param price a price
+     * @return its bucket
+     */
+    private static int bucket(final int price) {
+        return Math.max(0, price) / PRICE_BUCKET;
+    }
+
+    /**
+     * Chooses the keys a search is filed under.
+     * @param s the search
+     * @return the keys
+     */
+    static List<String> keys(final AdvancedSearch s) {
+        List<String> keys = new ArrayList<String>();
+        if (s.getIncludeMakes() != null || s.getIncludeModels() != null) {
+            if (s.getIncludeMakes() != null) {
+                for (String make : s.getIncludeMakes()) {
+                    keys.add("make:" + make);
+                }
+            }
+            if (s.getIncludeModels() != null) {
+                for (String model : s.getIncludeModels()) {
+                    keys.add("model:" + model);
+                }
+            }
+            return keys;
+        }
+        if (s.getIncludeBodyStyles() != null) {
+            for (String style : s.getIncludeBodyStyles()) {
+                keys.add("style:" + style);
+            }
+            return keys;
+        }
+        if (s.getMaxPrice() >= 0) {
+            int lo = bucket(s.getMinPrice());
+            int hi = bucket(s.getMaxPrice());
+            if (hi - lo < MAX_PRICE_BUCKETS) {
+                for (int b = lo; b <= hi; b++) {
+                    keys.add("price:" + b);
+                }
+                return keys;
+            }
+        }
+        if (s.getIncludeLocations() != null) {
+            for (String location : s.getIncludeLocations()) {
+                keys.add("location:" + location);
+            }
+            return keys;
+        }
+        keys.add(ANY);
+        return keys;
+    }   // end keys(...)
+}   // end class SearchPercolator
@@ -0,0 +1,203 @@
+package awesomecars.model;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import awesomecars.persistence.IDatabaseAdapter;
+
+/**
+ * Maintains a flattened copy of the inventory join (one row per vehicle
+ * at a store, with the make, model and store names inlined) so advanced
+ * searches can read a single table through composite indexes instead of
+ * joining five tables (see AdvancedSearch.toSql(true)). A vehicle is
+ * stocked at several stores under one VIN, so rows are keyed by VIN and
+ * store name.
+ *
+ * A rebuild creates the table under a shadow name and swaps it in with
+ * one atomic RENAME, so searches see either the old table or the new one
+ * whole. Between rebuilds each refresh patches the table with the rows
+ * changed since the previous refresh, found through the last_updated
+ * timestamps InventorySync relies on, reaching OVERLAP_SECONDS back in
+ * case a change committed late. Patching only upserts, so vehicles
+ * deleted from the database outright linger until the next rebuild,
+ * which runs every PATCHES_PER_REBUILD refreshes. The database user
+ * needs CREATE, DROP, ALTER and INSERT on the table.
+ *
+ * @author Travis
+ */
+public final class SearchReadModel {
+
+    /** Name of the flattened search table. */
+    public static final String TABLE = "vehicle_search";
+
+    /** Refreshes between full rebuilds. */
+    public static final int PATCHES_PER_REBUILD = 60;
+
+    /** Shadow table a rebuild is written to. */
+    private static final String SHADOW = TABLE + "_new";
+
+    /** Table the previous version is renamed to, then dropped. */
+    private static final String RETIRED = TABLE + "_old";
+
+    /** Columns identifying a row: one per vehicle at a store. */
+    public static final String PRIMARY_KEY = "VIN, store_name";
+
+    /**
+     * Indexes of the flattened table. Every search filters on category
+     * first; the make/model, body style and store filters narrow it
+     * further and price is the most common range.
+     */
+    private static final String INDEXES =
+            "PRIMARY KEY (" + PRIMARY_KEY + "), "
+            + "INDEX category_make_model (category, make_name, "
+            + "model_name, Price), "
+            + "INDEX category_model (category, model_name, Price), "
+            + "INDEX category_type (category, model_type, Price), "
+            + "INDEX category_store (category, store_name, Price), "
+            + "INDEX category_price (category, Price), "
+            + "INDEX category_year (category, year_model, miles), "
+            + "INDEX last_updated (last_updated)";
+
+    /** The inventory join, with each row's last change. */
+    private static final String SOURCE =
+            OffHeapVehicleStore.INVENTORY_COLUMNS
+            + ", GREATEST(t3.last_updated, t5.last_updated) AS last_updated "
+            + OffHeapVehicleStore.INVENTORY_JOIN;
+
+    /** The database. */
+    private final IDatabaseAdapter database;
+
+    /** Serializes rebuilds and refreshes. */
+    private final Object lock = new Object();
+
+    /** High-water mark taken before the last refresh (null if none). */
+    private String highWaterMark;
+
+    /** Refreshes since the last rebuild. */
+    private int patches;
+
+    /** True once the table has been built. */
+    private volatile boolean ready = false;
+
+    /** Runs the refreshes (null until started). */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates the read model. Nothing is built until rebuild() is called.
+     * @param db the database
+     */
+    public SearchReadModel(final IDatabaseAdapter db) {
+        database = db;
+    }
+
+    /**
+     * @return statements that build the shadow table and swap it in
+     */
+    public static String[] rebuildStatements() {
+        return new String[] {
+            "DROP TABLE IF EXISTS " + SHADOW,
+            "CREATE TABLE " + SHADOW + " (" + INDEXES + ") " + SOURCE,
+            "CREATE TABLE IF NOT EXISTS " + TABLE + " LIKE " + SHADOW,
+            "DROP TABLE IF EXISTS " + RETIRED,
+            "RENAME TABLE " + TABLE + " TO " + RETIRED + ", "
+                    + SHADOW + " TO " + TABLE,
+            "DROP TABLE " + RETIRED
+        };
+    }
+
+    /**
+     * @param mark a high-water mark
+     * @return statement upserting the rows changed since (about) the
+     *         mark, each replacing the row of its vehicle at its store
+     */
+    public static String patchStatement(final String mark) {
+        String since = "'" + mark + "' - INTERVAL "
+                + InventorySync.OVERLAP_SECONDS + " SECOND";
+        return "REPLACE INTO " + TABLE + " " + SOURCE
+                + " AND (t3.last_updated >= " + since
+                + " OR t5.last_updated >= " + since + ")";
+    }
+
+    /** @return true once the table has been built */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Rebuilds the whole table.
+     * @throws SQLException if any statement fails
+     */
+    public void rebuild() throws SQLException {
+        synchronized (lock) {
+            String mark = InventorySync.queryHighWaterMark(database);
+            long start = System.currentTimeMillis();
+            for (String statement : rebuildStatements()) {
+                database.updateDatabase(statement);
+            }
+            highWaterMark = mark;
+            patches = 0;
+            ready = true;
+            System.out.println("*** " + TABLE + " rebuilt in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }   // end rebuild()
+
+    /**
+     * Upserts the rows changed since the previous refresh, or rebuilds
+     * the table if it has not been built or is due a rebuild.
+     * @return number of rows changed
+     * @throws SQLException if a statement fails
+     */
+    public int refresh() throws SQLException {
+        synchronized (lock) {
+            if (highWaterMark == null || ++patches >= PATCHES_PER_REBUILD) {
+                rebuild();
+                return 0;
+            }
+            String mark = InventorySync.queryHighWaterMark(database);
+            int changed = database.updateDatabase(
+                    patchStatement(highWaterMark));
+            highWaterMark = mark;
+            return changed;
+        }
+    }   // end refresh()
+
+    /**
+     * Starts refreshing on a background thread.
+     * @param periodSeconds seconds between refreshes
+     */
+    public synchronized void start(final long periodSeconds) {
+        stop();
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "search-read-model");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (SQLException | RuntimeException e) {
+                    System.out.println("Error refreshing " + TABLE + ": "
+                            + e.getMessage());
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }   // end start(...)
+
+    /** Stops refreshing. */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}   // end class SearchReadModel
@@ -0,0 +1,616 @@
+package awesomecars.model;
+
+import java.util.Arrays;
+
+import awesomecars.beans.StringDictionary;
+
+/**
+ * Nearest-neighbour index for "similar vehicles". Each vehicle is a point
+ * in a feature space of its price, year, miles and city/highway MPG, each
+ * scaled by its standard deviation over the inventory (and weighted), so
+ * a difference of one is equally unusual on every axis. Body style and
+ * make are categorical and count as fixed penalties instead: vehicles are
+ * grouped by body style, one k-d tree per group, and a candidate of
+ * another make or body style is that much farther away. A query walks
+ * its own body style's tree first and other groups only while their
+ * penalty could still beat the matches found.
+ *
+ * The index is immutable and versioned with the inventory (see
+ * InventorySnapshot). Rows appended since a group's tree was built are
+ * kept in a short per-group list that queries scan; update(...) returns a
+ * new index sharing every group it did not touch, and rebuilds a group's
+ * tree (dropping removed rows) once its list outgrows DELTA_ROWS.
+ * Removed and out-of-stock rows are skipped at query time, so the index
+ * only changes when rows are appended.
+ *
+ * @author Travis
+ */
+public final class SimilarityIndex {
+
+    /** Appended rows a group holds before its tree is rebuilt. */
+    public static final int DELTA_ROWS = 1024;
+
+    /** Distance added for a different make (in scaled units squared). */
+    public static final double MAKE_PENALTY = 1.0;
+
+    /** Distance added for a different body style. */
+    public static final double BODY_STYLE_PENALTY = 4.0;
+
+    /** Store fields making up the numeric features. */
+    private static final int[] FIELDS = {
+        OffHeapVehicleStore.PRICE, OffHeapVehicleStore.YEAR,
+        OffHeapVehicleStore.MILES, OffHeapVehicleStore.MPG_CITY,
+        OffHeapVehicleStore.MPG_HWY
+    };
+
+    /** Weight of each feature. */
+    private static final double[] WEIGHTS = {1.0, 1.0, 1.0, 0.5, 0.5};
+
+    /** Number of numeric features. */
+    private static final int FEATURES = FIELDS.length;
+
+    /** The store. */
+    private final OffHeapVehicleStore store;
+
+    /** Multiplier turning each field into its feature. */
+    private final double[] scale;
+
+    /** Number of store rows covered. */
+    private final int rows;
+
+    /** Groups by body style id (null where no rows have the style). */
+    private final Group[] groups;
+
+    /** Latest row of each model id (-1 for none). */
+    private final int[] modelRows;
+
+    /**
+     * @param s the store
+     * @param sc feature multipliers
+     * @param n number of rows covered
+     * @param g groups by body style id
+     * @param m latest row of each model id
+     */
+    private SimilarityIndex(final OffHeapVehicleStore s, final double[] sc,
+            final int n, final Group[] g, final int[] m) {
+        store = s;
+        scale = sc;
+        rows = n;
+        groups = g;
+        modelRows = m;
+    }
+
+    /**
+     * Builds the index over the first rows of a store.
+     * @param s the store
+     * @param n number of rows to cover
+     * @param removed rows to leave out
+     * @return the index
+     */
+    static SimilarityIndex build(final OffHeapVehicleStore s, final int n,
+            final RemovedRows removed) {
+        // scale each feature by its standard deviation
+        double[] sum = new double[FEATURES];
+        double[] sumSquares = new double[FEATURES];
+        for (int row = 0; row < n; row++) {
+            for (int f = 0; f < FEATURES; f++) {
+                double v = s.getInt(row, FIELDS[f]);
+                sum[f] += v;
+                sumSquares[f] += v * v;
+            }
+        }
+        double[] sc = new double[FEATURES];
+        for (int f = 0; f < FEATURES; f++) {
+            double mean = n == 0 ? 0.0 : sum[f] / n;
+            double variance = n == 0 ? 0.0 : sumSquares[f] / n - mean * mean;
+            double deviation = variance > 0.0 ? Math.sqrt(variance) : 1.0;
+            sc[f] = Math.sqrt(WEIGHTS[f]) / deviation;
+        }
+        int[][] members = new int[0][];
+        int[] counts = new int[0];
+        int[] models = new int[0];
+        for (int row = 0; row < n; row++) {
+            int model = s.getInt(row, OffHeapVehicleStore.MODEL);
+            if (model >= models.length) {
+                int old = models.length;
+                models = Arrays.copyOf(models, model + 1);
+                Arrays.fill(models, old, models.length, -1);
+            }
+            if (model >= 0) {
+                models[model] = row;
+            }
+            if (removed.contains(row)) {
+                continue;
+            }
+            int body = Math.max(0, 
+                    s.getInt(row, OffHeapVehicleStore.BODY_STYLE));
+            if (body >= members.length) {
+                members = Arrays.copyOf(members, body + 1);
+                counts = Arrays.copyOf(counts, body + 1);
+            }
+            if (members[body] == null) {
+                members[body] = new int[16];
+            } else if (counts[body] == members[body].length) {
+                members[body] = Arrays.copyOf(members[body], 
+                        counts[body] * 2);
+            }
+            members[body][counts[body]++] = row;
+        }
+        Group[] g = new Group[members.length];
+        for (int body = 0; body < members.length; body++) {
+            if (members[body] != null) {
+                g[body] = new Group(s, sc, 
+                        Arrays.copyOf(members[body], counts[body]), 
+                        new int[0]);
+            }
+        }
+        return new SimilarityIndex(s, sc, n, g, models);
+    }   // end build(...)
+
+    /** @return number of store rows covered */
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * Adds the rows appended to the store since this index was built.
+     * @param n number of store rows to cover
+     * @param removed rows removed so far (left out of rebuilt groups)
+     * @return an index covering n rows, sharing untouched groups
+     */
+    SimilarityIndex update(final int n, final RemovedRows removed) {
+        if (n <= rows) {
+            return this;
+        }
+        Group[] g = groups.clone();
+        int[] models = modelRows;
+        boolean[] touched = new boolean[0];
+        for (int row = rows; row < n; row++) {
+            int model = store.getInt(row, OffHeapVehicleStore.MODEL);
+            if (model >= 0) {
+                if (models == modelRows || model >= models.length) {
+                    int old = models.length;
+                    models = Arrays.copyOf(models, 
+                            Math.max(old, model + 1));
+                    Arrays.fill(models, old, models.length, -1);
+                }
+                models[model] = row;
+            }
+            int body = Math.max(0, 
+                    store.getInt(row, OffHeapVehicleStore.BODY_STYLE));
+            if (body >= g.length) {
+                g = Arrays.copyOf(g, body + 1);
+            }
+            if (body >= touched.length) {
+                touched = Arrays.copyOf(touched, g.length);
+            }
+            g[body] = g[body] == null 
+                    ? new Group(store, scale, new int[0], new int[] {row})
+                    : g[body].append(store, scale, row);
+            touched[body] = true;
+        }
+        for (int body = 0; body < touched.length; body++) {
+            if (touched[body] && g[body].delta.length > DELTA_ROWS) {
+                g[body] = g[body].rebuild(store, scale, removed);
+            }
+        }
+        return new SimilarityIndex(store, scale, n, g, models);
+    }   // end update(...)
+
+    /**
+     * @param model a model id
+     * @return the latest row of the model covered, or -1 if none
+     */
+    int getModelRow(final int model) {
+        return model >= 0 && model < modelRows.length 
+                ? modelRows[model] : -1;
+    }
+
+    /**
+     * @param row a row
+     * @param other another row
+     * @return how far apart similar(...) ranks the rows: the squared
+     *         feature distance plus the make and body style penalties
+     */
+    public double distance(final int row, final int other) {
+        double d = 0.0;
+        for (int f = 0; f < FEATURES; f++) {
+            double x = (store.getInt(row, FIELDS[f]) 
+                    - store.getInt(other, FIELDS[f])) * scale[f];
+            d += x * x;
+        }
+        if (store.getInt(row, OffHeapVehicleStore.MAKE) 
+                != store.getInt(other, OffHeapVehicleStore.MAKE)) {
+            d += MAKE_PENALTY;
+        }
+        if (Math.max(0, store.getInt(row, OffHeapVehicleStore.BODY_STYLE))
+                != Math.max(0, 
+                        store.getInt(other, OffHeapVehicleStore.BODY_STYLE))) {
+            d += BODY_STYLE_PENALTY;
+        }
+        return d;
+    }   // end distance(...)
+
+    /**
+     * Finds the in-stock vehicles most similar to a row. New vehicles
+     * are returned once per model, nearest store first.
+     * @param version the inventory version (rows live in it are candidates)
+     * @param row the row to compare with
+     * @param n number of vehicles wanted
+     * @param excludeModel true to leave out the row's own model
+     * @return up to n rows, most similar first
+     */
+    public int[] similar(final InventorySnapshot version, final int row,
+            final int n, final boolean excludeModel) {
+        Query q = new Query(version, row, n, excludeModel);
+        int body = Math.max(0, store.getInt(row, 
+                OffHeapVehicleStore.BODY_STYLE));
+        if (body < groups.length && groups[body] != null) {
+            groups[body].search(q, 0.0);
+        }
+        for (int g = 0; g < groups.length; g++) {
+            if (g != body && groups[g] != null 
+                    && BODY_STYLE_PENALTY < q.bound()) {
+                groups[g].search(q, BODY_STYLE_PENALTY);
+            }
+        }
+        return q.result();
+    }   // end similar(...)
+
+    /**
+     * A query in progress: the query point and the best candidates so
+     * far, in ascending distance.
+     */
+    private final class Query {
+
+        /** The inventory version. */
+        private final InventorySnapshot version;
+
+        /** The query row. */
+        private final int self;
+
+        /** Feature vector of the query row. */
+        private final double[] point = new double[FEATURES];
+
+        /** Make id of the query row. */
+        private final int make;
+
+        /** Model id to leave out (-2 for none). */
+        private final int excluded;
+
+        /** Category ids that mean "new". */
+        private final boolean[] newIds;
+
+        /** Best rows, nearest first. */
+        private final int[] best;
+
+        /** Distance of each best row. */
+        private final double[] dist;
+
+        /** Model of each best row if it is new (-2 if used). */
+        private final int[] newModel;
+
+        /** Number of best rows. */
+        private int count;
+
+        /**
+         * @param v the inventory version
+         * @param row the query row
+         * @param n number of rows wanted
+         * @param excludeModel true to leave out the row's model
+         */
+        Query(final InventorySnapshot v, final int row, final int n,
+                final boolean excludeModel) {
+            version = v;
+            self = row;
+            for (int f = 0; f < FEATURES; f++) {
+                point[f] = store.getInt(row, FIELDS[f]) * scale[f];
+            }
+            make = store.getInt(row, OffHeapVehicleStore.MAKE);
+            excluded = excludeModel 
+                    ? store.getInt(row, OffHeapVehicleStore.MODEL) : -2;
+            newIds = newCategoryIds(store.getDictionary());
+            best = new int[Math.max(0, n)];
+            dist = new double[best.length];
+            newModel = new int[best.length];
+        }
+
+        /** @return distance a candidate must beat */
+        double bound() {
+            return count < best.length ? Double.POSITIVE_INFINITY 
+                    : dist[count - 1];
+        }
+
+        /**
+         * Considers a candidate.
+         * @param row candidate row
+         * @param d2 squared feature distance plus any group penalty
+         */
+        void offer(final int row, final double d2) {
+            double d = store.getInt(row, OffHeapVehicleStore.MAKE) == make
+                    ? d2 : d2 + MAKE_PENALTY;
+            if (d >= bound() || row == self || !version.isLive(row)
+                    || store.getInt(row, OffHeapVehicleStore.COUNT) <= 0) {
+                return;
+            }
+            int model = store.getInt(row, OffHeapVehicleStore.MODEL);
+            if (model == excluded) {
+                return;
+            }
+            int category = store.getInt(row, OffHeapVehicleStore.CATEGORY);
+            int isNew = category >= 0 && category < newIds.length 
+                    && newIds[category] ? model : -2;
+            if (isNew != -2) {
+                for (int i = 0; i < count; i++) {
+                    if (newModel[i] == isNew) {
+                        if (dist[i] <= d) {
+                            return;
+                        }
+                        // replace the model's farther row
+                        System.arraycopy(best, i + 1, best, i, count - i - 1);
+                        System.arraycopy(dist, i + 1, dist, i, count - i - 1);
+                        System.arraycopy(newModel, i + 1, newModel, i, 
+                                count - i - 1);
+                        count--;
+                        break;
+                    }
+                }
+            }
+            int i = Math.min(count, best.length - 1);
+            while (i > 0 && dist[i - 1] > d) {
+                best[i] = best[i - 1];
+                dist[i] = dist[i - 1];
+                newModel[i] = newModel[i - 1];
+                i--;
+            }
+            best[i] = row;
+            dist[i] = d;
+            newModel[i] = isNew;
+            count = Math.min(count + 1, best.length);
+        }   // end offer(...)
+
+        /** @return the best rows, nearest first */
+        int[] result() {
+            return Arrays.copyOf(best, count);
+        }
+    }   // end class Query
+
+    /**
+     * @param dict the dictionary
+     * @return table of the category ids that mean "new"
+     */
+    private static boolean[] newCategoryIds(final StringDictionary dict) {
+        boolean[] ids = new boolean[dict.size()];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = "new".equalsIgnoreCase(dict.get(id));
+        }
+        return ids;
+    }
+
+    /**
+     * The rows of one body style: an implicit k-d tree (the median of
+     * each range [lo, hi) at its midpoint, split on axis depth % FEATURES)
+     * plus the rows appended since it was built. Never modified once
+     * built.
+     */
+    private static final class Group {
+
+        /** Rows in tree order. */
+        private final int[] tree;
+
+        /** Features of the tree rows, FEATURES per row. */
+        private final float[] coords;
+
+        /** Rows appended since the tree was built. */
+        private final int[] delta;
+
+        /** Features of the appended rows. */
+        private final float[] deltaCoords;
+
+        /**
+         * Builds a group.
+         * @param s the store
+         * @param sc feature multipliers
+         * @param treeRows rows to build the tree from
+         * @param deltaRows appended rows
+         */
+        Group(final OffHeapVehicleStore s, final double[] sc,
+                final int[] treeRows, final int[] deltaRows) {
+            tree = treeRows;
+            coords = features(s, sc, treeRows);
+            build(0, tree.length, 0);
+            delta = deltaRows;
+            deltaCoords = features(s, sc, deltaRows);
+        }
+
+        /**
+         * @param t tree rows
+         * @param c tree features
+         * @param d appended rows
+         * @param dc appended features
+         */
+        private Group(final int[] t, final float[] c, final int[] d,
+                final float[] dc) {
+            tree = t;
+            coords = c;
+            delta = d;
+            deltaCoords = dc;
+        }
+
+        /**
+         * @param s the store
+         * @param sc feature multipliers
+         * @param r rows
+         * @return features of the rows, FEATURES per row
+         */
+        private static float[] features(final OffHeapVehicleStore s,
+                final double[] sc, final int[] r) {
+            float[] c = new float[r.length * FEATURES];
+            for (int i = 0; i < r.length; i++) {
+                for (int f = 0; f < FEATURES; f++) {
+                    c[i * FEATURES + f] = 
+                            (float) (s.getInt(r[i], FIELDS[f]) * sc[f]);
+                }
+            }
+            return c;
+        }
+
+        /**
+         * @param s the store
+         * @param sc feature multipliers
+         * @param row an appended row
+         * @return a group with the row added to the appended rows
+         */
+        Group append(final OffHeapVehicleStore s, final double[] sc,
+                final int row) {
+            int n = delta.length;
+            int[] d = Arrays.copyOf(delta, n + 1);
+            d[n] = row;
+            float[] dc = Arrays.copyOf(deltaCoords, (n + 1) * FEATURES);
+            for (int f = 0; f < FEATURES; f++) {
+                dc[n * FEATURES + f] = (float) (s.getInt(row, FIELDS[f]) 
+                        * sc[f]);
+            }
+            return new Group(tree, coords, d, dc);
+        }
+
+        /**
+         * @param s the store
+         * @param sc feature multipliers
+         * @param removed removed rows to drop
+         * @return a group with every live row in the tree
+         */
+        Group rebuild(final OffHeapVehicleStore s, final double[] sc,
+                final RemovedRows removed) {
+            int[] all = new int[tree.length + delta.length];
+            int n = 0;
+            for (int row : tree) {
+                if (!removed.contains(row)) {
+                    all[n++] = row;
+                }
+            }
+            for (int row : delta) {
+                if (!removed.contains(row)) {
+                    all[n++] = row;
+                }
+            }
+            return new Group(s, sc, Arrays.copyOf(all, n), new int[0]);
+        }
+
+        /**
+         * Arranges [lo, hi) so its median on the depth's axis is at the
+         * midpoint, then arranges each half.
+         * @param lo first position
+         * @param hi position after the last
+         * @param depth depth in the tree
+         */
+        private void build(final int lo, final int hi, final int depth) {
+            if (hi - lo <= 1) {
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            int axis = depth % FEATURES;
+            int from = lo;
+            int to = hi - 1;
+            while (from < to) {
+                float pivot = coords[((from + to) >>> 1) * FEATURES + axis];
+                int i = from;
+                int j = to;
+                while (i <= j) {
+                    while (coords[i * FEATURES + axis] < pivot) {
+                        i++;
+                    }
+                    while (coords[j * FEATURES + axis] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                if (mid <= j) {
+                    to = j;
+                } else if (mid >= i) {
+                    from = i;
+                } else {
+                    break;
+                }
+            }
+            build(lo, mid, depth + 1);
+            build(mid + 1, hi, depth + 1);
+        }   // end build(...)
+
+        /**
+         * @param a a position
+         * @param b a position
+         */
+        private void swap(final int a, final int b) {
+            int row = tree[a];
+            tree[a] = tree[b];
+            tree[b] = row;
+            for (int f = 0; f < FEATURES; f++) {
+                float c = coords[a * FEATURES + f];
+                coords[a * FEATURES + f] = coords[b * FEATURES + f];
+                coords[b * FEATURES + f] = c;
+            }
+        }
+
+        /**
+         * Offers the group's nearest rows to a query.
+         * @param q the query
+         * @param penalty distance added to every row of the group
+         */
+        void search(final Query q, final double penalty) {
+            search(q, penalty, 0, tree.length, 0);
+            for (int i = 0; i < delta.length; i++) {
+                q.offer(delta[i], penalty + distance2(q, deltaCoords, i));
+            }
+        }
+
+        /**
+         * Visits [lo, hi) of the tree, nearer half first.
+         * @param q the query
+         * @param penalty distance added to every row of the group
+         * @param lo first position
+         * @param hi position after the last
+         * @param depth depth in the tree
+         */
+        private void search(final Query q, final double penalty,
+                final int lo, final int hi, final int depth) {
+            if (lo >= hi) {
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            q.offer(tree[mid], penalty + distance2(q, coords, mid));
+            int axis = depth % FEATURES;
+            double diff = q.point[axis] - coords[mid * FEATURES + axis];
+            double far = penalty + diff * diff;
+            if (diff < 0) {
+                search(q, penalty, lo, mid, depth + 1);
+                if (far < q.bound()) {
+                    search(q, penalty, mid + 1, hi, depth + 1);
+                }
+            } else {
+                search(q, penalty, mid + 1, hi, depth + 1);
+                if (far < q.bound()) {
+                    search(q, penalty, lo, mid, depth + 1);
+                }
+            }
+        }   // end search(...)
+
+        /**
+         * @param q the query
+         * @param c features
+         * @param i index of a row in the features
+         * @return squared feature distance from the query to the row
+         */
+        private static double distance2(final Query q, final float[] c,
+                final int i) {
+            double d = 0.0;
+            for (int f = 0; f < FEATURES; f++) {
+                double x = q.point[f] - c[i * FEATURES + f];
+                d += x * x;
+            }
+            return d;
+        }
+    }   // end class Group
+}   // end class SimilarityIndex
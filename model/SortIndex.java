@@ -0,0 +1,512 @@
+package awesomecars.model;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import awesomecars.beans.SortOption;
+import awesomecars.beans.StringDictionary;
+
+/**
+ * Precomputed sort orders for the sortable columns of an
+ * OffHeapVehicleStore. For each column this holds a permutation (row
+ * numbers in ascending order) and a rank per row (equal values share a
+ * rank). Make and model are ranked by collation keys computed once per
+ * distinct string, so comparing two rows on any column, or on several
+ * columns, is a few int comparisons. Permutations and ranks are kept
+ * off-heap like the store itself.
+ *
+ * Sorting by distance to the row's store (for a search near a ZIP code)
+ * ranks the stores per search instead; an Ordering holding such a key
+ * cannot be walked, only scanned.
+ *
+ * The permutations cover the rows present when the index was built; rows
+ * appended later are not included until it is rebuilt. They can still be
+ * compared: rows without ranks are compared by value.
+ *
+ * @author Travis
+ */
+public final class SortIndex {
+
+    /** Price column. */
+    public static final int PRICE = 0;
+    /** Model year column. */
+    public static final int YEAR = 1;
+    /** Miles column. */
+    public static final int MILES = 2;
+    /** City MPG column. */
+    public static final int MPG_CITY = 3;
+    /** Highway MPG column. */
+    public static final int MPG_HWY = 4;
+    /** Make column (collated). */
+    public static final int MAKE = 5;
+    /** Model column (collated). */
+    public static final int MODEL = 6;
+    /** Number of precomputed columns. */
+    public static final int NUM_COLUMNS = 7;
+    /** Distance to the row's store, ranked per search (not precomputed). */
+    public static final int DISTANCE = NUM_COLUMNS;
+
+    /** Store field for each column. */
+    static final int[] FIELDS = {
+        OffHeapVehicleStore.PRICE, OffHeapVehicleStore.YEAR,
+        OffHeapVehicleStore.MILES, OffHeapVehicleStore.MPG_CITY,
+        OffHeapVehicleStore.MPG_HWY, OffHeapVehicleStore.MAKE,
+        OffHeapVehicleStore.MODEL
+    };
+
+    /** The indexed store. */
+    private final OffHeapVehicleStore store;
+
+    /** Number of rows indexed. */
+    private final int size;
+
+    /** Collator the make and model ranks were computed with. */
+    private final Collator collator;
+
+    /** Collation rank of each dictionary id present at build time. */
+    private final int[] collation;
+
+    /** Row numbers in ascending order, per column. */
+    private final IntBuffer[] permutations = new IntBuffer[NUM_COLUMNS];
+
+    /** Rank of each row, per column. */
+    private final IntBuffer[] ranks = new IntBuffer[NUM_COLUMNS];
+
+    /**
+     * Builds the sort orders for every row currently in the store.
+     * @param s the store
+     */
+    public SortIndex(final OffHeapVehicleStore s) {
+        store = s;
+        size = s.size();
+        collator = Collator.getInstance(Locale.US);
+        collator.setStrength(Collator.PRIMARY);
+        collation = collationRanks(s.getDictionary(), collator);
+        long[] keys = new long[size];
+        
+        for (int c = 0; c < NUM_COLUMNS; c++) {
+            boolean collated = c == MAKE || c == MODEL;
+            
+            // sort (value, row) pairs packed into longs
+            for (int row = 0; row < size; row++) {
+                int value = s.getInt(row, FIELDS[c]);
+                if (collated) {
+                    value = value < 0 ? -1 : collation[value];
+                }
+                keys[row] = ((long) value << 32) | row;
+            }
+            Arrays.parallelSort(keys);
+            
+            permutations[c] = newIntBuffer(size);
+            ranks[c] = newIntBuffer(size);
+            int rank = -1;
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                int row = (int) keys[i];
+                long value = keys[i] >> 32;
+                if (i == 0 || value != previous) {
+                    rank++;
+                    previous = value;
+                }
+                permutations[c].put(i, row);
+                ranks[c].put(row, rank);
+            }
+        }
+    }   // end constructor
+
+    /**
+     * @param n number of ints
+     * @return an off-heap int buffer
+     */
+    private static IntBuffer newIntBuffer(final int n) {
+        return ByteBuffer.allocateDirect(n * 4).asIntBuffer();
+    }
+
+    /**
+     * Ranks every dictionary string by collation key (case and accent
+     * insensitive, as MySQL's default collation).
+     * @param dict the dictionary
+     * @param collator collator to rank with
+     * @return rank of each id
+     */
+    private static int[] collationRanks(final StringDictionary dict,
+            final Collator collator) {
+        int n = dict.size();
+        CollationKey[] keys = new CollationKey[n];
+        for (int id = 0; id < n; id++) {
+            keys[id] = collator.getCollationKey(dict.get(id));
+        }
+        
+        CollationKey[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        int[] ranks = new int[n];
+        for (int id = 0; id < n; id++) {
+            ranks[id] = Arrays.binarySearch(sorted, keys[id]);
+            // equal keys must share a rank
+            while (ranks[id] > 0 
+                    && sorted[ranks[id] - 1].compareTo(keys[id]) == 0) {
+                ranks[id]--;
+            }
+        }
+        return ranks;
+    }   // end collationRanks(...)
+
+    /**
+     * Maps an AdvancedSearch sort parameter to a column.
+     * @param sortBy sort parameter (e.g. "price" or "make_name")
+     * @return the column, or -1 if it is not sortable
+     */
+    public static int column(final String sortBy) {
+        if (sortBy == null) {
+            return -1;
+        }
+        switch (sortBy.toLowerCase(Locale.US)) {
+            case "price":
+                return PRICE;
+            case "year":
+            case "year_model":
+                return YEAR;
+            case "miles":
+                return MILES;
+            case "mpg_city":
+            case "mpgcity":
+                return MPG_CITY;
+            case "mpg_hwy":
+            case "mpghwy":
+                return MPG_HWY;
+            case "make":
+            case "make_name":
+                return MAKE;
+            case "model":
+            case "model_name":
+                return MODEL;
+            case "distance":
+                return DISTANCE;
+            default:
+                return -1;
+        }
+    }   // end column(...)
+
+    /** @return the indexed store */
+    public OffHeapVehicleStore getStore() {
+        return store;
+    }
+
+    /** @return number of rows indexed */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param column a column
+     * @param position position in ascending order
+     * @return row at that position
+     */
+    public int getRow(final int column, final int position) {
+        return permutations[column].get(position);
+    }
+
+    /**
+     * Finds where a value falls in a numeric column's ascending order.
+     * @param column a numeric column (e.g. PRICE)
+     * @param value a value
+     * @return position of the first row whose value is &gt;= value
+     */
+    public int lowerBound(final int column, final long value) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (store.getInt(getRow(column, mid), FIELDS[column]) < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param column a column
+     * @param row row number
+     * @return rank of the row (equal values share a rank)
+     */
+    public int getRank(final int column, final int row) {
+        return ranks[column].get(row);
+    }
+
+    /**
+     * Resolves sort options to an Ordering. Options on columns that are
+     * not sortable are ignored.
+     * @param options sort options, most significant first
+     * @return the ordering
+     */
+    public Ordering ordering(final List<SortOption> options) {
+        return ordering(options, null);
+    }
+
+    /**
+     * Resolves sort options to an Ordering, ranking stores by distance
+     * for a "distance" option. Options on columns that are not sortable,
+     * and a distance option without distances, are ignored.
+     * @param options sort options, most significant first
+     * @param distances store name to distance, nearest first (null if
+     *        the search has no location)
+     * @return the ordering
+     */
+    public Ordering ordering(final List<SortOption> options,
+            final Map<String, Double> distances) {
+        int[] columns = new int[options.size()];
+        boolean[] descending = new boolean[options.size()];
+        int[] storeRanks = null;
+        int n = 0;
+        for (SortOption o : options) {
+            int c = column(o.getSortBy());
+            if (c == DISTANCE) {
+                if (distances == null) {
+                    continue;
+                }
+                storeRanks = distanceRanks(distances);
+            }
+            if (c >= 0) {
+                columns[n] = c;
+                descending[n] = "desc".equalsIgnoreCase(o.getSortOrder());
+                n++;
+            }
+        }
+        return new Ordering(Arrays.copyOf(columns, n),
+                Arrays.copyOf(descending, n), storeRanks);
+    }   // end ordering(...)
+
+    /**
+     * Ranks the store dictionary ids by distance. Stores without a
+     * distance rank after every other store.
+     * @param distances store name to distance, nearest first
+     * @return rank of each dictionary id
+     */
+    private int[] distanceRanks(final Map<String, Double> distances) {
+        StringDictionary dict = store.getDictionary();
+        int[] storeRanks = new int[dict.size()];
+        Arrays.fill(storeRanks, Integer.MAX_VALUE);
+        int rank = -1;
+        double previous = Double.NaN;
+        for (Map.Entry<String, Double> e : distances.entrySet()) {
+            if (!e.getValue().equals(previous)) {
+                rank++;
+                previous = e.getValue();
+            }
+            int id = dict.lookup(e.getKey());
+            if (id >= 0 && id < storeRanks.length) {
+                storeRanks[id] = rank;
+            }
+        }
+        return storeRanks;
+    }   // end distanceRanks(...)
+
+    /**
+     * Compares two rows. Rows equal on every key are ordered by row
+     * number so results are stable.
+     * @param a a row
+     * @param b a row
+     * @param o the ordering
+     * @return negative, zero or positive as a sorts before, with or after b
+     */
+    public int compare(final int a, final int b, final Ordering o) {
+        boolean ranked = a < size && b < size;
+        for (int i = 0; i < o.columns.length; i++) {
+            int c;
+            if (o.columns[i] == DISTANCE) {
+                c = Integer.compare(o.distanceRank(store, a),
+                        o.distanceRank(store, b));
+            } else if (ranked) {
+                c = Integer.compare(getRank(o.columns[i], a),
+                        getRank(o.columns[i], b));
+            } else {
+                c = compareValues(o.columns[i], a, b);
+            }
+            if (c != 0) {
+                return o.descending[i] ? -c : c;
+            }
+        }
+        return Integer.compare(a, b);
+    }
+
+    /**
+     * Compares two rows on one column by value, for rows appended after
+     * the index was built. Agrees with comparing ranks.
+     * @param column a column
+     * @param a a row
+     * @param b a row
+     * @return negative, zero or positive as a sorts before, with or after b
+     */
+    private int compareValues(final int column, final int a, final int b) {
+        int x = store.getInt(a, FIELDS[column]);
+        int y = store.getInt(b, FIELDS[column]);
+        if ((column != MAKE && column != MODEL) || x == y || x < 0 
+                || y < 0) {
+            return Integer.compare(x, y);
+        }
+        if (x < collation.length && y < collation.length) {
+            return Integer.compare(collation[x], collation[y]);
+        }
+        StringDictionary dict = store.getDictionary();
+        synchronized (collator) {
+            return collator.compare(dict.get(x), dict.get(y));
+        }
+    }   // end compareValues(...)
+
+    /**
+     * Selects the first k candidates in order with a bounded heap, in
+     * O(n log k) time, without sorting all n candidates.
+     * @param candidates candidate rows
+     * @param n number of candidates
+     * @param o the ordering
+     * @param k number of rows wanted
+     * @return the first k (or fewer) rows, in order
+     */
+    public int[] topK(final int[] candidates, final int n, final Ordering o,
+            final int k) {
+        int[] heap = new int[Math.min(k, n)];
+        int count = 0;
+        
+        // max-heap: the root is the last of the rows kept so far
+        for (int i = 0; i < n; i++) {
+            int row = candidates[i];
+            if (count < heap.length) {
+                heap[count] = row;
+                siftUp(heap, count++, o);
+            } else if (count > 0 && compare(row, heap[0], o) < 0) {
+                heap[0] = row;
+                siftDown(heap, count, o);
+            }
+        }
+        
+        // removing the root repeatedly yields the rows last to first
+        for (int end = count - 1; end > 0; end--) {
+            int last = heap[0];
+            heap[0] = heap[end];
+            heap[end] = last;
+            siftDown(heap, end, o);
+        }
+        return heap;
+    }   // end topK(...)
+
+    /**
+     * @param heap the heap
+     * @param at index of a newly added row
+     * @param o the ordering
+     */
+    private void siftUp(final int[] heap, final int at, final Ordering o) {
+        int i = at;
+        int row = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(row, heap[parent], o) <= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = row;
+    }
+
+    /**
+     * @param heap the heap
+     * @param count number of rows in the heap
+     * @param o the ordering
+     */
+    private void siftDown(final int[] heap, final int count,
+            final Ordering o) {
+        int i = 0;
+        int row = heap[0];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= count) {
+                break;
+            }
+            if (child + 1 < count 
+                    && compare(heap[child + 1], heap[child], o) > 0) {
+                child++;
+            }
+            if (compare(row, heap[child], o) >= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = row;
+    }
+
+    /**
+     * Sort keys resolved to columns.
+     */
+    public static final class Ordering {
+
+        /** Columns, most significant first. */
+        private final int[] columns;
+
+        /** True where the column is sorted descending. */
+        private final boolean[] descending;
+
+        /** Distance rank of each store id (null unless sorted by it). */
+        private final int[] storeRanks;
+
+        /**
+         * @param c columns, most significant first
+         * @param d true where the column is sorted descending
+         * @param r distance rank of each store id (null for none)
+         */
+        Ordering(final int[] c, final boolean[] d, final int[] r) {
+            columns = c;
+            descending = d;
+            storeRanks = r;
+        }
+
+        /**
+         * @return true if every key has a precomputed permutation (so the
+         *         order can be walked)
+         */
+        public boolean isPrecomputed() {
+            return storeRanks == null;
+        }
+
+        /**
+         * @param s the store
+         * @param row a row
+         * @return distance rank of the row's store
+         */
+        private int distanceRank(final OffHeapVehicleStore s, 
+                final int row) {
+            int id = s.getInt(row, OffHeapVehicleStore.STORE);
+            return id >= 0 && id < storeRanks.length 
+                    ? storeRanks[id] : Integer.MAX_VALUE;
+        }
+
+        /** @return number of sort keys */
+        public int size() {
+            return columns.length;
+        }
+
+        /**
+         * @param i key number
+         * @return column of the key
+         */
+        public int getColumn(final int i) {
+            return columns[i];
+        }
+
+        /**
+         * @param i key number
+         * @return true if the key is sorted descending
+         */
+        public boolean isDescending(final int i) {
+            return descending[i];
+        }
+    }   // end class Ordering
+}   // end class SortIndex
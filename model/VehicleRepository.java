@@ -1,8 +1,10 @@
 package awesomecars.model;
 
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.json.JsonArray;
 import javax.json.JsonObject;
@@ -10,8 +12,9 @@ import javax.servlet.http.HttpServletRequest;
 
 import awesomecars.beans.AdvancedSearch;
 import awesomecars.beans.Vehicle;
+import awesomecars.monitoring.RequestTrace;
+import awesomecars.monitoring.Span;
 import awesomecars.persistence.IDatabaseAdapter;
-import awesomecars.persistence.MySQLDatabaseAdapter;
 
 /**
  * This class receives requests from the View via the ApplicationController and
@@ -21,11 +24,15 @@ import awesomecars.persistence.MySQLDatabaseAdapter;
  * @author Travis
  *
  */
+@SuppressWarnings("try")
 public final class VehicleRepository {
 
     /** Reference to the database adapter. */ 
      private static IDatabaseAdapter databaseInstance;
     
+    /** Flattened search table to query instead of the join (or null). */
+    private static volatile SearchReadModel readModel;
+    
     /**
      * Utility class should not have a public or default constructor.
      */
@@ -47,8 +54,9 @@ public final class VehicleRepository {
 		List<Vehicle> vehicles = new ArrayList<Vehicle>();
 		JsonArray results = null;
 
-		try {
-			results = ((MySQLDatabaseAdapter) databaseInstance)
+		try (Span span = RequestTrace.span(
+		        "repository.searchVehiclesBasic")) {
+			results = databaseInstance
 			        .callStoredProcedure("BasicSearchQuery", searchString);
 			vehicles = makeVehicleList(results);
 		} catch (SQLException e) {
@@ -68,15 +76,44 @@ public final class VehicleRepository {
      */
     public static List<Vehicle> searchVehiclesAdvanced(
             final HttpServletRequest request) {
+        return searchVehiclesAdvanced(request.getParameterMap());
+    }
+    
+    /**
+     * Queries the database based a number of filter criteria and returns
+     * results in an ArrayList. When the inventory has been loaded into
+     * memory the search is evaluated in-process instead, and when a
+     * search read model has been built it is queried instead of the join.
+     * 
+     * @param params search parameters (name to values)
+     * @return ArrayList of vehicle results
+     */
+    public static List<Vehicle> searchVehiclesAdvanced(
+            final Map<String, String[]> params) {
 
         // create container for vehicle results
         List<Vehicle> vehicles = new ArrayList<Vehicle>();
-        AdvancedSearch search = new AdvancedSearch(request);
+        AdvancedSearch search = null;
+        String query = null;
         JsonArray results = null;
 
-        try {
-            results = ((MySQLDatabaseAdapter) databaseInstance)
-                    .queryDatabase(search.toString());
+        try (Span span = RequestTrace.span(
+                "repository.searchVehiclesAdvanced")) {
+            try (Span parse = RequestTrace.span("AdvancedSearch.parse")) {
+                search = new AdvancedSearch(params);
+            }
+            if (InventoryRepository.isLoaded()) {
+                try (Span mem = RequestTrace.span("InventorySearch")) {
+                    vehicles = InventoryRepository.search(search);
+                    mem.detail(vehicles.size() + " rows");
+                }
+                return vehicles;
+            }
+            SearchReadModel flat = readModel;
+            try (Span sql = RequestTrace.span("AdvancedSearch.toString")) {
+                query = search.toSql(flat != null && flat.isReady());
+            }
+            results = databaseInstance.queryDatabase(query);
             vehicles = makeVehicleList(results);
         } catch (SQLException e) {
             System.out.println("Error obtaining AdvancedSearchResults: "
@@ -99,8 +136,9 @@ public final class VehicleRepository {
 		// create container for vehicle results
 		List<Vehicle> vehicles = new ArrayList<Vehicle>();
  		JsonArray results = null;
-		try {		
-			results = ((MySQLDatabaseAdapter) databaseInstance)
+		try (Span span = RequestTrace.span(
+		        "repository.searchVehiclesCategory")) {
+			results = databaseInstance
 			        .callStoredProcedure("CategorySearchQuery", model);
 			vehicles = makeVehicleList(results);
 		} catch (SQLException e) {
@@ -123,11 +161,14 @@ public final class VehicleRepository {
     
     		int arrLength = results.size();
     		
-    		for (int i = 0; i < arrLength; i++) {
-    			JsonObject obj = results.getJsonObject(i);
-    			Vehicle v = new Vehicle(obj);
-    			list.add(v);
-    		}	// end for
+    		try (Span span = RequestTrace.span("makeVehicleList")) {
+    		    for (int i = 0; i < arrLength; i++) {
+    		        JsonObject obj = results.getJsonObject(i);
+    		        Vehicle v = new Vehicle(obj);
+    		        list.add(v);
+    		    }	// end for
+    		    span.detail(arrLength + " rows");
+    		}
 	    }  // end if
 		
 		return list;
@@ -147,10 +188,13 @@ public final class VehicleRepository {
 		Vehicle vehicle =  null;
 		JsonArray results = null;
 
-		try {
-			results = ((MySQLDatabaseAdapter) databaseInstance)
+		try (Span span = RequestTrace.span("repository.getUsedVehicle")) {
+			results = databaseInstance
 			        .callStoredProcedure("GetUsedVehicle", vin);
-			if (results.size() == 1) {
+			if (results == null) {
+				System.out.println("Error: Database call failed for VIN "
+				        + vin);
+			} else if (results.size() == 1) {
 				vehicle = new Vehicle(results.getJsonObject(0));	
 			} else if (results.isEmpty()) {
 				System.out.println(
@@ -183,10 +227,10 @@ public final class VehicleRepository {
 	    Vehicle vehicle = null;
 		JsonArray results = null;
 	
-		try {
-			results = ((MySQLDatabaseAdapter) databaseInstance)
+		try (Span span = RequestTrace.span("repository.getNewVehicle")) {
+			results = databaseInstance
 			        .callStoredProcedure("GetNewVehicle", model);
-			int numResults = results.size();
+			int numResults = results == null ? 0 : results.size();
 			
 			if (numResults > 0) {
 			    // create vehicle from first result
@@ -211,6 +255,32 @@ public final class VehicleRepository {
 		return vehicle;    
 	}	// end getNewVehicle(...)
 
+	/**
+	 * Streams every vehicle, or an advanced search's results, to an
+	 * export: from the in-memory inventory when it has been loaded,
+	 * otherwise from the database through a forward-only cursor.
+	 * 
+	 * @param search the search (null for every vehicle)
+	 * @param export the export to write to
+	 * @return number of rows written
+	 * @throws SQLException if the database query fails
+	 * @throws IOException if the export cannot be written
+	 */
+	public static long exportVehicles(final AdvancedSearch search,
+	        final InventoryExport export) throws SQLException, IOException {
+	    try (Span span = RequestTrace.span("repository.exportVehicles")) {
+	        InventorySnapshot version = InventoryRepository.pin();
+	        if (version == null) {
+	            return export.fromDatabase(databaseInstance, search);
+	        }
+	        try {
+	            return export.fromInventory(version, search);
+	        } finally {
+	            version.unpin();
+	        }
+	    }
+	}	// end exportVehicles(...)
+
 	/**
 	 * Initializes the VehicleRepository with the provided
      * database adapter.
@@ -220,6 +290,15 @@ public final class VehicleRepository {
         databaseInstance = db; 
     }
 
+	/**
+	 * Sets the flattened search table advanced searches read once it has
+	 * been built.
+	 * @param model the read model (null to always query the join)
+	 */
+	public static void setReadModel(final SearchReadModel model) {
+	    readModel = model;
+	}
+
 }	// end class VehicleRepository
 
 
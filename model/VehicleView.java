@@ -0,0 +1,168 @@
+package awesomecars.model;
+
+import java.text.NumberFormat;
+import java.util.Collections;
+import java.util.Map;
+
+import awesomecars.beans.Vehicle;
+
+/**
+ * Read-only flyweight over one row of an OffHeapVehicleStore. Exposes the
+ * same getters as Vehicle so the JSP pages can render either; fields are
+ * decoded from the store each time they are read.
+ *
+ * @author Travis
+ */
+public final class VehicleView {
+
+    /** The store holding the row. */
+    private final OffHeapVehicleStore store;
+
+    /** Row number in the store. */
+    private final int row;
+
+    /**
+     * Creates a view; use OffHeapVehicleStore.view(...).
+     * @param s the store
+     * @param r row number
+     */
+    VehicleView(final OffHeapVehicleStore s, final int r) {
+        store = s;
+        row = r;
+    }
+
+    /** @return the row number in the store */
+    public int getRow() {
+        return row;
+    }
+
+    /** @return the make */
+    public String getMake() {
+        return store.getString(row, OffHeapVehicleStore.MAKE);
+    }
+
+    /** @return the model */
+    public String getModel() {
+        return store.getString(row, OffHeapVehicleStore.MODEL);
+    }
+
+    /** @return the body style */
+    public String getBodyStyle() {
+        return store.getString(row, OffHeapVehicleStore.BODY_STYLE);
+    }
+
+    /** @return the year */
+    public int getYear() {
+        return store.getInt(row, OffHeapVehicleStore.YEAR);
+    }
+
+    /** @return the price as an int */
+    public int getPrice() {
+        return store.getInt(row, OffHeapVehicleStore.PRICE);
+    }
+
+    /** @return the price as a properly formatted string (with commas) */
+    public String getPriceAsString() {
+        return NumberFormat.getIntegerInstance().format(getPrice());
+    }
+
+    /** @return the city MPG */
+    public int getMpgCity() {
+        return store.getInt(row, OffHeapVehicleStore.MPG_CITY);
+    }
+
+    /** @return the highway MPG */
+    public int getMpgHwy() {
+        return store.getInt(row, OffHeapVehicleStore.MPG_HWY);
+    }
+
+    /** @return the description */
+    public String getDescription() {
+        return store.getDescription(row);
+    }
+
+    /** @return the image filename */
+    public String getImageURL() {
+        return store.getImageURL(row);
+    }
+
+    /** @return the category (new or used) */
+    public String getCategory() {
+        return store.getString(row, OffHeapVehicleStore.CATEGORY);
+    }
+
+    /** @return the VIN */
+    public String getVin() {
+        return store.getVin(row);
+    }
+
+    /** @return the interior color */
+    public String getIntColor() {
+        return store.getString(row, OffHeapVehicleStore.INT_COLOR);
+    }
+
+    /** @return the exterior color */
+    public String getExtColor() {
+        return store.getString(row, OffHeapVehicleStore.EXT_COLOR);
+    }
+
+    /** @return the miles as an int */
+    public int getMiles() {
+        return store.getInt(row, OffHeapVehicleStore.MILES);
+    }
+
+    /** @return the miles as a properly formatted string (with commas) */
+    public String getMilesAsString() {
+        return NumberFormat.getIntegerInstance().format(getMiles());
+    }
+
+    /** @return the engine description */
+    public String getEngineDesc() {
+        return store.getString(row, OffHeapVehicleStore.ENGINE);
+    }
+
+    /** @return the transmission */
+    public String getTransmission() {
+        return store.getString(row, OffHeapVehicleStore.TRANSMISSION);
+    }
+
+    /** @return the store (location) name */
+    public String getLocation() {
+        return store.getString(row, OffHeapVehicleStore.STORE);
+    }
+
+    /** @return the inventory (this row's store and quantity) */
+    public Map<String, Integer> getInventory() {
+        String name = store.getString(row, OffHeapVehicleStore.STORE);
+        if (name == null) {
+            return Collections.<String, Integer>emptyMap();
+        }
+        return Collections.singletonMap(name,
+                store.getInt(row, OffHeapVehicleStore.COUNT));
+    }
+
+    /** @return a heap copy of the row as a Vehicle bean */
+    public Vehicle toVehicle() {
+        Vehicle v = new Vehicle();
+        v.setMake(getMake());
+        v.setModel(getModel());
+        v.setBodyStyle(getBodyStyle());
+        v.setYear(getYear());
+        v.setPrice(getPrice());
+        v.setMpgCity(getMpgCity());
+        v.setMpgHwy(getMpgHwy());
+        v.setDescription(getDescription());
+        v.setImageURL(getImageURL());
+        v.setCategory(getCategory());
+        v.setVin(getVin());
+        v.setIntColor(getIntColor());
+        v.setExtColor(getExtColor());
+        v.setMiles(getMiles());
+        v.setEngineDesc(getEngineDesc());
+        v.setTransmission(getTransmission());
+        for (Map.Entry<String, Integer> e : getInventory().entrySet()) {
+            v.setInventory(e.getKey(), e.getValue());
+        }
+        return v;
+    }   // end toVehicle()
+}   // end class VehicleView
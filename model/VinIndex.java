@@ -0,0 +1,113 @@
+package awesomecars.model;
+
+import java.util.Arrays;
+
+/**
+ * Finds the rows of an OffHeapVehicleStore by database key (VIN). Keys
+ * are not copied onto the heap: the table holds only row numbers, in
+ * open-addressed slots chosen by the key's hash, and a lookup compares
+ * the key against each candidate row's key in the store. The table is
+ * shared by every version of the inventory, so removed rows stay in it:
+ * a version pinned before a sale still includes the row. Callers filter
+ * the rows found for the version they read.
+ *
+ * @author Travis
+ */
+final class VinIndex {
+
+    /** Marks an empty slot. */
+    private static final int EMPTY = -1;
+
+    /** The store. */
+    private final OffHeapVehicleStore store;
+
+    /** Row numbers (or EMPTY), indexed by hash; length is a power of 2. */
+    private int[] slots;
+
+    /** Number of rows in the table. */
+    private int count;
+
+    /**
+     * Indexes every row currently in the store.
+     * @param s the store
+     */
+    VinIndex(final OffHeapVehicleStore s) {
+        store = s;
+        slots = newTable(s.size());
+        int n = s.size();
+        for (int row = 0; row < n; row++) {
+            insert(row);
+        }
+    }
+
+    /**
+     * @param rows number of rows to hold
+     * @return an empty table at most half full with that many rows
+     */
+    private static int[] newTable(final int rows) {
+        int capacity = Integer.highestOneBit(Math.max(16, rows) * 2 - 1) 
+                << 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    /**
+     * @param key a key
+     * @return its first slot
+     */
+    private int slot(final String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (slots.length - 1);
+    }
+
+    /**
+     * Adds a row.
+     * @param row row number
+     */
+    synchronized void add(final int row) {
+        if ((count + 1) * 2 > slots.length) {
+            // grow
+            int[] old = slots;
+            slots = newTable(count + 1);
+            count = 0;
+            for (int r : old) {
+                if (r != EMPTY) {
+                    insert(r);
+                }
+            }
+        }
+        insert(row);
+    }
+
+    /**
+     * @param row row number to place in the table
+     */
+    private void insert(final int row) {
+        int mask = slots.length - 1;
+        int i = slot(store.getKey(row));
+        while (slots[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = row;
+        count++;
+    }
+
+    /**
+     * Finds the rows with a key, including removed rows.
+     * @param key a key
+     * @return the rows (empty if none)
+     */
+    synchronized int[] find(final String key) {
+        int mask = slots.length - 1;
+        int[] rows = new int[0];
+        for (int i = slot(key); slots[i] != EMPTY; i = (i + 1) & mask) {
+            int row = slots[i];
+            if (key.equals(store.getKey(row))) {
+                rows = Arrays.copyOf(rows, rows.length + 1);
+                rows[rows.length - 1] = row;
+            }
+        }
+        return rows;
+    }   // end find(...)
+}   // end class VinIndex
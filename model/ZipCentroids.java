@@ -0,0 +1,193 @@
+package awesomecars.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Offline table of ZIP code centroids (latitude/longitude), used to place
+ * dealerships and searchers without a geocoding service. Loaded once from
+ * a delimited text file: either the Census Bureau's ZCTA Gazetteer file
+ * (tab-separated, columns GEOID/INTPTLAT/INTPTLONG) or a CSV with columns
+ * zip,lat,lon. The first line names the columns; other columns are
+ * ignored. Held as three parallel arrays sorted by ZIP code, so a lookup
+ * is a binary search and the whole US table takes well under a megabyte.
+ *
+ * @author Travis
+ */
+public final class ZipCentroids {
+
+    /** Classpath resource (in this package) loaded by loadDefault(). */
+    public static final String RESOURCE = "zip-centroids.txt";
+
+    /** ZIP codes, ascending. */
+    private final int[] zips;
+
+    /** Latitude of each ZIP code (degrees). */
+    private final float[] latitudes;
+
+    /** Longitude of each ZIP code (degrees). */
+    private final float[] longitudes;
+
+    /**
+     * Creates a table from parallel arrays, in any order.
+     * @param zip ZIP codes
+     * @param lat latitudes (degrees)
+     * @param lon longitudes (degrees)
+     */
+    public ZipCentroids(final int[] zip, final double[] lat,
+            final double[] lon) {
+        int n = zip.length;
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) zip[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        zips = new int[n];
+        latitudes = new float[n];
+        longitudes = new float[n];
+        for (int i = 0; i < n; i++) {
+            int from = (int) keys[i];
+            zips[i] = zip[from];
+            latitudes[i] = (float) lat[from];
+            longitudes[i] = (float) lon[from];
+        }
+    }   // end constructor
+
+    /**
+     * Loads a table from a file.
+     * @param file Gazetteer or zip,lat,lon file
+     * @return the table
+     * @throws IOException if the file cannot be read or parsed
+     */
+    public static ZipCentroids load(final File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Loads the table bundled as the RESOURCE classpath resource.
+     * @return the table, or null if none is bundled
+     * @throws IOException if the resource cannot be read or parsed
+     */
+    public static ZipCentroids loadDefault() throws IOException {
+        InputStream in = ZipCentroids.class.getResourceAsStream(RESOURCE);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses a table.
+     * @param reader Gazetteer or zip,lat,lon text
+     * @return the table
+     * @throws IOException if the text cannot be read or parsed
+     */
+    public static ZipCentroids load(final Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        String header = in.readLine();
+        if (header == null) {
+            throw new IOException("Empty ZIP centroid table");
+        }
+        String delimiter = header.indexOf('\t') >= 0 ? "\t" : ",";
+        String[] names = header.split(delimiter);
+        int zipCol = -1;
+        int latCol = -1;
+        int lonCol = -1;
+        for (int c = 0; c < names.length; c++) {
+            switch (names[c].trim().toLowerCase(Locale.US)) {
+                case "zip":
+                case "geoid":
+                    zipCol = c;
+                    break;
+                case "lat":
+                case "intptlat":
+                    latCol = c;
+                    break;
+                case "lon":
+                case "lng":
+                case "intptlong":
+                    lonCol = c;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (zipCol < 0 || latCol < 0 || lonCol < 0) {
+            throw new IOException("ZIP centroid table lacks zip/lat/lon "
+                    + "columns: " + header);
+        }
+        
+        int[] zip = new int[1024];
+        double[] lat = new double[1024];
+        double[] lon = new double[1024];
+        int n = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split(delimiter);
+            if (n == zip.length) {
+                zip = Arrays.copyOf(zip, n * 2);
+                lat = Arrays.copyOf(lat, n * 2);
+                lon = Arrays.copyOf(lon, n * 2);
+            }
+            try {
+                zip[n] = Integer.parseInt(fields[zipCol].trim());
+                lat[n] = Double.parseDouble(fields[latCol].trim());
+                lon[n] = Double.parseDouble(fields[lonCol].trim());
+            } catch (NumberFormatException 
+                    | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Bad ZIP centroid line: " + line, e);
+            }
+            n++;
+        }   // end while
+        return new ZipCentroids(Arrays.copyOf(zip, n), 
+                Arrays.copyOf(lat, n), Arrays.copyOf(lon, n));
+    }   // end load(...)
+
+    /** @return number of ZIP codes */
+    public int size() {
+        return zips.length;
+    }
+
+    /**
+     * @param zip a ZIP code
+     * @return true if the table has its centroid
+     */
+    public boolean contains(final int zip) {
+        return Arrays.binarySearch(zips, zip) >= 0;
+    }
+
+    /**
+     * @param zip a ZIP code
+     * @return latitude of its centroid (degrees), NaN if unknown
+     */
+    public double getLatitude(final int zip) {
+        int i = Arrays.binarySearch(zips, zip);
+        return i < 0 ? Double.NaN : latitudes[i];
+    }
+
+    /**
+     * @param zip a ZIP code
+     * @return longitude of its centroid (degrees), NaN if unknown
+     */
+    public double getLongitude(final int zip) {
+        int i = Arrays.binarySearch(zips, zip);
+        return i < 0 ? Double.NaN : longitudes[i];
+    }
+}   // end class ZipCentroids
@@ -0,0 +1,48 @@
+package awesomecars.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event emitted when the CarWebAppCache loads one of
+ * its lists from the database.
+ *
+ * @author Philip
+ */
+@Name("awesomecars.CacheLoad")
+@Label("Cache Load")
+@Category({ "AwesomeCars", "Cache" })
+@Description("CarWebAppCache list loaded from the database")
+@StackTrace(false)
+public final class CacheLoadEvent extends jdk.jfr.Event {
+
+    /** Stored procedure the lists were loaded from. */
+    @Label("Source")
+    private String source;
+
+    /** Number of entries loaded. */
+    @Label("Entries")
+    private int entries;
+
+    /** True if the load succeeded. */
+    @Label("Success")
+    private boolean success;
+
+    /** @param s the source procedure to set */
+    public void setSource(final String s) {
+        source = s;
+    }
+
+    /** @param n the number of entries to set */
+    public void setEntries(final int n) {
+        entries = n;
+    }
+
+    /** @param ok true if the load succeeded */
+    public void setSuccess(final boolean ok) {
+        success = ok;
+    }
+}   // end class CacheLoadEvent
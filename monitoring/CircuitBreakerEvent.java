@@ -0,0 +1,58 @@
+package awesomecars.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event emitted each time a database circuit breaker
+ * changes state (see CircuitBreaker), so outages show up on the same
+ * timeline as the database calls that caused them.
+ *
+ * @author Travis
+ */
+@Name("awesomecars.CircuitBreaker")
+@Label("Circuit Breaker")
+@Category({ "AwesomeCars", "Database" })
+@Description("State change of a database circuit breaker")
+@StackTrace(false)
+public final class CircuitBreakerEvent extends jdk.jfr.Event {
+
+    /** Procedure (or call type) the breaker guards. */
+    @Label("Breaker")
+    private String breaker;
+
+    /** State before the change. */
+    @Label("From")
+    private String from;
+
+    /** State after the change. */
+    @Label("To")
+    private String to;
+
+    /** Consecutive failures when the state changed. */
+    @Label("Failures")
+    private int failures;
+
+    /** @param name the breaker to set */
+    public void setBreaker(final String name) {
+        breaker = name;
+    }
+
+    /** @param state the previous state to set */
+    public void setFrom(final String state) {
+        from = state;
+    }
+
+    /** @param state the new state to set */
+    public void setTo(final String state) {
+        to = state;
+    }
+
+    /** @param n the number of consecutive failures to set */
+    public void setFailures(final int n) {
+        failures = n;
+    }
+}   // end class CircuitBreakerEvent
@@ -0,0 +1,85 @@
+package awesomecars.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event emitted for every stored procedure call and
+ * query made by the database adapter. The event duration covers the whole
+ * call; the individual timespans break it down into waiting for a
+ * connection, executing the statement and converting the ResultSet.
+ * Stack traces are disabled because the call site is always the adapter.
+ *
+ * Enable with e.g. -XX:StartFlightRecording and the setting
+ * awesomecars.DatabaseCall#enabled=true (on by default in the profile).
+ *
+ * @author Travis
+ */
+@Name("awesomecars.DatabaseCall")
+@Label("Database Call")
+@Category({ "AwesomeCars", "Database" })
+@Description("Stored procedure call or query made by the database adapter")
+@StackTrace(false)
+public final class DatabaseCallEvent extends jdk.jfr.Event {
+
+    /** Stored procedure name, or "query" for ad hoc SQL. */
+    @Label("Procedure")
+    private String procedure;
+
+    /** Hash of the statement with its literals removed. */
+    @Label("Query Shape Hash")
+    private long queryShapeHash;
+
+    /** Number of rows returned. */
+    @Label("Rows")
+    private int rows;
+
+    /** Time spent obtaining a connection. */
+    @Label("Connection Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    private long connectionWait;
+
+    /** Time spent executing the statement. */
+    @Label("Execute Time")
+    @Timespan(Timespan.NANOSECONDS)
+    private long executeTime;
+
+    /** Time spent converting the ResultSet. */
+    @Label("Conversion Time")
+    @Timespan(Timespan.NANOSECONDS)
+    private long conversionTime;
+
+    /** @param p the procedure name to set */
+    public void setProcedure(final String p) {
+        procedure = p;
+    }
+
+    /** @param h the query shape hash to set */
+    public void setQueryShapeHash(final long h) {
+        queryShapeHash = h;
+    }
+
+    /** @param r the number of rows to set */
+    public void setRows(final int r) {
+        rows = r;
+    }
+
+    /** @param nanos the connection wait to set */
+    public void setConnectionWait(final long nanos) {
+        connectionWait = nanos;
+    }
+
+    /** @param nanos the execute time to set */
+    public void setExecuteTime(final long nanos) {
+        executeTime = nanos;
+    }
+
+    /** @param nanos the conversion time to set */
+    public void setConversionTime(final long nanos) {
+        conversionTime = nanos;
+    }
+}   // end class DatabaseCallEvent
@@ -0,0 +1,97 @@
+package awesomecars.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event emitted each time InventorySync polls the
+ * database for inventory changes. The event duration covers the poll and
+ * applying its changes; the lag is how stale the in-memory inventory was
+ * when the poll started (time since the previous successful poll began).
+ *
+ * @author Travis
+ */
+@Name("awesomecars.InventorySync")
+@Label("Inventory Sync")
+@Category({ "AwesomeCars", "Inventory" })
+@Description("Incremental refresh of the in-memory inventory")
+@StackTrace(false)
+public final class InventorySyncEvent extends jdk.jfr.Event {
+
+    /** Staleness of the inventory when the poll started. */
+    @Label("Sync Lag")
+    @Timespan(Timespan.MILLISECONDS)
+    private long lag;
+
+    /** Changed rows returned by the poll. */
+    @Label("Changed Rows")
+    private int changed;
+
+    /** Rows added for vehicles not previously in the inventory. */
+    @Label("Inserted")
+    private int inserted;
+
+    /** Rows replaced because a price, count or other column changed. */
+    @Label("Updated")
+    private int updated;
+
+    /** Rows removed because the vehicle was sold. */
+    @Label("Removed")
+    private int removed;
+
+    /** Saved-search alerts written for the poll's changes. */
+    @Label("Alerts")
+    private int alerts;
+
+    /** High-water mark after the poll. */
+    @Label("High-Water Mark")
+    private String highWaterMark;
+
+    /** True if the poll succeeded. */
+    @Label("Success")
+    private boolean success;
+
+    /** @param millis the lag to set */
+    public void setLag(final long millis) {
+        lag = millis;
+    }
+
+    /** @param n the number of changed rows to set */
+    public void setChanged(final int n) {
+        changed = n;
+    }
+
+    /** @param n the number of inserted rows to set */
+    public void setInserted(final int n) {
+        inserted = n;
+    }
+
+    /** @param n the number of updated rows to set */
+    public void setUpdated(final int n) {
+        updated = n;
+    }
+
+    /** @param n the number of removed rows to set */
+    public void setRemoved(final int n) {
+        removed = n;
+    }
+
+    /** @param n the number of alerts written to set */
+    public void setAlerts(final int n) {
+        alerts = n;
+    }
+
+    /** @param mark the high-water mark to set */
+    public void setHighWaterMark(final String mark) {
+        highWaterMark = mark;
+    }
+
+    /** @param ok true if the poll succeeded */
+    public void setSuccess(final boolean ok) {
+        success = ok;
+    }
+}   // end class InventorySyncEvent
@@ -0,0 +1,76 @@
+package awesomecars.monitoring;
+
+/**
+ * Computes a hash of a SQL statement's "shape": the statement with its
+ * string and numeric literals removed and whitespace collapsed, so that
+ * two advanced searches that differ only in their price range hash to
+ * the same value. Utility class.
+ *
+ * @author Travis
+ */
+public final class QueryShape {
+
+    /** FNV-1a 64 bit offset basis. */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /** FNV-1a 64 bit prime. */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** Utility class should not be instantiated. */
+    private QueryShape() {
+        super();
+    }
+
+    /**
+     * Hashes the shape of a statement without allocating.
+     * @param sql SQL statement or stored procedure name
+     * @return 64 bit FNV-1a hash of the normalized statement
+     */
+    public static long hash(final String sql) {
+        long h = FNV_OFFSET;
+        if (sql == null) {
+            return h;
+        }
+
+        int len = sql.length();
+        boolean lastWasSpace = false;
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            char out;
+
+            if (c == '"' || c == '\'') {
+                // skip the string literal
+                int j = i + 1;
+                while (j < len && sql.charAt(j) != c) {
+                    j++;
+                }
+                i = j + 1;
+                out = '?';
+            } else if (Character.isDigit(c)
+                    && (i == 0 || !Character.isLetter(sql.charAt(i - 1)))) {
+                // skip the numeric literal
+                while (i < len && (Character.isDigit(sql.charAt(i))
+                        || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                out = '?';
+            } else if (Character.isWhitespace(c)) {
+                i++;
+                if (lastWasSpace) {
+                    continue;
+                }
+                lastWasSpace = true;
+                h = (h ^ ' ') * FNV_PRIME;
+                continue;
+            } else {
+                i++;
+                out = Character.toLowerCase(c);
+            }
+            lastWasSpace = false;
+            h = (h ^ out) * FNV_PRIME;
+        }   // end while
+        
+        return h;
+    }   // end hash(...)
+}   // end class QueryShape
@@ -0,0 +1,120 @@
+package awesomecars.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request-scoped tracing context. The servlet begins a trace for each
+ * request, and every layer underneath (ApplicationController, repositories
+ * and the database adapter) opens spans against the trace bound to the
+ * current thread. When the request completes the finished span tree is
+ * handed to the TraceLog, which decides whether to sample and/or dump it
+ * to the slow-request log.
+ *
+ * If tracing has not been enabled, or the current thread is not serving a
+ * traced request, span(...) returns a shared no-op span so the
+ * instrumentation costs a single ThreadLocal lookup.
+ *
+ * @author Travis
+ */
+public final class RequestTrace {
+
+    /** Trace bound to the thread currently serving the request. */
+    private static final ThreadLocal<RequestTrace> CURRENT =
+            new ThreadLocal<RequestTrace>();
+
+    /** Source of trace ids. */
+    private static final AtomicLong NEXT_ID = new AtomicLong(
+            System.currentTimeMillis() << 16);
+
+    /** Unique trace id. */
+    private final long traceId;
+
+    /** Wall clock start time in milliseconds. */
+    private final long startMillis;
+
+    /** Root span (opened by the servlet). */
+    private final Span root;
+
+    /** Innermost open span. */
+    private Span current;
+
+    /**
+     * Creates a trace with its root span.
+     * @param rootName name of the root span
+     */
+    private RequestTrace(final String rootName) {
+        traceId = NEXT_ID.incrementAndGet();
+        startMillis = System.currentTimeMillis();
+        root = new Span(this, null, rootName, System.nanoTime());
+        current = root;
+    }
+
+    /**
+     * Begins a trace on the current thread if tracing is enabled.
+     * @param rootName name of the root span
+     * @return the new trace or null if tracing is disabled
+     */
+    public static RequestTrace begin(final String rootName) {
+        if (!TraceLog.getInstance().isEnabled()) {
+            return null;
+        }
+        RequestTrace trace = new RequestTrace(rootName);
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * Opens a child span of the innermost open span on this thread.
+     * @param name span name
+     * @return the span (a no-op span if the thread is not traced)
+     */
+    public static Span span(final String name) {
+        RequestTrace trace = CURRENT.get();
+        if (trace == null) {
+            return Span.NOOP;
+        }
+        Span s = new Span(trace, trace.current, name, System.nanoTime());
+        trace.current.addChild(s);
+        trace.current = s;
+        return s;
+    }
+
+    /**
+     * Closes the root span, unbinds the trace from the thread and hands
+     * it to the TraceLog. Safe to call with null.
+     * @param trace trace returned by begin(...)
+     */
+    public static void end(final RequestTrace trace) {
+        if (trace == null) {
+            return;
+        }
+        trace.root.close();
+        CURRENT.remove();
+        TraceLog.getInstance().record(trace);
+    }
+
+    /**
+     * Pops a closed span off the stack of open spans.
+     * @param s the span that was just closed
+     */
+    void spanClosed(final Span s) {
+        if (current == s && s.getParent() != null) {
+            current = s.getParent();
+        }
+    }
+
+    /** @return the trace id */
+    public long getTraceId() {
+        return traceId;
+    }
+
+    /** @return the wall clock start time in milliseconds */
+    long getStartMillis() {
+        return startMillis;
+    }
+
+    /** @return the root span */
+    Span getRoot() {
+        return root;
+    }
+}   // end class RequestTrace
@@ -0,0 +1,119 @@
+package awesomecars.monitoring;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends text to a local file and rolls it over once it grows past a
+ * size limit, keeping a fixed number of old files (name.1 ... name.N).
+ * All methods are synchronized so a single instance can be shared by
+ * every request thread.
+ *
+ * @author Travis
+ */
+final class RotatingFileWriter {
+
+    /** Active file. */
+    private final File file;
+
+    /** Size at which the file is rolled over. */
+    private final long maxBytes;
+
+    /** Number of rolled-over files to keep. */
+    private final int maxFiles;
+
+    /** Open writer (null until the first write). */
+    private Writer out;
+
+    /** Bytes written to the active file. */
+    private long written;
+
+    /**
+     * Creates the writer. The file is opened lazily on first write.
+     * @param f file to append to
+     * @param max size in bytes at which to roll the file over
+     * @param keep number of old files to keep
+     */
+    RotatingFileWriter(final File f, final long max, final int keep) {
+        file = f;
+        maxBytes = max;
+        maxFiles = keep;
+    }
+
+    /**
+     * Appends text and flushes it. Errors are reported to the console and
+     * never propagated to the request being traced.
+     * @param text text to write (should end with a newline)
+     */
+    synchronized void write(final String text) {
+        try {
+            if (out == null) {
+                open();
+            }
+            out.write(text);
+            out.flush();
+            written += text.length();
+            if (written >= maxBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not write " + file + ": "
+                    + e.getMessage());
+        }
+    }   // end write(...)
+
+    /** Closes the active file. */
+    synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.out.println("Could not close " + file + ": "
+                        + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Opens the active file for appending.
+     * @throws IOException IOException
+     */
+    private void open() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        written = file.length();
+        out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Shifts name.N-1 to name.N, ..., name to name.1 and reopens name.
+     * @throws IOException IOException
+     */
+    private void rotate() throws IOException {
+        close();
+        File oldest = new File(file.getPath() + "." + maxFiles);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Unable to delete " + oldest);
+        }
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File f = new File(file.getPath() + "." + i);
+            if (f.exists() && !f.renameTo(
+                    new File(file.getPath() + "." + (i + 1)))) {
+                throw new IOException("Unable to rotate " + f);
+            }
+        }
+        if (maxFiles > 0 && !file.renameTo(new File(file.getPath() + ".1"))) {
+            throw new IOException("Unable to rotate " + file);
+        }
+        open();
+    }   // end rotate()
+}   // end class RotatingFileWriter
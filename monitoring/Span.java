@@ -0,0 +1,121 @@
+package awesomecars.monitoring;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single timed unit of work within a traced request, such as a call
+ * into the ApplicationController or a stored procedure execution. Spans
+ * form a tree rooted at the span opened by the servlet. Spans are meant
+ * to be used with try-with-resources so they are always closed. The body
+ * rarely refers to the span, so classes that open spans this way carry
+ * {@code @SuppressWarnings("try")} to keep javac's lint quiet.
+ *
+ * @author Travis
+ */
+public final class Span implements AutoCloseable {
+
+    /** Span returned when the current thread is not being traced. */
+    static final Span NOOP = new Span(null, null, null, 0L);
+
+    /** Trace this span belongs to (null for the no-op span). */
+    private final RequestTrace trace;
+
+    /** Parent span (null for the root span). */
+    private final Span parent;
+
+    /** Name of the layer/operation, e.g. "repository.searchVehiclesBasic". */
+    private final String name;
+
+    /** Start time in nanoseconds (System.nanoTime). */
+    private final long startNanos;
+
+    /** End time in nanoseconds, or zero while the span is open. */
+    private long endNanos;
+
+    /** Optional short annotation, e.g. the procedure name or row count. */
+    private String detail;
+
+    /** Child spans in the order they were started. */
+    private List<Span> children;
+
+    /**
+     * Creates a new span. Spans are created by RequestTrace only.
+     * @param t owning trace
+     * @param p parent span
+     * @param n span name
+     * @param start start time in nanoseconds
+     */
+    Span(final RequestTrace t, final Span p, final String n,
+            final long start) {
+        trace = t;
+        parent = p;
+        name = n;
+        startNanos = start;
+    }
+
+    /**
+     * Adds a child span. Called by RequestTrace.
+     * @param child the child span
+     */
+    void addChild(final Span child) {
+        if (children == null) {
+            children = new ArrayList<Span>(2);
+        }
+        children.add(child);
+    }
+
+    /**
+     * Attaches a short annotation to the span. Ignored when not tracing.
+     * @param d annotation text
+     * @return this span
+     */
+    public Span detail(final String d) {
+        if (trace != null) {
+            detail = d;
+        }
+        return this;
+    }
+
+    /** Ends the span and makes its parent the current span again. */
+    @Override
+    public void close() {
+        if (trace != null && endNanos == 0L) {
+            endNanos = System.nanoTime();
+            trace.spanClosed(this);
+        }
+    }
+
+    /** @return the span name */
+    public String getName() {
+        return name;
+    }
+
+    /** @return the parent span or null for the root */
+    Span getParent() {
+        return parent;
+    }
+
+    /** @return the annotation or null */
+    String getDetail() {
+        return detail;
+    }
+
+    /** @return the start time in nanoseconds */
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    /** @return the duration in nanoseconds (up to now if still open) */
+    public long getDurationNanos() {
+        return (endNanos == 0L ? System.nanoTime() : endNanos) - startNanos;
+    }
+
+    /** @return the child spans (never null) */
+    List<Span> getChildren() {
+        if (children == null) {
+            return new ArrayList<Span>(0);
+        }
+        return children;
+    }
+}   // end class Span
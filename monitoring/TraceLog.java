@@ -0,0 +1,181 @@
+package awesomecars.monitoring;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives finished request traces. A configurable fraction of traces is
+ * written to a rotating trace file in a compact one-line format, and any
+ * request slower than the slow-request threshold has its full span tree
+ * written to a separate rotating slow-request log regardless of sampling.
+ * Tracing is disabled until configure(...) is called with a directory.
+ * Implements the Singleton pattern.
+ *
+ * Compact format (times in microseconds, offsets relative to the root):
+ * <pre>
+ * traceId startMillis name@offset+duration[detail]{child,child}
+ * </pre>
+ *
+ * @author Travis
+ */
+public final class TraceLog {
+
+    /** Eager instantiation of Singleton class. */
+    private static TraceLog log = new TraceLog();
+
+    /** Maximum size of a trace/slow log file before it is rolled over. */
+    public static final long MAX_FILE_BYTES = 16L * 1024 * 1024;
+
+    /** Number of rolled-over files kept for each log. */
+    public static final int MAX_FILES = 5;
+
+    /** True once configured with a directory. */
+    private volatile boolean enabled = false;
+
+    /** Fraction of requests written to the trace file (0.0 - 1.0). */
+    private volatile double sampleRate = 0.0;
+
+    /** Requests slower than this are dumped to the slow log. */
+    private volatile long slowNanos = Long.MAX_VALUE;
+
+    /** Sampled traces. */
+    private RotatingFileWriter traceFile;
+
+    /** Slow-request span trees. */
+    private RotatingFileWriter slowFile;
+
+    /** Private constructor prevents any other class from instantiating. */
+    private TraceLog() {
+        super();
+    }
+
+    /** @return the TraceLog singleton */
+    public static TraceLog getInstance() {
+        return log;
+    }
+
+    /**
+     * Enables tracing. Typically called once from the servlet's init
+     * method with values from the web.xml file.
+     * @param directory directory to write trace.log and slow.log to
+     * @param rate fraction of requests to sample (0.0 - 1.0)
+     * @param slowMillis requests slower than this are always logged
+     */
+    public synchronized void configure(final File directory,
+            final double rate, final long slowMillis) {
+        shutdown();
+        traceFile = new RotatingFileWriter(new File(directory, "trace.log"),
+                MAX_FILE_BYTES, MAX_FILES);
+        slowFile = new RotatingFileWriter(new File(directory, "slow.log"),
+                MAX_FILE_BYTES, MAX_FILES);
+        sampleRate = Math.max(0.0, Math.min(1.0, rate));
+        slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        enabled = true;
+    }   // end configure(...)
+
+    /** Disables tracing and closes the log files. */
+    public synchronized void shutdown() {
+        enabled = false;
+        if (traceFile != null) {
+            traceFile.close();
+        }
+        if (slowFile != null) {
+            slowFile.close();
+        }
+    }
+
+    /** @return true if requests should be traced */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Samples and/or dumps a finished trace.
+     * @param trace the finished trace
+     */
+    void record(final RequestTrace trace) {
+        if (!enabled) {
+            return;
+        }
+        Span root = trace.getRoot();
+        if (root.getDurationNanos() >= slowNanos) {
+            StringBuilder sb = new StringBuilder(512);
+            sb.append("SLOW trace ").append(trace.getTraceId())
+              .append(" at ").append(trace.getStartMillis()).append('\n');
+            appendTree(sb, root, root.getStartNanos(), 1);
+            slowFile.write(sb.toString());
+        }
+        if (sampleRate > 0.0
+                && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(trace.getTraceId()).append(' ')
+              .append(trace.getStartMillis()).append(' ');
+            appendCompact(sb, root, root.getStartNanos());
+            sb.append('\n');
+            traceFile.write(sb.toString());
+        }
+    }   // end record(...)
+
+    /**
+     * Appends a span and its children in the compact one-line format.
+     * @param sb output
+     * @param s span
+     * @param origin start time of the root span
+     */
+    private static void appendCompact(final StringBuilder sb, final Span s,
+            final long origin) {
+        sb.append(s.getName()).append('@')
+          .append(micros(s.getStartNanos() - origin)).append('+')
+          .append(micros(s.getDurationNanos()));
+        if (s.getDetail() != null) {
+            sb.append('[').append(s.getDetail()).append(']');
+        }
+        if (!s.getChildren().isEmpty()) {
+            sb.append('{');
+            boolean first = true;
+            for (Span child : s.getChildren()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                appendCompact(sb, child, origin);
+                first = false;
+            }
+            sb.append('}');
+        }
+    }   // end appendCompact(...)
+
+    /**
+     * Appends a span and its children as an indented tree, one span per
+     * line, with offsets and durations in milliseconds.
+     * @param sb output
+     * @param s span
+     * @param origin start time of the root span
+     * @param depth indentation level
+     */
+    private static void appendTree(final StringBuilder sb, final Span s,
+            final long origin, final int depth) {
+        for (int i = 0; i < depth; i++) {
+            sb.append("  ");
+        }
+        sb.append(s.getName())
+          .append(String.format(" +%.3fms %.3fms",
+                  (s.getStartNanos() - origin) / 1e6,
+                  s.getDurationNanos() / 1e6));
+        if (s.getDetail() != null) {
+            sb.append(" [").append(s.getDetail()).append(']');
+        }
+        sb.append('\n');
+        for (Span child : s.getChildren()) {
+            appendTree(sb, child, origin, depth + 1);
+        }
+    }   // end appendTree(...)
+
+    /**
+     * @param nanos time in nanoseconds
+     * @return time in whole microseconds
+     */
+    private static long micros(final long nanos) {
+        return nanos / 1000L;
+    }
+}   // end class TraceLog
@@ -0,0 +1,4 @@
+/**
+ * Contains tracing and monitoring classes for the AwesomeCarsWebApp.
+ */
+package awesomecars.monitoring;
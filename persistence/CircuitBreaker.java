@@ -0,0 +1,165 @@
+package awesomecars.persistence;
+
+import awesomecars.monitoring.CircuitBreakerEvent;
+
+/**
+ * Stops calling the database for a procedure after it has failed several
+ * times in a row, so requests fail fast instead of each waiting for the
+ * driver to time out. After OPEN_MILLIS one trial call is let through
+ * (half open): if it succeeds the breaker closes, otherwise it opens
+ * again. Every state change is recorded as a CircuitBreakerEvent.
+ *
+ * @author Travis
+ */
+public final class CircuitBreaker {
+
+    /** Consecutive failures that open a breaker. */
+    public static final int FAILURE_THRESHOLD = 5;
+
+    /** Milliseconds an open breaker waits before a trial call. */
+    public static final long OPEN_MILLIS = 30000L;
+
+    /** State of a breaker. */
+    public enum State {
+        /** Calls go through. */
+        CLOSED,
+        /** Calls fail fast. */
+        OPEN,
+        /** One trial call is going through. */
+        HALF_OPEN
+    }
+
+    /** Procedure (or call type) guarded. */
+    private final String name;
+
+    /** Consecutive failures that open the breaker. */
+    private final int threshold;
+
+    /** Milliseconds to stay open before a trial call. */
+    private final long openMillis;
+
+    /** Current state. */
+    private State state = State.CLOSED;
+
+    /** Consecutive failures. */
+    private int failures = 0;
+
+    /** Time (ms) the breaker last opened. */
+    private long openedAt = 0L;
+
+    /** Times the breaker has opened. */
+    private long opened = 0L;
+
+    /** Calls refused while open. */
+    private long rejected = 0L;
+
+    /**
+     * Creates a breaker.
+     * @param n procedure (or call type) guarded
+     * @param failureThreshold consecutive failures that open it
+     * @param waitMillis milliseconds to stay open before a trial call
+     */
+    public CircuitBreaker(final String n, final int failureThreshold,
+            final long waitMillis) {
+        name = n;
+        threshold = failureThreshold;
+        openMillis = waitMillis;
+    }
+
+    /**
+     * Describes the breaker: name state failures opened rejected.
+     * @return the description
+     */
+    public synchronized String describe() {
+        return name + ' ' + state + " failures=" + failures
+                + " opened=" + opened + " rejected=" + rejected;
+    }
+
+    /** @return procedure (or call type) guarded */
+    public String getName() {
+        return name;
+    }
+
+    /** @return current state */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /** @return times the breaker has opened */
+    public synchronized long getOpened() {
+        return opened;
+    }
+
+    /** @return calls refused while open */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Asks to make a call. An open breaker that has waited long enough
+     * lets exactly one trial call through.
+     * @return true if the call may go to the database
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN
+                && System.currentTimeMillis() - openedAt >= openMillis) {
+            change(State.HALF_OPEN);
+            return true;
+        }
+        if (state != State.CLOSED) {
+            rejected++;
+            return false;
+        }
+        return true;
+    }
+
+    /** Records a call that succeeded, closing the breaker. */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        if (state != State.CLOSED) {
+            change(State.CLOSED);
+        }
+    }
+
+    /** Records a call that failed, opening the breaker if need be. */
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && failures >= threshold)) {
+            openedAt = System.currentTimeMillis();
+            opened++;
+            change(State.OPEN);
+        }
+    }
+
+    /**
+     * Records a call whose outcome says nothing about the database (the
+     * client went away, say). If it was the half-open trial, the breaker
+     * goes back to open and lets the next call be the trial.
+     */
+    public synchronized void recordIgnored() {
+        if (state == State.HALF_OPEN) {
+            change(State.OPEN);
+        }
+    }
+
+    /**
+     * Changes state and records the change.
+     * @param to the new state
+     */
+    private void change(final State to) {
+        CircuitBreakerEvent event = new CircuitBreakerEvent();
+        if (event.shouldCommit()) {
+            event.setBreaker(name);
+            event.setFrom(state.name());
+            event.setTo(to.name());
+            event.setFailures(failures);
+            event.commit();
+        }
+        if (to == State.OPEN) {
+            System.out.println("Circuit breaker " + name + " opened after "
+                    + failures + " failures");
+        }
+        state = to;
+    }   // end change(...)
+}   // end class CircuitBreaker
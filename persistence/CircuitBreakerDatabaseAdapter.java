@@ -0,0 +1,342 @@
+package awesomecars.persistence;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.json.JsonArray;
+
+import awesomecars.monitoring.QueryShape;
+
+/**
+ * Decorator that guards every call to another database adapter with a
+ * circuit breaker per stored procedure, and per statement shape for
+ * queries, streamed queries and updates (see QueryShape), so one failing
+ * statement does not trip the others. A call fails when it throws or
+ * returns null.
+ *
+ * The last good result of each call (by procedure and arguments, or by
+ * query) is kept in a bounded LRU stale store. When a breaker is open, or
+ * a call fails, the stale result is returned instead and the current
+ * thread's response is marked stale (see isStale()); with no stale result
+ * an open breaker throws at once rather than waiting on the database.
+ * Streamed queries and updates are never served stale. A call killed by
+ * its request's Deadline is passed on without counting as a failure.
+ *
+ * @author Travis
+ */
+public class CircuitBreakerDatabaseAdapter implements IDatabaseAdapter {
+
+    /** Results kept in the stale store. */
+    public static final int STALE_ENTRIES = 512;
+
+    /** Results with more rows than this are not kept. */
+    public static final int MAX_STALE_ROWS = 1000;
+
+    /** Prefix of the breakers of ad hoc queries. */
+    public static final String QUERY = "query:";
+
+    /** Prefix of the breakers of streamed queries. */
+    public static final String STREAM = "stream:";
+
+    /** Prefix of the breakers of updates. */
+    public static final String UPDATE = "update:";
+
+    /** True while the current request has been served a stale result. */
+    private static final ThreadLocal<Boolean> STALE =
+            new ThreadLocal<Boolean>();
+
+    /** A call made on the delegate. */
+    private interface Call<T> {
+        /**
+         * @return the result, or null if the call failed
+         * @throws SQLException if the call failed
+         */
+        T call() throws SQLException;
+    }
+
+    /** Adapter that does the real work. */
+    private final IDatabaseAdapter delegate;
+
+    /** Consecutive failures that open a breaker. */
+    private final int threshold;
+
+    /** Milliseconds an open breaker waits before a trial call. */
+    private final long openMillis;
+
+    /** Breakers, by procedure or statement shape. */
+    private final ConcurrentMap<String, CircuitBreaker> breakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /** Last good results, least recently used first. */
+    private final Map<String, Object> stale =
+            new LinkedHashMap<String, Object>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<String, Object> eldest) {
+            return size() > STALE_ENTRIES;
+        }
+    };
+
+    /**
+     * Wraps the delegate with the default breaker settings.
+     * @param db adapter to guard
+     */
+    public CircuitBreakerDatabaseAdapter(final IDatabaseAdapter db) {
+        this(db, CircuitBreaker.FAILURE_THRESHOLD,
+                CircuitBreaker.OPEN_MILLIS);
+    }
+
+    /**
+     * Wraps the delegate.
+     * @param db adapter to guard
+     * @param failureThreshold consecutive failures that open a breaker
+     * @param waitMillis milliseconds an open breaker waits before a trial
+     */
+    public CircuitBreakerDatabaseAdapter(final IDatabaseAdapter db,
+            final int failureThreshold, final long waitMillis) {
+        delegate = db;
+        threshold = failureThreshold;
+        openMillis = waitMillis;
+    }
+
+    /** @return true if the current request was served a stale result */
+    public static boolean isStale() {
+        return Boolean.TRUE.equals(STALE.get());
+    }
+
+    /** Forgets the current thread's stale mark, before a new request. */
+    public static void clearStale() {
+        STALE.remove();
+    }
+
+    /**
+     * @param name procedure, or breakerName(...) of a statement
+     * @return its breaker, created on first use
+     */
+    public final CircuitBreaker getBreaker(final String name) {
+        CircuitBreaker b = breakers.get(name);
+        if (b == null) {
+            CircuitBreaker created =
+                    new CircuitBreaker(name, threshold, openMillis);
+            b = breakers.putIfAbsent(name, created);
+            if (b == null) {
+                b = created;
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Describes every breaker, one per line, sorted by name.
+     * @return the description
+     */
+    public final String describe() {
+        List<String> names = new ArrayList<String>(breakers.keySet());
+        Collections.sort(names);
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            sb.append(breakers.get(name).describe()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public final JsonArray queryDatabase(final String query)
+            throws SQLException {
+        return guard(breakerName(QUERY, query), query,
+                new Call<JsonArray>() {
+            @Override
+            public JsonArray call() throws SQLException {
+                return delegate.queryDatabase(query);
+            }
+        });
+    }
+
+    @Override
+    public final long streamQuery(final String query, final int fetchSize,
+            final RowHandler handler) throws SQLException, IOException {
+        CircuitBreaker breaker = getBreaker(breakerName(STREAM, query));
+        if (!breaker.allowRequest()) {
+            throw new SQLException("Circuit open for " + breaker.getName());
+        }
+        long rows;
+        try {
+            rows = delegate.streamQuery(query, fetchSize, handler);
+        } catch (IOException e) {
+            breaker.recordIgnored();    // the client's failure
+            throw e;
+        } catch (SQLException e) {
+            if (Deadline.isKill(e)) {
+                breaker.recordIgnored();
+            } else {
+                breaker.recordFailure();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            breaker.recordFailure();
+            throw e;
+        }
+        breaker.recordSuccess();
+        return rows;
+    }
+
+    @Override
+    public final JsonArray callStoredProcedure(final String procedure,
+            final Object... args) throws SQLException {
+        return guard(procedure, key(procedure, args), new Call<JsonArray>() {
+            @Override
+            public JsonArray call() throws SQLException {
+                return delegate.callStoredProcedure(procedure, args);
+            }
+        });
+    }
+
+    @Override
+    public final List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+            final String procedure, final Object... args)
+            throws SQLException {
+        return guard(procedure, key(procedure, args),
+                new Call<List<ArrayList<String>>>() {
+            @Override
+            public List<ArrayList<String>> call() throws SQLException {
+                return delegate.callStoredProcedureMultipleResultSets(
+                        procedure, args);
+            }
+        });
+    }
+
+    @Override
+    public final int updateDatabase(final String statement)
+            throws SQLException {
+        return guard(breakerName(UPDATE, statement), null,
+                new Call<Integer>() {
+            @Override
+            public Integer call() throws SQLException {
+                return delegate.updateDatabase(statement);
+            }
+        });
+    }
+
+    /**
+     * @param prefix kind of statement (QUERY, STREAM or UPDATE)
+     * @param sql the statement
+     * @return name of the breaker of the statement's shape
+     */
+    public static String breakerName(final String prefix,
+            final String sql) {
+        return prefix + Long.toHexString(QueryShape.hash(sql));
+    }
+
+    /**
+     * @param procedure stored procedure
+     * @param args its arguments
+     * @return key of the call in the stale store
+     */
+    private static String key(final String procedure, final Object[] args) {
+        return procedure + Arrays.deepToString(args);
+    }
+
+    /**
+     * Makes a call through its breaker, keeping its result if it succeeds
+     * and falling back to the stale store if it fails or is refused.
+     * @param name breaker to use
+     * @param key key in the stale store (null: never served stale)
+     * @param call the call
+     * @param <T> result type
+     * @return the result, possibly stale (null if the call failed and no
+     *         stale result is kept)
+     * @throws SQLException if the call threw or the breaker is open, and
+     *         no stale result is kept
+     */
+    private <T> T guard(final String name, final String key,
+            final Call<T> call) throws SQLException {
+        CircuitBreaker breaker = getBreaker(name);
+        if (!breaker.allowRequest()) {
+            T old = stale(key);
+            if (old == null) {
+                throw new SQLException("Circuit open for " + name);
+            }
+            return old;
+        }
+        T result;
+        try {
+            result = call.call();
+        } catch (RuntimeException e) {
+            breaker.recordFailure();    // or a trial would never end
+            throw e;
+        } catch (SQLException e) {
+            if (Deadline.isKill(e)) {
+                // killed by its own request's deadline: not an outage
+                breaker.recordIgnored();
+                throw e;
+            }
+            breaker.recordFailure();
+            T old = stale(key);
+            if (old == null) {
+                throw e;
+            }
+            return old;
+        }
+        if (result == null) {
+            breaker.recordFailure();
+            return stale(key);
+        }
+        breaker.recordSuccess();
+        if (key != null && rows(result) <= MAX_STALE_ROWS) {
+            synchronized (stale) {
+                stale.put(key, result);
+            }
+        }
+        return result;
+    }   // end guard(...)
+
+    /**
+     * Looks up a call's last good result, marking the response stale if
+     * there is one.
+     * @param key key in the stale store (may be null)
+     * @param <T> result type
+     * @return the result, or null if none is kept
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T stale(final String key) {
+        if (key == null) {
+            return null;
+        }
+        Object old;
+        synchronized (stale) {
+            old = stale.get(key);
+        }
+        if (old != null) {
+            STALE.set(Boolean.TRUE);
+        }
+        return (T) old;
+    }
+
+    /**
+     * @param result a call's result
+     * @return its number of rows (or lists)
+     */
+    private static int rows(final Object result) {
+        if (result instanceof JsonArray) {
+            return ((JsonArray) result).size();
+        }
+        if (result instanceof List) {
+            int n = 0;
+            for (Object list : (List<?>) result) {
+                n += ((List<?>) list).size();
+            }
+            return n;
+        }
+        return 0;
+    }
+}   // end class CircuitBreakerDatabaseAdapter
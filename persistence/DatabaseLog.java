@@ -0,0 +1,80 @@
+package awesomecars.persistence;
+
+/**
+ * Constants describing the binary log format shared by the
+ * RecordingDatabaseAdapter and the ReplayDatabaseAdapter. All numbers are
+ * big-endian and strings are an int byte length followed by UTF-8 bytes
+ * (length -1 for null).
+ *
+ * <pre>
+ * file    := MAGIC VERSION record*
+ * record  := type:byte key:string argc:int arg:string* latencyNanos:long
+ *            payload
+ * payload := present:byte [table | lists | error]
+ * table   := rows:int [cols:int name:string* value:string*]  (rows * cols)
+ * lists   := count:int (size:int value:string*)*
+ * error   := message:string sqlState:string errorCode:int
+ * </pre>
+ *
+ * present is NULL_RESULT if the call returned null, RESULT if it
+ * returned a table or lists and FAILED if it threw an SQLException.
+ * Version 1 logs have no FAILED records.
+ *
+ * @author Travis
+ */
+final class DatabaseLog {
+
+    /** File magic ("ACDB"). */
+    static final int MAGIC = 0x41434442;
+
+    /** Format version. */
+    static final int VERSION = 2;
+
+    /** Oldest format version that can still be replayed. */
+    static final int MIN_VERSION = 1;
+
+    /** Record of queryDatabase(...). */
+    static final byte QUERY = 0;
+
+    /** Record of callStoredProcedure(...). */
+    static final byte PROCEDURE = 1;
+
+    /** Record of callStoredProcedureMultipleResultSets(...). */
+    static final byte MULTIPLE_RESULT_SETS = 2;
+
+    /** Payload of a call that returned null. */
+    static final byte NULL_RESULT = 0;
+
+    /** Payload of a call that returned results. */
+    static final byte RESULT = 1;
+
+    /** Payload of a call that threw an SQLException. */
+    static final byte FAILED = 2;
+
+    /** Separator used to build lookup keys. */
+    private static final char SEPARATOR = '\u0001';
+
+    /** Utility class should not be instantiated. */
+    private DatabaseLog() {
+        super();
+    }
+
+    /**
+     * Builds the key used to match a replayed call with a recorded one.
+     * @param type record type
+     * @param key procedure name or SQL query
+     * @param args procedure arguments
+     * @return lookup key
+     */
+    static String lookupKey(final byte type, final String key,
+            final Object... args) {
+        StringBuilder sb = new StringBuilder(key.length() + 16);
+        sb.append(type).append(SEPARATOR).append(key);
+        if (args != null) {
+            for (Object arg : args) {
+                sb.append(SEPARATOR).append(String.valueOf(arg));
+            }
+        }
+        return sb.toString();
+    }
+}   // end class DatabaseLog
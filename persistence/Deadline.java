@@ -0,0 +1,362 @@
+package awesomecars.persistence;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request-scoped time budget for database work. The servlet begins a
+ * deadline for each request, and every layer underneath (the controller,
+ * the repositories and the database adapters) sees it through the thread
+ * it runs on, as with RequestTrace. Before each JDBC call the adapter arms
+ * the statement (see arm(...)): it fails at once if the deadline has
+ * passed, otherwise gets a query timeout of the time remaining and is
+ * registered so it can be cancelled.
+ *
+ * A watchdog cancels the statements still running when the deadline
+ * passes (a query timeout only covers execution, not reading a streamed
+ * result), and cancel() stops them early once writing to the client has
+ * failed. A departed client is noticed at that write and no sooner.
+ * Queries killed either way are counted.
+ *
+ * Work tried several ways at once (a hedged read) runs each attempt under
+ * a fork of the deadline (see fork(...)): it has the same budget, but the
+ * attempts still running once one has answered can be cancelled without
+ * touching the rest of the request.
+ *
+ * @author Travis
+ */
+public final class Deadline {
+
+    /** SQLState MySQL reports for an interrupted (killed) query. */
+    private static final String QUERY_INTERRUPTED = "70100";
+
+    /** Message of the failure for a query whose deadline had passed. */
+    private static final String PASSED = "Request deadline passed";
+
+    /** Deadline bound to the thread currently serving the request. */
+    private static final ThreadLocal<Deadline> CURRENT =
+            new ThreadLocal<Deadline>();
+
+    /** Cancels statements still running when their deadline passes. */
+    private static final ScheduledThreadPoolExecutor WATCHDOG;
+
+    static {
+        WATCHDOG = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = Executors.defaultThreadFactory().newThread(r);
+                t.setName("deadline-watchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Queries killed because their deadline passed. */
+    private static final AtomicLong TIMED_OUT = new AtomicLong();
+
+    /** Queries killed because the client went away. */
+    private static final AtomicLong CANCELLED = new AtomicLong();
+
+    /** Queries not started because their deadline had already passed. */
+    private static final AtomicLong EXPIRED = new AtomicLong();
+
+    /** Queries cancelled because another attempt answered first. */
+    private static final AtomicLong SUPERSEDED = new AtomicLong();
+
+    /** System.nanoTime() at which the budget runs out. */
+    private final long expiresAt;
+
+    /** False for a fork of no deadline, which has no budget. */
+    private final boolean limited;
+
+    /** Deadline this one was forked from (null if none). */
+    private final Deadline parent;
+
+    /** Statements running under the deadline. */
+    private final Set<Statement> running = new HashSet<Statement>();
+
+    /** True once cancel() has been called. */
+    private volatile boolean cancelled = false;
+
+    /** The watchdog's task for this deadline. */
+    private ScheduledFuture<?> watchdog;
+
+    /**
+     * @param budgetMillis milliseconds of database work allowed
+     */
+    private Deadline(final long budgetMillis) {
+        expiresAt = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        limited = true;
+        parent = null;
+    }
+
+    /**
+     * @param d deadline to fork (null: no budget)
+     */
+    private Deadline(final Deadline d) {
+        expiresAt = d == null ? 0L : d.expiresAt;
+        limited = d != null;
+        parent = d;
+    }
+
+    /**
+     * Begins a deadline on the current thread.
+     * @param budgetMillis milliseconds of database work allowed
+     * @return the new deadline
+     */
+    public static Deadline begin(final long budgetMillis) {
+        final Deadline d = new Deadline(budgetMillis);
+        d.watchdog = WATCHDOG.schedule(new Runnable() {
+            @Override
+            public void run() {
+                d.cancelRunning(TIMED_OUT);
+            }
+        }, budgetMillis, TimeUnit.MILLISECONDS);
+        CURRENT.set(d);
+        return d;
+    }
+
+    /**
+     * Unbinds the deadline from the thread and stops its watchdog. Safe to
+     * call with null.
+     * @param d deadline returned by begin(...)
+     */
+    public static void end(final Deadline d) {
+        if (d == null) {
+            return;
+        }
+        d.watchdog.cancel(false);
+        CURRENT.remove();
+    }
+
+    /**
+     * Forks a deadline for one of several attempts at the same work. The
+     * fork has the same budget, and its statements are cancelled with the
+     * deadline's, but supersede() cancels the fork's alone. It has no
+     * watchdog of its own and is never ended.
+     * @param d the deadline to fork (null: a fork with no budget)
+     * @return the fork, to attach(...) on the thread making the attempt
+     */
+    public static Deadline fork(final Deadline d) {
+        return new Deadline(d);
+    }
+
+    /** @return the deadline of the current thread (null if none) */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds a deadline to the current thread, so work handed to another
+     * thread keeps the request's deadline.
+     * @param d the deadline (may be null)
+     * @return the deadline previously bound, to restore afterwards
+     */
+    public static Deadline attach(final Deadline d) {
+        Deadline previous = CURRENT.get();
+        if (d == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(d);
+        }
+        return previous;
+    }
+
+    /**
+     * @return milliseconds left (negative once passed, Long.MAX_VALUE
+     *         with no budget)
+     */
+    public long getRemainingMillis() {
+        if (!limited) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+    }
+
+    /** @return true if the budget has run out or the request cancelled */
+    public boolean isExpired() {
+        return cancelled || (parent != null && parent.isExpired())
+                || (limited && System.nanoTime() - expiresAt >= 0);
+    }
+
+    /**
+     * Cancels the statements running under the deadline and refuses any
+     * new ones, for a client that has gone away.
+     */
+    public void cancel() {
+        cancelled = true;
+        cancelRunning(CANCELLED);
+    }
+
+    /**
+     * Cancels the statements running under a fork, and refuses any new
+     * ones, once another attempt at the same work has answered.
+     */
+    public void supersede() {
+        cancelled = true;
+        cancelRunning(SUPERSEDED);
+    }
+
+    /**
+     * Cancels the statements running under the deadline.
+     * @param counter counts the statements cancelled
+     */
+    private void cancelRunning(final AtomicLong counter) {
+        List<Statement> statements;
+        synchronized (running) {
+            // after arm(...) has seen the flag or registered its statement
+            statements = new ArrayList<Statement>(running);
+        }
+        for (Statement st : statements) {
+            cancel(st, counter);
+        }
+    }
+
+    /**
+     * Cancels a statement, counting it if that worked.
+     * @param st the statement
+     * @param counter counts the statement
+     */
+    private static void cancel(final Statement st, final AtomicLong counter) {
+        try {
+            st.cancel();
+            counter.incrementAndGet();
+        } catch (SQLException e) {
+            System.out.println("Could not cancel query: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cancels a statement whose results the client will never read,
+     * along with anything else running for the request.
+     * @param st the statement
+     */
+    public static void abandon(final Statement st) {
+        Deadline d = CURRENT.get();
+        if (d != null) {
+            d.cancelled = true;
+            disarm(st);
+            d.cancelRunning(CANCELLED);
+        }
+        cancel(st, CANCELLED);
+    }
+
+    /**
+     * Prepares a statement to run under the current thread's deadline:
+     * sets its query timeout to the time remaining (rounded up to whole
+     * seconds, as JDBC requires; none for a fork with no budget) and
+     * registers it for cancellation with the deadline and any it was
+     * forked from. Does nothing on a thread with no deadline.
+     * @param st the statement, before it is executed
+     * @throws SQLTimeoutException if the deadline has already passed
+     * @throws SQLException if the timeout cannot be set
+     */
+    public static void arm(final Statement st) throws SQLException {
+        Deadline d = CURRENT.get();
+        if (d == null) {
+            return;
+        }
+        long remaining = d.getRemainingMillis();
+        if (d.limited) {
+            st.setQueryTimeout(
+                    (int) Math.max(1L, (remaining + 999L) / 1000L));
+        }
+        for (Deadline e = d; e != null; e = e.parent) {
+            synchronized (e.running) {
+                if (d.isExpired()) {
+                    break;
+                }
+                e.running.add(st);
+            }
+        }
+        if (d.isExpired()) {
+            disarm(st);
+            EXPIRED.incrementAndGet();
+            throw new SQLTimeoutException(PASSED);
+        }
+    }   // end arm(...)
+
+    /**
+     * Unregisters a statement armed with arm(...), once it has finished.
+     * @param st the statement
+     */
+    public static void disarm(final Statement st) {
+        for (Deadline d = CURRENT.get(); d != null; d = d.parent) {
+            synchronized (d.running) {
+                d.running.remove(st);
+            }
+        }
+    }
+
+    /**
+     * @param e a failure
+     * @return true if it means the query was killed by a timeout or a
+     *         cancel, or never started because its deadline had passed
+     */
+    public static boolean isKill(final SQLException e) {
+        return e instanceof SQLTimeoutException
+                || QUERY_INTERRUPTED.equals(e.getSQLState());
+    }
+
+    /**
+     * Tells whether a failure means the query was killed by a timeout or
+     * a cancel, counting it if the driver's query timeout killed it
+     * (cancelled queries are counted when cancelled).
+     * @param e the failure
+     * @return true if the query was killed
+     */
+    public static boolean killed(final SQLException e) {
+        if (!isKill(e)) {
+            return false;
+        }
+        if (e instanceof SQLTimeoutException
+                && !PASSED.equals(e.getMessage())) {
+            TIMED_OUT.incrementAndGet();
+        }
+        return true;
+    }
+
+    /** @return queries killed because their deadline passed */
+    public static long getTimedOut() {
+        return TIMED_OUT.get();
+    }
+
+    /** @return queries killed because the client went away */
+    public static long getCancelled() {
+        return CANCELLED.get();
+    }
+
+    /** @return queries not started because their deadline had passed */
+    public static long getExpired() {
+        return EXPIRED.get();
+    }
+
+    /** @return queries cancelled because another attempt answered first */
+    public static long getSuperseded() {
+        return SUPERSEDED.get();
+    }
+
+    /**
+     * Describes the counters, one per line.
+     * @return the description
+     */
+    public static String describe() {
+        return "timedOut=" + TIMED_OUT.get() + "\ncancelled="
+                + CANCELLED.get() + "\nexpired=" + EXPIRED.get()
+                + "\nsuperseded=" + SUPERSEDED.get() + "\n";
+    }
+}   // end class Deadline
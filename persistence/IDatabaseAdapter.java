@@ -1,6 +1,9 @@
 package awesomecars.persistence;
 
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.json.JsonArray;
 
@@ -16,6 +19,41 @@ public interface IDatabaseAdapter {
      */
     JsonArray queryDatabase(String query) throws SQLException;
     
-    /** @param statement the update statement to send to the database */
-	void updateDatabase(String statement);
+    /**
+     * Runs a query and hands each row to a handler as it is read, so the
+     * result is never held in memory as a whole.
+     * @param query the SQL query to execute
+     * @param fetchSize rows to fetch from the server at a time
+     * @param handler receives the column labels, then each row
+     * @return number of rows read
+     * @throws SQLException SQLException
+     * @throws IOException if the handler fails
+     */
+    long streamQuery(String query, int fetchSize, RowHandler handler)
+            throws SQLException, IOException;
+    
+    /**
+     * @param procedure name of the stored procedure to call
+     * @param args arguments to bind to the procedure
+     * @return the results as a JSONArray
+     * @throws SQLException SQLException
+     */
+    JsonArray callStoredProcedure(String procedure, Object... args)
+            throws SQLException;
+    
+    /**
+     * @param procedure name of the stored procedure to call
+     * @param args arguments to bind to the procedure
+     * @return the first column of each ResultSet as a list of strings
+     * @throws SQLException SQLException
+     */
+    List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+            String procedure, Object... args) throws SQLException;
+    
+    /**
+     * @param statement the update statement to send to the database
+     * @return number of rows changed
+     * @throws SQLException SQLException
+     */
+	int updateDatabase(String statement) throws SQLException;
 }
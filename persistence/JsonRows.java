@@ -0,0 +1,54 @@
+package awesomecars.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * Feeds an already materialized JSON result to a RowHandler, for
+ * adapters that cannot stream (e.g. when replaying a recording).
+ * @author Travis
+ */
+public final class JsonRows {
+
+    /** Default constructor must be private. */
+    private JsonRows() { };
+
+    /**
+     * Hands every row of a result to a handler. The labels are the keys
+     * of the first row.
+     * @param rows the result (null is treated as empty)
+     * @param handler the handler
+     * @return number of rows
+     * @throws IOException if the handler fails
+     */
+    public static long stream(final JsonArray rows, final RowHandler handler)
+            throws IOException {
+        List<String> labels = new ArrayList<String>();
+        if (rows != null && !rows.isEmpty()) {
+            labels.addAll(rows.getJsonObject(0).keySet());
+        }
+        String[] names = labels.toArray(new String[labels.size()]);
+        handler.columns(names);
+        if (rows == null) {
+            return 0L;
+        }
+        String[] values = new String[names.length];
+        for (int r = 0; r < rows.size(); r++) {
+            JsonObject obj = rows.getJsonObject(r);
+            for (int i = 0; i < names.length; i++) {
+                JsonValue v = obj.get(names[i]);
+                values[i] = v == null || v == JsonValue.NULL ? null
+                        : v instanceof JsonString 
+                        ? ((JsonString) v).getString() : v.toString();
+            }
+            handler.row(values);
+        }
+        return rows.size();
+    }   // end stream(...)
+}   // end class JsonRows
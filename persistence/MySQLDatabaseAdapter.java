@@ -1,11 +1,14 @@
 package awesomecars.persistence;
 
+import java.io.IOException;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,6 +17,11 @@ import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObjectBuilder;
 
+import awesomecars.monitoring.DatabaseCallEvent;
+import awesomecars.monitoring.QueryShape;
+import awesomecars.monitoring.RequestTrace;
+import awesomecars.monitoring.Span;
+
 /**
  * This is the MySQL specific implementation of the DatabaseAccessor abstract
  * class. The user is required to provide read and write credentials to the
@@ -22,20 +30,32 @@ import javax.json.JsonObjectBuilder;
  * @author Travis
  *
  */
+@SuppressWarnings("try")
 public class MySQLDatabaseAdapter implements IDatabaseAdapter {
 
+    /** Seconds to wait when validating the warm-up connection. */
+    private static final int WARM_UP_TIMEOUT_SECONDS = 5;
+    
+    /** Seconds a replica may lag the primary before it is marked down. */
+    public static final long DEFAULT_MAX_LAG_SECONDS = 30L;
+    
+    /** Reports how far a replica is behind its primary. */
+    private static final String REPLICA_LAG_QUERY = "SHOW SLAVE STATUS";
+    
     /** Username and password needed for read-only (query) access. */
 	private DatabaseCredential readCredentials = null;
 	
 	/**
 	 *  Username and password needed for write (update) access. 
-	 *  Not used in this project because we do not provide a back-end. 
+	 *  Only used to maintain derived tables (see SearchReadModel). 
 	 */
-	@SuppressWarnings("unused")
     private DatabaseCredential writeCredentials = null;
 	
 	/** URL of the database to connect to. */
 	private String dbURL = null;
+	
+	/** The primary and its read replicas; reads go to the replicas. */
+	private ReplicaSet replicaSet = null;
 
 	/**
 	 * Constructor for MySQLDatabaseAdapter.  Must supply the relevant
@@ -54,9 +74,33 @@ public class MySQLDatabaseAdapter implements IDatabaseAdapter {
 	        final String databaseURL, 
 	        final String readUserName, final String readPassword, 
 	        final String writeUserName, final String writePassword) {
+		this(databaseURL, new ArrayList<String>(), false,
+		        readUserName, readPassword, writeUserName, writePassword);
+	}
+	
+	/**
+	 * Constructor for a primary database with read replicas. Queries and
+	 * stored procedures are sent to the replicas (see ReplicaSet), and
+	 * statements to the primary.
+	 * 
+	 * @param databaseURL URL of the primary database
+	 * @param replicaURLs URLs of the read replicas (may be empty)
+	 * @param hedged true to hedge reads slower than a replica's p95
+	 * @param readUserName Username that has read-only permissions
+	 * @param readPassword Password for user with read-only permissions
+	 * @param writeUserName Username that has write permissions
+	 * @param writePassword Password for use with write permissions
+	 */
+	public MySQLDatabaseAdapter(
+	        final String databaseURL, final List<String> replicaURLs,
+	        final boolean hedged,
+	        final String readUserName, final String readPassword, 
+	        final String writeUserName, final String writePassword) {
 		dbURL = databaseURL;
 		readCredentials = new DatabaseCredential(readUserName, readPassword);
 		writeCredentials = new DatabaseCredential(writeUserName, writePassword);
+		replicaSet = new ReplicaSet(databaseURL, replicaURLs, hedged,
+		        DEFAULT_MAX_LAG_SECONDS);
 	}
 	
 	/**
@@ -70,8 +114,7 @@ public class MySQLDatabaseAdapter implements IDatabaseAdapter {
 
 	/**
 	 * Helper method that prepares the CallableStatement and binds parameters
-	 * to interface with MySQL's stored procedures. This method is not part of
-	 * the IDatabaseAdapter interface, and unfortunately it contains
+	 * to interface with MySQL's stored procedures. Unfortunately it contains
 	 * app-specific code which would not be useful from the perspective of
 	 * software reuse.
 	 *  
@@ -81,10 +124,68 @@ public class MySQLDatabaseAdapter implements IDatabaseAdapter {
 	 * @return JSONArray representation of ResultSet from stored procedure
 	 * @throws SQLException SQLException
 	 */
+	@Override
 	public final JsonArray callStoredProcedure(
 	        final String procedure, final Object... args) throws SQLException {
+	    try (Span span = RequestTrace.span("adapter.callStoredProcedure")
+	            .detail(procedure)) {
+	        return replicaSet.read(new ReplicaSet.Call<JsonArray>() {
+	            @Override
+	            public JsonArray call(final ReplicaSet.Replica db)
+	                    throws SQLException {
+	                return callStoredProcedureOn(db.getUrl(), procedure,
+	                        args);
+	            }
+	        });
+	    }
+	}  // end callStoredProcedure(...)
+	
+	/**
+	 * Calls a stored procedure on one database, recording the attempt in
+	 * a JFR event of its own (a retried or hedged call makes several,
+	 * possibly at once).
+	 * 
+	 * @param url URL of the database to call it on
+	 * @param procedure Name of stored procedure to be called
+	 * @param args Variable number of arguments to be sent to the 
+	 * procedure
+	 * @return JSONArray representation of ResultSet from stored procedure
+	 * @throws SQLException SQLException
+	 */
+	private JsonArray callStoredProcedureOn(final String url,
+	        final String procedure, final Object... args) throws SQLException {
+	    DatabaseCallEvent event = new DatabaseCallEvent();
+	    event.begin();
+	    try {
+	        return callStoredProcedureTraced(event, url, procedure, args);
+	    } finally {
+	        event.end();
+	        if (event.shouldCommit()) {
+	            event.setProcedure(procedure);
+	            event.setQueryShapeHash(QueryShape.hash(procedure));
+	            event.commit();
+	        }
+	    }
+	}  // end callStoredProcedureOn(...)
+	
+	/**
+	 * Body of callStoredProcedureOn(...).
+	 * 
+	 * @param event JFR event to record timings and row counts in
+	 * @param url URL of the database to call it on
+	 * @param procedure Name of stored procedure to be called
+	 * @param args Variable number of arguments to be sent to the 
+	 * procedure
+	 * @return JSONArray representation of ResultSet from stored procedure
+	 * @throws SQLException SQLException
+	 */
+	private JsonArray callStoredProcedureTraced(final DatabaseCallEvent event,
+	        final String url, final String procedure, final Object... args)
+	        throws SQLException {
 
-		Connection conn = getConnection();
+	    long start = System.nanoTime();
+		Connection conn = getConnection(url, readCredentials);
+		event.setConnectionWait(System.nanoTime() - start);
 		CallableStatement cs = null;
 		ResultSet rs = null;
 		JsonArray jsonResults = null;
@@ -120,16 +221,27 @@ public class MySQLDatabaseAdapter implements IDatabaseAdapter {
 			
 			// executes query and converts ResultSet to JSONArray
 			try {
-				rs = cs.executeQuery();
+				Deadline.arm(cs);
+				start = System.nanoTime();
+				try (Span span = RequestTrace.span("adapter.execute")) {
+				    rs = cs.executeQuery();
+				}
+				event.setExecuteTime(System.nanoTime() - start);
 				
 				try {
+				    start = System.nanoTime();
 					jsonResults = convertToJson(rs); 
+					event.setConversionTime(System.nanoTime() - start);
+					event.setRows(jsonResults.size());
 				} catch (Exception e) {
 					System.out.println(
 					        "Could not covert ResultSet to JSON:"
 					        + e.getMessage());
 				}
 			} catch (SQLException e) {
+				if (Deadline.killed(e)) {
+				    throw e;    // not a failure worth retrying
+				}
 				System.out.println(
 				        "Could not query database: " + e.getMessage());
 			} finally {
@@ -139,6 +251,7 @@ public class MySQLDatabaseAdapter implements IDatabaseAdapter {
 				}
 				
 				if (cs != null) {
+					Deadline.disarm(cs);
 					cs.close();
 				}
 				
@@ -160,48 +273,100 @@ public class MySQLDatabaseAdapter implements IDatabaseAdapter {
      * @throws SQLException SQLException
 	 */
 	// TODO - Refactor: return type should be in JSON not a list of lists
+	@Override
 	public final List<ArrayList<String>> 
 	    callStoredProcedureMultipleResultSets(final String procedure, 
 	        final Object... args) throws SQLException {
+	    return replicaSet.read(new ReplicaSet.Call<List<ArrayList<String>>>() {
+	        @Override
+	        public List<ArrayList<String>> call(final ReplicaSet.Replica db)
+	                throws SQLException {
+	            return callMultipleResultSets(db.getUrl(), procedure, args);
+	        }
+	    });
+	}
+	
+	/**
+	 * Body of callStoredProcedureMultipleResultSets(...), run on one
+	 * database.
+	 * 
+	 * @param url URL of the database to call it on
+     * @param procedure Name of stored procedure to be called
+     * @param args Variable number of arguments to be sent to the 
+     * procedure 
+     * @return List of String Lists
+     * @throws SQLException SQLException
+	 */
+	private List<ArrayList<String>> callMultipleResultSets(final String url,
+	        final String procedure, final Object... args) throws SQLException {
 
         List<ArrayList<String>> allLists = null; 
-	    Connection conn = getConnection();
+        DatabaseCallEvent event = new DatabaseCallEvent();
+        event.begin();
+        long start = System.nanoTime();
+	    Connection conn = getConnection(url, readCredentials);
         CallableStatement stmt = null;
+        int rows = 0;
+        event.setConnectionWait(System.nanoTime() - start);
        
         if (conn == null) { return null; }
         
-        if (procedure.equals("GetLookupLists")) {
-            stmt = conn.prepareCall("{call GetLookupLists()}");
-        } else {
-            System.out.println(procedure + " stored procedure not found!");
-            return null; // will be null
-        }   // end switch
+        try {
+            if (procedure.equals("GetLookupLists")) {
+                stmt = conn.prepareCall("{call GetLookupLists()}");
+            } else {
+                System.out.println(procedure + " stored procedure not found!");
+                return null; // will be null
+            }   // end switch
             
-        allLists = new ArrayList<ArrayList<String>>();
-        boolean results = stmt.execute(); 
+            allLists = new ArrayList<ArrayList<String>>();
+            Deadline.arm(stmt);
+            start = System.nanoTime();
+            boolean results = stmt.execute(); 
+            event.setExecuteTime(System.nanoTime() - start);
+            start = System.nanoTime();
 
-        // loop through ResultSets if they exist
-        while (results) {
-            List<String> innerList = new   ArrayList<String>();
-            ResultSet rs = stmt.getResultSet();
+            // loop through ResultSets if they exist
+            while (results) {
+                List<String> innerList = new   ArrayList<String>();
+                ResultSet rs = stmt.getResultSet();
 	               
-            //Retrieve data from the result set.
-            while (rs.next()) {
-                // get the string in the first column.
-                innerList.add(rs.getString(1));  
-            } // end while
+                //Retrieve data from the result set.
+                while (rs.next()) {
+                    // get the string in the first column.
+                    innerList.add(rs.getString(1));  
+                    rows++;
+                } // end while
 	               
-            rs.close();
-            ((ArrayList<ArrayList<String>>) allLists)
-                .add((ArrayList<String>) innerList);
+                rs.close();
+                ((ArrayList<ArrayList<String>>) allLists)
+                    .add((ArrayList<String>) innerList);
 	               
-            // Check for next result set
-            results = stmt.getMoreResults();
-        }   // end while(results)
+                // Check for next result set
+                results = stmt.getMoreResults();
+            }   // end while(results)
             
-        stmt.close();
+        } catch (SQLException e) {
+            Deadline.killed(e);
+            throw e;
+        } finally {
+            if (stmt != null) {
+                Deadline.disarm(stmt);
+                stmt.close();
+            }
+            putConnection(conn);
+        }   // end try/finally
+        
+        event.end();
+        if (event.shouldCommit()) {
+            event.setConversionTime(System.nanoTime() - start);
+            event.setRows(rows);
+            event.setProcedure(procedure);
+            event.setQueryShapeHash(QueryShape.hash(procedure));
+            event.commit();
+        }
         return allLists;
-	}  // end callStoredProcecureMultipleResultSets(...)
+	}  // end callMultipleResultSets(...)
 
 	/**
 	 * Obtains a read-only connection to the database and attempts to query the
@@ -216,24 +381,64 @@ public class MySQLDatabaseAdapter implements IDatabaseAdapter {
 	@Override
 	public final JsonArray queryDatabase(final String query) 
 	        throws SQLException {
+	    return replicaSet.read(new ReplicaSet.Call<JsonArray>() {
+	        @Override
+	        public JsonArray call(final ReplicaSet.Replica db)
+	                throws SQLException {
+	            return queryDatabase(db.getUrl(), query);
+	        }
+	    });
+	}
+	
+	/**
+	 * Body of queryDatabase(...), run on one database.
+	 * 
+	 * @param url URL of the database to query
+	 * @param query	Correctly formatted MySQL query string
+	 * @return JSONArray generic form of ResultSet from query if successful;
+	 * otherwise null
+	 * @throws SQLException SQLException
+	 */
+	private JsonArray queryDatabase(final String url, final String query) 
+	        throws SQLException {
 		
-		Connection conn = getConnection();
+		Connection conn = null;
 		ResultSet rs = null;
 		PreparedStatement ps = null;
 		JsonArray jsonResults = null;
+		DatabaseCallEvent event = new DatabaseCallEvent();
+		event.begin();
 
-		if (conn != null) {
+		try (Span span = RequestTrace.span("adapter.queryDatabase")) {
+		    long start = System.nanoTime();
+		    conn = getConnection(url, readCredentials);
+		    event.setConnectionWait(System.nanoTime() - start);
+		    if (conn == null) {
+		        return jsonResults;    // will be null
+		    }
+		    
 			try {
-				ps = conn.prepareStatement(query);
-				rs = ps.executeQuery(query);
+			    start = System.nanoTime();
+				try (Span execute = RequestTrace.span("adapter.execute")) {
+				    ps = conn.prepareStatement(query);
+				    Deadline.arm(ps);
+				    rs = ps.executeQuery(query);
+				}
+				event.setExecuteTime(System.nanoTime() - start);
 				try {
+				    start = System.nanoTime();
 					jsonResults = convertToJson(rs); 
+					event.setConversionTime(System.nanoTime() - start);
+					event.setRows(jsonResults.size());
 				} catch (Exception e) {
 					System.out.println(
 					        "Could not covert ResultSet to JSON:" 
 					        + e.getMessage());
 				}
 			} catch (SQLException e) {
+				if (Deadline.killed(e)) {
+				    throw e;    // not a failure worth retrying
+				}
 				System.out.println(
 				        "Could not query database: " + e.getMessage());
 			} finally {
@@ -242,35 +447,252 @@ public class MySQLDatabaseAdapter implements IDatabaseAdapter {
 				}
 				
 				if (ps != null) {
+					Deadline.disarm(ps);
 					ps.close();
 				}
 				
 				putConnection(conn);
 			}	// end try/finally
-		}	// end if
+		} finally {
+		    event.end();
+		    if (event.shouldCommit()) {
+		        event.setProcedure("query");
+		        event.setQueryShapeHash(QueryShape.hash(query));
+		        event.commit();
+		    }
+		}	// end try (span)
 		
 		return jsonResults;
 	}	// end queryDatabase(...)
 
+	/**
+	 * Runs a query on a forward-only, read-only statement with a fetch
+	 * size, handing each row to the handler as it is read. Connector/J
+	 * reads the whole result into memory unless told otherwise: it honours
+	 * a positive fetch size only when the URL sets useCursorFetch=true
+	 * (the server then keeps a cursor and sends fetchSize rows at a time),
+	 * and streams row by row when the fetch size is Integer.MIN_VALUE.
+	 * The connection is held until the last row has been handled. Streams
+	 * read from a replica but are never hedged. If the handler fails (the
+	 * client has gone), the query is cancelled before the result closes.
+	 * 
+	 * @param query	Correctly formatted MySQL query string
+	 * @param fetchSize rows to fetch from the server at a time
+	 * @param handler receives the column labels, then each row
+	 * @return number of rows read
+	 * @throws SQLException if the query fails
+	 * @throws IOException if the handler fails
+	 */
 	@Override
-	public final void updateDatabase(final String statement) {
-	    throw new UnsupportedOperationException(
-	            "Not implemented for this project."); 
+	public final long streamQuery(final String query, final int fetchSize,
+	        final RowHandler handler) throws SQLException, IOException {
+	    long rows = 0L;
+	    DatabaseCallEvent event = new DatabaseCallEvent();
+	    event.begin();
+	    ReplicaSet.Replica db = replicaSet.acquire();
+	    try (Span span = RequestTrace.span("adapter.streamQuery")) {
+	        long start = System.nanoTime();
+	        Connection conn = getConnection(db.getUrl(), readCredentials);
+	        event.setConnectionWait(System.nanoTime() - start);
+	        if (conn == null) {
+	            throw new SQLException("Unable to connect to " + dbURL);
+	        }
+	        try (PreparedStatement ps = conn.prepareStatement(query,
+	                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+	            ps.setFetchSize(fetchSize);
+	            Deadline.arm(ps);
+	            start = System.nanoTime();
+	            try (ResultSet rs = ps.executeQuery()) {
+	                event.setExecuteTime(System.nanoTime() - start);
+	                start = System.nanoTime();
+	                ResultSetMetaData meta = rs.getMetaData();
+	                String[] labels = new String[meta.getColumnCount()];
+	                for (int i = 0; i < labels.length; i++) {
+	                    labels[i] = meta.getColumnLabel(i + 1).toLowerCase();
+	                }
+	                String[] values = new String[labels.length];
+	                try {
+	                    handler.columns(labels);
+	                    while (rs.next()) {
+	                        for (int i = 0; i < values.length; i++) {
+	                            values[i] = rs.getString(i + 1);
+	                        }
+	                        handler.row(values);
+	                        rows++;
+	                    }
+	                } catch (IOException e) {
+	                    // the client has gone: stop the server sending the
+	                    // rest, which closing the result would otherwise read
+	                    Deadline.abandon(ps);
+	                    throw e;
+	                }
+	                event.setConversionTime(System.nanoTime() - start);
+	                event.setRows((int) Math.min(rows, Integer.MAX_VALUE));
+	            } catch (SQLException e) {
+	                Deadline.killed(e);
+	                throw e;
+	            } finally {
+	                Deadline.disarm(ps);
+	            }
+	        } finally {
+	            putConnection(conn);
+	        }
+	    } finally {
+	        replicaSet.release(db);
+	        event.end();
+	        if (event.shouldCommit()) {
+	            event.setProcedure("stream");
+	            event.setQueryShapeHash(QueryShape.hash(query));
+	            event.commit();
+	        }
+	    }	// end try (span)
+	    return rows;
+	}	// end streamQuery(...)
+
+	/**
+	 * Executes a data definition or modification statement using the
+	 * credentials for writing the database.
+	 * 
+	 * @param statement Correctly formatted MySQL statement
+	 * @return number of rows changed (0 for DDL)
+	 * @throws SQLException if the statement fails
+	 */
+	@Override
+	public final int updateDatabase(final String statement)
+	        throws SQLException {
+	    DatabaseCallEvent event = new DatabaseCallEvent();
+	    event.begin();
+	    try (Span span = RequestTrace.span("adapter.updateDatabase")) {
+	        long start = System.nanoTime();
+	        Connection conn = getConnection(dbURL, writeCredentials);
+	        event.setConnectionWait(System.nanoTime() - start);
+	        if (conn == null) {
+	            throw new SQLException("Unable to connect to " + dbURL);
+	        }
+	        try (Statement st = conn.createStatement()) {
+	            Deadline.arm(st);
+	            try {
+	                start = System.nanoTime();
+	                int rows = st.executeUpdate(statement);
+	                event.setExecuteTime(System.nanoTime() - start);
+	                event.setRows(rows);
+	                return rows;
+	            } catch (SQLException e) {
+	                Deadline.killed(e);
+	                throw e;
+	            } finally {
+	                Deadline.disarm(st);
+	            }
+	        } finally {
+	            putConnection(conn);
+	        }
+	    } finally {
+	        event.end();
+	        if (event.shouldCommit()) {
+	            event.setProcedure("update");
+	            event.setQueryShapeHash(QueryShape.hash(statement));
+	            event.commit();
+	        }
+	    }	// end try (span)
 	}	// end updateDatabase(...)
 
 	/**
-	 * Attempts to return a connection to the database using read-only
-	 * credentials.
+	 * Opens and validates a connection so the driver's classes are loaded
+	 * and the first request does not pay for the initial handshake.
+	 * 
+	 * @throws SQLException if no valid connection could be opened
+	 */
+	public final void warmUp() throws SQLException {
+	    Connection conn = getConnection();
+	    if (conn == null) {
+	        throw new SQLException("Unable to connect to " + dbURL);
+	    }
+	    try {
+	        if (!conn.isValid(WARM_UP_TIMEOUT_SECONDS)) {
+	            throw new SQLException("Connection to " + dbURL 
+	                    + " is not valid");
+	        }
+	    } finally {
+	        putConnection(conn);
+	    }
+	}	// end warmUp()
+
+	/** @return the primary and its read replicas */
+	public final ReplicaSet getReplicaSet() {
+	    return replicaSet;
+	}
+
+	/**
+	 * Starts checking how far each read replica is behind the primary,
+	 * marking those more than DEFAULT_MAX_LAG_SECONDS behind (or not
+	 * replicating) down until they catch up.
+	 * 
+	 * @param periodSeconds seconds between checks
+	 */
+	public final void startReplicaChecks(final long periodSeconds) {
+	    replicaSet.start(periodSeconds, new ReplicaSet.LagProbe() {
+	        @Override
+	        public long lagSeconds(final ReplicaSet.Replica db)
+	                throws SQLException {
+	            return replicaLag(db.getUrl());
+	        }
+	    });
+	}
+
+	/** Stops the replica checks and hedged read threads. */
+	public final void close() {
+	    replicaSet.close();
+	}
+
+	/**
+	 * Asks a replica how far it is behind its primary.
+	 * 
+	 * @param url URL of the replica
+	 * @return seconds behind, or -1 if it is not replicating
+	 * @throws SQLException if the replica cannot be asked
+	 */
+	private long replicaLag(final String url) throws SQLException {
+	    Connection conn = getConnection(url, readCredentials);
+	    if (conn == null) {
+	        throw new SQLException("Unable to connect to " + url);
+	    }
+	    try (Statement st = conn.createStatement();
+	            ResultSet rs = st.executeQuery(REPLICA_LAG_QUERY)) {
+	        if (!rs.next()) {
+	            return -1L;
+	        }
+	        long lag = rs.getLong("Seconds_Behind_Master");
+	        return rs.wasNull() ? -1L : lag;
+	    } finally {
+	        putConnection(conn);
+	    }
+	}	// end replicaLag(...)
+
+	/**
+	 * Attempts to return a connection to the primary database using
+	 * read-only credentials.
 	 * 
 	 * @return		Connection to database
 	 */
 	private Connection getConnection() {
-		try {
+	    return getConnection(dbURL, readCredentials);
+	}
+
+	/**
+	 * Attempts to return a connection to a database.
+	 * 
+	 * @param url URL of the primary or a replica
+	 * @param credentials username and password to connect with
+	 * @return		Connection to database
+	 */
+	private Connection getConnection(final String url,
+	        final DatabaseCredential credentials) {
+		try (Span span = RequestTrace.span("adapter.getConnection")) {
 			Class.forName("com.mysql.jdbc.Driver");
 			return DriverManager.getConnection(
-			        dbURL, 
-			        readCredentials.getUserName(),
-			        readCredentials.getPassword());
+			        url, 
+			        credentials.getUserName(),
+			        credentials.getPassword());
 		} catch (ClassNotFoundException e) {
 			System.out.println(String.format(
 			  "getConnection could not instantiate the driver class: %s", e));
@@ -313,16 +735,18 @@ public class MySQLDatabaseAdapter implements IDatabaseAdapter {
 	private JsonArray convertToJson(final ResultSet rs) throws SQLException {
 		JsonArrayBuilder jsonResults = Json.createArrayBuilder();
 		
-		while (rs.next()) {
-			int totalColumns = rs.getMetaData().getColumnCount();
-			JsonObjectBuilder obj = Json.createObjectBuilder();
-			for (int i = 0; i < totalColumns; i++) {
+		try (Span span = RequestTrace.span("adapter.convertToJson")) {
+		    while (rs.next()) {
+		        int totalColumns = rs.getMetaData().getColumnCount();
+		        JsonObjectBuilder obj = Json.createObjectBuilder();
+		        for (int i = 0; i < totalColumns; i++) {
 
-			    obj.add(rs.getMetaData().getColumnLabel(i + 1).toLowerCase(),
-			            rs.getObject(i + 1).toString());
-			}
-			jsonResults.add(obj.build());
-		}
+		            obj.add(rs.getMetaData().getColumnLabel(i + 1)
+		                    .toLowerCase(), rs.getObject(i + 1).toString());
+		        }
+		        jsonResults.add(obj.build());
+		    }
+		}  // end try (span)
 		
 		return jsonResults.build();
 	}	// end convertToJson(ResultSet)
@@ -0,0 +1,256 @@
+package awesomecars.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+
+/**
+ * Decorator that passes every call through to another database adapter
+ * and appends the call, its latency and its result (or the SQLException
+ * it threw) to a compact binary log (see DatabaseLog for the format).
+ * The log can later be served back by the ReplayDatabaseAdapter to
+ * benchmark new code against real production result shapes without a
+ * live MySQL server.
+ *
+ * @author Travis
+ */
+public class RecordingDatabaseAdapter implements IDatabaseAdapter {
+
+    /** Adapter that does the real work. */
+    private final IDatabaseAdapter delegate;
+
+    /** Binary log. */
+    private final DataOutputStream out;
+
+    /**
+     * Opens (or creates) the log file and wraps the delegate.
+     * @param db adapter to record
+     * @param logFile binary log to append to
+     * @throws IOException if the log cannot be opened
+     */
+    public RecordingDatabaseAdapter(final IDatabaseAdapter db,
+            final File logFile) throws IOException {
+        delegate = db;
+        boolean newFile = !logFile.exists() || logFile.length() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(logFile, true), 1 << 16));
+        if (newFile) {
+            out.writeInt(DatabaseLog.MAGIC);
+            out.writeInt(DatabaseLog.VERSION);
+        }
+    }
+
+    @Override
+    public final JsonArray queryDatabase(final String query)
+            throws SQLException {
+        long start = System.nanoTime();
+        JsonArray results;
+        try {
+            results = delegate.queryDatabase(query);
+        } catch (SQLException e) {
+            recordFailure(DatabaseLog.QUERY, query, new Object[0],
+                    System.nanoTime() - start, e);
+            throw e;
+        }
+        long latency = System.nanoTime() - start;
+        record(DatabaseLog.QUERY, query, new Object[0], latency, results);
+        return results;
+    }
+
+    /** Streamed results are passed through without being recorded. */
+    @Override
+    public final long streamQuery(final String query, final int fetchSize,
+            final RowHandler handler) throws SQLException, IOException {
+        return delegate.streamQuery(query, fetchSize, handler);
+    }
+
+    @Override
+    public final JsonArray callStoredProcedure(final String procedure,
+            final Object... args) throws SQLException {
+        long start = System.nanoTime();
+        JsonArray results;
+        try {
+            results = delegate.callStoredProcedure(procedure, args);
+        } catch (SQLException e) {
+            recordFailure(DatabaseLog.PROCEDURE, procedure, args,
+                    System.nanoTime() - start, e);
+            throw e;
+        }
+        long latency = System.nanoTime() - start;
+        record(DatabaseLog.PROCEDURE, procedure, args, latency, results);
+        return results;
+    }
+
+    @Override
+    public final List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+            final String procedure, final Object... args)
+            throws SQLException {
+        long start = System.nanoTime();
+        List<ArrayList<String>> results;
+        try {
+            results = delegate.callStoredProcedureMultipleResultSets(
+                    procedure, args);
+        } catch (SQLException e) {
+            recordFailure(DatabaseLog.MULTIPLE_RESULT_SETS, procedure, args,
+                    System.nanoTime() - start, e);
+            throw e;
+        }
+        long latency = System.nanoTime() - start;
+        
+        synchronized (out) {
+            try {
+                writeHeader(DatabaseLog.MULTIPLE_RESULT_SETS, procedure, args,
+                        latency);
+                out.writeByte(results == null 
+                        ? DatabaseLog.NULL_RESULT : DatabaseLog.RESULT);
+                if (results != null) {
+                    out.writeInt(results.size());
+                    for (List<String> list : results) {
+                        out.writeInt(list.size());
+                        for (String value : list) {
+                            writeString(value);
+                        }
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                System.out.println("Could not record " + procedure + ": "
+                        + e.getMessage());
+            }
+        }   // end synchronized
+        return results;
+    }   // end callStoredProcedureMultipleResultSets(...)
+
+    @Override
+    public final int updateDatabase(final String statement)
+            throws SQLException {
+        return delegate.updateDatabase(statement);
+    }
+
+    /** Flushes and closes the log. */
+    public final void close() {
+        synchronized (out) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.out.println("Could not close recording: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Appends a query or procedure call and its results to the log.
+     * Recording errors are reported but never fail the call.
+     * @param type record type
+     * @param key procedure name or SQL query
+     * @param args procedure arguments
+     * @param latency call latency in nanoseconds
+     * @param results results returned by the delegate (may be null)
+     */
+    private void record(final byte type, final String key,
+            final Object[] args, final long latency,
+            final JsonArray results) {
+        synchronized (out) {
+            try {
+                writeHeader(type, key, args, latency);
+                out.writeByte(results == null 
+                        ? DatabaseLog.NULL_RESULT : DatabaseLog.RESULT);
+                if (results != null) {
+                    int rows = results.size();
+                    out.writeInt(rows);
+                    if (rows > 0) {
+                        // all rows of a ResultSet have the same columns
+                        List<String> columns = new ArrayList<String>(
+                                results.getJsonObject(0).keySet());
+                        out.writeInt(columns.size());
+                        for (String column : columns) {
+                            writeString(column);
+                        }
+                        for (int i = 0; i < rows; i++) {
+                            JsonObject row = results.getJsonObject(i);
+                            for (String column : columns) {
+                                writeString(row.getString(column, null));
+                            }
+                        }
+                    }   // end if (rows > 0)
+                }
+                out.flush();
+            } catch (IOException e) {
+                System.out.println("Could not record " + key + ": "
+                        + e.getMessage());
+            }
+        }   // end synchronized
+    }   // end record(...)
+
+    /**
+     * Appends a call that threw an SQLException to the log, so the
+     * replay throws it too. Recording errors are reported but never
+     * hide the exception.
+     * @param type record type
+     * @param key procedure name or SQL query
+     * @param args procedure arguments
+     * @param latency call latency in nanoseconds
+     * @param e the exception thrown by the delegate
+     */
+    private void recordFailure(final byte type, final String key,
+            final Object[] args, final long latency, final SQLException e) {
+        synchronized (out) {
+            try {
+                writeHeader(type, key, args, latency);
+                out.writeByte(DatabaseLog.FAILED);
+                writeString(e.getMessage());
+                writeString(e.getSQLState());
+                out.writeInt(e.getErrorCode());
+                out.flush();
+            } catch (IOException ioe) {
+                System.out.println("Could not record " + key + ": "
+                        + ioe.getMessage());
+            }
+        }
+    }   // end recordFailure(...)
+
+    /**
+     * Writes the part of a record common to all record types.
+     * @param type record type
+     * @param key procedure name or SQL query
+     * @param args procedure arguments
+     * @param latency call latency in nanoseconds
+     * @throws IOException IOException
+     */
+    private void writeHeader(final byte type, final String key,
+            final Object[] args, final long latency) throws IOException {
+        out.writeByte(type);
+        writeString(key);
+        int argc = args == null ? 0 : args.length;
+        out.writeInt(argc);
+        for (int i = 0; i < argc; i++) {
+            writeString(String.valueOf(args[i]));
+        }
+        out.writeLong(latency);
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string.
+     * @param s string to write (may be null)
+     * @throws IOException IOException
+     */
+    private void writeString(final String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}   // end class RecordingDatabaseAdapter
@@ -0,0 +1,345 @@
+package awesomecars.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Serves database calls from a log written by the RecordingDatabaseAdapter
+ * instead of a live MySQL server. The log is memory-mapped and indexed
+ * once when the adapter is created; results are decoded from the mapping
+ * on demand. When the same call was recorded several times the recorded
+ * results are served in turn, wrapping around at the end, so a replayed
+ * day of traffic sees the same sequence of results as production did.
+ * A call recorded as throwing an SQLException throws an equivalent one.
+ * Optionally each call sleeps for its recorded latency.
+ *
+ * The log must be smaller than 2 GB (the limit of a single mapping).
+ *
+ * @author Travis
+ */
+public class ReplayDatabaseAdapter implements IDatabaseAdapter {
+
+    /** Memory-mapped log. */
+    private final MappedByteBuffer log;
+
+    /** Offsets of the payloads recorded for each lookup key. */
+    private final Map<String, Recording> recordings =
+            new HashMap<String, Recording>();
+
+    /** If true, each call sleeps for its recorded latency. */
+    private final boolean simulateLatency;
+
+    /**
+     * The recorded results of one distinct call.
+     */
+    private static final class Recording {
+        /** Payload offsets in the log. */
+        private int[] offsets = new int[1];
+
+        /** Recorded latencies in nanoseconds. */
+        private long[] latencies = new long[1];
+
+        /** Number of recorded results. */
+        private int size;
+
+        /** Next result to serve. */
+        private int next;
+
+        /**
+         * Adds a recorded result.
+         * @param offset payload offset
+         * @param latency recorded latency in nanoseconds
+         */
+        private void add(final int offset, final long latency) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                latencies = Arrays.copyOf(latencies, size * 2);
+            }
+            offsets[size] = offset;
+            latencies[size] = latency;
+            size++;
+        }
+
+        /** @return index of the next result to serve (round robin) */
+        private synchronized int nextIndex() {
+            int i = next;
+            next = (next + 1) % size;
+            return i;
+        }
+    }   // end class Recording
+
+    /**
+     * Maps and indexes a recorded log.
+     * @param logFile log written by the RecordingDatabaseAdapter
+     * @param latency if true, calls sleep for their recorded latency
+     * @throws IOException if the log cannot be read or is corrupt
+     */
+    public ReplayDatabaseAdapter(final File logFile, final boolean latency)
+            throws IOException {
+        simulateLatency = latency;
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "r");
+                FileChannel channel = file.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(logFile + " is larger than 2 GB");
+            }
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        buildIndex();
+    }
+
+    /**
+     * Scans the log once and records the payload offset of every call.
+     * @throws IOException if the log is corrupt
+     */
+    private void buildIndex() throws IOException {
+        ByteBuffer buf = log.duplicate();
+        if (buf.remaining() < 8 || buf.getInt() != DatabaseLog.MAGIC) {
+            throw new IOException("Not a recorded database log");
+        }
+        int version = buf.getInt();
+        if (version < DatabaseLog.MIN_VERSION 
+                || version > DatabaseLog.VERSION) {
+            throw new IOException("Unsupported database log version "
+                    + version);
+        }
+        
+        try {
+            while (buf.hasRemaining()) {
+                byte type = buf.get();
+                String key = readString(buf);
+                int argc = buf.getInt();
+                Object[] args = new Object[argc];
+                for (int i = 0; i < argc; i++) {
+                    args[i] = readString(buf);
+                }
+                long latency = buf.getLong();
+                
+                int payload = buf.position();
+                skipPayload(type, buf);
+                
+                String lookup = DatabaseLog.lookupKey(type, key, args);
+                Recording r = recordings.get(lookup);
+                if (r == null) {
+                    r = new Recording();
+                    recordings.put(lookup, r);
+                }
+                r.add(payload, latency);
+            }   // end while
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // a truncated final record (e.g. the recorder was killed)
+            System.out.println("Recorded log is truncated; ignoring the "
+                    + "last record.");
+        }
+        System.out.println("*** replaying " + recordings.size()
+                + " distinct database calls.");
+    }   // end buildIndex()
+
+    @Override
+    public final JsonArray queryDatabase(final String query)
+            throws SQLException {
+        return readTable(replay(DatabaseLog.QUERY, query, new Object[0]));
+    }
+
+    /** Replays the result recorded for queryDatabase(query). */
+    @Override
+    public final long streamQuery(final String query, final int fetchSize,
+            final RowHandler handler) throws SQLException, IOException {
+        return JsonRows.stream(queryDatabase(query), handler);
+    }
+
+    @Override
+    public final JsonArray callStoredProcedure(final String procedure,
+            final Object... args) throws SQLException {
+        return readTable(replay(DatabaseLog.PROCEDURE, procedure, args));
+    }
+
+    @Override
+    public final List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+            final String procedure, final Object... args)
+            throws SQLException {
+        ByteBuffer buf = replay(DatabaseLog.MULTIPLE_RESULT_SETS, procedure,
+                args);
+        if (buf.get() == DatabaseLog.NULL_RESULT) {
+            return null;
+        }
+        
+        int count = buf.getInt();
+        List<ArrayList<String>> lists = new ArrayList<ArrayList<String>>();
+        for (int i = 0; i < count; i++) {
+            int size = buf.getInt();
+            ArrayList<String> list = new ArrayList<String>(size);
+            for (int j = 0; j < size; j++) {
+                list.add(readString(buf));
+            }
+            lists.add(list);
+        }
+        return lists;
+    }   // end callStoredProcedureMultipleResultSets(...)
+
+    @Override
+    public final int updateDatabase(final String statement) {
+        throw new UnsupportedOperationException(
+                "Replayed database is read-only.");
+    }
+
+    /**
+     * Finds the next recorded result for a call, sleeping for its
+     * recorded latency if latency simulation is on.
+     * @param type record type
+     * @param key procedure name or SQL query
+     * @param args procedure arguments
+     * @return buffer positioned at the recorded payload
+     * @throws SQLException if the call was never recorded, or the one
+     *         recorded if it failed
+     */
+    private ByteBuffer replay(final byte type, final String key,
+            final Object[] args) throws SQLException {
+        Recording r = recordings.get(DatabaseLog.lookupKey(type, key, args));
+        if (r == null) {
+            throw new SQLException("No recorded result for " + key);
+        }
+        
+        int i = r.nextIndex();
+        if (simulateLatency) {
+            LockSupport.parkNanos(r.latencies[i]);
+        }
+        ByteBuffer buf = log.duplicate();
+        buf.position(r.offsets[i]);
+        if (buf.get(buf.position()) == DatabaseLog.FAILED) {
+            buf.get();
+            String message = readString(buf);
+            String state = readString(buf);
+            throw new SQLException(message, state, buf.getInt());
+        }
+        return buf;
+    }   // end replay(...)
+
+    /**
+     * Decodes a recorded table payload.
+     * @param buf buffer positioned at the payload
+     * @return the recorded rows, or null if null was recorded
+     */
+    private static JsonArray readTable(final ByteBuffer buf) {
+        if (buf.get() == DatabaseLog.NULL_RESULT) {
+            return null;
+        }
+        
+        JsonArrayBuilder rows = Json.createArrayBuilder();
+        int numRows = buf.getInt();
+        if (numRows > 0) {
+            int numCols = buf.getInt();
+            String[] columns = new String[numCols];
+            for (int i = 0; i < numCols; i++) {
+                columns[i] = readString(buf);
+            }
+            for (int r = 0; r < numRows; r++) {
+                JsonObjectBuilder row = Json.createObjectBuilder();
+                for (int c = 0; c < numCols; c++) {
+                    String value = readString(buf);
+                    if (value == null) {
+                        row.addNull(columns[c]);
+                    } else {
+                        row.add(columns[c], value);
+                    }
+                }
+                rows.add(row);
+            }
+        }   // end if (numRows > 0)
+        return rows.build();
+    }   // end readTable(...)
+
+    /**
+     * Skips over a payload while indexing.
+     * @param type record type
+     * @param buf buffer positioned at the payload
+     */
+    private static void skipPayload(final byte type, final ByteBuffer buf) {
+        byte present = buf.get();
+        if (present == DatabaseLog.NULL_RESULT) {
+            return;
+        }
+        
+        if (present == DatabaseLog.FAILED) {
+            skipString(buf);
+            skipString(buf);
+            buf.getInt();
+        } else if (type == DatabaseLog.MULTIPLE_RESULT_SETS) {
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                int size = buf.getInt();
+                for (int j = 0; j < size; j++) {
+                    skipString(buf);
+                }
+            }
+        } else {
+            int rows = buf.getInt();
+            if (rows > 0) {
+                int cols = buf.getInt();
+                long strings = (long) cols * (rows + 1);
+                for (long i = 0; i < strings; i++) {
+                    skipString(buf);
+                }
+            }
+        }
+    }   // end skipPayload(...)
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     * @param buf buffer
+     * @return the string (may be null)
+     */
+    private static String readString(final ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skips a length-prefixed string.
+     * @param buf buffer
+     */
+    private static void skipString(final ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len > 0) {
+            buf.position(buf.position() + len);
+        }
+    }
+
+    /**
+     * @return total recorded latency of the log in milliseconds, useful to
+     * compare a replay run with the original traffic
+     */
+    public final long getRecordedLatencyMillis() {
+        long total = 0;
+        for (Recording r : recordings.values()) {
+            for (int i = 0; i < r.size; i++) {
+                total += r.latencies[i];
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(total);
+    }
+}   // end class ReplayDatabaseAdapter
@@ -0,0 +1,479 @@
+package awesomecars.persistence;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A primary database and its read replicas. Reads go to the replica with
+ * the fewest requests outstanding, and to the primary when no replica is
+ * up. A replica that fails a read is marked down for DOWN_MILLIS and the
+ * read is retried elsewhere; one that lags the primary by more than the
+ * allowed seconds (or is not replicating) is marked down until a later
+ * check finds it caught up (see checkLag(...)).
+ *
+ * With hedging on, a read that has not returned within the replica's
+ * rolling p95 latency is sent to a second replica as well, and the first
+ * answer wins; the other read is cancelled, statement and all. Hedging
+ * waits until a replica has MIN_SAMPLES latencies, so a cold replica is
+ * never hedged on a guess.
+ *
+ * Reads keep the caller's Deadline, including hedged ones, which each run
+ * under a fork of it (see Deadline.fork(...)). A read killed by its
+ * deadline, or cancelled because the other answered first, is neither
+ * retried nor held against the replica.
+ *
+ * @author Travis
+ */
+public final class ReplicaSet {
+
+    /** Milliseconds a replica that failed a read is kept out. */
+    public static final long DOWN_MILLIS = 10000L;
+
+    /** Latencies kept per replica for its p95. */
+    public static final int WINDOW = 256;
+
+    /** Latencies needed before a replica's reads are hedged. */
+    public static final int MIN_SAMPLES = 20;
+
+    /** A read made on one database. */
+    public interface Call<T> {
+        /**
+         * @param db the database to read from
+         * @return the result, or null if the read failed
+         * @throws SQLException if the read failed
+         */
+        T call(Replica db) throws SQLException;
+    }
+
+    /** Measures how far a replica is behind the primary. */
+    public interface LagProbe {
+        /**
+         * @param db a replica
+         * @return seconds behind the primary, or -1 if not replicating
+         * @throws SQLException if the replica cannot be asked
+         */
+        long lagSeconds(Replica db) throws SQLException;
+    }
+
+    /** One database of the set. */
+    public static final class Replica {
+
+        /** URL of the database. */
+        private final String url;
+
+        /** Reads in progress. */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        /** Time (ms) until which it is down (Long.MAX_VALUE: lagging). */
+        private volatile long downUntil = 0L;
+
+        /** Recent read latencies (ns), a ring buffer. */
+        private final long[] latencies = new long[WINDOW];
+
+        /** Latencies recorded. */
+        private long samples = 0L;
+
+        /** @param u URL of the database */
+        Replica(final String u) {
+            url = u;
+        }
+
+        /** @return URL of the database */
+        public String getUrl() {
+            return url;
+        }
+
+        /** @return reads in progress */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /** @return true if reads may be sent to it */
+        public boolean isUp() {
+            return System.currentTimeMillis() >= downUntil;
+        }
+
+        /**
+         * @param nanos latency of a read
+         */
+        synchronized void record(final long nanos) {
+            latencies[(int) (samples++ % WINDOW)] = nanos;
+        }
+
+        /** @return p95 of the recent latencies (ns), or -1 if too few */
+        public synchronized long getP95Nanos() {
+            int n = (int) Math.min(samples, WINDOW);
+            if (n < MIN_SAMPLES) {
+                return -1L;
+            }
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(n * 0.95) - 1];
+        }
+    }   // end class Replica
+
+    /** A read on one database, run under a deadline of its own. */
+    private final class Attempt<T> implements Callable<T> {
+
+        /** The database. */
+        private final Replica db;
+
+        /** The read. */
+        private final Call<T> call;
+
+        /** Fork of the caller's deadline, to cancel the read early. */
+        private final Deadline deadline = Deadline.fork(Deadline.current());
+
+        /**
+         * @param d the database
+         * @param c the read
+         */
+        Attempt(final Replica d, final Call<T> c) {
+            db = d;
+            call = c;
+        }
+
+        @Override
+        public T call() throws SQLException {
+            Deadline previous = Deadline.attach(deadline);
+            try {
+                return run(db, call);
+            } finally {
+                Deadline.attach(previous);
+            }
+        }
+    }   // end class Attempt
+
+    /** The primary. */
+    private final Replica primary;
+
+    /** The read replicas. */
+    private final List<Replica> replicas;
+
+    /** True to hedge slow reads. */
+    private final boolean hedge;
+
+    /** Replicas further behind than this are marked down. */
+    private final long maxLagSeconds;
+
+    /** Reads sent to a second replica. */
+    private final AtomicLong hedgedReads = new AtomicLong();
+
+    /** Runs hedged reads (null without hedging or replicas). */
+    private final ExecutorService executor;
+
+    /** Runs the lag checks (null until started). */
+    private ScheduledExecutorService checker;
+
+    /**
+     * Creates the set.
+     * @param primaryUrl URL of the primary
+     * @param replicaUrls URLs of the read replicas (may be empty)
+     * @param hedged true to hedge reads slower than a replica's p95
+     * @param maxLag seconds a replica may lag before it is marked down
+     */
+    public ReplicaSet(final String primaryUrl, final List<String> replicaUrls,
+            final boolean hedged, final long maxLag) {
+        primary = new Replica(primaryUrl);
+        List<Replica> list = new ArrayList<Replica>();
+        for (String url : replicaUrls) {
+            list.add(new Replica(url));
+        }
+        replicas = Collections.unmodifiableList(list);
+        hedge = hedged && list.size() > 1;
+        maxLagSeconds = maxLag;
+        executor = !hedge ? null
+                : Executors.newCachedThreadPool(daemon("hedged-read"));
+    }
+
+    /**
+     * @param name thread name
+     * @return factory for daemon threads with the name
+     */
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, name + "-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /** @return the primary */
+    public Replica getPrimary() {
+        return primary;
+    }
+
+    /** @return the read replicas */
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /** @return reads sent to a second replica */
+    public long getHedgedReads() {
+        return hedgedReads.get();
+    }
+
+    /**
+     * Picks the up replica with the fewest reads outstanding.
+     * @param exclude a replica not to pick (or null)
+     * @return the replica, or null if none is up
+     */
+    private Replica pick(final Replica exclude) {
+        Replica best = null;
+        for (Replica r : replicas) {
+            if (r != exclude && r.isUp() && (best == null
+                    || r.getOutstanding() < best.getOutstanding())) {
+                best = r;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks a database for a read the caller runs itself (a replica, or
+     * the primary if none is up) and counts it as outstanding until
+     * release(...) is called.
+     * @return the database
+     */
+    public Replica acquire() {
+        Replica db = pick(null);
+        if (db == null) {
+            db = primary;
+        }
+        db.outstanding.incrementAndGet();
+        return db;
+    }
+
+    /**
+     * Ends a read started with acquire().
+     * @param db the database acquire() returned
+     */
+    public void release(final Replica db) {
+        db.outstanding.decrementAndGet();
+    }
+
+    /**
+     * Runs a read on one database, tracking it as outstanding. A failed
+     * read marks a replica down, unless its deadline had passed or it was
+     * superseded.
+     * @param db the database
+     * @param call the read
+     * @param <T> result type
+     * @return the result, or null if the read failed
+     * @throws SQLException if the read failed
+     */
+    private <T> T run(final Replica db, final Call<T> call)
+            throws SQLException {
+        db.outstanding.incrementAndGet();
+        long start = System.nanoTime();
+        boolean ok = false;
+        boolean killed = false;
+        try {
+            T result = call.call(db);
+            ok = result != null;
+            return result;
+        } catch (SQLException e) {
+            // a query killed by its deadline says nothing about the replica
+            killed = Deadline.isKill(e);
+            throw e;
+        } finally {
+            db.outstanding.decrementAndGet();
+            Deadline d = Deadline.current();
+            if (ok) {
+                db.record(System.nanoTime() - start);
+            } else if (!killed && db != primary
+                    && (d == null || !d.isExpired())) {
+                db.downUntil = Math.max(db.downUntil,
+                        System.currentTimeMillis() + DOWN_MILLIS);
+            }
+        }
+    }   // end run(...)
+
+    /**
+     * Runs a read on a replica (or the primary if none is up), retrying
+     * once elsewhere if it fails and hedging it if it is slow.
+     * @param call the read
+     * @param <T> result type
+     * @return the result (null if every attempt failed)
+     * @throws SQLException if the last attempt threw
+     */
+    public <T> T read(final Call<T> call) throws SQLException {
+        Replica first = pick(null);
+        if (first == null) {
+            return run(primary, call);
+        }
+        T result = null;
+        SQLException error = null;
+        try {
+            result = hedge ? hedged(first, call) : run(first, call);
+        } catch (SQLException e) {
+            if (Deadline.isKill(e)) {
+                throw e;    // no time left to try elsewhere
+            }
+            error = e;
+        }
+        if (result != null) {
+            return result;
+        }
+        Replica second = pick(first);
+        if (second == null && error != null) {
+            throw error;
+        }
+        return run(second == null ? primary : second, call);
+    }   // end read(...)
+
+    /**
+     * Runs a read on a replica, and on a second replica as well if the
+     * first has not answered within its p95. The first answer wins, and
+     * the read still running is cancelled.
+     * @param first the replica to read from
+     * @param call the read
+     * @param <T> result type
+     * @return the result, or null if every attempt failed
+     * @throws SQLException if every attempt threw
+     */
+    private <T> T hedged(final Replica first, final Call<T> call)
+            throws SQLException {
+        long p95 = first.getP95Nanos();
+        if (p95 < 0) {
+            return run(first, call);
+        }
+        CompletionService<T> done = new ExecutorCompletionService<T>(executor);
+        List<Attempt<T>> attempts = new ArrayList<Attempt<T>>(2);
+        List<Future<T>> futures = new ArrayList<Future<T>>(2);
+        attempts.add(new Attempt<T>(first, call));
+        futures.add(done.submit(attempts.get(0)));
+        SQLException error = null;
+        try {
+            Future<T> f = done.poll(p95, TimeUnit.NANOSECONDS);
+            int pending = 1;
+            if (f == null) {
+                Replica second = pick(first);
+                if (second != null) {
+                    hedgedReads.incrementAndGet();
+                    attempts.add(new Attempt<T>(second, call));
+                    futures.add(done.submit(attempts.get(1)));
+                    pending++;
+                }
+                f = done.take();
+            }
+            while (true) {
+                pending--;
+                try {
+                    T result = f.get();
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (ExecutionException e) {
+                    error = e.getCause() instanceof SQLException
+                            ? (SQLException) e.getCause()
+                            : new SQLException(e.getCause());
+                }
+                if (pending == 0) {
+                    break;
+                }
+                f = done.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a replica", e);
+        } finally {
+            // stop the server working on an answer no one will read
+            for (int i = 0; i < futures.size(); i++) {
+                if (!futures.get(i).isDone()) {
+                    attempts.get(i).deadline.supersede();
+                    futures.get(i).cancel(true);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return null;
+    }   // end hedged(...)
+
+    /**
+     * Asks every replica how far behind it is, marking those too far
+     * behind, not replicating or not answering down and the rest up.
+     * @param probe measures the lag
+     */
+    public void checkLag(final LagProbe probe) {
+        for (Replica r : replicas) {
+            long lag;
+            try {
+                lag = probe.lagSeconds(r);
+            } catch (SQLException e) {
+                System.out.println("Replica " + r.getUrl()
+                        + " did not answer: " + e.getMessage());
+                lag = -1L;
+            }
+            if (lag < 0 || lag > maxLagSeconds) {
+                r.downUntil = Long.MAX_VALUE;
+            } else if (r.downUntil == Long.MAX_VALUE) {
+                r.downUntil = 0L;
+            }
+        }
+    }   // end checkLag(...)
+
+    /**
+     * Starts checking the replicas' lag on a background thread.
+     * @param periodSeconds seconds between checks
+     * @param probe measures the lag
+     */
+    public synchronized void start(final long periodSeconds,
+            final LagProbe probe) {
+        stop();
+        if (replicas.isEmpty()) {
+            return;
+        }
+        checker = Executors.newSingleThreadScheduledExecutor(
+                daemon("replica-lag"));
+        checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkLag(probe);
+                } catch (RuntimeException e) {
+                    System.out.println("Error checking replicas: "
+                            + e.getMessage());
+                }
+            }
+        }, 0L, periodSeconds, TimeUnit.SECONDS);
+    }   // end start(...)
+
+    /** Stops the lag checks. */
+    public synchronized void stop() {
+        if (checker != null) {
+            checker.shutdownNow();
+            checker = null;
+        }
+    }
+
+    /** Stops the lag checks and the hedged read threads. */
+    public void close() {
+        stop();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}   // end class ReplicaSet
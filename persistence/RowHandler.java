@@ -0,0 +1,25 @@
+package awesomecars.persistence;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a streamed query (see
+ * IDatabaseAdapter.streamQuery(...)) one at a time, as they are read.
+ * @author Travis
+ */
+public interface RowHandler {
+    /**
+     * Called once, before the first row.
+     * @param labels column labels, lower case
+     * @throws IOException IOException
+     */
+    void columns(String[] labels) throws IOException;
+
+    /**
+     * Called for each row. The array is reused for the next row, so it
+     * must not be kept.
+     * @param values column values (null for SQL NULL), in label order
+     * @throws IOException IOException
+     */
+    void row(String[] values) throws IOException;
+}
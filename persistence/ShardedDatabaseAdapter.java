@@ -0,0 +1,518 @@
+package awesomecars.persistence;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import awesomecars.monitoring.RequestTrace;
+import awesomecars.monitoring.Span;
+
+/**
+ * Spreads the inventory over several databases (shards), each holding
+ * the store_information rows of the dealerships it serves and their
+ * vehicles. A dealership's shard is learned from the store details each
+ * shard returns.
+ *
+ * Queries are scattered to the shards in parallel and the answers
+ * gathered into one result. An advanced search (see AdvancedSearch)
+ * whose every part is filtered by location only goes to the shards of
+ * those dealerships; any other query goes to every shard. When the query
+ * is ordered, the answers are merged in its ORDER BY order and cut to
+ * its LIMIT, and new vehicles (grouped by model on each shard) are kept
+ * once per model. Unordered answers are concatenated and, for stored
+ * procedures, identical rows dropped. Single used vehicles are looked up
+ * through a VIN to shard directory, filled from every row seen and, on a
+ * miss, by asking every shard. Statements are sent to every shard. If
+ * any shard fails (returns null) the whole call returns null, as a single
+ * database would, rather than a partial result that looks complete.
+ *
+ * @author Travis
+ */
+public class ShardedDatabaseAdapter implements IDatabaseAdapter {
+
+    /** Procedure returning every store's details. */
+    static final String STORES_PROCEDURE = "GetAllStoreDetails";
+
+    /** Procedure returning one used vehicle by VIN. */
+    static final String USED_VEHICLE_PROCEDURE = "GetUsedVehicle";
+
+    /** A store filter as written by AdvancedSearch. */
+    private static final Pattern STORE_FILTER =
+            Pattern.compile("(?i)\\bstore_name = \"([^\"]*)\"");
+
+    /** The ORDER BY and LIMIT clauses ending a query. */
+    private static final Pattern ORDER_BY = Pattern.compile(
+            "(?is).*\\bORDER BY\\s+(.*?)\\s*(?:\\bLIMIT\\s+(\\d+))?\\s*$");
+
+    /** The shards. */
+    private final List<IDatabaseAdapter> shards;
+
+    /** Store name to shard number. */
+    private volatile Map<String, Integer> storeShards;
+
+    /** VIN to shard number. */
+    private final Map<String, Integer> vinShards =
+            new ConcurrentHashMap<String, Integer>();
+
+    /** Runs the scattered calls. */
+    private final ExecutorService executor;
+
+    /**
+     * Creates the adapter. The stores of each shard are read on first use
+     * (see refreshStores()).
+     * @param dbs the shards
+     */
+    public ShardedDatabaseAdapter(final List<IDatabaseAdapter> dbs) {
+        if (dbs.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        shards = new ArrayList<IDatabaseAdapter>(dbs);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "shard-query-" + (++count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** @return number of shards */
+    public final int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Reads which stores each shard holds.
+     * @throws SQLException if a shard cannot be queried
+     */
+    public final void refreshStores() throws SQLException {
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        List<JsonArray> results = scatter(allShards(), new ShardCall() {
+            @Override
+            public JsonArray call(final IDatabaseAdapter db)
+                    throws SQLException {
+                return db.callStoredProcedure(STORES_PROCEDURE);
+            }
+        });
+        if (results == null) {
+            throw new SQLException("A shard did not list its stores");
+        }
+        for (int s = 0; s < results.size(); s++) {
+            for (JsonValue v : results.get(s)) {
+                map.put(value((JsonObject) v, "store_name"), s);
+            }
+        }
+        storeShards = map;
+    }   // end refreshStores()
+
+    /**
+     * @return store name to shard number
+     * @throws SQLException if the stores had to be read and could not be
+     */
+    public final Map<String, Integer> getStoreShards() throws SQLException {
+        if (storeShards == null) {
+            refreshStores();
+        }
+        return Collections.unmodifiableMap(storeShards);
+    }
+
+    /**
+     * @param vin a VIN
+     * @return the shard holding it, or -1 if not known
+     */
+    public final int getVinShard(final String vin) {
+        Integer s = vinShards.get(vin);
+        return s == null ? -1 : s;
+    }
+
+    @Override
+    public final JsonArray queryDatabase(final String query)
+            throws SQLException {
+        try (Span span = RequestTrace.span("adapter.scatterQuery")) {
+            List<Integer> targets = route(query);
+            span.detail(targets.size() + " shards");
+            List<JsonArray> results = scatter(targets, new ShardCall() {
+                @Override
+                public JsonArray call(final IDatabaseAdapter db)
+                        throws SQLException {
+                    return db.queryDatabase(query);
+                }
+            });
+            if (results == null) {
+                return null;    // partial results would look complete
+            }
+            remember(targets, results);
+            return merge(query, results);
+        }
+    }   // end queryDatabase(...)
+
+    /**
+     * Streams each routed shard's rows in turn; the rows are not merged
+     * into the query's order.
+     */
+    @Override
+    public final long streamQuery(final String query, final int fetchSize,
+            final RowHandler handler) throws SQLException, IOException {
+        RowHandler once = new RowHandler() {
+            private boolean started = false;
+
+            @Override
+            public void columns(final String[] labels) throws IOException {
+                if (!started) {
+                    started = true;
+                    handler.columns(labels);
+                }
+            }
+
+            @Override
+            public void row(final String[] values) throws IOException {
+                handler.row(values);
+            }
+        };
+        long rows = 0L;
+        for (int s : route(query)) {
+            rows += shards.get(s).streamQuery(query, fetchSize, once);
+        }
+        return rows;
+    }   // end streamQuery(...)
+
+    @Override
+    public final JsonArray callStoredProcedure(final String procedure,
+            final Object... args) throws SQLException {
+        if (USED_VEHICLE_PROCEDURE.equals(procedure) && args.length > 0) {
+            int s = getVinShard(String.valueOf(args[0]));
+            if (s >= 0) {
+                JsonArray result = shards.get(s).callStoredProcedure(
+                        procedure, args);
+                if (result != null && !result.isEmpty()) {
+                    return result;
+                }
+            }
+        }
+        List<Integer> targets = allShards();
+        List<JsonArray> results = scatter(targets, new ShardCall() {
+            @Override
+            public JsonArray call(final IDatabaseAdapter db)
+                    throws SQLException {
+                return db.callStoredProcedure(procedure, args);
+            }
+        });
+        if (results == null) {
+            return null;    // partial results would look complete
+        }
+        remember(targets, results);
+        Set<JsonObject> rows = new LinkedHashSet<JsonObject>();
+        for (JsonArray result : results) {
+            for (JsonValue v : result) {
+                rows.add((JsonObject) v);
+            }
+        }
+        return toArray(rows);
+    }   // end callStoredProcedure(...)
+
+    /** Each list is the sorted union of the shards' lists. */
+    @Override
+    public final List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+            final String procedure, final Object... args)
+            throws SQLException {
+        List<TreeSet<String>> sets = new ArrayList<TreeSet<String>>();
+        for (IDatabaseAdapter db : shards) {
+            List<ArrayList<String>> lists =
+                    db.callStoredProcedureMultipleResultSets(procedure, args);
+            if (lists == null) {
+                return null;    // partial lists would look complete
+            }
+            for (int i = 0; i < lists.size(); i++) {
+                if (sets.size() <= i) {
+                    sets.add(new TreeSet<String>());
+                }
+                sets.get(i).addAll(lists.get(i));
+            }
+        }
+        List<ArrayList<String>> lists = new ArrayList<ArrayList<String>>();
+        for (TreeSet<String> set : sets) {
+            lists.add(new ArrayList<String>(set));
+        }
+        return lists;
+    }   // end callStoredProcedureMultipleResultSets(...)
+
+    /** @return the total number of rows changed on every shard */
+    @Override
+    public final int updateDatabase(final String statement)
+            throws SQLException {
+        int rows = 0;
+        for (IDatabaseAdapter db : shards) {
+            rows += db.updateDatabase(statement);
+        }
+        return rows;
+    }
+
+    /** Stops the scatter threads. */
+    public final void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Picks the shards a query must go to: the shards of the stores it is
+     * filtered to if every part of it is, otherwise every shard.
+     * @param query the query
+     * @return shard numbers, ascending
+     * @throws SQLException if the stores had to be read and could not be
+     */
+    final List<Integer> route(final String query) throws SQLException {
+        Map<String, Integer> stores = getStoreShards();
+        Set<Integer> targets = new TreeSet<Integer>();
+        for (String part : query.split("(?i)\\bUNION\\b")) {
+            Matcher m = STORE_FILTER.matcher(part);
+            boolean filtered = false;
+            while (m.find()) {
+                Integer s = stores.get(m.group(1));
+                if (s == null) {
+                    return allShards();
+                }
+                targets.add(s);
+                filtered = true;
+            }
+            if (!filtered) {
+                return allShards();
+            }
+        }
+        return new ArrayList<Integer>(targets);
+    }   // end route(...)
+
+    /** @return every shard number */
+    private List<Integer> allShards() {
+        List<Integer> all = new ArrayList<Integer>(shards.size());
+        for (int s = 0; s < shards.size(); s++) {
+            all.add(s);
+        }
+        return all;
+    }
+
+    /**
+     * Runs a call on several shards in parallel, each under the caller's
+     * Deadline.
+     * @param targets shard numbers
+     * @param call the call
+     * @return each shard's result, in target order, or null if any shard
+     *         failed (returned null)
+     * @throws SQLException if any shard threw
+     */
+    private List<JsonArray> scatter(final List<Integer> targets,
+            final ShardCall call) throws SQLException {
+        List<JsonArray> results = new ArrayList<JsonArray>(targets.size());
+        if (targets.size() == 1) {
+            JsonArray result = call.call(shards.get(targets.get(0)));
+            if (result == null) {
+                return null;
+            }
+            results.add(result);
+            return results;
+        }
+        List<Future<JsonArray>> futures =
+                new ArrayList<Future<JsonArray>>(targets.size());
+        final Deadline deadline = Deadline.current();
+        for (final int s : targets) {
+            futures.add(executor.submit(new Callable<JsonArray>() {
+                @Override
+                public JsonArray call() throws SQLException {
+                    Deadline previous = Deadline.attach(deadline);
+                    try {
+                        return call.call(shards.get(s));
+                    } finally {
+                        Deadline.attach(previous);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<JsonArray> f : futures) {
+                JsonArray result = f.get();
+                if (result == null) {
+                    return null;
+                }
+                results.add(result);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Shard query failed", e.getCause());
+        } finally {
+            for (Future<JsonArray> f : futures) {
+                f.cancel(true);
+            }
+        }
+        return results;
+    }   // end scatter(...)
+
+    /**
+     * Records the shard of every VIN in a scattered call's results.
+     * @param targets shard numbers
+     * @param results each shard's result, in target order
+     */
+    private void remember(final List<Integer> targets,
+            final List<JsonArray> results) {
+        for (int i = 0; i < targets.size(); i++) {
+            for (JsonValue v : results.get(i)) {
+                String vin = value((JsonObject) v, "vin");
+                if (vin != null) {
+                    vinShards.put(vin, targets.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gathers the shards' answers to a query into one result.
+     * @param query the query
+     * @param results each shard's result
+     * @return the merged result
+     */
+    static JsonArray merge(final String query,
+            final List<JsonArray> results) {
+        List<JsonObject> rows = new ArrayList<JsonObject>();
+        for (JsonArray result : results) {
+            for (JsonValue v : result) {
+                rows.add((JsonObject) v);
+            }
+        }
+        Matcher m = ORDER_BY.matcher(query);
+        if (results.size() == 1 || !m.matches()) {
+            return toArray(rows);
+        }
+        Collections.sort(rows, ordering(m.group(1)));
+        int limit = m.group(2) == null ? Integer.MAX_VALUE
+                : Integer.parseInt(m.group(2));
+        List<JsonObject> merged = new ArrayList<JsonObject>();
+        Set<String> newModels = new HashSet<String>();
+        for (JsonObject row : rows) {
+            if (merged.size() >= limit) {
+                break;
+            }
+            if ("new".equalsIgnoreCase(value(row, "category"))
+                    && !newModels.add(value(row, "model_name"))) {
+                continue;
+            }
+            merged.add(row);
+        }
+        return toArray(merged);
+    }   // end merge(...)
+
+    /**
+     * @param orderBy the terms of an ORDER BY clause
+     * @return comparator ordering rows the same way
+     */
+    static Comparator<JsonObject> ordering(final String orderBy) {
+        String[] terms = orderBy.split(",");
+        final String[] columns = new String[terms.length];
+        final boolean[] descending = new boolean[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            String[] words = terms[i].trim().split("\\s+");
+            String column = words[0].toLowerCase(Locale.US);
+            columns[i] = column.substring(column.indexOf('.') + 1);
+            descending[i] = words.length > 1
+                    && "desc".equalsIgnoreCase(words[1]);
+        }
+        return new Comparator<JsonObject>() {
+            @Override
+            public int compare(final JsonObject a, final JsonObject b) {
+                for (int i = 0; i < columns.length; i++) {
+                    int c = compareValues(value(a, columns[i]),
+                            value(b, columns[i]));
+                    if (c != 0) {
+                        return descending[i] ? -c : c;
+                    }
+                }
+                return 0;
+            }
+        };
+    }   // end ordering(...)
+
+    /**
+     * Compares two column values: numerically if both are numbers,
+     * otherwise as text. Missing values sort first, as in MySQL.
+     * @param a a value (or null)
+     * @param b a value (or null)
+     * @return negative, zero or positive as a sorts before, with or after b
+     */
+    private static int compareValues(final String a, final String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        try {
+            return Double.compare(Double.parseDouble(a),
+                    Double.parseDouble(b));
+        } catch (NumberFormatException e) {
+            return a.compareToIgnoreCase(b);
+        }
+    }
+
+    /**
+     * @param row a row
+     * @param column a lower-case column name
+     * @return the column's value as text (null if missing or NULL)
+     */
+    private static String value(final JsonObject row, final String column) {
+        JsonValue v = row.get(column);
+        if (v == null || v.getValueType() == JsonValue.ValueType.NULL) {
+            return null;
+        }
+        return v instanceof JsonString ? ((JsonString) v).getString()
+                : v.toString();
+    }
+
+    /**
+     * @param rows rows
+     * @return the rows as a JsonArray
+     */
+    private static JsonArray toArray(final Iterable<JsonObject> rows) {
+        JsonArrayBuilder b = Json.createArrayBuilder();
+        for (JsonObject row : rows) {
+            b.add(row);
+        }
+        return b.build();
+    }
+
+    /** A call made on one shard. */
+    private interface ShardCall {
+        /**
+         * @param db the shard
+         * @return its result
+         * @throws SQLException SQLException
+         */
+        JsonArray call(IDatabaseAdapter db) throws SQLException;
+    }
+}   // end class ShardedDatabaseAdapter
@@ -0,0 +1,220 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.json.JsonArray;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.beans.Vehicle;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.VehicleRepository;
+
+/**
+ * Allocation-budget regression tests for the hot request paths. Each test
+ * measures the bytes allocated per operation by the current thread (using
+ * the HotSpot ThreadMXBean allocation counter) and fails if a change
+ * pushes a path over its budget. Budgets are set with some headroom
+ * above the measured values; if a change legitimately needs more, raise
+ * the budget in the same commit and say why.
+ *
+ * The tests run against an in-process InMemoryDatabaseAdapter, so no
+ * MySQL server is needed.
+ *
+ * @author Travis
+ */
+public class AllocationBudgetTest {
+
+    /** Number of vehicles returned by the in-process database. */
+    public static final int NUM_VEHICLES = 40;
+
+    /** Iterations run before measuring so the JIT has settled. */
+    public static final int WARMUP_ITERATIONS = 20000;
+
+    /** Iterations measured. */
+    public static final int MEASURED_ITERATIONS = 20000;
+
+    /** Budget (bytes/op) for constructing an AdvancedSearch. */
+    public static final long ADVANCED_SEARCH_BUDGET = 1536;
+
+    /** Budget (bytes/op) for generating the advanced search SQL. */
+    public static final long SQL_GENERATION_BUDGET = 48 * 1024;
+
+    /** Budget (bytes/op) for mapping one row to a Vehicle. */
+    public static final long ROW_MAPPING_BUDGET = 1024;
+
+    /** Budget (bytes/op) for a full advanced search of NUM_VEHICLES. */
+    public static final long ADVANCED_SEARCH_CALL_BUDGET = 96 * 1024;
+
+    /** In-process database. */
+    private static InMemoryDatabaseAdapter database;
+
+    /** Keeps results reachable so the JIT cannot eliminate the work. */
+    private static volatile Object sink;
+
+    /** Registers the in-process database with the cache and repository. */
+    @BeforeClass
+    public static void setUpBeforeClass() {
+        database = new InMemoryDatabaseAdapter(NUM_VEHICLES);
+        try {
+            CarWebAppCache.getInstance().initCache(database);
+        } catch (SQLException e) {
+            System.err.println("Unable to init web app cache.");
+        }
+        VehicleRepository.initRepository(database);
+    }
+
+    /** Tests allocation of constructing an AdvancedSearch from a request. */
+    @Test
+    public final void testAdvancedSearchConstruction() {
+        final MockHttpServletRequest request = makeRequest();
+        long bytes = bytesPerOperation(new Runnable() {
+            @Override
+            public void run() {
+                sink = new AdvancedSearch(request);
+            }
+        });
+        assertWithinBudget("AdvancedSearch construction", bytes,
+                ADVANCED_SEARCH_BUDGET);
+    }
+
+    /** Tests allocation of generating the advanced search SQL. */
+    @Test
+    public final void testSqlGeneration() {
+        final AdvancedSearch search = new AdvancedSearch(makeRequest());
+        long bytes = bytesPerOperation(new Runnable() {
+            @Override
+            public void run() {
+                sink = search.toString();
+            }
+        });
+        assertWithinBudget("SQL generation", bytes, SQL_GENERATION_BUDGET);
+    }
+
+    /** Tests allocation of mapping a database row to a Vehicle. */
+    @Test
+    public final void testRowToVehicleMapping() {
+        final JsonArray rows = database.getVehicles();
+        long bytes = bytesPerOperation(new Runnable() {
+            private int i = 0;
+
+            @Override
+            public void run() {
+                sink = new Vehicle(rows.getJsonObject(i++ % NUM_VEHICLES));
+            }
+        });
+        assertWithinBudget("row to Vehicle mapping", bytes,
+                ROW_MAPPING_BUDGET);
+    }
+
+    /** Tests allocation of a full advanced search through the repository. */
+    @Test
+    public final void testSearchVehiclesAdvanced() {
+        final MockHttpServletRequest request = makeRequest();
+        long bytes = bytesPerOperation(new Runnable() {
+            @Override
+            public void run() {
+                List<Vehicle> result = 
+                        VehicleRepository.searchVehiclesAdvanced(request);
+                sink = result;
+            }
+        });
+        assertTrue(((List<?>) sink).size() == NUM_VEHICLES);
+        assertWithinBudget("searchVehiclesAdvanced", bytes,
+                ADVANCED_SEARCH_CALL_BUDGET);
+    }
+
+    /**
+     * Creates a representative advanced search request.
+     * @return mock request
+     */
+    private static MockHttpServletRequest makeRequest() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("action", "advancedResults");
+        request.addParameter("category", "used");
+        request.addParameter("category", "new");
+        request.addParameter("style", "Coupe");
+        request.addParameter("style", "Sedan");
+        request.addParameter("make", "Ford");
+        request.addParameter("make", "Nissan");
+        request.addParameter("model", "Sentra");
+        request.addParameter("yearMin", "1995");
+        request.addParameter("yearMax", "2015");
+        request.addParameter("priceMin", "5000");
+        request.addParameter("priceMax", "30000");
+        request.addParameter("milesMax", "100000");
+        request.addParameter("transmission", "automatic");
+        request.addParameter("MPGCityMin", "20");
+        request.addParameter("MPGHwyMin", "25");
+        request.addParameter("extColor", "Black");
+        request.addParameter("extColor", "Red");
+        request.addParameter("location", "Dallas");
+        request.addParameter("location", "Plano");
+        request.addParameter("SortBy1", "price");
+        request.addParameter("SortOrder1", "ASC");
+        request.addParameter("SortBy2", "miles");
+        request.addParameter("SortOrder2", "ASC");
+        return request;
+    }   // end makeRequest()
+
+    /**
+     * Runs the operation to warm it up, then returns the average number
+     * of bytes the current thread allocated per run.
+     * @param operation operation to measure
+     * @return bytes allocated per operation
+     */
+    private static long bytesPerOperation(final Runnable operation) {
+        com.sun.management.ThreadMXBean threads = threadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run();
+        }
+        
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            operation.run();
+        }
+        long after = threads.getThreadAllocatedBytes(threadId);
+        
+        return (after - before) / MEASURED_ITERATIONS;
+    }   // end bytesPerOperation(...)
+
+    /**
+     * Returns the HotSpot ThreadMXBean, skipping the test if the JVM does
+     * not support per-thread allocation counters.
+     * @return thread MXBean with allocation counters enabled
+     */
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        java.lang.management.ThreadMXBean bean = 
+                ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    /**
+     * Fails if the measured allocation exceeds the budget.
+     * @param path name of the measured path
+     * @param bytes measured bytes per operation
+     * @param budget budget in bytes per operation
+     */
+    private static void assertWithinBudget(final String path,
+            final long bytes, final long budget) {
+        System.out.println(path + ": " + bytes + " bytes/op (budget "
+                + budget + ")");
+        assertTrue(path + " allocated " + bytes + " bytes/op, budget is "
+                + budget, bytes <= budget);
+    }
+}   // end class AllocationBudgetTest
@@ -0,0 +1,33 @@
+package awesomecars.test;
+
+import awesomecars.beans.StringDictionary;
+import awesomecars.beans.Vehicle;
+import awesomecars.model.OffHeapVehicleStore;
+
+/**
+ * Builds large generated inventories for the benchmarks.
+ *
+ * @author Travis
+ */
+public final class BenchmarkInventory {
+
+    /** Utility class should not have a public or default constructor. */
+    private BenchmarkInventory() { 
+        super();
+    }
+
+    /**
+     * Builds an off-heap store of generated vehicles (see
+     * InMemoryDatabaseAdapter.makeVehicleRow(...)).
+     * @param vehicles number of vehicles
+     * @return the store
+     */
+    public static OffHeapVehicleStore build(final int vehicles) {
+        OffHeapVehicleStore store = 
+                new OffHeapVehicleStore(new StringDictionary());
+        for (int i = 0; i < vehicles; i++) {
+            store.add(new Vehicle(InMemoryDatabaseAdapter.makeVehicleRow(i)));
+        }
+        return store;
+    }
+}   // end class BenchmarkInventory
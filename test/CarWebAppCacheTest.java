@@ -0,0 +1,148 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import awesomecars.model.CarWebAppCache;
+
+/**
+ * Tests the web app cache's snapshot file: a saved snapshot loads back
+ * the same lists, and a corrupt or truncated one is rejected without
+ * touching the cache.
+ * @author Travis
+ */
+public class CarWebAppCacheTest {
+
+    /** Offset of the body style list's count in a snapshot. */
+    private static final int FIRST_COUNT = 16;
+
+    /** The cache. */
+    private final CarWebAppCache cache = CarWebAppCache.getInstance();
+
+    /** The snapshot file. */
+    private File snapshot;
+
+    /**
+     * Loads the cache from the test database and saves a snapshot.
+     * @throws IOException IOException
+     * @throws SQLException SQLException
+     */
+    @Before
+    public final void setUp() throws IOException, SQLException {
+        assertTrue(cache.refreshCache(new InMemoryDatabaseAdapter(100)));
+        snapshot = File.createTempFile("cache", ".snapshot");
+        cache.saveSnapshot(snapshot);
+    }
+
+    /**
+     * Deletes the snapshot.
+     * @throws IOException IOException
+     */
+    @After
+    public final void tearDown() throws IOException {
+        if (snapshot.exists() && !snapshot.delete()) {
+            throw new IOException("Unable to delete " + snapshot);
+        }
+    }
+
+    /**
+     * Tests a saved snapshot loads back the same lists.
+     * @throws IOException IOException
+     */
+    @Test
+    public final void testSaveAndLoad() throws IOException {
+        CarWebAppCache.Lists saved = cache.getLists();
+        assertFalse(saved.getMakeList().isEmpty());
+        assertTrue(cache.loadSnapshot(snapshot));
+
+        CarWebAppCache.Lists loaded = cache.getLists();
+        assertNotSame(saved, loaded);
+        assertEquals(saved.getVersion(), loaded.getVersion());
+        assertEquals(saved.getMakeModelList(), loaded.getMakeModelList());
+        assertEquals(saved.getMakeList(), loaded.getMakeList());
+        assertEquals(saved.getModelList(), loaded.getModelList());
+        assertEquals(saved.getBodyStyleList(), loaded.getBodyStyleList());
+        assertEquals(saved.getExteriorColorList(),
+                loaded.getExteriorColorList());
+        assertEquals(saved.getInteriorColorList(),
+                loaded.getInteriorColorList());
+        assertEquals(saved.getLocationList(), loaded.getLocationList());
+        for (String name : snapshot.getParentFile().list()) {
+            assertFalse(name.equals(snapshot.getName() + ".tmp"));
+        }
+    }   // end testSaveAndLoad()
+
+    /**
+     * Tests a missing snapshot or one from another format is skipped.
+     * @throws IOException IOException
+     */
+    @Test
+    public final void testMissingOrForeign() throws IOException {
+        CarWebAppCache.Lists before = cache.getLists();
+        assertFalse(cache.loadSnapshot(new File(snapshot.getPath() + ".x")));
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.writeInt(0);
+        }
+        assertFalse(cache.loadSnapshot(snapshot));
+        assertSame(before, cache.getLists());
+    }
+
+    /**
+     * Tests a truncated snapshot is rejected and the cache kept.
+     * @throws IOException IOException
+     */
+    @Test
+    public final void testTruncated() throws IOException {
+        CarWebAppCache.Lists before = cache.getLists();
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+        assertRejected();
+        assertSame(before, cache.getLists());
+    }
+
+    /**
+     * Tests a snapshot with a corrupt count is rejected without
+     * allocating for it, and the cache kept.
+     * @throws IOException IOException
+     */
+    @Test
+    public final void testCorruptCount() throws IOException {
+        CarWebAppCache.Lists before = cache.getLists();
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(FIRST_COUNT);
+            file.writeInt(Integer.MAX_VALUE);
+        }
+        assertRejected();
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(FIRST_COUNT);
+            file.writeInt(1);
+            file.writeInt(-5);
+        }
+        assertRejected();
+        assertSame(before, cache.getLists());
+    }   // end testCorruptCount()
+
+    /** Asserts loading the snapshot fails as corrupt. */
+    private void assertRejected() {
+        try {
+            cache.loadSnapshot(snapshot);
+            fail("a corrupt snapshot was loaded");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Corrupt cache snapshot"));
+        }
+    }
+}   // end class CarWebAppCacheTest
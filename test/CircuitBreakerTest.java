@@ -0,0 +1,308 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+
+import org.junit.After;
+import org.junit.Test;
+
+import awesomecars.persistence.CircuitBreaker;
+import awesomecars.persistence.CircuitBreakerDatabaseAdapter;
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.JsonRows;
+import awesomecars.persistence.RowHandler;
+
+/**
+ * Tests the circuit breaker adapter over a stand-in database that can be
+ * made to fail: breakers open after repeated failures and then fail fast
+ * or serve the last good result, marked stale, and close again after a
+ * successful trial call.
+ * @author Travis
+ */
+public class CircuitBreakerTest {
+
+    /** Consecutive failures that open a breaker in these tests. */
+    private static final int THRESHOLD = 3;
+
+    /** Milliseconds a breaker stays open in the recovery test. */
+    private static final long OPEN_MILLIS = 1000L;
+
+    /** True while the stand-in database's queries are killed. */
+    private volatile boolean killing = false;
+
+    /** True while the stand-in database fails. */
+    private volatile boolean failing = false;
+
+    /** Calls that reached the stand-in database. */
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /** Stand-in database: answers with one row naming the call. */
+    private final IDatabaseAdapter base = new IDatabaseAdapter() {
+        @Override
+        public JsonArray queryDatabase(final String query)
+                throws SQLException {
+            return answer(query);
+        }
+
+        @Override
+        public long streamQuery(final String query, final int fetchSize,
+                final RowHandler handler) throws SQLException, IOException {
+            return JsonRows.stream(answer(query), handler);
+        }
+
+        @Override
+        public JsonArray callStoredProcedure(final String procedure,
+                final Object... args) throws SQLException {
+            return answer(procedure + " " + args[0]);
+        }
+
+        @Override
+        public List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+                final String procedure, final Object... args) {
+            calls.incrementAndGet();
+            return failing ? null : new ArrayList<ArrayList<String>>();
+        }
+
+        @Override
+        public int updateDatabase(final String statement) {
+            return 0;
+        }
+    };
+
+    /** The adapter under test, whose breakers stay open for a minute. */
+    private CircuitBreakerDatabaseAdapter db =
+            new CircuitBreakerDatabaseAdapter(base, THRESHOLD, 60000L);
+
+    /**
+     * @param name what was called
+     * @return one row naming the call
+     * @throws SQLException while the database is failing
+     */
+    private JsonArray answer(final String name) throws SQLException {
+        calls.incrementAndGet();
+        if (killing) {
+            throw new SQLTimeoutException("deadline");
+        }
+        if (failing) {
+            throw new SQLException("down");
+        }
+        return Json.createArrayBuilder().add(Json.createObjectBuilder()
+                .add("name", name)).build();
+    }
+
+    /** Clears the stale mark left on the test thread. */
+    @After
+    public final void tearDown() {
+        CircuitBreakerDatabaseAdapter.clearStale();
+    }
+
+    /**
+     * Tests repeated failures open the breaker, after which calls fail
+     * fast without reaching the database.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testOpensAndFailsFast() throws SQLException {
+        failing = true;
+        for (int i = 0; i < THRESHOLD; i++) {
+            try {
+                db.callStoredProcedure("GetUsedVehicle", "VIN" + i);
+                fail("expected the failure to be passed on");
+            } catch (SQLException e) {
+                assertEquals("down", e.getMessage());
+            }
+        }
+        CircuitBreaker breaker = db.getBreaker("GetUsedVehicle");
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        calls.set(0);
+        try {
+            db.callStoredProcedure("GetUsedVehicle", "VIN9");
+            fail("expected the open breaker to refuse the call");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().contains("open"));
+        }
+        assertEquals(0, calls.get());
+        assertEquals(1, breaker.getRejected());
+
+        // other procedures have breakers of their own
+        failing = false;
+        assertEquals(1, db.callStoredProcedure("GetNewVehicle", "M").size());
+        assertTrue(db.describe().contains("GetUsedVehicle OPEN"));
+        assertFalse(CircuitBreakerDatabaseAdapter.isStale());
+    }
+
+    /**
+     * Tests a failing or refused call is answered with the last good
+     * result and the response marked stale.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testServesStale() throws SQLException {
+        JsonArray good = db.callStoredProcedure("GetAllStoreDetails", "x");
+        assertFalse(CircuitBreakerDatabaseAdapter.isStale());
+
+        failing = true;
+        for (int i = 0; i < THRESHOLD + 2; i++) {
+            assertEquals(good,
+                    db.callStoredProcedure("GetAllStoreDetails", "x"));
+        }
+        assertTrue(CircuitBreakerDatabaseAdapter.isStale());
+        assertEquals(CircuitBreaker.State.OPEN,
+                db.getBreaker("GetAllStoreDetails").getState());
+
+        // results are kept per argument list
+        try {
+            db.callStoredProcedure("GetAllStoreDetails", "y");
+            fail("expected no stale result for other arguments");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().contains("open"));
+        }
+
+        // a call reporting failure by returning null is also a failure
+        assertNull(db.callStoredProcedureMultipleResultSets("GetLists"));
+    }
+
+    /**
+     * Tests an open breaker lets one trial call through after waiting,
+     * and closes if it succeeds or opens again if it fails.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testHalfOpenRecovery() throws Exception {
+        db = new CircuitBreakerDatabaseAdapter(base, THRESHOLD, OPEN_MILLIS);
+        failing = true;
+        for (int i = 0; i < THRESHOLD; i++) {
+            try {
+                db.queryDatabase("SELECT " + i);
+            } catch (SQLException e) {
+                assertEquals("down", e.getMessage());
+            }
+        }
+        CircuitBreaker breaker = db.getBreaker(
+                CircuitBreakerDatabaseAdapter.breakerName(
+                        CircuitBreakerDatabaseAdapter.QUERY, "SELECT 1"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(OPEN_MILLIS + 50L);
+        calls.set(0);
+        try {
+            db.queryDatabase("SELECT 1");
+            fail("expected the trial call to fail");
+        } catch (SQLException e) {
+            assertEquals("down", e.getMessage());
+        }
+        assertEquals(1, calls.get());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpened());
+
+        Thread.sleep(OPEN_MILLIS + 50L);
+        failing = false;
+        assertEquals(1, db.queryDatabase("SELECT 1").size());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * Tests queries killed by their request's deadline are passed on but
+     * never open the breaker.
+     */
+    @Test
+    public final void testKillsNotCounted() {
+        killing = true;
+        for (int i = 0; i < THRESHOLD + 2; i++) {
+            try {
+                db.queryDatabase("SELECT 1");
+                fail("expected the kill to be passed on");
+            } catch (SQLException e) {
+                assertEquals("deadline", e.getMessage());
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, db.getBreaker(
+                CircuitBreakerDatabaseAdapter.breakerName(
+                        CircuitBreakerDatabaseAdapter.QUERY, "SELECT 1"))
+                .getState());
+    }
+
+    /**
+     * Tests a query of another shape has a breaker of its own, and a
+     * trial call that throws a runtime exception opens the breaker again
+     * instead of leaving it half open.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testShapesAndRuntimeFailures() throws Exception {
+        failing = true;
+        for (int i = 0; i < THRESHOLD; i++) {
+            try {
+                db.queryDatabase("SELECT * FROM a WHERE x = " + i);
+            } catch (SQLException e) {
+                assertEquals("down", e.getMessage());
+            }
+        }
+        failing = false;
+        assertEquals(1, db.queryDatabase("SELECT * FROM b").size());
+
+        db = new CircuitBreakerDatabaseAdapter(new IDatabaseAdapter() {
+            @Override
+            public JsonArray queryDatabase(final String query)
+                    throws SQLException {
+                if (failing) {
+                    throw new IllegalStateException("bad row");
+                }
+                return answer(query);
+            }
+
+            @Override
+            public long streamQuery(final String query, final int fetchSize,
+                    final RowHandler handler) {
+                return 0L;
+            }
+
+            @Override
+            public JsonArray callStoredProcedure(final String procedure,
+                    final Object... args) {
+                return null;
+            }
+
+            @Override
+            public List<ArrayList<String>>
+                    callStoredProcedureMultipleResultSets(
+                    final String procedure, final Object... args) {
+                return null;
+            }
+
+            @Override
+            public int updateDatabase(final String statement) {
+                return 0;
+            }
+        }, 1, OPEN_MILLIS);
+        CircuitBreaker breaker = db.getBreaker(
+                CircuitBreakerDatabaseAdapter.breakerName(
+                        CircuitBreakerDatabaseAdapter.QUERY, "SELECT 1"));
+        failing = true;
+        for (int i = 0; i < 2; i++) {
+            try {
+                db.queryDatabase("SELECT 1");
+                fail("expected the runtime failure to be passed on");
+            } catch (IllegalStateException e) {
+                assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+            }
+            Thread.sleep(OPEN_MILLIS + 50L);
+        }
+        failing = false;
+        assertEquals(1, db.queryDatabase("SELECT 1").size());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}   // end class CircuitBreakerTest
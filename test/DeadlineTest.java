@@ -0,0 +1,228 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import awesomecars.persistence.Deadline;
+import awesomecars.persistence.ReplicaSet;
+
+/**
+ * Tests request deadlines over stand-in statements: query timeouts set
+ * from the time remaining, statements refused once the deadline has
+ * passed, cancelled by the watchdog, for a departed client or when
+ * another attempt has answered, and killed reads neither retried nor
+ * held against their replica.
+ * @author Travis
+ */
+public class DeadlineTest {
+
+    /** Deadline of the test, ended after each test. */
+    private Deadline deadline;
+
+    /** Stand-in for a JDBC statement, recording what was done to it. */
+    private static final class FakeStatement implements InvocationHandler {
+
+        /** Query timeout set, in seconds. */
+        private volatile int timeout = 0;
+
+        /** Counted down when cancelled. */
+        private final CountDownLatch cancelled = new CountDownLatch(1);
+
+        /** The statement. */
+        private final Statement statement =
+                (Statement) Proxy.newProxyInstance(
+                        Statement.class.getClassLoader(),
+                        new Class<?>[] {Statement.class}, this);
+
+        @Override
+        public Object invoke(final Object proxy, final Method method,
+                final Object[] args) {
+            if ("setQueryTimeout".equals(method.getName())) {
+                timeout = (Integer) args[0];
+            } else if ("cancel".equals(method.getName())) {
+                cancelled.countDown();
+            } else if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            } else if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            }
+            return null;
+        }
+    }   // end class FakeStatement
+
+    /** Ends the test's deadline. */
+    @After
+    public final void tearDown() {
+        Deadline.end(deadline);
+    }
+
+    /**
+     * Tests a statement gets the time remaining, rounded up to seconds,
+     * and none without a deadline.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testQueryTimeout() throws SQLException {
+        FakeStatement st = new FakeStatement();
+        Deadline.arm(st.statement);
+        assertEquals(0, st.timeout);
+
+        deadline = Deadline.begin(2500L);
+        Deadline.arm(st.statement);
+        assertEquals(3, st.timeout);
+        Deadline.disarm(st.statement);
+    }
+
+    /**
+     * Tests a statement is refused once the deadline has passed, and the
+     * failure is recognised as a kill.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testExpired() throws Exception {
+        deadline = Deadline.begin(10L);
+        Thread.sleep(30L);
+        long expired = Deadline.getExpired();
+        long timedOut = Deadline.getTimedOut();
+        try {
+            Deadline.arm(new FakeStatement().statement);
+            fail("expected the statement to be refused");
+        } catch (SQLTimeoutException e) {
+            assertTrue(Deadline.killed(e));
+        }
+        assertEquals(expired + 1, Deadline.getExpired());
+        assertEquals(timedOut, Deadline.getTimedOut());
+    }
+
+    /**
+     * Tests the watchdog cancels a statement still running when the
+     * deadline passes, and cancel() one running on another thread.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testCancel() throws Exception {
+        long timedOut = Deadline.getTimedOut();
+        deadline = Deadline.begin(50L);
+        FakeStatement slow = new FakeStatement();
+        Deadline.arm(slow.statement);
+        assertTrue(slow.cancelled.await(5, TimeUnit.SECONDS));
+        // the watchdog counts the statement once cancel() has returned
+        for (int i = 0; i < 500 && Deadline.getTimedOut() == timedOut;
+                i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(timedOut + 1, Deadline.getTimedOut());
+        Deadline.end(deadline);
+
+        long cancelled = Deadline.getCancelled();
+        deadline = Deadline.begin(60000L);
+        final Deadline request = deadline;
+        final FakeStatement other = new FakeStatement();
+        final CountDownLatch armed = new CountDownLatch(1);
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Deadline previous = Deadline.attach(request);
+                try {
+                    Deadline.arm(other.statement);
+                    armed.countDown();
+                    other.cancelled.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    Deadline.attach(previous);
+                }
+            }
+        });
+        worker.start();
+        assertTrue(armed.await(5, TimeUnit.SECONDS));
+        deadline.cancel();
+        worker.join();
+        assertEquals(0, other.cancelled.getCount());
+        assertEquals(cancelled + 1, Deadline.getCancelled());
+        assertTrue(deadline.isExpired());
+    }
+
+    /**
+     * Tests superseding a fork cancels its statements alone, while the
+     * deadline it was forked from still cancels them all.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testFork() throws SQLException {
+        Deadline unlimited = Deadline.fork(null);
+        assertEquals(Long.MAX_VALUE, unlimited.getRemainingMillis());
+        assertFalse(unlimited.isExpired());
+
+        deadline = Deadline.begin(60000L);
+        Deadline loser = Deadline.fork(deadline);
+        Deadline winner = Deadline.fork(deadline);
+        FakeStatement lost = new FakeStatement();
+        FakeStatement won = new FakeStatement();
+        long superseded = Deadline.getSuperseded();
+        Deadline.attach(loser);
+        Deadline.arm(lost.statement);
+        assertTrue(lost.timeout > 0);
+        Deadline.attach(winner);
+        Deadline.arm(won.statement);
+
+        loser.supersede();
+        assertEquals(0, lost.cancelled.getCount());
+        assertEquals(1, won.cancelled.getCount());
+        assertEquals(superseded + 1, Deadline.getSuperseded());
+        assertTrue(loser.isExpired());
+        assertFalse(winner.isExpired());
+
+        deadline.cancel();
+        assertEquals(0, won.cancelled.getCount());
+        assertTrue(winner.isExpired());
+        Deadline.attach(deadline);
+    }
+
+    /**
+     * Tests a read killed by its deadline is not retried on another
+     * replica and does not mark its replica down.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testKilledReadNotRetried() throws SQLException {
+        ReplicaSet set = new ReplicaSet("primary", Arrays.asList("a", "b"),
+                false, 30);
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            set.read(new ReplicaSet.Call<String>() {
+                @Override
+                public String call(final ReplicaSet.Replica db)
+                        throws SQLException {
+                    calls.incrementAndGet();
+                    throw new SQLTimeoutException("timed out");
+                }
+            });
+            fail("expected the kill to be passed on");
+        } catch (SQLTimeoutException e) {
+            assertEquals("timed out", e.getMessage());
+        } finally {
+            set.close();
+        }
+        assertEquals(1, calls.get());
+        assertTrue(set.getReplicas().get(0).isUp());
+        assertNull(Deadline.current());
+    }
+}   // end class DeadlineTest
@@ -0,0 +1,210 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.json.JsonArray;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.beans.Dealership;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.DealershipRepository;
+import awesomecars.model.GeoIndex;
+import awesomecars.model.InventoryIndex;
+import awesomecars.model.InventorySearch;
+import awesomecars.model.OffHeapVehicleStore;
+import awesomecars.model.ZipCentroids;
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.RowHandler;
+
+/**
+ * Tests the ZIP centroid table, the k-d tree and distance searches over
+ * the test dealerships (Dallas-Fort Worth area stores and one in Austin).
+ * @author Travis
+ */
+public class GeoSearchTest {
+
+    /** Centroids of the test stores' ZIP codes and of one far away. */
+    public static final String CENTROIDS = "zip,lat,lon\n"
+            + "75201,32.7877,-96.7995\n" + "75074,33.0266,-96.6772\n"
+            + "76010,32.7206,-97.0827\n" + "76102,32.7540,-97.3300\n"
+            + "78701,30.2713,-97.7426\n" + "02139,42.3647,-71.1042\n";
+
+    /** Indexes over the test inventory. */
+    private static InventoryIndex index;
+
+    /** The test database. */
+    private static InMemoryDatabaseAdapter db;
+
+    /**
+     * Locates the test dealerships and loads the inventory.
+     * @throws IOException IOException
+     * @throws SQLException SQLException
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException, SQLException {
+        db = new InMemoryDatabaseAdapter(2000);
+        CarWebAppCache.getInstance().refreshCache(db);
+        DealershipRepository.initRepository(db);
+        assertEquals(5, DealershipRepository.initGeo(
+                ZipCentroids.load(new StringReader(CENTROIDS))));
+        index = new InventoryIndex(OffHeapVehicleStore.loadFromDatabase(db));
+    }
+
+    /** Tests nearest-N and radius queries against brute force. */
+    @Test
+    public final void testGeoIndex() {
+        Random random = new Random(42);
+        int n = 3000;
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        for (int i = 0; i < n; i++) {
+            lat[i] = 25 + random.nextDouble() * 24;
+            lon[i] = -125 + random.nextDouble() * 58;
+        }
+        GeoIndex geo = new GeoIndex(lat, lon);
+        for (int q = 0; q < 20; q++) {
+            double qLat = 25 + random.nextDouble() * 24;
+            double qLon = -125 + random.nextDouble() * 58;
+            final double[] d = new double[n];
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                d[i] = GeoIndex.distanceMiles(qLat, qLon, lat[i], lon[i]);
+                order[i] = i;
+            }
+            Arrays.sort(order, new java.util.Comparator<Integer>() {
+                @Override
+                public int compare(final Integer a, final Integer b) {
+                    return Double.compare(d[a], d[b]);
+                }
+            });
+            
+            int[] nearest = geo.nearest(qLat, qLon, 10);
+            assertEquals(10, nearest.length);
+            for (int i = 0; i < nearest.length; i++) {
+                assertEquals(d[order[i]], d[nearest[i]], 1e-6);
+            }
+            int within = 0;
+            while (d[order[within]] <= 150.0) {
+                within++;
+            }
+            int[] found = geo.within(qLat, qLon, 150.0);
+            assertEquals(within, found.length);
+            for (int i = 1; i < found.length; i++) {
+                assertTrue(d[found[i - 1]] <= d[found[i]]);
+            }
+        }
+    }   // end testGeoIndex()
+
+    /** Tests the dealership queries. */
+    @Test
+    public final void testNearestStores() {
+        List<Dealership> nearest = 
+                DealershipRepository.getNearestStores(75201, 2);
+        assertEquals("Dallas", nearest.get(0).getName());
+        assertEquals(4, 
+                DealershipRepository.getStoresWithin(75201, 50).size());
+        // leading zeros are dropped, as Dealership keeps ZIP codes as ints
+        assertEquals("Plano", DealershipRepository
+                .getNearestStores(2139, 1).get(0).getName());
+        assertTrue(DealershipRepository.getNearestStores(99999, 3).isEmpty());
+        assertFalse(DealershipRepository.isKnownZip(99999));
+    }
+
+    /** Tests a search within a radius sorted by distance. */
+    @Test
+    public final void testDistanceSearch() {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("nearZip", new String[] {"75201"});
+        params.put("radius", new String[] {"50"});
+        params.put("SortBy1", new String[] {"distance"});
+        params.put("SortOrder1", new String[] {"ASC"});
+        AdvancedSearch s = new AdvancedSearch(params);
+        assertEquals(4, s.getIncludeLocations().size());
+        assertFalse(s.getIncludeLocations().contains("Austin"));
+        assertTrue(s.toString().contains("AS distance"));
+        
+        Map<String, Double> distances = s.getStoreDistances();
+        OffHeapVehicleStore store = index.getStore();
+        int[] rows = InventorySearch.search(index, s);
+        assertTrue(rows.length > 0);
+        double previous = 0.0;
+        for (int row : rows) {
+            double d = distances.get(store.getString(row, 
+                    OffHeapVehicleStore.STORE));
+            assertTrue(d <= 50.0 && d >= previous);
+            previous = d;
+        }
+        assertEquals("Dallas", 
+                store.getString(rows[0], OffHeapVehicleStore.STORE));
+    }   // end testDistanceSearch()
+
+    /**
+     * Tests that locating the stores reports a failed query apart from
+     * stores whose ZIP codes are missing from the table.
+     * @throws IOException IOException
+     */
+    @Test
+    public final void testInitGeoResult() throws IOException {
+        try {
+            DealershipRepository.initRepository(new IDatabaseAdapter() {
+                @Override
+                public JsonArray queryDatabase(final String query)
+                        throws SQLException {
+                    throw new SQLException("down");
+                }
+
+                @Override
+                public long streamQuery(final String query,
+                        final int fetchSize, final RowHandler handler)
+                        throws IOException {
+                    throw new IOException("down");
+                }
+
+                @Override
+                public JsonArray callStoredProcedure(final String procedure,
+                        final Object... args) throws SQLException {
+                    throw new SQLException("down");
+                }
+
+                @Override
+                public List<ArrayList<String>>
+                        callStoredProcedureMultipleResultSets(
+                        final String procedure, final Object... args)
+                        throws SQLException {
+                    throw new SQLException("down");
+                }
+
+                @Override
+                public int updateDatabase(final String statement)
+                        throws SQLException {
+                    throw new SQLException("down");
+                }
+            });
+            assertEquals(-1, DealershipRepository.initGeo(ZipCentroids.load(
+                    new StringReader(CENTROIDS))));
+
+            DealershipRepository.initRepository(db);
+            assertEquals(0, DealershipRepository.initGeo(ZipCentroids.load(
+                    new StringReader("zip,lat,lon\n99999,40.0,-100.0\n"))));
+        } finally {
+            DealershipRepository.initRepository(db);
+            assertEquals(5, DealershipRepository.initGeo(ZipCentroids.load(
+                    new StringReader(CENTROIDS))));
+        }
+    }   // end testInitGeoResult()
+}   // end class GeoSearchTest
@@ -0,0 +1,163 @@
+package awesomecars.test;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.JsonRows;
+import awesomecars.persistence.RowHandler;
+
+/**
+ * In-process stand-in for the MySQL database used by tests that must not
+ * depend on a running server. It generates a deterministic inventory of
+ * vehicles with the same columns returned by the stored procedures and
+ * the advanced search query, and answers every query with that
+ * inventory.
+ *
+ * @author Travis
+ */
+public class InMemoryDatabaseAdapter implements IDatabaseAdapter {
+
+    /** Makes in the generated inventory. */
+    public static final String[] MAKES = {"Ford", "Nissan", "Toyota"};
+
+    /** Models of each make (same index as MAKES). */
+    public static final String[][] MODELS = {
+        {"Focus", "Taurus"}, {"Altima", "Sentra"}, {"Camry", "Corolla"}};
+
+    /** Body styles. */
+    public static final String[] BODY_STYLES = {"Coupe", "Sedan", "SUV"};
+
+    /** Exterior colors. */
+    public static final String[] EXT_COLORS = {"Black", "Blue", "Red"};
+
+    /** Interior colors. */
+    public static final String[] INT_COLORS = {"Ash", "Black", "Brown"};
+
+    /** Store locations. */
+    public static final String[] LOCATIONS = 
+        {"Arlington", "Austin", "Dallas", "Fort Worth", "Plano"};
+
+    /** Zip code of each store (same index as LOCATIONS). */
+    public static final String[] STORE_ZIPS = 
+        {"76010", "78701", "75201", "76102", "75074"};
+
+    /** Generated inventory. */
+    private final JsonArray vehicles;
+
+    /**
+     * Creates the adapter with a generated inventory.
+     * @param numVehicles number of vehicles to generate
+     */
+    public InMemoryDatabaseAdapter(final int numVehicles) {
+        JsonArrayBuilder builder = Json.createArrayBuilder();
+        for (int i = 0; i < numVehicles; i++) {
+            builder.add(makeVehicleRow(i));
+        }
+        vehicles = builder.build();
+    }
+
+    /**
+     * Generates the i-th vehicle row. Every third vehicle is new.
+     * @param i vehicle number
+     * @return row in the format returned by the database adapter
+     */
+    public static JsonObject makeVehicleRow(final int i) {
+        int make = i % MAKES.length;
+        boolean used = i % 3 != 0;
+        return Json.createObjectBuilder()
+                .add("category", used ? "Used" : "New")
+                .add("make_name", MAKES[make])
+                .add("model_name", MODELS[make][i % 2])
+                .add("model_type", BODY_STYLES[i % BODY_STYLES.length])
+                .add("year_model", String.valueOf(1995 + i % 21))
+                .add("price", String.valueOf(5000 + (i * 7919) % 40000))
+                .add("mpg_city", String.valueOf(15 + i % 20))
+                .add("mpg_hwy", String.valueOf(22 + i % 20))
+                .add("description", "Vehicle number " + i
+                        + " is a fine example of its kind.")
+                .add("picture", "car" + (i % 10) + ".jpg")
+                .add("store_name", LOCATIONS[i % LOCATIONS.length])
+                .add("count_total", used ? "1" : String.valueOf(1 + i % 4))
+                .add("vin", String.format("VIN%014d", i))
+                .add("int_color", INT_COLORS[i % INT_COLORS.length])
+                .add("ext_color", EXT_COLORS[(i / 3) % EXT_COLORS.length])
+                .add("miles", String.valueOf(used ? (i * 3571) % 150000 : 0))
+                .add("engine_type", "V6")
+                .add("transmission", i % 4 == 0 ? "manual" : "automatic")
+                .build();
+    }   // end makeVehicleRow(...)
+
+    /** @return the generated inventory */
+    public final JsonArray getVehicles() {
+        return vehicles;
+    }
+
+    @Override
+    public final JsonArray queryDatabase(final String query)
+            throws SQLException {
+        return vehicles;
+    }
+
+    @Override
+    public final long streamQuery(final String query, final int fetchSize,
+            final RowHandler handler) throws IOException {
+        return JsonRows.stream(vehicles, handler);
+    }
+
+    @Override
+    public final JsonArray callStoredProcedure(final String procedure,
+            final Object... args) throws SQLException {
+        if ("GetMakeModelList".equals(procedure)) {
+            JsonArrayBuilder builder = Json.createArrayBuilder();
+            for (int i = 0; i < MAKES.length; i++) {
+                for (String model : MODELS[i]) {
+                    builder.add(Json.createObjectBuilder()
+                            .add("make_name", MAKES[i])
+                            .add("model_name", model));
+                }
+            }
+            return builder.build();
+        } else if ("GetAllStoreDetails".equals(procedure)) {
+            JsonArrayBuilder builder = Json.createArrayBuilder();
+            for (int i = 0; i < LOCATIONS.length; i++) {
+                builder.add(Json.createObjectBuilder()
+                        .add("store_name", LOCATIONS[i])
+                        .add("store_address", (100 + i) + " Main Street")
+                        .add("store_city", LOCATIONS[i])
+                        .add("store_state", "TX")
+                        .add("store_zip", STORE_ZIPS[i])
+                        .add("store_phone_no", "555-010" + i)
+                        .add("store_hours", "9-6"));
+            }
+            return builder.build();
+        }
+        return vehicles;
+    }   // end callStoredProcedure(...)
+
+    @Override
+    public final List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+            final String procedure, final Object... args) 
+            throws SQLException {
+        List<ArrayList<String>> lists = new ArrayList<ArrayList<String>>();
+        lists.add(new ArrayList<String>(Arrays.asList(BODY_STYLES)));
+        lists.add(new ArrayList<String>(Arrays.asList(EXT_COLORS)));
+        lists.add(new ArrayList<String>(Arrays.asList(INT_COLORS)));
+        lists.add(new ArrayList<String>(Arrays.asList(LOCATIONS)));
+        return lists;
+    }
+
+    @Override
+    public final int updateDatabase(final String statement) {
+        throw new UnsupportedOperationException(
+                "In-memory database is read-only.");
+    }
+}   // end class InMemoryDatabaseAdapter
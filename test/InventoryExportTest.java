@@ -0,0 +1,233 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.InventoryExport;
+import awesomecars.model.InventoryRepository;
+import awesomecars.model.InventorySnapshot;
+import awesomecars.model.OffHeapVehicleStore;
+
+/**
+ * Tests streamed CSV and NDJSON exports from the database and from the
+ * in-memory inventory.
+ * @author Travis
+ */
+public class InventoryExportTest {
+
+    /** Number of vehicles in the inventory. */
+    public static final int NUM_VEHICLES = 500;
+
+    /** The database. */
+    private static InMemoryDatabaseAdapter db;
+
+    /**
+     * Loads the inventory and the cache (used to validate searches).
+     * @throws SQLException SQLException
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws SQLException {
+        db = new InMemoryDatabaseAdapter(NUM_VEHICLES);
+        CarWebAppCache.getInstance().refreshCache(db);
+        InventoryRepository.initRepository(
+                OffHeapVehicleStore.loadFromDatabase(db));
+    }
+
+    /** Drops the inventory so later tests search the database. */
+    @AfterClass
+    public static void tearDownAfterClass() {
+        InventoryRepository.clearRepository();
+    }
+
+    /**
+     * Exports from the database or the in-memory inventory.
+     * @param format the format
+     * @param gzip true to compress
+     * @param fromInventory true to read the in-memory inventory
+     * @param search the search (null for every vehicle)
+     * @return the exported lines
+     * @throws Exception Exception
+     */
+    private static List<String> export(final InventoryExport.Format format,
+            final boolean gzip, final boolean fromInventory,
+            final AdvancedSearch search) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InventoryExport export = 
+                new InventoryExport(bytes, format, gzip)) {
+            if (fromInventory) {
+                InventorySnapshot v = InventoryRepository.pin();
+                try {
+                    export.fromInventory(v, search);
+                } finally {
+                    v.unpin();
+                }
+            } else {
+                export.fromDatabase(db, search);
+            }
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(gzip 
+                ? new GZIPInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray()))
+                : new ByteArrayInputStream(bytes.toByteArray()),
+                StandardCharsets.UTF_8));
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }   // end export(...)
+
+    /**
+     * @param line an NDJSON line
+     * @return its values by key
+     */
+    private static Map<String, String> parse(final String line) {
+        JsonObject obj = Json.createReader(new StringReader(line))
+                .readObject();
+        Map<String, String> values = new HashMap<String, String>();
+        for (Map.Entry<String, JsonValue> e : obj.entrySet()) {
+            values.put(e.getKey(), ((JsonString) e.getValue()).getString());
+        }
+        return values;
+    }
+
+    /**
+     * Tests a gzipped NDJSON export of the database holds every row, and
+     * the in-memory inventory exports the same vehicles.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testNdjson() throws Exception {
+        List<String> lines = export(InventoryExport.Format.NDJSON, true,
+                false, null);
+        JsonArray vehicles = db.getVehicles();
+        assertEquals(NUM_VEHICLES, lines.size());
+        for (int i = 0; i < NUM_VEHICLES; i++) {
+            assertEquals(parse(vehicles.getJsonObject(i).toString()),
+                    parse(lines.get(i)));
+        }
+        
+        List<String> fromMemory = export(InventoryExport.Format.NDJSON,
+                false, true, null);
+        assertEquals(NUM_VEHICLES, fromMemory.size());
+        for (int i = 0; i < NUM_VEHICLES; i++) {
+            Map<String, String> expected = parse(lines.get(i));
+            Map<String, String> actual = parse(fromMemory.get(i));
+            assertEquals(expected.keySet(), actual.keySet());
+            for (String key : new String[] {"make_name", "model_name",
+                "model_type", "year_model", "price", "store_name",
+                "count_total", "description"}) {
+                assertEquals(key, expected.get(key), actual.get(key));
+            }
+        }
+    }   // end testNdjson()
+
+    /**
+     * Tests a CSV export has a header, one line per row, and quotes the
+     * values that need it.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testCsv() throws Exception {
+        List<String> lines = export(InventoryExport.Format.CSV, false,
+                true, null);
+        assertEquals(NUM_VEHICLES + 1, lines.size());
+        assertTrue(lines.get(0).startsWith("vin,make_name,model_name,"));
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InventoryExport export = new InventoryExport(bytes, 
+                InventoryExport.Format.CSV, false)) {
+            export.columns(new String[] {"a", "b", "c"});
+            export.row(new String[] {"plain", "say \"hi\", then", null});
+            assertEquals(1, export.getRows());
+        }
+        assertEquals("a,b,c\r\nplain,\"say \"\"hi\"\", then\",\r\n",
+                new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests an advanced search's results are exported in order.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testSearch() throws Exception {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("make", new String[] {"Ford"});
+        params.put("SortBy1", new String[] {"price"});
+        params.put("SortOrder1", new String[] {"ASC"});
+        List<String> lines = export(InventoryExport.Format.NDJSON, false,
+                true, new AdvancedSearch(params));
+        assertTrue(!lines.isEmpty());
+        int last = 0;
+        for (String line : lines) {
+            Map<String, String> v = parse(line);
+            assertEquals("Ford", v.get("make_name"));
+            int price = Integer.parseInt(v.get("price"));
+            assertTrue(price >= last);
+            last = price;
+        }
+    }
+
+    /**
+     * Reports export throughput from the in-memory inventory.
+     * @throws IOException IOException
+     */
+    @Test
+    public final void testThroughput() throws IOException {
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, 
+                    final int len) {
+            }
+        };
+        InventorySnapshot v = InventoryRepository.pin();
+        try {
+            long rows = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < 400; i++) {
+                try (InventoryExport export = new InventoryExport(discard,
+                        InventoryExport.Format.CSV, false)) {
+                    rows += export.fromInventory(v, null);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println("export: " + (long) (rows / seconds) 
+                    + " rows/s");
+            assertEquals(400L * NUM_VEHICLES, rows);
+        } finally {
+            v.unpin();
+        }
+    }   // end testThroughput()
+}   // end class InventoryExportTest
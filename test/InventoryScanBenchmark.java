@@ -0,0 +1,91 @@
+package awesomecars.test;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.InventoryIndex;
+import awesomecars.model.InventorySearch;
+
+/**
+ * Measures how a broad in-process advanced search (no make/model, wide
+ * price range, sorted on two keys) scales from 1 to N cores. Not run as
+ * part of the unit tests; run it directly:
+ * <pre>
+ * java awesomecars.test.InventoryScanBenchmark [vehicles] [maxThreads]
+ * </pre>
+ *
+ * @author Travis
+ */
+public final class InventoryScanBenchmark {
+
+    /** Default number of vehicles. */
+    public static final int DEFAULT_VEHICLES = 2000000;
+
+    /** Searches run before timing. */
+    public static final int WARMUP_SEARCHES = 20;
+
+    /** Searches timed per thread count. */
+    public static final int TIMED_SEARCHES = 50;
+
+    /** Utility class should not have a public or default constructor. */
+    private InventoryScanBenchmark() { 
+        super();
+    }
+
+    /**
+     * Runs the benchmark.
+     * @param args number of vehicles and maximum number of threads
+     * @throws SQLException SQLException
+     */
+    public static void main(final String[] args) throws SQLException {
+        int vehicles = args.length > 0 
+                ? Integer.parseInt(args[0]) : DEFAULT_VEHICLES;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        
+        CarWebAppCache.getInstance().refreshCache(
+                new InMemoryDatabaseAdapter(1));
+        InventoryIndex index = 
+                new InventoryIndex(BenchmarkInventory.build(vehicles));
+        
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("priceMin", new String[] {"6000"});
+        params.put("priceMax", new String[] {"44000"});
+        params.put("SortBy1", new String[] {"year"});
+        params.put("SortOrder1", new String[] {"DESC"});
+        params.put("SortBy2", new String[] {"price"});
+        params.put("SortOrder2", new String[] {"ASC"});
+        params.put("limit", new String[] {"25"});
+        AdvancedSearch search = new AdvancedSearch(params);
+        
+        System.out.println(vehicles + " vehicles, broad search");
+        double single = 0.0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = threads == 1 ? null 
+                    : new ForkJoinPool(threads);
+            int matched = 0;
+            for (int i = 0; i < WARMUP_SEARCHES; i++) {
+                matched += InventorySearch.search(index, search, pool).length;
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_SEARCHES; i++) {
+                matched += InventorySearch.search(index, search, pool).length;
+            }
+            double millis = (System.nanoTime() - start) / 1e6 
+                    / TIMED_SEARCHES;
+            if (threads == 1) {
+                single = millis;
+            }
+            System.out.println(String.format(
+                    "%2d threads: %8.2f ms/search  speedup %.2fx  (%d)",
+                    threads, millis, single / millis, matched));
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }   // end main(...)
+}   // end class InventoryScanBenchmark
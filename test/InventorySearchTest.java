@@ -0,0 +1,295 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.beans.StringDictionary;
+import awesomecars.beans.Vehicle;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.FilterPlan;
+import awesomecars.model.InventoryFilter;
+import awesomecars.model.InventoryIndex;
+import awesomecars.model.InventorySearch;
+import awesomecars.model.OffHeapVehicleStore;
+import awesomecars.model.RangeFilterKernel;
+import awesomecars.model.RangeIndex;
+import awesomecars.model.VehicleView;
+
+/**
+ * Tests in-process advanced searches against a brute-force filter and
+ * sort of the same inventory.
+ * @author Travis
+ */
+public class InventorySearchTest {
+
+    /** Number of vehicles in the inventory. */
+    public static final int NUM_VEHICLES = 5000;
+
+    /** Indexes over the inventory. */
+    private static InventoryIndex index;
+
+    /**
+     * Loads the inventory and the cache (used to validate search
+     * parameters).
+     * @throws SQLException SQLException
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws SQLException {
+        InMemoryDatabaseAdapter db = new InMemoryDatabaseAdapter(NUM_VEHICLES);
+        CarWebAppCache.getInstance().refreshCache(db);
+        index = new InventoryIndex(OffHeapVehicleStore.loadFromDatabase(db));
+    }
+
+    /**
+     * Builds a search from name/value pairs.
+     * @param pairs parameter names and values
+     * @return the search
+     */
+    private static AdvancedSearch search(final String... pairs) {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            params.put(pairs[i], new String[] {pairs[i + 1]});
+        }
+        return new AdvancedSearch(params);
+    }
+
+    /**
+     * Returns the sort key values of a row as a string.
+     * @param v the row
+     * @return make, price and miles
+     */
+    private static String keys(final VehicleView v) {
+        return v.getMake() + "/" + v.getPrice() + "/" + v.getMiles();
+    }
+
+    /**
+     * Filters and fully sorts the inventory the slow way.
+     * @param s the search
+     * @param c the ordering
+     * @return sort keys of the matching rows, in order
+     */
+    private static List<String> bruteForce(final AdvancedSearch s,
+            final Comparator<VehicleView> c) {
+        OffHeapVehicleStore store = index.getStore();
+        InventoryFilter filter = new InventoryFilter(store, s);
+        List<VehicleView> matches = new ArrayList<VehicleView>();
+        Set<String> newModels = new HashSet<String>();
+        for (int row = 0; row < store.size(); row++) {
+            if (filter.matches(row) && (!filter.isNew(row) 
+                    || newModels.add(store.view(row).getModel()))) {
+                matches.add(store.view(row));
+            }
+        }
+        Collections.sort(matches, c);
+        List<String> result = new ArrayList<String>();
+        for (VehicleView v : matches) {
+            result.add(keys(v));
+        }
+        return result;
+    }   // end bruteForce(...)
+
+    /**
+     * Runs a search in-process.
+     * @param s the search
+     * @return sort keys of the results, in order
+     */
+    private static List<String> inProcess(final AdvancedSearch s) {
+        List<String> result = new ArrayList<String>();
+        for (int row : InventorySearch.search(index, s)) {
+            result.add(keys(index.getStore().view(row)));
+        }
+        return result;
+    }
+
+    /** Tests a single sort key uses the permutation and honours limit. */
+    @Test
+    public final void testSingleKeyFirstPage() {
+        AdvancedSearch s = search("category", "used", "priceMax", "30000",
+                "SortBy1", "price", "SortOrder1", "DESC", "limit", "20");
+        List<String> expected = bruteForce(s, new Comparator<VehicleView>() {
+            @Override
+            public int compare(final VehicleView a, final VehicleView b) {
+                return Integer.compare(b.getPrice(), a.getPrice());
+            }
+        });
+        List<String> actual = inProcess(s);
+        assertEquals(20, actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+            // ties may come out in either order; compare the price only
+            assertEquals(expected.get(i).split("/")[1], 
+                    actual.get(i).split("/")[1]);
+        }
+    }
+
+    /** Tests several sort keys select the same first page as a sort. */
+    @Test
+    public final void testMultiKeyTopK() {
+        AdvancedSearch s = search("SortBy1", "make_name", "SortOrder1", 
+                "ASC", "SortBy2", "miles", "SortOrder2", "DESC", 
+                "limit", "50");
+        List<String> expected = bruteForce(s, new Comparator<VehicleView>() {
+            @Override
+            public int compare(final VehicleView a, final VehicleView b) {
+                int c = a.getMake().compareToIgnoreCase(b.getMake());
+                return c != 0 ? c : Integer.compare(b.getMiles(), a.getMiles());
+            }
+        });
+        List<String> actual = inProcess(s);
+        assertEquals(50, actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+            String[] e = expected.get(i).split("/");
+            String[] a = actual.get(i).split("/");
+            assertEquals(e[0], a[0]);
+            assertEquals(e[2], a[2]);
+        }
+    }
+
+    /** Tests a search without a limit returns every match. */
+    @Test
+    public final void testAllMatches() {
+        AdvancedSearch s = search("make", "Ford", "milesMax", "50000");
+        List<String> actual = inProcess(s);
+        assertTrue(actual.size() > 0);
+        assertEquals(bruteForce(s, new Comparator<VehicleView>() {
+            @Override
+            public int compare(final VehicleView a, final VehicleView b) {
+                return Integer.compare(a.getRow(), b.getRow());
+            }
+        }), actual);
+    }
+
+    /** Tests the range filter kernel agrees with the row-at-a-time filter. */
+    @Test
+    public final void testRangeFilterKernel() {
+        AdvancedSearch s = search("priceMin", "12000", "priceMax", "30000",
+                "yearMin", "2000", "milesMax", "90000", "MPGCityMin", "20");
+        InventoryFilter filter = new InventoryFilter(index.getStore(), s);
+        int from = 128;
+        int to = NUM_VEHICLES - 7;
+        long[] bits = RangeFilterKernel.evaluate(index.getColumns(), s, 
+                from, to);
+        int matched = 0;
+        for (int row = from; row < to; row++) {
+            int offset = row - from;
+            boolean kept = (bits[offset >>> 6] & (1L << offset)) != 0;
+            assertEquals("row " + row, filter.matches(row), kept);
+            matched += kept ? 1 : 0;
+        }
+        assertTrue(matched > 0);
+    }
+
+    /**
+     * Tests the planner answers selective equality filters from the
+     * bitmap index, estimates the number of matches from the statistics
+     * and that the planned search still returns every match.
+     */
+    @Test
+    public final void testFilterPlanner() {
+        AdvancedSearch s = search("make", "Ford", "location", "Austin",
+                "priceMax", "30000");
+        FilterPlan plan = InventorySearch.plan(index, s);
+        assertTrue(plan.explain(), plan.isBitmap());
+        assertTrue(plan.explain().contains("location"));
+        
+        List<String> expected = bruteForce(s, new Comparator<VehicleView>() {
+            @Override
+            public int compare(final VehicleView a, final VehicleView b) {
+                return Integer.compare(a.getRow(), b.getRow());
+            }
+        });
+        assertEquals(expected, inProcess(s));
+        // the new vehicles collapse to one per model, so compare the
+        // estimate with every matching row
+        int matched = 0;
+        InventoryFilter filter = new InventoryFilter(index.getStore(), s);
+        for (int row = 0; row < index.size(); row++) {
+            matched += filter.matches(row) ? 1 : 0;
+        }
+        assertEquals(matched, plan.getEstimatedRows(), matched * 0.25);
+    }   // end testFilterPlanner()
+
+    /**
+     * Tests a range index selects the same rows as comparing every value,
+     * including when rebuilt after vehicles are added and sold.
+     */
+    @Test
+    public final void testRangeIndex() {
+        OffHeapVehicleStore store = 
+                new OffHeapVehicleStore(new StringDictionary());
+        for (int i = 0; i < 1000; i++) {
+            store.add(new Vehicle(InMemoryDatabaseAdapter.makeVehicleRow(i)));
+        }
+        
+        // sell every seventh vehicle and add more
+        for (int row = 0; row < 1000; row += 7) {
+            store.remove(row);
+        }
+        for (int i = 1000; i < 1500; i++) {
+            store.add(new Vehicle(InMemoryDatabaseAdapter.makeVehicleRow(i)));
+        }
+        store.remove(1003);
+        RangeIndex prices = new InventoryIndex(store)
+                .getRangeIndex(OffHeapVehicleStore.PRICE);
+        
+        long[] bits = new long[(store.size() + 63) / 64];
+        prices.select(15000, 20000, bits);
+        int count = 0;
+        for (int row = 0; row < store.size(); row++) {
+            int price = store.getInt(row, OffHeapVehicleStore.PRICE);
+            // removed rows are indexed; searches skip them afterwards
+            boolean expected = price >= 15000 && price <= 20000;
+            assertEquals("row " + row, expected, 
+                    (bits[row >>> 6] & (1L << row)) != 0);
+            count += expected ? 1 : 0;
+        }
+        assertTrue(count > 0);
+        assertEquals(count, prices.count(15000, 20000));
+    }   // end testRangeIndex()
+
+    /** Tests a parallel segmented scan returns the same rows as one thread. */
+    @Test
+    public final void testParallelScan() {
+        OffHeapVehicleStore store = 
+                new OffHeapVehicleStore(new StringDictionary());
+        for (int i = 0; i < InventorySearch.PARALLEL_MIN_ROWS + 1000; i++) {
+            store.add(new Vehicle(InMemoryDatabaseAdapter.makeVehicleRow(i)));
+        }
+        InventoryIndex large = new InventoryIndex(store);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            AdvancedSearch[] searches = {
+                search("SortBy1", "model_name", "SortOrder1", "DESC",
+                        "SortBy2", "price", "SortOrder2", "ASC", 
+                        "limit", "100"),
+                search("priceMin", "20000", "SortBy1", "year", "SortOrder1", 
+                        "ASC", "SortBy2", "miles", "SortOrder2", "ASC"),
+                search("category", "new", "SortBy1", "price", "SortOrder1",
+                        "DESC", "SortBy2", "make", "SortOrder2", "ASC")
+            };
+            for (AdvancedSearch s : searches) {
+                int[] expected = InventorySearch.search(large, s, null);
+                assertTrue(expected.length > 0);
+                assertEquals(Arrays.toString(expected), Arrays.toString(
+                        InventorySearch.search(large, s, pool)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }   // end testParallelScan()
+}   // end class InventorySearchTest
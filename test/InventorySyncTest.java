@@ -0,0 +1,325 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.beans.Vehicle;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.InventoryRepository;
+import awesomecars.model.InventorySnapshot;
+import awesomecars.model.InventorySync;
+import awesomecars.model.OffHeapVehicleStore;
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.JsonRows;
+import awesomecars.persistence.RowHandler;
+
+/**
+ * Tests that polled inventory changes are applied to the in-memory
+ * inventory: inserts, price changes, sales and repeated rows.
+ * @author Travis
+ */
+public class InventorySyncTest {
+
+    /** Number of vehicles loaded initially. */
+    public static final int NUM_VEHICLES = 300;
+
+    /** Initial inventory; also answers the cache's stored procedures. */
+    private final InMemoryDatabaseAdapter base = 
+            new InMemoryDatabaseAdapter(NUM_VEHICLES);
+
+    /** Results of the next change queries, in order. */
+    private final LinkedList<JsonArray> changes = new LinkedList<JsonArray>();
+
+    /** Database returning the queued changes for every query. */
+    private final IDatabaseAdapter db = new IDatabaseAdapter() {
+        @Override
+        public JsonArray queryDatabase(final String query) {
+            return changes.isEmpty() 
+                    ? Json.createArrayBuilder().build() : changes.poll();
+        }
+
+        @Override
+        public long streamQuery(final String query, final int fetchSize,
+                final RowHandler handler) throws IOException {
+            return JsonRows.stream(queryDatabase(query), handler);
+        }
+
+        @Override
+        public JsonArray callStoredProcedure(final String procedure,
+                final Object... args) throws SQLException {
+            return base.callStoredProcedure(procedure, args);
+        }
+
+        @Override
+        public List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+                final String procedure, final Object... args)
+                throws SQLException {
+            return base.callStoredProcedureMultipleResultSets(procedure,
+                    args);
+        }
+
+        @Override
+        public int updateDatabase(final String statement) {
+            return base.updateDatabase(statement);
+        }
+    };
+
+    /** The sync under test. */
+    private InventorySync sync;
+
+    /**
+     * Loads the initial inventory.
+     * @throws SQLException SQLException
+     */
+    @Before
+    public final void setUp() throws SQLException {
+        CarWebAppCache.getInstance().refreshCache(base);
+        InventoryRepository.initRepository(
+                OffHeapVehicleStore.loadFromDatabase(base));
+        sync = new InventorySync(db, "2024-01-01 00:00:00.000000");
+    }
+
+    /** Drops the inventory so later tests search the database. */
+    @After
+    public final void tearDown() {
+        InventoryRepository.clearRepository();
+    }
+
+    /**
+     * Copies a generated vehicle row with changed columns.
+     * @param i vehicle number
+     * @param lastUpdated the row's last_updated time
+     * @param pairs column names and new values
+     * @return the changed row
+     */
+    private static JsonObject changed(final int i, final String lastUpdated,
+            final String... pairs) {
+        JsonObjectBuilder b = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> e 
+                : InMemoryDatabaseAdapter.makeVehicleRow(i).entrySet()) {
+            b.add(e.getKey(), ((JsonString) e.getValue()).getString());
+        }
+        for (int p = 0; p < pairs.length; p += 2) {
+            b.add(pairs[p], pairs[p + 1]);
+        }
+        return b.add("last_updated", lastUpdated).build();
+    }
+
+    /**
+     * Queues the rows returned by the next poll.
+     * @param rows changed rows
+     */
+    private void poll(final JsonObject... rows) {
+        JsonArrayBuilder b = Json.createArrayBuilder();
+        for (JsonObject row : rows) {
+            b.add(row);
+        }
+        changes.add(b.build());
+    }
+
+    /**
+     * @param vin a VIN
+     * @return prices of the used vehicles found with it
+     */
+    private static List<Integer> prices(final String vin) {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("category", new String[] {"used"});
+        AdvancedSearch s = new AdvancedSearch(params);
+        List<Integer> prices = new ArrayList<Integer>();
+        for (Vehicle v : InventoryRepository.search(s)) {
+            if (vin.equals(v.getVin())) {
+                prices.add(v.getPrice());
+            }
+        }
+        return prices;
+    }
+
+    /**
+     * Tests a price change replaces the vehicle and a repeated row from
+     * the overlap window is not applied twice.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testPriceChange() throws SQLException {
+        String vin = String.format("VIN%014d", 1);
+        poll(changed(1, "2024-01-01 00:00:01.000000", "price", "123"));
+        poll(changed(1, "2024-01-01 00:00:01.000000", "price", "123"));
+        assertEquals(1, sync.sync());
+        assertEquals("2024-01-01 00:00:01.000000", sync.getHighWaterMark());
+        assertEquals(1, prices(vin).size());
+        assertEquals(123, (int) prices(vin).get(0));
+        
+        int size = InventoryRepository.getStore().size();
+        assertEquals(0, sync.sync());
+        assertEquals(size, InventoryRepository.getStore().size());
+        assertTrue(sync.getLagMillis() >= 0);
+    }
+
+    /**
+     * Tests a search pinned to a version keeps seeing it after a batch of
+     * changes is published, and the version is reclaimed once unpinned.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testPinnedVersion() throws SQLException {
+        String vin = String.format("VIN%014d", 4);
+        InventorySnapshot pinned = InventoryRepository.pin();
+        int live = InventorySnapshot.getLiveVersions();
+        poll(changed(4, "2024-01-01 00:00:01.000000", "price", "456"),
+                changed(NUM_VEHICLES + 4, "2024-01-01 00:00:01.000000"));
+        assertEquals(2, sync.sync());
+        assertEquals(live + 1, InventorySnapshot.getLiveVersions());
+        
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("category", new String[] {"used"});
+        AdvancedSearch s = new AdvancedSearch(params);
+        int oldPrice = Integer.parseInt(
+                InMemoryDatabaseAdapter.makeVehicleRow(4).getString("price"));
+        List<Integer> pinnedPrices = new ArrayList<Integer>();
+        for (Vehicle v : pinned.search(s)) {
+            if (vin.equals(v.getVin())) {
+                pinnedPrices.add(v.getPrice());
+            }
+            assertTrue(!v.getVin().endsWith(String.valueOf(NUM_VEHICLES + 4)));
+        }
+        assertEquals(Arrays.asList(oldPrice), pinnedPrices);
+        assertEquals(Arrays.asList(456), prices(vin));
+        
+        pinned.unpin();
+        assertEquals(live, InventorySnapshot.getLiveVersions());
+    }
+
+    /**
+     * Tests a version pinned before a vehicle is sold still finds the
+     * vehicle by VIN, also after the VIN table has grown.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testPinnedVinLookup() throws SQLException {
+        String vin = String.format("VIN%014d", 2);
+        InventorySnapshot pinned = InventoryRepository.pin();
+        JsonObject[] rows = new JsonObject[NUM_VEHICLES + 1];
+        rows[0] = changed(2, "2024-01-01 00:00:01.000000", 
+                "count_total", "0");
+        for (int i = 1; i < rows.length; i++) {
+            rows[i] = changed(NUM_VEHICLES + i, "2024-01-01 00:00:01.000000");
+        }
+        poll(rows);
+        assertEquals(rows.length, sync.sync());
+        try {
+            assertEquals(3, pinned.similarToVin(vin, 3).size());
+        } finally {
+            pinned.unpin();
+        }
+        InventorySnapshot current = InventoryRepository.pin();
+        try {
+            assertTrue(current.similarToVin(vin, 3).isEmpty());
+        } finally {
+            current.unpin();
+        }
+    }   // end testPinnedVinLookup()
+
+    /**
+     * Tests an inserted vehicle becomes searchable and a sold one (count
+     * dropped to 0) disappears.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testInsertAndSale() throws SQLException {
+        String inserted = String.format("VIN%014d", NUM_VEHICLES + 1);
+        String sold = String.format("VIN%014d", 2);
+        assertTrue(prices(inserted).isEmpty());
+        assertEquals(1, prices(sold).size());
+        poll(changed(NUM_VEHICLES + 1, "2024-01-01 00:00:02.000000"),
+                changed(2, "2024-01-01 00:00:03.000000", 
+                        "count_total", "0"));
+        assertEquals(2, sync.sync());
+        assertEquals(1, prices(inserted).size());
+        assertTrue(prices(sold).isEmpty());
+        assertEquals("2024-01-01 00:00:03.000000", sync.getHighWaterMark());
+    }
+
+    /**
+     * @param vin a database key
+     * @return quantity of the vehicle at each store it is stocked at
+     */
+    private static Map<String, Integer> stock(final String vin) {
+        Map<String, Integer> stock = new HashMap<String, Integer>();
+        InventorySnapshot version = InventoryRepository.pin();
+        try {
+            OffHeapVehicleStore store = version.getIndex().getStore();
+            for (int row = 0; row < version.size(); row++) {
+                if (version.isLive(row) && vin.equals(store.getKey(row))) {
+                    stock.put(store.getString(row, OffHeapVehicleStore.STORE),
+                            store.getInt(row, OffHeapVehicleStore.COUNT));
+                }
+            }
+        } finally {
+            version.unpin();
+        }
+        return stock;
+    }
+
+    /**
+     * Tests changes to a new vehicle stocked at two stores touch only the
+     * row of the store they name, also when both arrive in one poll or
+     * one store sells out.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testMultiStoreVehicle() throws SQLException {
+        String vin = String.format("VIN%014d", 3);
+        String home = InMemoryDatabaseAdapter.LOCATIONS[
+                3 % InMemoryDatabaseAdapter.LOCATIONS.length];
+        String other = InMemoryDatabaseAdapter.LOCATIONS[
+                4 % InMemoryDatabaseAdapter.LOCATIONS.length];
+        poll(changed(3, "2024-01-01 00:00:01.000000",
+                "store_name", other, "count_total", "2"));
+        assertEquals(1, sync.sync());
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        expected.put(home, Integer.parseInt(InMemoryDatabaseAdapter
+                .makeVehicleRow(3).getString("count_total")));
+        expected.put(other, 2);
+        assertEquals(expected, stock(vin));
+
+        // both stores change in one poll, one of them twice in the window
+        poll(changed(3, "2024-01-01 00:00:02.000000", "count_total", "7"),
+                changed(3, "2024-01-01 00:00:01.000000",
+                        "store_name", other, "count_total", "2"),
+                changed(3, "2024-01-01 00:00:02.000000",
+                        "store_name", other, "count_total", "5"));
+        assertEquals(2, sync.sync());
+        expected.put(home, 7);
+        expected.put(other, 5);
+        assertEquals(expected, stock(vin));
+
+        // selling out at one store leaves the other
+        poll(changed(3, "2024-01-01 00:00:03.000000",
+                "store_name", other, "count_total", "0"));
+        assertEquals(1, sync.sync());
+        expected.remove(other);
+        assertEquals(expected, stock(vin));
+    }
+}   // end class InventorySyncTest
@@ -0,0 +1,177 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+
+import org.junit.After;
+import org.junit.Test;
+
+import awesomecars.JitWarmUp;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.RowHandler;
+
+/**
+ * Tests the JIT warm-up's corpus and its stability check.
+ * @author Travis
+ */
+public class JitWarmUpTest {
+
+    /** Make name with characters special in query strings. */
+    private static final String MAKE = "A&B=C";
+
+    /** Model name with characters special in query strings. */
+    private static final String MODEL = "x+y %25 z";
+
+    /** Test database. */
+    private final InMemoryDatabaseAdapter base =
+            new InMemoryDatabaseAdapter(10);
+
+    /**
+     * Reloads the cache with the usual test data.
+     * @throws SQLException SQLException
+     */
+    @After
+    public final void tearDown() throws SQLException {
+        CarWebAppCache.getInstance().refreshCache(base);
+    }
+
+    /**
+     * Tests the default corpus uses the cached names as they are.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testDefaultCorpus() throws SQLException {
+        assertTrue(CarWebAppCache.getInstance().refreshCache(
+                new IDatabaseAdapter() {
+            @Override
+            public JsonArray queryDatabase(final String query)
+                    throws SQLException {
+                return base.queryDatabase(query);
+            }
+
+            @Override
+            public long streamQuery(final String query, final int fetchSize,
+                    final RowHandler handler) throws IOException {
+                return base.streamQuery(query, fetchSize, handler);
+            }
+
+            @Override
+            public JsonArray callStoredProcedure(final String procedure,
+                    final Object... args) throws SQLException {
+                if ("GetMakeModelList".equals(procedure)) {
+                    return Json.createArrayBuilder().add(
+                            Json.createObjectBuilder().add("make_name", MAKE)
+                            .add("model_name", MODEL)).build();
+                }
+                return base.callStoredProcedure(procedure, args);
+            }
+
+            @Override
+            public List<ArrayList<String>>
+                    callStoredProcedureMultipleResultSets(
+                    final String procedure, final Object... args)
+                    throws SQLException {
+                return base.callStoredProcedureMultipleResultSets(
+                        procedure, args);
+            }
+
+            @Override
+            public int updateDatabase(final String statement) {
+                return base.updateDatabase(statement);
+            }
+        }));
+
+        List<Map<String, String[]>> corpus = JitWarmUp.defaultCorpus();
+        assertEquals(6, corpus.size());
+        assertArrayEquals(new String[] {MODEL},
+                corpus.get(0).get("basicSearch"));
+        assertArrayEquals(new String[] {MODEL}, corpus.get(1).get("model"));
+        assertArrayEquals(new String[] {MODEL}, corpus.get(2).get("model"));
+        assertArrayEquals(new String[] {MAKE}, corpus.get(4).get("make"));
+        assertEquals(5, corpus.get(4).size());
+    }   // end testDefaultCorpus()
+
+    /**
+     * Tests a corpus file is URL-decoded and comments are skipped.
+     * @throws IOException IOException
+     */
+    @Test
+    public final void testReadCorpus() throws IOException {
+        File file = File.createTempFile("corpus", ".txt");
+        try {
+            Files.write(file.toPath(), Arrays.asList("# warm-up", "",
+                    "action=basicSearch&basicSearch=a%26b+c",
+                    "action=advancedResults&make=Ford&make=Nissan"),
+                    StandardCharsets.UTF_8);
+            List<Map<String, String[]>> corpus = JitWarmUp.readCorpus(file);
+            assertEquals(2, corpus.size());
+            assertArrayEquals(new String[] {"a&b c"},
+                    corpus.get(0).get("basicSearch"));
+            assertArrayEquals(new String[] {"Ford", "Nissan"},
+                    corpus.get(1).get("make"));
+        } finally {
+            if (!file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+        }
+    }   // end testReadCorpus()
+
+    /**
+     * @param pairs actions and median latencies
+     * @return medians by action
+     */
+    private static Map<String, Long> medians(final Object... pairs) {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            m.put((String) pairs[i], ((Number) pairs[i + 1]).longValue());
+        }
+        return m;
+    }
+
+    /** Tests rounds are stable only if every action's median is. */
+    @Test
+    public final void testIsStable() {
+        Map<String, Long> previous = medians("basicSearch", 1000,
+                "locations", 2000);
+        assertTrue(JitWarmUp.isStable(previous,
+                medians("basicSearch", 1090, "locations", 1900)));
+        assertFalse(JitWarmUp.isStable(previous,
+                medians("basicSearch", 1090, "locations", 1700)));
+        // an action missing from, or too fast for, the previous round
+        assertFalse(JitWarmUp.isStable(previous,
+                medians("basicSearch", 1000, "export", 10)));
+        assertFalse(JitWarmUp.isStable(medians("basicSearch", 0),
+                medians("basicSearch", 0)));
+    }
+
+    /** Tests the warm-up gives up once its budget is spent. */
+    @Test
+    public final void testBudget() {
+        List<Map<String, String[]>> corpus =
+                new ArrayList<Map<String, String[]>>();
+        corpus.add(new HashMap<String, String[]>());
+        assertFalse(new JitWarmUp(corpus, 0L).run());
+
+        long start = System.currentTimeMillis();
+        new JitWarmUp(corpus, 200L).run();
+        assertTrue(System.currentTimeMillis() - start < 5000L);
+    }
+}   // end class JitWarmUpTest
@@ -0,0 +1,124 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import awesomecars.beans.StringDictionary;
+import awesomecars.beans.Vehicle;
+import awesomecars.model.OffHeapVehicleStore;
+import awesomecars.model.VehicleView;
+
+/**
+ * Tests that the off-heap vehicle store returns the same values as the
+ * Vehicle beans it was loaded from, both directly and after being saved
+ * to and memory-mapped from a file.
+ * @author Travis
+ */
+public class OffHeapVehicleStoreTest {
+
+    /** Number of vehicles (spans more than one segment). */
+    public static final int NUM_VEHICLES = 
+            OffHeapVehicleStore.SEGMENT_RECORDS + 100;
+
+    /**
+     * Asserts a view matches the vehicle bean it was created from.
+     * @param v the vehicle
+     * @param view the view
+     */
+    private static void assertSameVehicle(final Vehicle v,
+            final VehicleView view) {
+        assertEquals(v.getVin(), view.getVin());
+        assertEquals(v.getMake(), view.getMake());
+        assertEquals(v.getModel(), view.getModel());
+        assertEquals(v.getBodyStyle(), view.getBodyStyle());
+        assertEquals(v.getYear(), view.getYear());
+        assertEquals(v.getPrice(), view.getPrice());
+        assertEquals(v.getMiles(), view.getMiles());
+        assertEquals(v.getExtColor(), view.getExtColor());
+        assertEquals(v.getDescription(), view.getDescription());
+        assertEquals(v.getImageURL(), view.getImageURL());
+        assertEquals(v.getInventory(), view.getInventory());
+    }
+
+    /**
+     * Loads the store from the database and compares every row.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testLoadFromDatabase() throws SQLException {
+        InMemoryDatabaseAdapter db = new InMemoryDatabaseAdapter(NUM_VEHICLES);
+        OffHeapVehicleStore store = OffHeapVehicleStore.loadFromDatabase(db);
+        
+        assertEquals(NUM_VEHICLES, store.size());
+        for (int i = 0; i < NUM_VEHICLES; i++) {
+            assertSameVehicle(new Vehicle(db.getVehicles().getJsonObject(i)),
+                    store.view(i));
+        }
+        // image filenames are not interned
+        assertEquals(StringDictionary.NULL_ID,
+                store.getDictionary().lookup("car0.jpg"));
+        
+        Vehicle none = store.view(0).toVehicle();
+        none.setImageURL(null);
+        none.setDescription(null);
+        assertNull(store.view(store.add(none)).getImageURL());
+        assertEquals("", store.view(store.size() - 1).getDescription());
+    }
+
+    /**
+     * Saves the store, maps it back in and appends to it.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testSaveAndLoad() throws Exception {
+        InMemoryDatabaseAdapter db = new InMemoryDatabaseAdapter(NUM_VEHICLES);
+        OffHeapVehicleStore store = OffHeapVehicleStore.loadFromDatabase(db);
+        store.remove(1);
+        
+        File file = File.createTempFile("inventory", ".bin");
+        try {
+            store.save(file);
+            OffHeapVehicleStore loaded = OffHeapVehicleStore.load(file);
+            assertEquals(NUM_VEHICLES, loaded.size());
+            assertTrue(loaded.isRemoved(1));
+            for (int i = 0; i < NUM_VEHICLES; i += 997) {
+                assertSameVehicle(
+                        new Vehicle(db.getVehicles().getJsonObject(i)),
+                        loaded.view(i));
+            }
+            
+            // rows can still be appended and updated after loading
+            Vehicle extra = loaded.view(0).toVehicle();
+            extra.setVin("EXTRA");
+            int row = loaded.add(extra);
+            assertEquals(NUM_VEHICLES, row);
+            assertSameVehicle(extra, loaded.view(row));
+            loaded.setInt(0, OffHeapVehicleStore.PRICE, 1);
+            assertEquals(1, loaded.view(0).getPrice());
+            
+            // saving replaces the file whole, under the mapped store
+            OffHeapVehicleStore.loadFromDatabase(
+                    new InMemoryDatabaseAdapter(10)).save(file);
+            assertEquals(10, OffHeapVehicleStore.load(file).size());
+            for (String name : file.getParentFile().list()) {
+                assertFalse(name.startsWith(file.getName())
+                        && name.endsWith(".tmp"));
+            }
+            assertSameVehicle(
+                    new Vehicle(db.getVehicles().getJsonObject(997)),
+                    loaded.view(997));
+        } finally {
+            if (!file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+        }
+    }   // end testSaveAndLoad()
+}   // end class OffHeapVehicleStoreTest
@@ -0,0 +1,151 @@
+package awesomecars.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.model.InventoryColumns;
+import awesomecars.model.RangeFilterKernel;
+
+/**
+ * Compares the branch-free RangeFilterKernel with a plain scalar loop
+ * (one branch per predicate per row) evaluating the same range filters
+ * over the same columns. Not run as part of the unit tests; run it
+ * directly:
+ * <pre>
+ * java awesomecars.test.RangeFilterBenchmark [vehicles]
+ * </pre>
+ *
+ * @author Travis
+ */
+public final class RangeFilterBenchmark {
+
+    /** Default number of vehicles. */
+    public static final int DEFAULT_VEHICLES = 1000000;
+
+    /** Rows evaluated (per implementation) before each timing. */
+    public static final long WARMUP_ROWS = 500000000L;
+
+    /** Rounds timed. */
+    public static final int TIMED_ROUNDS = 200;
+
+    /** Keeps results reachable so the JIT cannot eliminate the work. */
+    private static volatile long sink;
+
+    /** Utility class should not have a public or default constructor. */
+    private RangeFilterBenchmark() { 
+        super();
+    }
+
+    /**
+     * The scalar baseline: tests each predicate with a branch.
+     * @param c the columns
+     * @param s the search
+     * @param bits bitmask to fill (one bit per row)
+     */
+    private static void scalar(final InventoryColumns c,
+            final AdvancedSearch s, final long[] bits) {
+        int[] price = c.getPrice();
+        int[] year = c.getYear();
+        int[] miles = c.getMiles();
+        int[] mpgCity = c.getMpgCity();
+        int[] usedMask = c.getUsedMask();
+        for (int row = 0; row < c.size(); row++) {
+            if (price[row] < s.getMinPrice() 
+                    || price[row] > s.getMaxPrice()
+                    || mpgCity[row] < s.getMinMPGCity()) {
+                continue;
+            }
+            if (usedMask[row] != 0 && (year[row] < s.getMinYear() 
+                    || miles[row] > s.getMaxMiles())) {
+                continue;
+            }
+            bits[row >>> 6] |= 1L << row;
+        }
+    }   // end scalar(...)
+
+    /**
+     * Times the kernel and the scalar loop.
+     * @param label description of the data
+     * @param columns the columns
+     * @param search the search
+     */
+    private static void run(final String label, 
+            final InventoryColumns columns, final AdvancedSearch search) {
+        int vehicles = columns.size();
+        for (long i = 0; i < WARMUP_ROWS / vehicles; i++) {
+            sink += RangeFilterKernel.evaluate(columns, search, 0, 
+                    vehicles)[0];
+            long[] bits = new long[InventoryColumns.words(vehicles)];
+            scalar(columns, search, bits);
+            sink += bits[0];
+        }
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_ROUNDS; i++) {
+            sink += RangeFilterKernel.evaluate(columns, search, 0, 
+                    vehicles)[0];
+        }
+        double kernel = (System.nanoTime() - start) / 1e6 / TIMED_ROUNDS;
+        
+        start = System.nanoTime();
+        for (int i = 0; i < TIMED_ROUNDS; i++) {
+            long[] bits = new long[InventoryColumns.words(vehicles)];
+            scalar(columns, search, bits);
+            sink += bits[0];
+        }
+        double loop = (System.nanoTime() - start) / 1e6 / TIMED_ROUNDS;
+        
+        System.out.println(String.format(
+                "%-16s kernel: %7.3f ms (%,.0f rows/ms)  "
+                + "scalar: %7.3f ms (%,.0f rows/ms)", label,
+                kernel, vehicles / kernel, loop, vehicles / loop));
+    }   // end run(...)
+
+    /**
+     * Shuffles the rows of every column (the same way).
+     * @param c the columns
+     */
+    private static void shuffle(final InventoryColumns c) {
+        int[][] all = {c.getYear(), c.getPrice(), c.getMiles(),
+            c.getMpgCity(), c.getMpgHwy(), c.getUsedMask()};
+        Random random = new Random(1);
+        for (int i = c.size() - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            for (int[] column : all) {
+                int t = column[i];
+                column[i] = column[j];
+                column[j] = t;
+            }
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     * @param args number of vehicles
+     */
+    public static void main(final String[] args) {
+        int vehicles = args.length > 0 
+                ? Integer.parseInt(args[0]) : DEFAULT_VEHICLES;
+        InventoryColumns columns = 
+                new InventoryColumns(BenchmarkInventory.build(vehicles));
+        
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("priceMin", new String[] {"8000"});
+        params.put("priceMax", new String[] {"30000"});
+        params.put("MPGCityMin", new String[] {"20"});
+        params.put("yearMin", new String[] {"2002"});
+        params.put("milesMax", new String[] {"80000"});
+        AdvancedSearch search = new AdvancedSearch(params);
+        
+        System.out.println(String.format("%d rows, 5 range predicates", 
+                vehicles));
+        run("generated order", columns, search);
+        
+        // the generated columns repeat in short cycles, which suits the
+        // scalar loop's branch predictor; real inventory does not
+        shuffle(columns);
+        run("shuffled order", columns, search);
+    }   // end main(...)
+}   // end class RangeFilterBenchmark
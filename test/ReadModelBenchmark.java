@@ -0,0 +1,92 @@
+package awesomecars.test;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.SearchReadModel;
+import awesomecars.persistence.MySQLDatabaseAdapter;
+
+/**
+ * Compares advanced search latency against MySQL when the query joins
+ * the normalized tables and when it reads the flattened search table
+ * (SearchReadModel), for a few typical searches. The table is rebuilt
+ * first, so the user needs write access. Not run as part of the unit
+ * tests; run it directly:
+ * <pre>
+ * java awesomecars.test.ReadModelBenchmark url user password [searches]
+ * </pre>
+ *
+ * @author Travis
+ */
+public final class ReadModelBenchmark {
+
+    /** Default searches timed per query shape and plan. */
+    public static final int DEFAULT_SEARCHES = 200;
+
+    /** Searches run before timing. */
+    public static final int WARMUP_SEARCHES = 20;
+
+    /** Utility class should not have a public or default constructor. */
+    private ReadModelBenchmark() {
+        super();
+    }
+
+    /**
+     * Runs the benchmark.
+     * @param args database URL, user, password and number of searches
+     * @throws SQLException SQLException
+     */
+    public static void main(final String[] args) throws SQLException {
+        if (args.length < 3) {
+            System.out.println("Usage: ReadModelBenchmark url user password"
+                    + " [searches]");
+            return;
+        }
+        int searches = args.length > 3
+                ? Integer.parseInt(args[3]) : DEFAULT_SEARCHES;
+        MySQLDatabaseAdapter db = new MySQLDatabaseAdapter(
+                args[0], args[1], args[2], args[1], args[2]);
+        CarWebAppCache.getInstance().refreshCache(db);
+        new SearchReadModel(db).rebuild();
+
+        String make = CarWebAppCache.getInstance().getMakeList().get(0);
+        String[][][] shapes = {
+            {{"category", "used"}, {"priceMax", "20000"}},
+            {{"category", "used"}, {"make", make}, {"priceMin", "10000"},
+                {"priceMax", "30000"}, {"SortBy1", "price"}},
+            {{"category", "new"}, {"make", make}},
+            {{"yearMin", "2012"}, {"milesMax", "60000"},
+                {"SortBy1", "year"}, {"SortOrder1", "DESC"}}
+        };
+        for (String[][] shape : shapes) {
+            Map<String, String[]> params = new HashMap<String, String[]>();
+            for (String[] param : shape) {
+                params.put(param[0], new String[] {param[1]});
+            }
+            AdvancedSearch search = new AdvancedSearch(params);
+            System.out.println(Arrays.deepToString(shape));
+            for (boolean flat : new boolean[] {false, true}) {
+                String query = search.toSql(flat);
+                int rows = 0;
+                for (int i = 0; i < WARMUP_SEARCHES; i++) {
+                    rows = db.queryDatabase(query).size();
+                }
+                long[] nanos = new long[searches];
+                for (int i = 0; i < searches; i++) {
+                    long start = System.nanoTime();
+                    db.queryDatabase(query);
+                    nanos[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(nanos);
+                System.out.println(String.format(
+                        "  %-5s p50 %8.2f ms  p95 %8.2f ms  (%d rows)",
+                        flat ? "flat" : "join", nanos[searches / 2] / 1e6,
+                        nanos[searches * 95 / 100] / 1e6, rows));
+            }
+        }
+    }   // end main(...)
+}   // end class ReadModelBenchmark
@@ -0,0 +1,50 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import awesomecars.ReadinessState;
+
+/**
+ * Tests the readiness of the servlet's background components.
+ * @author Travis
+ */
+public class ReadinessStateTest {
+
+    /** Tests a node is ready only once every component is. */
+    @Test
+    public final void testReady() {
+        ReadinessState readiness = new ReadinessState();
+        assertTrue(readiness.isReady());
+        readiness.register("jdbc");
+        readiness.register("cache");
+        assertFalse(readiness.isReady());
+        assertFalse(readiness.isReady("jdbc"));
+        assertFalse(readiness.isReady("unknown"));
+        
+        readiness.markReady("jdbc");
+        assertTrue(readiness.isReady("jdbc"));
+        assertFalse(readiness.isReady());
+        readiness.markReady("cache");
+        assertTrue(readiness.isReady());
+    }
+
+    /** Tests a failed component can be retried into the ready state. */
+    @Test
+    public final void testFailedThenReady() {
+        ReadinessState readiness = new ReadinessState();
+        readiness.register("jdbc");
+        readiness.register("cache");
+        readiness.markFailed("jdbc", "connection refused");
+        assertEquals("jdbc: FAILED (connection refused)\ncache: WARMING\n",
+                readiness.describe());
+        
+        readiness.markReady("jdbc");
+        readiness.markReady("cache");
+        assertTrue(readiness.isReady());
+        assertEquals("jdbc: READY\ncache: READY\n", readiness.describe());
+    }
+}   // end class ReadinessStateTest
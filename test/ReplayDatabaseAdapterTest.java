@@ -0,0 +1,201 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.RecordingDatabaseAdapter;
+import awesomecars.persistence.ReplayDatabaseAdapter;
+import awesomecars.persistence.RowHandler;
+
+/**
+ * Tests that calls recorded by the RecordingDatabaseAdapter are served
+ * back the same by the memory-mapped ReplayDatabaseAdapter: tables,
+ * multiple result sets, null results and SQLExceptions.
+ * @author Travis
+ */
+public class ReplayDatabaseAdapterTest {
+
+    /** Rows returned for the query, with a null column. */
+    private static final JsonArray ROWS = Json.createArrayBuilder()
+            .add(Json.createObjectBuilder().add("VIN", "A1")
+                    .add("price", "12000").addNull("picture"))
+            .add(Json.createObjectBuilder().add("VIN", "B2")
+                    .add("price", "9500").add("picture", "b2.jpg"))
+            .build();
+
+    /** Number of calls of GetStoreDetails made so far. */
+    private int storeCalls = 0;
+
+    /** Database answering a fixed set of calls. */
+    private final IDatabaseAdapter db = new IDatabaseAdapter() {
+        @Override
+        public JsonArray queryDatabase(final String query)
+                throws SQLException {
+            return ROWS;
+        }
+
+        @Override
+        public long streamQuery(final String query, final int fetchSize,
+                final RowHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public JsonArray callStoredProcedure(final String procedure,
+                final Object... args) throws SQLException {
+            if ("Broken".equals(procedure)) {
+                throw new SQLException("deadlock", "40001", 1213);
+            }
+            if ("GetNothing".equals(procedure)) {
+                return null;
+            }
+            return Json.createArrayBuilder().add(Json.createObjectBuilder()
+                    .add("store_name", args[0] + "-" + (++storeCalls)))
+                    .build();
+        }
+
+        @Override
+        public List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+                final String procedure, final Object... args) {
+            List<ArrayList<String>> lists = new ArrayList<ArrayList<String>>();
+            lists.add(new ArrayList<String>(Arrays.asList("Ford", "Nissan")));
+            lists.add(new ArrayList<String>());
+            lists.add(new ArrayList<String>(Arrays.asList("Red", null)));
+            return lists;
+        }
+
+        @Override
+        public int updateDatabase(final String statement) {
+            return 0;
+        }
+    };
+
+    /** The log file. */
+    private File log;
+
+    /**
+     * Records one of each kind of call.
+     * @throws IOException IOException
+     * @throws SQLException SQLException
+     */
+    @Before
+    public final void setUp() throws IOException, SQLException {
+        log = File.createTempFile("database", ".log");
+        assertTrue(log.delete());
+        RecordingDatabaseAdapter recorder =
+                new RecordingDatabaseAdapter(db, log);
+        assertEquals(ROWS, recorder.queryDatabase("SELECT * FROM v"));
+        recorder.callStoredProcedure("GetStoreDetails", "Plano");
+        recorder.callStoredProcedure("GetStoreDetails", "Plano");
+        recorder.callStoredProcedure("GetStoreDetails", "Dallas");
+        assertNull(recorder.callStoredProcedure("GetNothing"));
+        recorder.callStoredProcedureMultipleResultSets("GetLookupLists");
+        try {
+            recorder.callStoredProcedure("Broken", 1);
+            fail("the recorder hid the exception");
+        } catch (SQLException e) {
+            assertEquals("deadlock", e.getMessage());
+        }
+        recorder.close();
+    }   // end setUp()
+
+    /**
+     * Deletes the log.
+     * @throws IOException IOException
+     */
+    @After
+    public final void tearDown() throws IOException {
+        if (!log.delete()) {
+            throw new IOException("Unable to delete " + log);
+        }
+    }
+
+    /**
+     * Tests every recorded call replays its result.
+     * @throws IOException IOException
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testRoundTrip() throws IOException, SQLException {
+        ReplayDatabaseAdapter replay = new ReplayDatabaseAdapter(log, false);
+        assertEquals(ROWS, replay.queryDatabase("SELECT * FROM v"));
+
+        // a call recorded twice is served in turn, wrapping around
+        assertEquals("Plano-1", replay.callStoredProcedure("GetStoreDetails",
+                "Plano").getJsonObject(0).getString("store_name"));
+        assertEquals("Plano-2", replay.callStoredProcedure("GetStoreDetails",
+                "Plano").getJsonObject(0).getString("store_name"));
+        assertEquals("Plano-1", replay.callStoredProcedure("GetStoreDetails",
+                "Plano").getJsonObject(0).getString("store_name"));
+        assertEquals("Dallas-3", replay.callStoredProcedure("GetStoreDetails",
+                "Dallas").getJsonObject(0).getString("store_name"));
+        assertNull(replay.callStoredProcedure("GetNothing"));
+        assertEquals(db.callStoredProcedureMultipleResultSets("GetLookupLists"),
+                replay.callStoredProcedureMultipleResultSets("GetLookupLists"));
+
+        try {
+            replay.callStoredProcedure("Broken", 1);
+            fail("the recorded exception was not replayed");
+        } catch (SQLException e) {
+            assertEquals("deadlock", e.getMessage());
+            assertEquals("40001", e.getSQLState());
+            assertEquals(1213, e.getErrorCode());
+        }
+        try {
+            replay.callStoredProcedure("GetStoreDetails", "Austin");
+            fail("a call that was never recorded was answered");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().startsWith("No recorded result"));
+        }
+    }   // end testRoundTrip()
+
+    /**
+     * Tests a log cut off in its last record replays the records before
+     * it, and a file that is not a log is rejected.
+     * @throws IOException IOException
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testTruncatedAndCorrupt() throws IOException,
+            SQLException {
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        ReplayDatabaseAdapter replay = new ReplayDatabaseAdapter(log, false);
+        assertEquals(ROWS, replay.queryDatabase("SELECT * FROM v"));
+        try {
+            replay.callStoredProcedure("Broken", 1);
+            fail("the truncated record was replayed");
+        } catch (SQLException e) {
+            assertTrue(e.getMessage().startsWith("No recorded result"));
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.writeInt(0);
+        }
+        try {
+            new ReplayDatabaseAdapter(log, false);
+            fail("a file without the log magic was replayed");
+        } catch (IOException e) {
+            assertEquals("Not a recorded database log", e.getMessage());
+        }
+    }   // end testTruncatedAndCorrupt()
+}   // end class ReplayDatabaseAdapterTest
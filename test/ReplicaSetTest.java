@@ -0,0 +1,178 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import awesomecars.persistence.ReplicaSet;
+
+/**
+ * Tests read routing over stand-in replicas: least-outstanding choice,
+ * failed and lagging replicas taken out and brought back, and hedged
+ * reads for slow replicas.
+ * @author Travis
+ */
+public class ReplicaSetTest {
+
+    /** Delay of each database's reads (ms), by URL. */
+    private final Map<String, Long> delays =
+            new ConcurrentHashMap<String, Long>();
+
+    /** Databases whose reads fail, by URL. */
+    private final Map<String, Boolean> failing =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /** Reads answer with the URL of the database that served them. */
+    private final ReplicaSet.Call<String> whoAnswers =
+            new ReplicaSet.Call<String>() {
+        @Override
+        public String call(final ReplicaSet.Replica db)
+                throws SQLException {
+            Long delay = delays.get(db.getUrl());
+            if (delay != null) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+            }
+            if (failing.containsKey(db.getUrl())) {
+                throw new SQLException("down");
+            }
+            return db.getUrl();
+        }
+    };
+
+    /** The set under test. */
+    private ReplicaSet set;
+
+    /** Stops the set's threads. */
+    @After
+    public final void tearDown() {
+        if (set != null) {
+            set.close();
+        }
+    }
+
+    /**
+     * Tests reads go to the replica with the fewest reads outstanding and
+     * to the primary when every replica is down.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testLeastOutstanding() throws Exception {
+        set = new ReplicaSet("primary", Arrays.asList("a", "b"), false, 30);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        Thread busy = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    set.read(new ReplicaSet.Call<String>() {
+                        @Override
+                        public String call(final ReplicaSet.Replica db) {
+                            started.countDown();
+                            try {
+                                finish.await();
+                            } catch (InterruptedException e) {
+                                return null;
+                            }
+                            return db.getUrl();
+                        }
+                    });
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        busy.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals("b", set.read(whoAnswers));
+        finish.countDown();
+        busy.join();
+
+        set.checkLag(new ReplicaSet.LagProbe() {
+            @Override
+            public long lagSeconds(final ReplicaSet.Replica db) {
+                return -1L;
+            }
+        });
+        assertEquals("primary", set.read(whoAnswers));
+    }
+
+    /**
+     * Tests a failed read is retried on another replica and the failed
+     * one is kept out, and a lagging replica is kept out until it has
+     * caught up.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testMarkDownAndRecover() throws SQLException {
+        set = new ReplicaSet("primary", Arrays.asList("a", "b"), false, 30);
+        failing.put("a", true);
+        assertEquals("b", set.read(whoAnswers));
+        ReplicaSet.Replica a = set.getReplicas().get(0);
+        assertFalse(a.isUp());
+        failing.clear();
+        assertEquals("b", set.read(whoAnswers));
+
+        final Map<String, Long> lags = new ConcurrentHashMap<String, Long>();
+        ReplicaSet.LagProbe probe = new ReplicaSet.LagProbe() {
+            @Override
+            public long lagSeconds(final ReplicaSet.Replica db) {
+                return lags.containsKey(db.getUrl())
+                        ? lags.get(db.getUrl()) : 0L;
+            }
+        };
+        ReplicaSet.Replica b = set.getReplicas().get(1);
+        lags.put("b", 120L);
+        set.checkLag(probe);
+        assertFalse(b.isUp());
+        lags.put("b", 1L);
+        set.checkLag(probe);
+        assertTrue(b.isUp());
+    }
+
+    /**
+     * Tests a read slower than the replica's p95 is also sent to the
+     * other replica, whose answer wins, and the slow read is cancelled
+     * without marking its replica down.
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testHedgedRead() throws Exception {
+        set = new ReplicaSet("primary", Arrays.asList("a", "b"), true, 30);
+        delays.put("a", 1L);
+        delays.put("b", 1L);
+        for (int i = 0; i < 2 * ReplicaSet.MIN_SAMPLES; i++) {
+            set.read(whoAnswers);
+        }
+        assertTrue(set.getReplicas().get(0).getP95Nanos() > 0);
+        long hedged = set.getHedgedReads();
+
+        // ties go to the first replica, which is now slow
+        delays.put("a", 2000L);
+        long start = System.nanoTime();
+        assertEquals("b", set.read(whoAnswers));
+        assertTrue(System.nanoTime() - start
+                < TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals(hedged + 1, set.getHedgedReads());
+
+        ReplicaSet.Replica slow = set.getReplicas().get(0);
+        for (int i = 0; i < 100 && slow.getOutstanding() > 0; i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0, slow.getOutstanding());
+        assertTrue(slow.isUp());
+    }
+}   // end class ReplicaSetTest
@@ -0,0 +1,227 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import awesomecars.model.AlertOutbox;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.InventoryFilter;
+import awesomecars.model.OffHeapVehicleStore;
+import awesomecars.model.SavedSearch;
+import awesomecars.model.SavedSearchRepository;
+import awesomecars.model.SearchPercolator;
+import awesomecars.model.VehicleView;
+
+/**
+ * Tests saved-search percolation against testing every search with the
+ * in-memory filter, and the saved-search log and alert outbox.
+ * @author Travis
+ */
+public class SavedSearchTest {
+
+    /** Number of vehicles in the inventory. */
+    public static final int NUM_VEHICLES = 600;
+
+    /** Number of saved searches. */
+    public static final int NUM_SEARCHES = 3000;
+
+    /** The inventory. */
+    private static OffHeapVehicleStore store;
+
+    /**
+     * Loads the inventory and the cache (used to validate searches).
+     * @throws SQLException SQLException
+     */
+    @BeforeClass
+    public static void setUpBeforeClass() throws SQLException {
+        InMemoryDatabaseAdapter db = new InMemoryDatabaseAdapter(NUM_VEHICLES);
+        CarWebAppCache.getInstance().refreshCache(db);
+        store = OffHeapVehicleStore.loadFromDatabase(db);
+    }
+
+    /** Stops alerting. */
+    @AfterClass
+    public static void tearDownAfterClass() {
+        SavedSearchRepository.shutdown();
+    }
+
+    /**
+     * @param r random numbers
+     * @param values values to choose from
+     * @return one or two of the values
+     */
+    private static String[] some(final Random r, final String[] values) {
+        String a = values[r.nextInt(values.length)];
+        String b = values[r.nextInt(values.length)];
+        return a.equals(b) ? new String[] {a} : new String[] {a, b};
+    }
+
+    /**
+     * Generates a search restricting a random few criteria.
+     * @param r random numbers
+     * @return search parameters
+     */
+    private static Map<String, String[]> randomSearch(final Random r) {
+        Map<String, String[]> p = new HashMap<String, String[]>();
+        if (r.nextInt(3) == 0) {
+            p.put("category", new String[] {r.nextBoolean() ? "new" : "used"});
+        }
+        if (r.nextInt(3) == 0) {
+            // models are only chosen along with makes, as on the form
+            p.put("make", some(r, InMemoryDatabaseAdapter.MAKES));
+            if (r.nextBoolean()) {
+                p.put("model", some(r, 
+                        InMemoryDatabaseAdapter.MODELS[r.nextInt(3)]));
+            }
+        }
+        if (r.nextInt(3) == 0) {
+            p.put("style", some(r, InMemoryDatabaseAdapter.BODY_STYLES));
+        }
+        if (r.nextInt(2) == 0) {
+            int min = 5000 + r.nextInt(40000);
+            p.put("priceMin", new String[] {String.valueOf(min)});
+            p.put("priceMax", new String[] {
+                String.valueOf(min + r.nextInt(r.nextBoolean() ? 8000 : 40000))
+            });
+        }
+        if (r.nextInt(3) == 0) {
+            p.put("location", some(r, InMemoryDatabaseAdapter.LOCATIONS));
+        }
+        if (r.nextInt(4) == 0) {
+            p.put("yearMin", new String[] {String.valueOf(1995 
+                    + r.nextInt(21))});
+        }
+        if (r.nextInt(4) == 0) {
+            p.put("milesMax", new String[] {String.valueOf(
+                    r.nextInt(150000))});
+        }
+        if (r.nextInt(4) == 0) {
+            p.put("transmission", new String[] {
+                r.nextBoolean() ? "manual" : "automatic"
+            });
+        }
+        if (r.nextInt(4) == 0) {
+            p.put("extColor", some(r, InMemoryDatabaseAdapter.EXT_COLORS));
+        }
+        if (r.nextInt(4) == 0) {
+            p.put("MPGCityMin", new String[] {String.valueOf(
+                    15 + r.nextInt(20))});
+        }
+        return p;
+    }   // end randomSearch(...)
+
+    /**
+     * Tests every vehicle's matches against testing each search with an
+     * InventoryFilter, and that only a fraction of the searches are
+     * candidates.
+     */
+    @Test
+    public final void testPercolate() {
+        Random r = new Random(43L);
+        SearchPercolator percolator = new SearchPercolator();
+        List<SavedSearch> all = new ArrayList<SavedSearch>();
+        List<InventoryFilter> filters = new ArrayList<InventoryFilter>();
+        for (int i = 1; i <= NUM_SEARCHES; i++) {
+            SavedSearch s = new SavedSearch(i, "owner" + i, randomSearch(r));
+            percolator.add(s);
+            all.add(s);
+            filters.add(new InventoryFilter(store, s.getSearch()));
+        }
+        assertEquals(NUM_SEARCHES, percolator.size());
+        
+        long candidates = 0;
+        long matches = 0;
+        for (int row = 0; row < store.size(); row++) {
+            VehicleView v = store.view(row);
+            List<Long> expected = new ArrayList<Long>();
+            for (int i = 0; i < all.size(); i++) {
+                if (filters.get(i).matches(row)) {
+                    expected.add(all.get(i).getId());
+                }
+            }
+            List<Long> found = new ArrayList<Long>();
+            for (SavedSearch s : percolator.match(v)) {
+                found.add(s.getId());
+            }
+            Collections.sort(found);
+            assertEquals(expected, found);
+            candidates += percolator.candidates(v).size();
+            matches += found.size();
+        }
+        assertTrue(matches > 0);
+        // only three makes and body styles here, so candidates are still
+        // a large share of the searches
+        assertTrue("candidates " + candidates, 
+                candidates < (long) NUM_SEARCHES * store.size() * 2 / 3);
+        
+        assertTrue(percolator.remove(1L) != null);
+        assertEquals(NUM_SEARCHES - 1, percolator.size());
+        for (int row = 0; row < store.size(); row++) {
+            for (SavedSearch s : percolator.candidates(store.view(row))) {
+                assertTrue(s.getId() != 1L);
+            }
+        }
+    }   // end testPercolate()
+
+    /**
+     * Tests saved searches survive a reload of their log and matching
+     * vehicles are written to the outbox.
+     * @throws IOException IOException
+     */
+    @Test
+    public final void testLogAndOutbox() throws IOException {
+        File log = File.createTempFile("saved-searches", ".log");
+        File outbox = File.createTempFile("alerts", ".outbox");
+        log.deleteOnExit();
+        outbox.deleteOnExit();
+        assertTrue(log.delete());
+        
+        SavedSearchRepository.initRepository(log, new AlertOutbox(outbox));
+        Map<String, String[]> fords = new HashMap<String, String[]>();
+        fords.put("make", new String[] {"Ford"});
+        long kept = SavedSearchRepository.save("a@example.com", fords)
+                .getId();
+        Map<String, String[]> suvs = new HashMap<String, String[]>();
+        suvs.put("style", new String[] {"SUV"});
+        long deleted = SavedSearchRepository.save("b@example.com", suvs)
+                .getId();
+        assertTrue(SavedSearchRepository.delete(deleted));
+        assertFalse(SavedSearchRepository.delete(deleted));
+        
+        // reload from the log
+        SavedSearchRepository.initRepository(log, new AlertOutbox(outbox));
+        SearchPercolator p = SavedSearchRepository.getPercolator();
+        assertEquals(1, p.size());
+        assertEquals("a@example.com", p.get(kept).getOwner());
+        assertEquals("Ford", p.get(kept).getParams().get("make")[0]);
+        
+        // row 0 is a Ford (makes cycle), row 1 is not
+        int[] rows = {0, 1};
+        int[] oldPrices = {-1, 123};
+        assertEquals(1, SavedSearchRepository.percolate(store, rows, 
+                oldPrices, rows.length));
+        List<String> lines = Files.readAllLines(outbox.toPath(), 
+                StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"owner\":\"a@example.com\""));
+        assertTrue(lines.get(0).contains("\"event\":\"added\""));
+        assertTrue(lines.get(0).contains(store.view(0).getVin()));
+    }   // end testLogAndOutbox()
+}   // end class SavedSearchTest
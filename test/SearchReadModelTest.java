@@ -0,0 +1,201 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.SearchReadModel;
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.JsonRows;
+import awesomecars.persistence.RowHandler;
+
+/**
+ * Tests the flattened search table: the advanced search query against it
+ * needs no joins, and the refresh job patches it between full rebuilds.
+ * @author Travis
+ */
+public class SearchReadModelTest {
+
+    /** Answers the cache's stored procedures. */
+    private final InMemoryDatabaseAdapter base =
+            new InMemoryDatabaseAdapter(1);
+
+    /** Statements sent to the database, in order. */
+    private final List<String> updates = new ArrayList<String>();
+
+    /** High-water marks handed out so far. */
+    private int marks = 0;
+
+    /** Database answering every query with the next high-water mark. */
+    private final IDatabaseAdapter db = new IDatabaseAdapter() {
+        @Override
+        public JsonArray queryDatabase(final String query) {
+            marks++;
+            return Json.createArrayBuilder().add(Json.createObjectBuilder()
+                    .add("high_water_mark", String.format(
+                            "2024-01-01 00:00:%02d.000000", marks % 60)))
+                    .build();
+        }
+
+        @Override
+        public long streamQuery(final String query, final int fetchSize,
+                final RowHandler handler) throws IOException {
+            return JsonRows.stream(queryDatabase(query), handler);
+        }
+
+        @Override
+        public JsonArray callStoredProcedure(final String procedure,
+                final Object... args) throws SQLException {
+            return base.callStoredProcedure(procedure, args);
+        }
+
+        @Override
+        public List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+                final String procedure, final Object... args)
+                throws SQLException {
+            return base.callStoredProcedureMultipleResultSets(procedure,
+                    args);
+        }
+
+        @Override
+        public int updateDatabase(final String statement) {
+            updates.add(statement);
+            return 1;
+        }
+    };
+
+    /**
+     * Loads the cache the searches are validated against.
+     * @throws SQLException SQLException
+     */
+    @Before
+    public final void setUp() throws SQLException {
+        CarWebAppCache.getInstance().refreshCache(base);
+    }
+
+    /**
+     * Tests the flat query reads only the search table, with the same
+     * filters as the join.
+     */
+    @Test
+    public final void testFlatQuery() {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("make", new String[] {"Ford"});
+        params.put("priceMax", new String[] {"20000"});
+        params.put("yearMin", new String[] {"2010"});
+        AdvancedSearch search = new AdvancedSearch(params);
+
+        String join = search.toSql(false);
+        String flat = search.toSql(true);
+        assertEquals(search.toString(), join);
+        assertTrue(join.contains("t1.Make_name = \"Ford\""));
+        assertTrue(flat.contains("FROM " + SearchReadModel.TABLE + " f "));
+        assertTrue(flat.contains("f.Make_name = \"Ford\""));
+        assertTrue(flat.contains("f.price <= 20000"));
+        assertTrue(flat.contains("GROUP BY f.model_name"));
+        assertFalse(flat.contains("vehicle_make"));
+        assertFalse(flat.matches("(?s).*\\bt[1-5]\\..*"));
+    }
+
+    /**
+     * Tests the table's primary key, read from the statement that creates
+     * it, is unique over inventory rows with a vehicle stocked at two
+     * stores, where the VIN alone is not (the patch statement's REPLACE
+     * relies on the same key).
+     */
+    @Test
+    public final void testKeyAllowsMultiStoreVehicles() {
+        String create = null;
+        for (String statement : SearchReadModel.rebuildStatements()) {
+            if (statement.startsWith("CREATE TABLE " + SearchReadModel.TABLE
+                    + "_new (")) {
+                create = statement;
+            }
+        }
+        Matcher m = Pattern.compile("PRIMARY KEY \\(([^)]*)\\)")
+                .matcher(create);
+        assertTrue(m.find());
+        String[] key = m.group(1).split(",\\s*");
+
+        List<JsonObject> rows = new ArrayList<JsonObject>();
+        for (int i = 0; i < 30; i++) {
+            rows.add(InMemoryDatabaseAdapter.makeVehicleRow(i));
+        }
+        JsonObjectBuilder copy = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> e : rows.get(3).entrySet()) {
+            copy.add(e.getKey(), e.getValue());
+        }
+        rows.add(copy.add("store_name", "Elsewhere").build());
+
+        Set<String> keys = new HashSet<String>();
+        Set<String> vins = new HashSet<String>();
+        for (JsonObject row : rows) {
+            StringBuilder sb = new StringBuilder();
+            for (String column : key) {
+                sb.append(row.getString(column.toLowerCase())).append('\n');
+            }
+            assertTrue(sb.toString(), keys.add(sb.toString()));
+            vins.add(row.getString("vin"));
+        }
+        assertEquals(rows.size() - 1, vins.size());
+    }
+
+    /**
+     * Tests the first refresh builds the table by swapping in a shadow
+     * copy, later ones patch it from the previous high-water mark, and a
+     * full rebuild runs every PATCHES_PER_REBUILD refreshes.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testRefresh() throws SQLException {
+        SearchReadModel model = new SearchReadModel(db);
+        assertFalse(model.isReady());
+        model.refresh();
+        assertTrue(model.isReady());
+        String[] rebuild = SearchReadModel.rebuildStatements();
+        assertEquals(rebuild.length, updates.size());
+        assertTrue(updates.get(rebuild.length - 2).startsWith(
+                "RENAME TABLE " + SearchReadModel.TABLE + " TO "));
+
+        updates.clear();
+        assertEquals(1, model.refresh());
+        assertEquals(SearchReadModel.patchStatement(
+                "2024-01-01 00:00:01.000000"), updates.get(0));
+        model.refresh();
+        assertEquals(SearchReadModel.patchStatement(
+                "2024-01-01 00:00:02.000000"), updates.get(1));
+        assertTrue(updates.get(1).startsWith(
+                "REPLACE INTO " + SearchReadModel.TABLE));
+
+        updates.clear();
+        for (int i = 2; i < SearchReadModel.PATCHES_PER_REBUILD - 1; i++) {
+            model.refresh();
+        }
+        assertEquals(SearchReadModel.PATCHES_PER_REBUILD - 3, updates.size());
+        model.refresh();
+        assertEquals(SearchReadModel.PATCHES_PER_REBUILD - 3 + rebuild.length,
+                updates.size());
+    }
+}   // end class SearchReadModelTest
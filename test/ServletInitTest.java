@@ -0,0 +1,76 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+import javax.servlet.ServletException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.MockServletConfig;
+
+import awesomecars.AwesomeCarsServlet;
+import awesomecars.ReadinessState;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.DealershipRepository;
+import awesomecars.persistence.RecordingDatabaseAdapter;
+
+/**
+ * Tests the servlet's background initialization against a database log
+ * recorded from the test database, so no MySQL server is needed.
+ * @author Travis
+ */
+public class ServletInitTest {
+
+    /** Longest time to wait for the servlet to become ready. */
+    private static final long READY_MILLIS = 10000L;
+
+    /** Servlet under test. */
+    private final AwesomeCarsServlet servlet = new AwesomeCarsServlet();
+
+    /** Takes the servlet out of service. */
+    @After
+    public final void tearDown() {
+        servlet.destroy();
+    }
+
+    /**
+     * Tests every component registered at init becomes ready.
+     * @throws IOException IOException
+     * @throws SQLException SQLException
+     * @throws ServletException ServletException
+     * @throws InterruptedException InterruptedException
+     */
+    @Test
+    public final void testInitBecomesReady() throws IOException, 
+            SQLException, ServletException, InterruptedException {
+        File log = File.createTempFile("database", ".log");
+        log.deleteOnExit();
+        assertTrue(log.delete());
+        RecordingDatabaseAdapter recorder = new RecordingDatabaseAdapter(
+                new InMemoryDatabaseAdapter(100), log);
+        assertTrue(CarWebAppCache.getInstance().refreshCache(recorder));
+        DealershipRepository.initRepository(recorder);
+        assertEquals(InMemoryDatabaseAdapter.LOCATIONS.length,
+                DealershipRepository.getAllStoreDetails().size());
+        recorder.close();
+        
+        MockServletConfig config = new MockServletConfig();
+        config.addInitParameter("dbReplayFile", log.getPath());
+        config.addInitParameter("zipCentroidFile", 
+                new File(log.getPath() + ".missing").getPath());
+        servlet.init(config);
+        ReadinessState readiness = (ReadinessState) 
+                config.getServletContext().getAttribute("readiness");
+        long stop = System.currentTimeMillis() + READY_MILLIS;
+        while (!readiness.isReady() && System.currentTimeMillis() < stop) {
+            Thread.sleep(10L);
+        }
+        assertTrue(readiness.describe(), readiness.isReady());
+        assertEquals("jdbc: READY\ncache: READY\n", readiness.describe());
+    }   // end testInitBecomesReady()
+}   // end class ServletInitTest
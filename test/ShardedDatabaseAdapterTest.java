@@ -0,0 +1,314 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import awesomecars.beans.AdvancedSearch;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.persistence.IDatabaseAdapter;
+import awesomecars.persistence.JsonRows;
+import awesomecars.persistence.RowHandler;
+import awesomecars.persistence.ShardedDatabaseAdapter;
+
+/**
+ * Tests the sharded adapter over three in-process shards, each holding
+ * some of the stores: location-filtered searches reach only the owning
+ * shards, other searches are merged in sort order, and used vehicles are
+ * found through the VIN directory.
+ * @author Travis
+ */
+public class ShardedDatabaseAdapterTest {
+
+    /** Number of vehicles over all shards. */
+    public static final int NUM_VEHICLES = 300;
+
+    /** Stores of each shard. */
+    private static final String[][] SHARD_STORES = {
+        {"Arlington", "Austin"}, {"Dallas", "Fort Worth"}, {"Plano"}};
+
+    /** Answers the cache's stored procedures. */
+    private final InMemoryDatabaseAdapter base =
+            new InMemoryDatabaseAdapter(1);
+
+    /** The shards. */
+    private final List<Shard> shards = new ArrayList<Shard>();
+
+    /** The adapter under test. */
+    private ShardedDatabaseAdapter db;
+
+    /**
+     * Stand-in for one shard's database. Queries return the shard's
+     * vehicles ordered by price and cut to the query's LIMIT, as MySQL
+     * would for the searches in these tests.
+     */
+    private static final class Shard implements IDatabaseAdapter {
+
+        /** LIMIT clause. */
+        private static final Pattern LIMIT = Pattern.compile("LIMIT (\\d+)");
+
+        /** Stores held. */
+        private final Set<String> stores;
+
+        /** Vehicles held, by price. */
+        private final List<JsonObject> rows = new ArrayList<JsonObject>();
+
+        /** Calls received. */
+        private final AtomicInteger calls = new AtomicInteger();
+
+        /** True while the shard is down (its calls return null). */
+        private volatile boolean down = false;
+
+        /** @param names stores held */
+        Shard(final String... names) {
+            stores = new HashSet<String>(Arrays.asList(names));
+            for (int i = 0; i < NUM_VEHICLES; i++) {
+                JsonObject row = InMemoryDatabaseAdapter.makeVehicleRow(i);
+                if (stores.contains(row.getString("store_name"))) {
+                    rows.add(row);
+                }
+            }
+            Collections.sort(rows, new Comparator<JsonObject>() {
+                @Override
+                public int compare(final JsonObject a, final JsonObject b) {
+                    return Integer.compare(
+                            Integer.parseInt(a.getString("price")),
+                            Integer.parseInt(b.getString("price")));
+                }
+            });
+        }
+
+        @Override
+        public JsonArray queryDatabase(final String query) {
+            calls.incrementAndGet();
+            if (down) {
+                return null;
+            }
+            Matcher m = LIMIT.matcher(query);
+            int limit = m.find() ? Integer.parseInt(m.group(1))
+                    : rows.size();
+            return toArray(rows.subList(0, Math.min(limit, rows.size())));
+        }
+
+        @Override
+        public long streamQuery(final String query, final int fetchSize,
+                final RowHandler handler) throws IOException {
+            return JsonRows.stream(queryDatabase(query), handler);
+        }
+
+        @Override
+        public JsonArray callStoredProcedure(final String procedure,
+                final Object... args) {
+            calls.incrementAndGet();
+            if (down) {
+                return null;
+            }
+            List<JsonObject> result = new ArrayList<JsonObject>();
+            if ("GetAllStoreDetails".equals(procedure)) {
+                for (String store : stores) {
+                    result.add(Json.createObjectBuilder()
+                            .add("store_name", store).build());
+                }
+            } else if ("GetUsedVehicle".equals(procedure)) {
+                for (JsonObject row : rows) {
+                    if (row.getString("vin").equals(args[0])) {
+                        result.add(row);
+                    }
+                }
+            }
+            return toArray(result);
+        }
+
+        @Override
+        public List<ArrayList<String>> callStoredProcedureMultipleResultSets(
+                final String procedure, final Object... args) {
+            List<ArrayList<String>> lists = new ArrayList<ArrayList<String>>();
+            lists.add(new ArrayList<String>(stores));
+            return lists;
+        }
+
+        @Override
+        public int updateDatabase(final String statement) {
+            return 0;
+        }
+    }   // end class Shard
+
+    /**
+     * @param rows rows
+     * @return the rows as a JsonArray
+     */
+    private static JsonArray toArray(final List<JsonObject> rows) {
+        JsonArrayBuilder b = Json.createArrayBuilder();
+        for (JsonObject row : rows) {
+            b.add(row);
+        }
+        return b.build();
+    }
+
+    /**
+     * Creates the shards and loads the cache.
+     * @throws SQLException SQLException
+     */
+    @Before
+    public final void setUp() throws SQLException {
+        CarWebAppCache.getInstance().refreshCache(base);
+        List<IDatabaseAdapter> dbs = new ArrayList<IDatabaseAdapter>();
+        for (String[] stores : SHARD_STORES) {
+            Shard shard = new Shard(stores);
+            shards.add(shard);
+            dbs.add(shard);
+        }
+        db = new ShardedDatabaseAdapter(dbs);
+        db.refreshStores();
+        for (Shard shard : shards) {
+            shard.calls.set(0);
+        }
+    }
+
+    /** Stops the adapter's threads. */
+    @After
+    public final void tearDown() {
+        db.close();
+    }
+
+    /**
+     * @param pairs parameter names and values
+     * @return the search's SQL
+     */
+    private static String search(final String... pairs) {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            params.put(pairs[i], new String[] {pairs[i + 1]});
+        }
+        return new AdvancedSearch(params).toString();
+    }
+
+    /**
+     * Tests a search filtered to one shard's stores only reaches it.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testLocationRouting() throws SQLException {
+        assertEquals(Integer.valueOf(2), db.getStoreShards().get("Plano"));
+        JsonArray results = db.queryDatabase(search("location", "Plano",
+                "SortBy1", "price", "SortOrder1", "ASC"));
+        assertEquals(shards.get(2).rows.size(), results.size());
+        assertEquals(0, shards.get(0).calls.get());
+        assertEquals(0, shards.get(1).calls.get());
+        assertEquals(1, shards.get(2).calls.get());
+    }
+
+    /**
+     * Tests an unfiltered search reaches every shard and the answers are
+     * merged in price order, cut to the limit, with one row per new
+     * model.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testScatterGather() throws SQLException {
+        JsonArray results = db.queryDatabase(search("SortBy1", "price",
+                "SortOrder1", "ASC", "limit", "40"));
+        for (Shard shard : shards) {
+            assertEquals(1, shard.calls.get());
+        }
+        assertEquals(40, results.size());
+        int previous = Integer.MIN_VALUE;
+        Set<String> newModels = new HashSet<String>();
+        for (JsonValue v : results) {
+            JsonObject row = (JsonObject) v;
+            int price = Integer.parseInt(row.getString("price"));
+            assertTrue(price >= previous);
+            previous = price;
+            if ("New".equals(row.getString("category"))) {
+                assertTrue(newModels.add(row.getString("model_name")));
+            }
+        }
+    }
+
+    /**
+     * Tests a used vehicle seen in a search is fetched from its shard
+     * alone, and an unseen one is found by asking every shard once.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testVinDirectory() throws SQLException {
+        JsonObject seen = shards.get(1).rows.get(0);
+        String vin = seen.getString("vin");
+        String unseen = shards.get(0).rows.get(
+                shards.get(0).rows.size() - 1).getString("vin");
+        db.queryDatabase(search("location", "Dallas", "SortBy1", "price",
+                "SortOrder1", "ASC", "limit", "1"));
+        assertEquals(1, db.getVinShard(vin));
+        assertEquals(-1, db.getVinShard(unseen));
+
+        for (Shard shard : shards) {
+            shard.calls.set(0);
+        }
+        assertEquals(seen, db.callStoredProcedure("GetUsedVehicle", vin)
+                .getJsonObject(0));
+        assertEquals(0, shards.get(0).calls.get());
+        assertEquals(1, shards.get(1).calls.get());
+
+        assertEquals(1, db.callStoredProcedure("GetUsedVehicle", unseen)
+                .size());
+        assertEquals(0, db.getVinShard(unseen));
+        for (Shard shard : shards) {
+            shard.calls.set(0);
+        }
+        db.callStoredProcedure("GetUsedVehicle", unseen);
+        assertEquals(1, shards.get(0).calls.get());
+        assertEquals(0, shards.get(2).calls.get());
+    }
+
+    /**
+     * Tests a shard that is down fails the whole call rather than
+     * leaving its rows out of an answer that looks complete.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testShardDown() throws SQLException {
+        shards.get(1).down = true;
+        assertNull(db.queryDatabase(search("SortBy1", "price",
+                "SortOrder1", "ASC", "limit", "40")));
+        assertNull(db.callStoredProcedure("GetUsedVehicle", "unknown"));
+        assertEquals(shards.get(2).rows.size(),
+                db.queryDatabase(search("location", "Plano")).size());
+    }
+
+    /**
+     * Tests lookup lists are the union of the shards' lists.
+     * @throws SQLException SQLException
+     */
+    @Test
+    public final void testLookupLists() throws SQLException {
+        List<ArrayList<String>> lists =
+                db.callStoredProcedureMultipleResultSets("GetLookupLists");
+        assertEquals(Arrays.asList(InMemoryDatabaseAdapter.LOCATIONS),
+                lists.get(0));
+    }
+}   // end class ShardedDatabaseAdapterTest
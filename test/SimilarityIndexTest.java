@@ -0,0 +1,182 @@
+package awesomecars.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import awesomecars.beans.Vehicle;
+import awesomecars.model.CarWebAppCache;
+import awesomecars.model.InventoryIndex;
+import awesomecars.model.InventoryRepository;
+import awesomecars.model.InventorySnapshot;
+import awesomecars.model.OffHeapVehicleStore;
+import awesomecars.model.SimilarityIndex;
+
+/**
+ * Tests similar-vehicle lookups against a brute-force ranking of the
+ * same inventory, before and after incremental changes.
+ * @author Travis
+ */
+public class SimilarityIndexTest {
+
+    /** Number of vehicles loaded initially. */
+    public static final int NUM_VEHICLES = 3000;
+
+    /** Number of vehicles asked for. */
+    public static final int N = 8;
+
+    /**
+     * Loads the inventory.
+     * @throws SQLException SQLException
+     */
+    @Before
+    public final void setUp() throws SQLException {
+        InMemoryDatabaseAdapter db = new InMemoryDatabaseAdapter(NUM_VEHICLES);
+        CarWebAppCache.getInstance().refreshCache(db);
+        InventoryRepository.initRepository(
+                OffHeapVehicleStore.loadFromDatabase(db));
+    }
+
+    /** Drops the inventory so later tests search the database. */
+    @After
+    public final void tearDown() {
+        InventoryRepository.clearRepository();
+    }
+
+    /**
+     * Ranks every candidate the slow way.
+     * @param v the version
+     * @param row the query row
+     * @param excludeModel true to leave out the row's model
+     * @return distances of the n most similar rows, nearest first
+     */
+    private static List<Double> bruteForce(final InventorySnapshot v,
+            final int row, final boolean excludeModel) {
+        final OffHeapVehicleStore store = v.getIndex().getStore();
+        final SimilarityIndex similar = v.getSimilar();
+        List<Integer> candidates = new ArrayList<Integer>();
+        int model = store.getInt(row, OffHeapVehicleStore.MODEL);
+        for (int r = 0; r < v.size(); r++) {
+            if (r != row && v.isLive(r) 
+                    && store.getInt(r, OffHeapVehicleStore.COUNT) > 0
+                    && !(excludeModel 
+                            && store.getInt(r, OffHeapVehicleStore.MODEL) 
+                            == model)) {
+                candidates.add(r);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return Double.compare(similar.distance(row, a), 
+                        similar.distance(row, b));
+            }
+        });
+        List<Double> distances = new ArrayList<Double>();
+        Set<Integer> newModels = new HashSet<Integer>();
+        for (int r : candidates) {
+            if (distances.size() == N) {
+                break;
+            }
+            if ("New".equals(store.getString(r, 
+                    OffHeapVehicleStore.CATEGORY)) 
+                    && !newModels.add(store.getInt(r, 
+                            OffHeapVehicleStore.MODEL))) {
+                continue;
+            }
+            distances.add(similar.distance(row, r));
+        }
+        return distances;
+    }   // end bruteForce(...)
+
+    /**
+     * Compares the index's answers for some rows with brute force.
+     * @param v the version
+     */
+    private static void check(final InventorySnapshot v) {
+        for (int row = 0; row < v.size(); row += 97) {
+            if (!v.isLive(row)) {
+                continue;
+            }
+            for (boolean excludeModel : new boolean[] {false, true}) {
+                int[] found = v.getSimilar().similar(v, row, N, 
+                        excludeModel);
+                List<Double> expected = bruteForce(v, row, excludeModel);
+                assertEquals(expected.size(), found.length);
+                for (int i = 0; i < found.length; i++) {
+                    assertTrue(v.isLive(found[i]));
+                    assertEquals(expected.get(i), 
+                            v.getSimilar().distance(row, found[i]), 1e-4);
+                }
+            }
+        }
+    }   // end check(...)
+
+    /** Tests lookups on the loaded inventory. */
+    @Test
+    public final void testSimilar() {
+        InventorySnapshot v = InventoryRepository.pin();
+        try {
+            check(v);
+        } finally {
+            v.unpin();
+        }
+        
+        String vin = String.format("VIN%014d", 4);
+        List<Vehicle> similar = InventoryRepository.similarToVin(vin, N);
+        assertEquals(N, similar.size());
+        for (Vehicle s : similar) {
+            assertTrue(!vin.equals(s.getVin()));
+        }
+        assertTrue(InventoryRepository.similarToVin("VIN?", N).isEmpty());
+        
+        String model = InMemoryDatabaseAdapter.makeVehicleRow(3)
+                .getString("model_name");
+        for (Vehicle s : InventoryRepository.similarToModel(model, N)) {
+            assertTrue(!model.equals(s.getModel()));
+        }
+    }   // end testSimilar()
+
+    /** Tests lookups after vehicles are added and sold. */
+    @Test
+    public final void testIncrementalUpdate() {
+        InventorySnapshot before = InventoryRepository.pin();
+        InventoryIndex index = before.getIndex();
+        // enough to rebuild some body styles' trees
+        int added = SimilarityIndex.DELTA_ROWS * 2;
+        for (int i = NUM_VEHICLES; i < NUM_VEHICLES + added; i++) {
+            index.add(new Vehicle(InMemoryDatabaseAdapter.makeVehicleRow(i)),
+                    String.format("VIN%014d", i));
+        }
+        int[] sold = new int[NUM_VEHICLES / 10];
+        for (int i = 0; i < sold.length; i++) {
+            sold[i] = i * 10 + 1;
+            index.remove(sold[i]);
+        }
+        assertTrue(InventoryRepository.publishChanges(index, sold, 
+                sold.length));
+        
+        InventorySnapshot after = InventoryRepository.pin();
+        try {
+            assertEquals(NUM_VEHICLES + added, after.getSimilar().size());
+            check(after);
+            // the pinned version still answers as it was
+            assertEquals(NUM_VEHICLES, before.getSimilar().size());
+            check(before);
+        } finally {
+            after.unpin();
+            before.unpin();
+        }
+    }   // end testIncrementalUpdate()
+}   // end class SimilarityIndexTest
@@ -2,6 +2,13 @@ package awesomecars.test;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.junit.Test;
 
 import awesomecars.beans.Vehicle;
@@ -93,4 +100,62 @@ public class VehicleTest {
         assertEquals(teststr, v.getTransmission());
     }
 
+    /** Tests the inventory keeps location order and replaces quantities. */
+    @Test
+    public final void testVehicleInventory() {
+        Vehicle v = new Vehicle();
+        v.setInventory("Tempe", 2);
+        v.setInventory("Chandler", 1);
+        v.setInventory("Tempe", 3);
+        
+        Map<String, Integer> expected = new TreeMap<String, Integer>();
+        expected.put("Chandler", 1);
+        expected.put("Tempe", 3);
+        assertEquals(expected, v.getInventory());
+        assertEquals("Chandler", v.getInventory().keySet().iterator().next());
+    }
+
+    /**
+     * Tests a vehicle survives serialization (dictionary ids are not
+     * serialized).
+     * @throws Exception Exception
+     */
+    @Test
+    public final void testVehicleSerialization() throws Exception {
+        Vehicle v = new Vehicle();
+        v.setMake("make");
+        v.setDescription("description");
+        v.setPrice(TEST_PRICE);
+        v.setImageURL("car.jpg");
+        v.setInventory("Tempe", 2);
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(v);
+        }
+        Vehicle copy;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (Vehicle) in.readObject();
+        }
+        assertEquals("make", copy.getMake());
+        assertEquals(null, copy.getModel());
+        assertEquals("description", copy.getDescription());
+        assertEquals("car.jpg", copy.getImageURL());
+        assertEquals(TEST_PRICE, copy.getPrice());
+        assertEquals(v.getInventory(), copy.getInventory());
+    }   // end testVehicleSerialization()
+
+    /** Tests values unique to a vehicle stay out of the dictionary. */
+    @Test
+    public final void testUniqueValuesNotInterned() {
+        Vehicle v = new Vehicle();
+        int size = Vehicle.getDictionary().size();
+        for (int i = 0; i < 100; i++) {
+            v.setImageURL("unique-" + i + ".jpg");
+            v.setVin("VIN" + i);
+        }
+        assertEquals("unique-99.jpg", v.getImageURL());
+        assertEquals(size, Vehicle.getDictionary().size());
+    }
 }